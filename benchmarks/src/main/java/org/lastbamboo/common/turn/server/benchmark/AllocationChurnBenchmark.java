@@ -0,0 +1,75 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.turn.server.TurnClientManagerImpl;
+import org.lastbamboo.common.turn.server.TurnServerConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures allocating and removing bindings in the real
+ * {@link TurnClientManagerImpl}, as clients come and go.  This includes
+ * binding and closing the relay's listening socket, which is most of the
+ * cost of an allocation.  It runs on several threads, since allocations
+ * arrive on all the I/O processors at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AllocationChurnBenchmark
+    {
+
+    private TurnClientManagerImpl m_manager;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        {
+        this.m_manager = new TurnClientManagerImpl(new TurnServerConfig());
+        }
+
+    /**
+     * The client addresses for each thread.
+     */
+    @State(Scope.Thread)
+    public static class Client
+        {
+        private int m_port;
+
+        private BenchmarkSession next()
+            {
+            this.m_port = (this.m_port + 1) & 0xFFFF;
+            return new BenchmarkSession(new InetSocketAddress(
+                "10.0." + (Thread.currentThread().getId() & 0xFF) + ".1",
+                this.m_port));
+            }
+        }
+
+    @Benchmark
+    public int allocateAndRemove(final Client client) throws IOException
+        {
+        final BenchmarkSession session = client.next();
+        this.m_manager.allocateBinding(session);
+        this.m_manager.removeBinding(session);
+
+        // Lets the reaper drop its timeout for the session.
+        session.close();
+        return this.m_manager.getNumTurnClients();
+        }
+    }
@@ -0,0 +1,139 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lastbamboo.common.turn.stub.IoSessionStub;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.CloseFuture;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.mina.common.WriteFuture;
+
+/**
+ * In-memory session for the benchmarks.  Unlike the test stub, this keeps
+ * attributes, since the filters cache per-session state in them.  Writes
+ * complete immediately -- we count the bytes and hand buffers straight back
+ * to the allocator, the way MINA would once they hit the socket.
+ */
+public class BenchmarkSession extends IoSessionStub
+    {
+
+    private final Map<String, Object> m_attributes =
+        new ConcurrentHashMap<String, Object>();
+
+    private final TransportType m_transportType;
+
+    private volatile boolean m_connected = true;
+
+    private long m_writtenBytes;
+
+    private long m_writtenMessages;
+
+    /**
+     * Creates a new TCP session.
+     *
+     * @param remoteAddress The address of the other side.
+     */
+    public BenchmarkSession(final InetSocketAddress remoteAddress)
+        {
+        this(remoteAddress, TransportType.SOCKET);
+        }
+
+    /**
+     * Creates a new session.
+     *
+     * @param remoteAddress The address of the other side.
+     * @param transportType The transport.
+     */
+    public BenchmarkSession(final InetSocketAddress remoteAddress,
+        final TransportType transportType)
+        {
+        super(remoteAddress);
+        this.m_transportType = transportType;
+        }
+
+    @Override
+    public WriteFuture write(final Object message)
+        {
+        this.m_writtenMessages++;
+        if (message instanceof ByteBuffer)
+            {
+            final ByteBuffer buffer = (ByteBuffer) message;
+            this.m_writtenBytes += buffer.remaining();
+            buffer.release();
+            }
+        return null;
+        }
+
+    @Override
+    public CloseFuture close()
+        {
+        this.m_connected = false;
+        return null;
+        }
+
+    @Override
+    public boolean isConnected()
+        {
+        return this.m_connected;
+        }
+
+    @Override
+    public TransportType getTransportType()
+        {
+        return this.m_transportType;
+        }
+
+    @Override
+    public long getLastIoTime()
+        {
+        return System.currentTimeMillis();
+        }
+
+    @Override
+    public Object getAttribute(final String key)
+        {
+        return this.m_attributes.get(key);
+        }
+
+    @Override
+    public Object setAttribute(final String key, final Object value)
+        {
+        if (value == null)
+            {
+            return this.m_attributes.remove(key);
+            }
+        return this.m_attributes.put(key, value);
+        }
+
+    @Override
+    public Object setAttribute(final String key)
+        {
+        return setAttribute(key, Boolean.TRUE);
+        }
+
+    @Override
+    public Object removeAttribute(final String key)
+        {
+        return this.m_attributes.remove(key);
+        }
+
+    @Override
+    public boolean containsAttribute(final String key)
+        {
+        return this.m_attributes.containsKey(key);
+        }
+
+    @Override
+    public long getWrittenBytes()
+        {
+        return this.m_writtenBytes;
+        }
+
+    @Override
+    public long getWrittenMessages()
+        {
+        return this.m_writtenMessages;
+        }
+    }
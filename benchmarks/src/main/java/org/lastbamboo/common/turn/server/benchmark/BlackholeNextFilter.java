@@ -0,0 +1,74 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IdleStatus;
+import org.littleshoot.mina.common.IoFilter.NextFilter;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoSession;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The end of a filter chain for the benchmarks.  Messages go to a JMH
+ * {@link Blackhole} so the JIT can't skip producing them, and buffers go
+ * back to the allocator the way they would after the real write.
+ */
+public final class BlackholeNextFilter implements NextFilter
+    {
+
+    private final Blackhole m_blackhole;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param blackhole The JMH blackhole to consume messages.
+     */
+    public BlackholeNextFilter(final Blackhole blackhole)
+        {
+        this.m_blackhole = blackhole;
+        }
+
+    public void messageReceived(final IoSession session, final Object message)
+        {
+        this.m_blackhole.consume(message);
+        if (message instanceof ByteBuffer)
+            {
+            ((ByteBuffer) message).release();
+            }
+        }
+
+    public void messageSent(final IoSession session, final Object message)
+        {
+        this.m_blackhole.consume(message);
+        }
+
+    public void filterWrite(final IoSession session,
+        final WriteRequest writeRequest)
+        {
+        messageReceived(session, writeRequest.getMessage());
+        }
+
+    public void sessionCreated(final IoSession session)
+        {
+        }
+
+    public void sessionOpened(final IoSession session)
+        {
+        }
+
+    public void sessionClosed(final IoSession session)
+        {
+        }
+
+    public void sessionIdle(final IoSession session, final IdleStatus status)
+        {
+        }
+
+    public void exceptionCaught(final IoSession session, final Throwable cause)
+        {
+        this.m_blackhole.consume(cause);
+        }
+
+    public void filterClose(final IoSession session)
+        {
+        }
+    }
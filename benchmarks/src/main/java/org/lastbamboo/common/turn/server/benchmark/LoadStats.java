@@ -0,0 +1,47 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.turn.server.metrics.Histogram;
+
+/**
+ * The relayed traffic the load generator has measured.
+ */
+final class LoadStats
+    {
+
+    private final AtomicLong m_bytes = new AtomicLong();
+
+    private final AtomicLong m_messages = new AtomicLong();
+
+    private final Histogram m_latency = new Histogram();
+
+    void received(final int bytes, final long latencyNanos)
+        {
+        this.m_bytes.addAndGet(bytes);
+        this.m_messages.incrementAndGet();
+        this.m_latency.record(latencyNanos);
+        }
+
+    void reset()
+        {
+        this.m_bytes.set(0);
+        this.m_messages.set(0);
+        this.m_latency.reset();
+        }
+
+    long getBytes()
+        {
+        return this.m_bytes.get();
+        }
+
+    long getMessages()
+        {
+        return this.m_messages.get();
+        }
+
+    Histogram getLatency()
+        {
+        return this.m_latency;
+        }
+    }
@@ -0,0 +1,79 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+/**
+ * Reassembles the fixed size messages the load generator sends from
+ * whatever chunks the relay delivers them in.  The first 8 bytes of every
+ * message are the <code>System.nanoTime()</code> it was due to be sent,
+ * which works as a one-way latency because both ends are in this JVM.
+ * Each stream belongs to a single reader thread.
+ */
+final class MessageStream
+    {
+
+    private final int m_messageSize;
+
+    private final LoadStats m_stats;
+
+    /**
+     * How far we are into the current message.
+     */
+    private int m_position;
+
+    private long m_timestamp;
+
+    MessageStream(final int messageSize, final LoadStats stats)
+        {
+        this.m_messageSize = messageSize;
+        this.m_stats = stats;
+        }
+
+    /**
+     * Reads relayed data.
+     *
+     * @param data The buffer holding the data.
+     * @param offset The index of the data in the buffer.
+     * @param length The length of the data.
+     */
+    void read(final byte[] data, final int offset, final int length)
+        {
+        int index = offset;
+        final int end = offset + length;
+        while (index < end)
+            {
+            while (this.m_position < 8 && index < end)
+                {
+                this.m_timestamp =
+                    (this.m_timestamp << 8) | (data[index] & 0xFF);
+                this.m_position++;
+                index++;
+                }
+            final int skip =
+                Math.min(end - index, this.m_messageSize - this.m_position);
+            this.m_position += skip;
+            index += skip;
+            if (this.m_position == this.m_messageSize)
+                {
+                this.m_stats.received(this.m_messageSize,
+                    System.nanoTime() - this.m_timestamp);
+                this.m_position = 0;
+                this.m_timestamp = 0;
+                }
+            }
+        }
+
+    /**
+     * Writes the timestamp at the start of a message.
+     *
+     * @param message The buffer holding the message.
+     * @param offset The index of the message in the buffer.
+     * @param timestamp The timestamp.
+     */
+    static void stamp(final byte[] message, final int offset,
+        final long timestamp)
+        {
+        for (int i = 0; i < 8; i++)
+            {
+            message[offset + i] = (byte) (timestamp >>> (56 - i * 8));
+            }
+        }
+    }
@@ -0,0 +1,88 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.turn.server.TurnServerConfig;
+import org.lastbamboo.common.turn.server.TurnWireFormat;
+import org.lastbamboo.common.turn.server.allocated.TurnRawDataFilter;
+import org.lastbamboo.common.turn.server.buffer.ByteBufferAllocators;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures framing data from remote hosts for the TURN client in the
+ * {@link TurnRawDataFilter}.  The read sizes cover a single small packet,
+ * a full Ethernet frame, a typical TCP read, and reads big enough that we
+ * have to split them into several Data Indications.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RawDataFilterBenchmark
+    {
+
+    @Param({"64", "1400", "16384", "65536", "200000"})
+    public int readSize;
+
+    /**
+     * How the data is framed: Data Indications, ChannelData, or not at all
+     * for an active destination.
+     */
+    @Param({"data", "channel", "active"})
+    public String framing;
+
+    @Param({ByteBufferAllocators.SIMPLE, ByteBufferAllocators.POOLED})
+    public String allocator;
+
+    private final TurnRawDataFilter m_filter = new TurnRawDataFilter();
+
+    private BenchmarkSession m_session;
+
+    private BlackholeNextFilter m_nextFilter;
+
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole blackhole)
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setBufferAllocator(this.allocator);
+        ByteBufferAllocators.install(config);
+
+        this.m_session =
+            new BenchmarkSession(new InetSocketAddress("127.0.0.1", 7777));
+        if ("channel".equals(this.framing))
+            {
+            this.m_session.setAttribute(TurnRawDataFilter.CHANNEL_ATTRIBUTE,
+                Integer.valueOf(TurnWireFormat.MIN_CHANNEL));
+            }
+        else if ("active".equals(this.framing))
+            {
+            this.m_session.setAttribute(
+                TurnRawDataFilter.ACTIVE_DESTINATION_ATTRIBUTE);
+            }
+        this.m_nextFilter = new BlackholeNextFilter(blackhole);
+        }
+
+    @Benchmark
+    public void frame() throws Exception
+        {
+        final ByteBuffer in = ByteBuffer.allocate(this.readSize);
+        in.limit(this.readSize);
+        this.m_filter.messageReceived(this.m_nextFilter, this.m_session, in);
+        }
+    }
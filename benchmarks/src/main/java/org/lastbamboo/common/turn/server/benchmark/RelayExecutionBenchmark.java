@@ -0,0 +1,168 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.turn.server.allocated.RelayExecution;
+import org.littleshoot.mina.common.IdleStatus;
+import org.littleshoot.mina.common.IoFilter.NextFilter;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.executor.ExecutorFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what each {@link RelayExecution} model costs to get a packet
+ * from the I/O thread to the relay handler.  Each invocation hands a batch
+ * of packets, spread over several sessions, to the handler and waits for
+ * all of them to arrive, so the times include the thread handoffs and
+ * wakeups but none of the relaying itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayExecutionBenchmark
+    {
+
+    private static final int BATCH = 1024;
+
+    private static final Object PACKET = new Object();
+
+    @Param({RelayExecution.IO, RelayExecution.ORDERED,
+        RelayExecution.VIRTUAL, RelayExecution.CACHED})
+    public String execution;
+
+    /**
+     * The number of remote host sessions the packets come from.  Events
+     * for one session run in order, so this bounds the parallelism.
+     */
+    @Param({"1", "16"})
+    public int sessions;
+
+    private final CountingNextFilter m_handler = new CountingNextFilter();
+
+    private Executor m_executor;
+
+    private ExecutorFilter m_filter;
+
+    private IoSession[] m_sessions;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        {
+        this.m_executor = RelayExecution.newExecutor(this.execution,
+            Runtime.getRuntime().availableProcessors() * 2, "Benchmark");
+        if (this.m_executor != null)
+            {
+            this.m_filter = new ExecutorFilter(this.m_executor);
+            }
+        this.m_sessions = new IoSession[this.sessions];
+        for (int i = 0; i < this.sessions; i++)
+            {
+            this.m_sessions[i] = new BenchmarkSession(
+                new InetSocketAddress("127.0.0.1", 7000 + i));
+            }
+        }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        {
+        if (this.m_executor instanceof ExecutorService)
+            {
+            ((ExecutorService) this.m_executor).shutdownNow();
+            }
+        }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void handOff() throws Exception
+        {
+        final long target = this.m_handler.m_received.get() + BATCH;
+        for (int i = 0; i < BATCH; i++)
+            {
+            final IoSession session = this.m_sessions[i % this.sessions];
+            if (this.m_filter == null)
+                {
+                this.m_handler.messageReceived(session, PACKET);
+                }
+            else
+                {
+                this.m_filter.messageReceived(this.m_handler, session,
+                    PACKET);
+                }
+            }
+        while (this.m_handler.m_received.get() < target)
+            {
+            Thread.yield();
+            }
+        }
+
+    /**
+     * Stands in for the relay handler, counting the packets it gets.
+     */
+    private static final class CountingNextFilter implements NextFilter
+        {
+
+        private final AtomicLong m_received = new AtomicLong();
+
+        public void messageReceived(final IoSession session,
+            final Object message)
+            {
+            this.m_received.incrementAndGet();
+            }
+
+        public void messageSent(final IoSession session, final Object message)
+            {
+            }
+
+        public void filterWrite(final IoSession session,
+            final WriteRequest writeRequest)
+            {
+            }
+
+        public void sessionCreated(final IoSession session)
+            {
+            }
+
+        public void sessionOpened(final IoSession session)
+            {
+            }
+
+        public void sessionClosed(final IoSession session)
+            {
+            }
+
+        public void sessionIdle(final IoSession session,
+            final IdleStatus status)
+            {
+            }
+
+        public void exceptionCaught(final IoSession session,
+            final Throwable cause)
+            {
+            }
+
+        public void filterClose(final IoSession session)
+            {
+            }
+        }
+    }
@@ -0,0 +1,121 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.lastbamboo.common.turn.server.FlowController;
+import org.lastbamboo.common.turn.server.PermissionTable;
+import org.lastbamboo.common.turn.server.RateLimiter;
+import org.lastbamboo.common.turn.server.TurnClient;
+import org.lastbamboo.common.turn.server.TurnClientImpl;
+import org.lastbamboo.common.turn.server.TurnClientManager;
+import org.lastbamboo.common.turn.server.allocated.AllocatedTurnServer;
+import org.lastbamboo.common.turn.server.allocated.AllocatedTurnServerFactory;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Client manager with a single TURN client connected to a single remote
+ * host, all in memory.  The relay server is never started, so the
+ * benchmarks measure our code and not the network stack.
+ */
+public final class SingleClientManager implements TurnClientManager
+    {
+
+    private final HashedWheelTimer m_timer = new HashedWheelTimer();
+
+    private final TurnMetrics m_metrics = new TurnMetrics();
+
+    private final BenchmarkSession m_clientSession;
+
+    private final BenchmarkSession m_peerSession;
+
+    private final TurnClientImpl m_client;
+
+    /**
+     * Creates a new manager.
+     *
+     * @param clientAddress The address of the TURN client.
+     * @param peerAddress The address of the remote host.
+     */
+    public SingleClientManager(final InetSocketAddress clientAddress,
+        final InetSocketAddress peerAddress)
+        {
+        this.m_clientSession = new BenchmarkSession(clientAddress);
+        this.m_peerSession = new BenchmarkSession(peerAddress);
+        this.m_client = new TurnClientImpl(clientAddress.getAddress(),
+            this.m_clientSession, new AllocatedTurnServerFactory()
+                {
+                public AllocatedTurnServer createServer(
+                    final TurnClient turnClient,
+                    final InetAddress publicAddress)
+                    {
+                    throw new UnsupportedOperationException();
+                    }
+                },
+            new PermissionTable(this.m_timer, 60 * 60 * 1000),
+            new FlowController(0, 0),
+            new RateLimiter(this.m_timer, 0, 0, 0, 0), this.m_metrics);
+        this.m_client.handleConnect(peerAddress);
+        this.m_client.addConnection(this.m_peerSession);
+        }
+
+    /**
+     * Accessor for the TURN client's session.
+     *
+     * @return The TURN client's session.
+     */
+    public BenchmarkSession getClientSession()
+        {
+        return this.m_clientSession;
+        }
+
+    /**
+     * Accessor for the remote host's session.
+     *
+     * @return The remote host's session.
+     */
+    public BenchmarkSession getPeerSession()
+        {
+        return this.m_peerSession;
+        }
+
+    /**
+     * Stops the permission timer.
+     */
+    public void stop()
+        {
+        this.m_timer.stop();
+        }
+
+    public TurnClient allocateBinding(final IoSession readerWriter)
+        {
+        return this.m_client;
+        }
+
+    public void whenReady(final Runnable task, final Runnable expired)
+        {
+        task.run();
+        }
+
+    public InetSocketAddress getAlternateServer()
+        {
+        return null;
+        }
+
+    public TurnClient getTurnClient(final IoSession readerWriter)
+        {
+        return this.m_client;
+        }
+
+    public TurnClient removeBinding(final IoSession readerWriter)
+        {
+        return this.m_client;
+        }
+
+    public TurnMetrics getMetrics()
+        {
+        return this.m_metrics;
+        }
+    }
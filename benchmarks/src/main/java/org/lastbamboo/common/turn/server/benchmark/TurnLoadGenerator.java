@@ -0,0 +1,624 @@
+package org.lastbamboo.common.turn.server.benchmark;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.lastbamboo.common.turn.server.TcpTurnServer;
+import org.lastbamboo.common.turn.server.TurnClientManagerImpl;
+import org.lastbamboo.common.turn.server.TurnServerConfig;
+import org.lastbamboo.common.turn.server.TurnWireFormat;
+import org.lastbamboo.common.turn.server.metrics.Histogram;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.stun.stack.StunConstants;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageType;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
+import org.littleshoot.stun.stack.message.attributes.StunAttributeType;
+import org.littleshoot.stun.stack.message.attributes.StunAttributesFactoryImpl;
+import org.littleshoot.stun.stack.message.attributes.turn.RelayAddressAttribute;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.util.NetworkUtils;
+import org.littleshoot.util.mina.MinaUtils;
+
+/**
+ * End to end load generator.  This starts a {@link TcpTurnServer} in this
+ * JVM, allocates relays for a number of simulated TURN clients, connects a
+ * number of remote hosts to each relay, and pushes traffic through all of
+ * them over loopback.  It reports the relayed throughput, one-way latency
+ * percentiles, how fast we allocated, and what the heap and collectors did
+ * while the traffic ran.  Run it from the benchmarks jar with:
+ * <pre>
+ * java -Dload.clients=100 -cp target/benchmarks.jar \
+ *     org.lastbamboo.common.turn.server.benchmark.TurnLoadGenerator
+ * </pre>
+ *
+ * Everything is set with system properties:
+ * <ul>
+ * <li><code>load.clients</code>: The number of TURN clients.  Default 10.</li>
+ * <li><code>load.peers</code>: The number of remote hosts per client.
+ * Default 4.</li>
+ * <li><code>load.pattern</code>: Which way traffic flows.  <code>peer</code>
+ * sends from the remote hosts to the clients as Data Indications,
+ * <code>client</code> sends from the clients to the remote hosts as Send
+ * Indications, and <code>both</code> does both.  Default <code>both</code>.
+ * </li>
+ * <li><code>load.messageSize</code>: The size of each message, rounded up to
+ * a multiple of 4 and at least 8.  Default 1024.</li>
+ * <li><code>load.rate</code>: Messages per second from each sender, or 0 to
+ * send as fast as the relay takes them.  Default 0.</li>
+ * <li><code>load.warmup</code>: Seconds of traffic before we start
+ * measuring.  Default 5.</li>
+ * <li><code>load.duration</code>: Seconds of traffic we measure.
+ * Default 30.</li>
+ * </ul>
+ * Any <code>turn.*</code> properties configure the server as usual.<p>
+ *
+ * With a fixed rate, latencies are measured from when each message was due
+ * rather than when it was sent, so a stalled relay shows up in the
+ * percentiles instead of just slowing the senders down.  The tool uses two
+ * blocking threads per socket, and it shares the heap and the collectors
+ * with the server, so keep that in mind at large client counts.
+ */
+public final class TurnLoadGenerator
+    {
+
+    private static final int MAX_BODY = 0xFFFF;
+
+    private final int m_clientCount;
+
+    private final int m_peerCount;
+
+    private final boolean m_peersSend;
+
+    private final boolean m_clientsSend;
+
+    private final int m_messageSize;
+
+    private final int m_rate;
+
+    private final int m_warmupSeconds;
+
+    private final int m_durationSeconds;
+
+    private final InetAddress m_localHost;
+
+    private final LoadStats m_stats = new LoadStats();
+
+    private final List<Socket> m_sockets = new ArrayList<Socket>();
+
+    private volatile boolean m_running = true;
+
+    private TurnLoadGenerator() throws IOException
+        {
+        this.m_clientCount = Integer.getInteger("load.clients", 10);
+        this.m_peerCount = Integer.getInteger("load.peers", 4);
+        final String pattern = System.getProperty("load.pattern", "both");
+        if (!pattern.equals("peer") && !pattern.equals("client") &&
+            !pattern.equals("both"))
+            {
+            throw new IllegalArgumentException("Unknown pattern: " + pattern);
+            }
+        this.m_peersSend = !pattern.equals("client");
+        this.m_clientsSend = !pattern.equals("peer");
+        final int size =
+            Math.max(8, Integer.getInteger("load.messageSize", 1024));
+        this.m_messageSize = size + TurnWireFormat.padding(size);
+        this.m_rate = Integer.getInteger("load.rate", 0);
+        this.m_warmupSeconds = Integer.getInteger("load.warmup", 5);
+        this.m_durationSeconds = Integer.getInteger("load.duration", 30);
+
+        // The relays bind to this address, so our remote hosts do too.
+        this.m_localHost = NetworkUtils.getLocalHost();
+        }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args Ignored.  Everything is set with system properties.
+     * @throws Exception If we can't set up the clients or the server.
+     */
+    public static void main(final String[] args) throws Exception
+        {
+        final TurnServerConfig config =
+            TurnServerConfig.fromProperties(System.getProperties());
+        final TurnClientManagerImpl clientManager =
+            new TurnClientManagerImpl(config);
+        final TcpTurnServer server = new TcpTurnServer(clientManager, config);
+        server.start();
+        try
+            {
+            new TurnLoadGenerator().run();
+            }
+        finally
+            {
+            server.stop();
+            clientManager.stop();
+            }
+        System.exit(0);
+        }
+
+    private void run() throws Exception
+        {
+        System.out.println("Clients: " + m_clientCount + ", remote hosts " +
+            "per client: " + m_peerCount + ", message size: " +
+            m_messageSize + ", rate per sender: " +
+            (m_rate == 0 ? "unlimited" : String.valueOf(m_rate)));
+
+        final List<LoadClient> clients = new ArrayList<LoadClient>();
+        final long allocateStart = System.nanoTime();
+        for (int i = 0; i < m_clientCount; i++)
+            {
+            clients.add(new LoadClient());
+            }
+        final long allocateNanos = System.nanoTime() - allocateStart;
+
+        final long connectStart = System.nanoTime();
+        for (final LoadClient client : clients)
+            {
+            client.connectPeers();
+            }
+        final long connectNanos = System.nanoTime() - connectStart;
+
+        System.out.printf("Allocations: %d in %.1f ms (%.0f/s)%n",
+            m_clientCount, allocateNanos / 1e6,
+            m_clientCount / (allocateNanos / 1e9));
+        System.out.printf("Remote host connections: %d in %.1f ms (%.0f/s)%n",
+            m_clientCount * m_peerCount, connectNanos / 1e6,
+            m_clientCount * m_peerCount / (connectNanos / 1e9));
+
+        for (final LoadClient client : clients)
+            {
+            client.start();
+            }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(m_warmupSeconds));
+
+        final List<GarbageCollectorMXBean> collectors =
+            ManagementFactory.getGarbageCollectorMXBeans();
+        final long[] gcCounts = new long[collectors.size()];
+        final long[] gcTimes = new long[collectors.size()];
+        for (int i = 0; i < collectors.size(); i++)
+            {
+            gcCounts[i] = collectors.get(i).getCollectionCount();
+            gcTimes[i] = collectors.get(i).getCollectionTime();
+            }
+        m_stats.reset();
+        final long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(m_durationSeconds));
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long bytes = m_stats.getBytes();
+        final long messages = m_stats.getMessages();
+        final Histogram latency = m_stats.getLatency();
+        final long p50 = latency.getValueAtQuantile(0.50);
+        final long p99 = latency.getValueAtQuantile(0.99);
+        final long p999 = latency.getValueAtQuantile(0.999);
+        final long max = latency.getMax();
+        stop();
+
+        System.out.printf("Relayed: %d messages, %.3f Gbps, %.0f messages/s%n",
+            messages, bytes * 8 / seconds / 1e9, messages / seconds);
+        System.out.printf("One-way latency (us): p50 %.1f, p99 %.1f, " +
+            "p99.9 %.1f, max %.1f%n", p50 / 1e3, p99 / 1e3, p999 / 1e3,
+            max / 1e3);
+        final MemoryUsage heap =
+            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.printf("Heap (MB): used %d, committed %d, max %d%n",
+            heap.getUsed() >> 20, heap.getCommitted() >> 20,
+            heap.getMax() >> 20);
+        for (int i = 0; i < collectors.size(); i++)
+            {
+            final GarbageCollectorMXBean gc = collectors.get(i);
+            System.out.printf("GC %s: %d collections, %d ms%n", gc.getName(),
+                gc.getCollectionCount() - gcCounts[i],
+                gc.getCollectionTime() - gcTimes[i]);
+            }
+        }
+
+    private void stop()
+        {
+        m_running = false;
+        synchronized (m_sockets)
+            {
+            for (final Socket socket : m_sockets)
+                {
+                try
+                    {
+                    socket.close();
+                    }
+                catch (final IOException e)
+                    {
+                    // Nothing to do.
+                    }
+                }
+            }
+        }
+
+    private Socket track(final Socket socket) throws IOException
+        {
+        socket.setTcpNoDelay(true);
+        synchronized (m_sockets)
+            {
+            m_sockets.add(socket);
+            }
+        return socket;
+        }
+
+    private void startThread(final String name, final Runnable runnable)
+        {
+        final Thread thread = new Thread(new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    runnable.run();
+                    }
+                catch (final RuntimeException e)
+                    {
+                    if (m_running)
+                        {
+                        e.printStackTrace();
+                        }
+                    }
+                }
+            }, name);
+        thread.setDaemon(true);
+        thread.start();
+        }
+
+    /**
+     * Waits until the next message is due and returns when it was due, or
+     * just returns the time if there's no fixed rate.
+     */
+    private final class Pacer
+        {
+        private final long m_start = System.nanoTime();
+
+        private final long m_interval =
+            m_rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / m_rate;
+
+        private long m_sent;
+
+        private long next()
+            {
+            if (m_interval == 0)
+                {
+                return System.nanoTime();
+                }
+            final long due = m_start + m_sent++ * m_interval;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0)
+                {
+                LockSupport.parkNanos(wait);
+                }
+            return due;
+            }
+        }
+
+    /**
+     * A simulated TURN client with its relay and remote hosts.
+     */
+    private final class LoadClient
+        {
+
+        private final Socket m_socket;
+
+        private final DataInputStream m_in;
+
+        private final OutputStream m_out;
+
+        private final InetSocketAddress m_relayAddress;
+
+        private final List<LoadPeer> m_peers = new ArrayList<LoadPeer>();
+
+        private LoadClient() throws IOException
+            {
+            m_socket = track(new Socket(m_localHost, StunConstants.STUN_PORT));
+            m_in = new DataInputStream(m_socket.getInputStream());
+            m_out = m_socket.getOutputStream();
+            write(new AllocateRequest());
+            final RelayAddressAttribute relay = (RelayAddressAttribute)
+                readMessage(StunMessageType.ALLOCATE_SUCCESS_RESPONSE).get(
+                    StunAttributeType.RELAY_ADDRESS);
+
+            // The relay address is our public address, which may not be
+            // reachable from here, but the relay listens on this host.
+            m_relayAddress = new InetSocketAddress(m_localHost,
+                relay.getInetSocketAddress().getPort());
+            }
+
+        private void connectPeers() throws IOException
+            {
+            for (int i = 0; i < m_peerCount; i++)
+                {
+                final Socket socket = track(new Socket());
+                socket.bind(new InetSocketAddress(m_localHost, 0));
+                final InetSocketAddress address =
+                    (InetSocketAddress) socket.getLocalSocketAddress();
+
+                // We have to give the remote host permission before it
+                // connects, and the server tells us when it has.
+                write(new ConnectRequest(address));
+                readMessage(StunMessageType.CONNECTION_STATUS_INDICATION);
+                socket.connect(m_relayAddress, 10000);
+                readMessage(StunMessageType.CONNECTION_STATUS_INDICATION);
+                m_peers.add(new LoadPeer(socket, address));
+                }
+            }
+
+        private void start()
+            {
+            startThread("Load-Client-Reader", new Runnable()
+                {
+                public void run()
+                    {
+                    readDataIndications();
+                    }
+                });
+            if (m_clientsSend && !m_peers.isEmpty())
+                {
+                startThread("Load-Client-Sender", new Runnable()
+                    {
+                    public void run()
+                        {
+                        sendIndications();
+                        }
+                    });
+                }
+            for (final LoadPeer peer : m_peers)
+                {
+                peer.start();
+                }
+            }
+
+        private void sendIndications()
+            {
+            final byte[][] frames = new byte[m_peers.size()][];
+            int payloadOffset = 0;
+            for (int i = 0; i < frames.length; i++)
+                {
+                final byte[] remoteAddress =
+                    TurnWireFormat.encodeAddressAttribute(
+                        TurnWireFormat.REMOTE_ADDRESS,
+                        m_peers.get(i).m_address);
+                final int bodyLength = remoteAddress.length +
+                    TurnWireFormat.ATTRIBUTE_HEADER_LENGTH + m_messageSize;
+                final ByteBuffer frame = ByteBuffer.allocate(
+                    TurnWireFormat.HEADER_LENGTH + bodyLength);
+                TurnWireFormat.putHeader(frame,
+                    TurnWireFormat.SEND_INDICATION, bodyLength);
+                frame.put(remoteAddress);
+                TurnWireFormat.putAttributeHeader(frame, TurnWireFormat.DATA,
+                    m_messageSize);
+                payloadOffset = frame.position();
+                frame.put(new byte[m_messageSize]);
+                frame.flip();
+                frames[i] = MinaUtils.toByteArray(frame);
+                frame.release();
+                }
+
+            final Pacer pacer = new Pacer();
+            try
+                {
+                for (int i = 0; m_running; i = (i + 1) % frames.length)
+                    {
+                    MessageStream.stamp(frames[i], payloadOffset, pacer.next());
+                    m_out.write(frames[i]);
+                    }
+                }
+            catch (final IOException e)
+                {
+                if (m_running)
+                    {
+                    e.printStackTrace();
+                    }
+                }
+            }
+
+        private void readDataIndications()
+            {
+            final byte[] header = new byte[TurnWireFormat.HEADER_LENGTH];
+            final byte[] body = new byte[MAX_BODY];
+            try
+                {
+                while (m_running)
+                    {
+                    m_in.readFully(header);
+                    final int type = readShort(header, 0);
+                    final int length = readShort(header, 2);
+                    m_in.readFully(body, 0, length);
+                    if (type == TurnWireFormat.DATA_INDICATION)
+                        {
+                        readDataIndication(body, length);
+                        }
+                    }
+                }
+            catch (final IOException e)
+                {
+                if (m_running)
+                    {
+                    e.printStackTrace();
+                    }
+                }
+            }
+
+        private void readDataIndication(final byte[] body, final int length)
+            {
+            int port = -1;
+            int dataOffset = -1;
+            int dataLength = 0;
+            int index = 0;
+            while (index + TurnWireFormat.ATTRIBUTE_HEADER_LENGTH <= length)
+                {
+                final int type = readShort(body, index);
+                final int attributeLength = readShort(body, index + 2);
+                index += TurnWireFormat.ATTRIBUTE_HEADER_LENGTH;
+                if (type == TurnWireFormat.REMOTE_ADDRESS)
+                    {
+                    // The port follows the reserved byte and the family.
+                    port = readShort(body, index + 2);
+                    }
+                else if (type == TurnWireFormat.DATA)
+                    {
+                    dataOffset = index;
+                    dataLength = attributeLength;
+                    }
+                index += attributeLength;
+                if (TurnWireFormat.isPadded(attributeLength, length - index))
+                    {
+                    index += TurnWireFormat.padding(attributeLength);
+                    }
+                }
+            if (dataOffset == -1)
+                {
+                return;
+                }
+            for (final LoadPeer peer : m_peers)
+                {
+                if (peer.m_address.getPort() == port)
+                    {
+                    peer.m_fromPeer.read(body, dataOffset, dataLength);
+                    return;
+                    }
+                }
+            }
+
+        private void write(final StunMessage message) throws IOException
+            {
+            final ByteBuffer buffer = new StunMessageEncoder().encode(message);
+            m_out.write(MinaUtils.toByteArray(buffer));
+            m_out.flush();
+            }
+
+        private Map<StunAttributeType, StunAttribute> readMessage(
+            final StunMessageType expectedType) throws IOException
+            {
+            final byte[] header = new byte[TurnWireFormat.HEADER_LENGTH];
+            m_in.readFully(header);
+            final StunMessageType type =
+                StunMessageType.toType(readShort(header, 0));
+            if (type != expectedType)
+                {
+                throw new IOException("Expected " + expectedType + " but " +
+                    "got " + type);
+                }
+            final byte[] body = new byte[readShort(header, 2)];
+            m_in.readFully(body);
+            return new StunAttributesFactoryImpl().createAttributes(
+                ByteBuffer.wrap(body));
+            }
+        }
+
+    /**
+     * A simulated remote host connected to a relay.
+     */
+    private final class LoadPeer
+        {
+
+        private final Socket m_socket;
+
+        private final InetSocketAddress m_address;
+
+        /**
+         * The data the remote host sends.  The client's reader thread is the
+         * only one that touches this.
+         */
+        private final MessageStream m_fromPeer =
+            new MessageStream(m_messageSize, m_stats);
+
+        private LoadPeer(final Socket socket, final InetSocketAddress address)
+            {
+            m_socket = socket;
+            m_address = address;
+            }
+
+        private void start()
+            {
+            startThread("Load-Peer-Reader", new Runnable()
+                {
+                public void run()
+                    {
+                    readRelayedData();
+                    }
+                });
+            if (m_peersSend)
+                {
+                startThread("Load-Peer-Sender", new Runnable()
+                    {
+                    public void run()
+                        {
+                        sendData();
+                        }
+                    });
+                }
+            }
+
+        private void sendData()
+            {
+            final byte[] message = new byte[m_messageSize];
+            final Pacer pacer = new Pacer();
+            try
+                {
+                final OutputStream out = m_socket.getOutputStream();
+                while (m_running)
+                    {
+                    MessageStream.stamp(message, 0, pacer.next());
+                    out.write(message);
+                    }
+                }
+            catch (final IOException e)
+                {
+                if (m_running)
+                    {
+                    e.printStackTrace();
+                    }
+                }
+            }
+
+        private void readRelayedData()
+            {
+            final MessageStream toPeer =
+                new MessageStream(m_messageSize, m_stats);
+            final byte[] buffer = new byte[64 * 1024];
+            try
+                {
+                final InputStream in = m_socket.getInputStream();
+                while (m_running)
+                    {
+                    final int read = in.read(buffer);
+                    if (read == -1)
+                        {
+                        return;
+                        }
+                    toPeer.read(buffer, 0, read);
+                    }
+                }
+            catch (final IOException e)
+                {
+                if (m_running)
+                    {
+                    e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+    private static int readShort(final byte[] data, final int index)
+        {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+        }
+    }
@@ -0,0 +1,235 @@
+package org.lastbamboo.common.turn.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether we have room for new allocations, so an overloaded
+ * server refuses newcomers rather than getting worse for everyone.  The
+ * signals are the number of allocations, the share of file descriptors
+ * open, the heap still in use after the last collection, direct buffer
+ * memory and how late the timer runs.<p>
+ *
+ * Everything but the allocation count costs JMX calls, so we sample those
+ * once a second on the timer and Allocate Requests just read the result.
+ * MINA 1.x doesn't expose its selector loops, so the timer's lateness
+ * stands in for event loop lag:  both run late when the server is short
+ * of CPU.  The lag includes up to a tick of the timer.<p>
+ *
+ * Signals the JVM doesn't provide, like file descriptors on Windows, and
+ * thresholds of 0 are ignored.
+ */
+public final class AdmissionController
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(AdmissionController.class);
+
+    private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final HashedWheelTimer m_timer;
+
+    private final int m_maxAllocations;
+
+    private final int m_maxFdPercent;
+
+    private final int m_maxHeapPercent;
+
+    private final long m_maxDirectBytes;
+
+    private final long m_maxLagMillis;
+
+    private final MBeanServer m_mbeanServer =
+        ManagementFactory.getPlatformMBeanServer();
+
+    /**
+     * Why we're refusing allocations from the last sample, or
+     * <code>null</code> if we aren't.
+     */
+    private volatile String m_overload;
+
+    private volatile long m_lagMillis;
+
+    private volatile boolean m_stopped;
+
+    /**
+     * Creates a new admission controller.  Call {@link #start()} to start
+     * sampling.
+     *
+     * @param config The server configuration, for the thresholds.
+     * @param timer The timer for sampling.
+     */
+    public AdmissionController(final TurnServerConfig config,
+        final HashedWheelTimer timer)
+        {
+        this.m_timer = timer;
+        this.m_maxAllocations = config.getMaxAllocations();
+        this.m_maxFdPercent = config.getMaxFdUsage();
+        this.m_maxHeapPercent = config.getMaxHeapUsage();
+        this.m_maxDirectBytes = config.getMaxDirectMemory() * 1024L * 1024L;
+        this.m_maxLagMillis = config.getMaxLagMillis();
+        }
+
+    /**
+     * Starts sampling the signals.
+     */
+    public void start()
+        {
+        schedule(System.currentTimeMillis() + SAMPLE_INTERVAL);
+        }
+
+    /**
+     * Stops sampling the signals.
+     */
+    public void stop()
+        {
+        this.m_stopped = true;
+        }
+
+    /**
+     * Returns whether we have room for another allocation.
+     *
+     * @param allocations The number of allocations we have now.
+     * @return <code>null</code> if we have room, or why we don't.
+     */
+    public String admit(final int allocations)
+        {
+        if (this.m_maxAllocations > 0 && allocations >= this.m_maxAllocations)
+            {
+            return "allocations";
+            }
+        return this.m_overload;
+        }
+
+    /**
+     * Returns why the last sample found us overloaded.
+     *
+     * @return The overloaded signal, or <code>null</code> if none.
+     */
+    public String getOverload()
+        {
+        return this.m_overload;
+        }
+
+    /**
+     * Returns how late the timer ran for the last sample.
+     *
+     * @return The lag in milliseconds.
+     */
+    public long getLagMillis()
+        {
+        return this.m_lagMillis;
+        }
+
+    private void schedule(final long due)
+        {
+        if (this.m_stopped)
+            {
+            return;
+            }
+        this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                final long now = System.currentTimeMillis();
+                m_lagMillis = Math.max(0, now - due);
+                sample();
+                schedule(now + SAMPLE_INTERVAL);
+                }
+            }, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+    private void sample()
+        {
+        final String overload = findOverload();
+        if (overload != null && this.m_overload == null)
+            {
+            LOG.warn("Refusing new allocations -- {} over threshold",
+                overload);
+            }
+        else if (overload == null && this.m_overload != null)
+            {
+            LOG.info("Accepting new allocations again");
+            }
+        this.m_overload = overload;
+        }
+
+    private String findOverload()
+        {
+        if (this.m_maxLagMillis > 0 && this.m_lagMillis > this.m_maxLagMillis)
+            {
+            return "lag";
+            }
+        if (this.m_maxFdPercent > 0)
+            {
+            final long open = getLong("java.lang:type=OperatingSystem",
+                "OpenFileDescriptorCount");
+            final long max = getLong("java.lang:type=OperatingSystem",
+                "MaxFileDescriptorCount");
+            if (open >= 0 && max > 0 && open * 100 > max * this.m_maxFdPercent)
+                {
+                return "file descriptors";
+                }
+            }
+        if (this.m_maxHeapPercent > 0 && isHeapFull())
+            {
+            return "heap";
+            }
+        if (this.m_maxDirectBytes > 0 && getLong(
+            "java.nio:type=BufferPool,name=direct", "MemoryUsed") >
+            this.m_maxDirectBytes)
+            {
+            return "direct memory";
+            }
+        return null;
+        }
+
+    private boolean isHeapFull()
+        {
+        // Usage after the last collection is what's live, which is what
+        // matters.  Plain usage includes garbage.
+        long used = 0;
+        long max = 0;
+        for (final MemoryPoolMXBean pool :
+            ManagementFactory.getMemoryPoolMXBeans())
+            {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() != MemoryType.HEAP || usage == null ||
+                usage.getMax() < 0)
+                {
+                continue;
+                }
+            used += usage.getUsed();
+            max += usage.getMax();
+            }
+        return max > 0 && used * 100 > max * this.m_maxHeapPercent;
+        }
+
+    /**
+     * Reads a numeric MBean attribute.
+     *
+     * @return The value, or -1 if the JVM doesn't have it.
+     */
+    private long getLong(final String name, final String attribute)
+        {
+        try
+            {
+            return ((Number) this.m_mbeanServer.getAttribute(
+                new ObjectName(name), attribute)).longValue();
+            }
+        catch (final Exception e)
+            {
+            return -1;
+            }
+        }
+    }
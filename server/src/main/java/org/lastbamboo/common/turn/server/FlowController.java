@@ -0,0 +1,285 @@
+package org.lastbamboo.common.turn.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.TransportType;
+
+/**
+ * Flow control between the sessions we relay between.  All our writes are
+ * non-blocking, so when we read from a fast session and write to a slow
+ * one, MINA's write queue on the slow session just keeps growing.  Once the
+ * bytes scheduled for writing pass the high water mark, we suspend reads on
+ * the session the data is coming from.  When the writes drain below the low
+ * water mark, we resume reads on every session we suspended for that
+ * writer.<p>
+ *
+ * The sessions we've suspended for a writer are kept in an attribute on the
+ * writer, so the handlers only need to call {@link #messageSent(IoSession)}
+ * and {@link #sessionClosed(IoSession)} for their sessions.  The common
+ * case of a writer that's keeping up costs a single comparison per write.<p>
+ *
+ * We only suspend TCP sessions.  UDP sessions share the relay's socket, so
+ * suspending one would suspend them all.  UDP can drop data anyway.<p>
+ *
+ * The {@link RateLimiter} suspends reads too, so both suspend and resume
+ * reads through {@link #suspendRead(IoSession)} and
+ * {@link #resumeRead(IoSession)}, which count the suspensions on each
+ * session.  Reads only resume once neither is holding them back.
+ */
+public final class FlowController
+    {
+
+    private static final String PAUSED_READERS =
+        FlowController.class.getName() + ".pausedReaders";
+
+    private static final String SUSPENSIONS =
+        FlowController.class.getName() + ".suspensions";
+
+    private final int m_highWaterMark;
+
+    private final int m_lowWaterMark;
+
+    private final AtomicLong m_suspensions = new AtomicLong();
+
+    private final AtomicLong m_resumptions = new AtomicLong();
+
+    private final AtomicInteger m_suspendedSessions = new AtomicInteger();
+
+    /**
+     * Creates a new flow controller.
+     *
+     * @param highWaterMark The scheduled write bytes at which we suspend
+     * reads, or 0 to never suspend reads.
+     * @param lowWaterMark The scheduled write bytes at or below which we
+     * resume reads.
+     */
+    public FlowController(final int highWaterMark, final int lowWaterMark)
+        {
+        if (lowWaterMark > highWaterMark)
+            {
+            throw new IllegalArgumentException("Low water mark " +
+                lowWaterMark + " above high water mark " + highWaterMark);
+            }
+        this.m_highWaterMark = highWaterMark;
+        this.m_lowWaterMark = lowWaterMark;
+        }
+
+    /**
+     * Tells the flow controller we've just written data read from one
+     * session to another.  If the writer has too much data queued, this
+     * suspends reads on the reader.
+     *
+     * @param reader The session the data came from.
+     * @param writer The session we're writing the data to.
+     */
+    public void writeScheduled(final IoSession reader, final IoSession writer)
+        {
+        if (this.m_highWaterMark <= 0 ||
+            writer.getScheduledWriteBytes() <= this.m_highWaterMark ||
+            reader.getTransportType() == TransportType.DATAGRAM)
+            {
+            return;
+            }
+        final PausedReaders paused = getPausedReaders(writer);
+        paused.suspend(reader);
+
+        // The writer may have drained before we suspended the reader, in
+        // which case nothing else would resume it.
+        paused.resumeIfDrained(writer);
+        }
+
+    /**
+     * Tells the flow controller a write to the specified session finished.
+     * This resumes reads on any sessions suspended for it once it's
+     * drained enough.
+     *
+     * @param writer The session we wrote to.
+     */
+    public static void messageSent(final IoSession writer)
+        {
+        final PausedReaders paused =
+            (PausedReaders) writer.getAttribute(PAUSED_READERS);
+        if (paused != null)
+            {
+            paused.resumeIfDrained(writer);
+            }
+        }
+
+    /**
+     * Tells the flow controller the specified session closed.  This resumes
+     * reads on any sessions suspended for it.
+     *
+     * @param writer The session that closed.
+     */
+    public static void sessionClosed(final IoSession writer)
+        {
+        final PausedReaders paused =
+            (PausedReaders) writer.getAttribute(PAUSED_READERS);
+        if (paused != null)
+            {
+            paused.resumeAll();
+            }
+        }
+
+    /**
+     * Suspends reads on the specified session until there's a matching
+     * call to {@link #resumeRead(IoSession)}.  Only the first of any
+     * overlapping suspensions suspends reads.
+     *
+     * @param session The session to suspend reads on.
+     */
+    static void suspendRead(final IoSession session)
+        {
+        final AtomicInteger suspensions = getSuspensions(session);
+
+        // The lock keeps the session's reads in step with the count when
+        // one suspension ends just as another starts.
+        synchronized (suspensions)
+            {
+            if (suspensions.getAndIncrement() == 0)
+                {
+                session.suspendRead();
+                }
+            }
+        }
+
+    /**
+     * Ends a suspension started with {@link #suspendRead(IoSession)},
+     * resuming reads on the specified session if it was the last one.
+     *
+     * @param session The session to resume reads on.
+     */
+    static void resumeRead(final IoSession session)
+        {
+        final AtomicInteger suspensions = getSuspensions(session);
+        synchronized (suspensions)
+            {
+            if (suspensions.decrementAndGet() == 0)
+                {
+                session.resumeRead();
+                }
+            }
+        }
+
+    private static AtomicInteger getSuspensions(final IoSession session)
+        {
+        final AtomicInteger suspensions =
+            (AtomicInteger) session.getAttribute(SUSPENSIONS);
+        if (suspensions != null)
+            {
+            return suspensions;
+            }
+        synchronized (FlowController.class)
+            {
+            AtomicInteger created =
+                (AtomicInteger) session.getAttribute(SUSPENSIONS);
+            if (created == null)
+                {
+                created = new AtomicInteger();
+                session.setAttribute(SUSPENSIONS, created);
+                }
+            return created;
+            }
+        }
+
+    private PausedReaders getPausedReaders(final IoSession writer)
+        {
+        synchronized (this)
+            {
+            PausedReaders paused =
+                (PausedReaders) writer.getAttribute(PAUSED_READERS);
+            if (paused == null)
+                {
+                paused = new PausedReaders();
+                writer.setAttribute(PAUSED_READERS, paused);
+                }
+            return paused;
+            }
+        }
+
+    /**
+     * Returns the number of times we've suspended reads.
+     *
+     * @return The number of times we've suspended reads.
+     */
+    public long getSuspensions()
+        {
+        return this.m_suspensions.get();
+        }
+
+    /**
+     * Returns the number of times we've resumed reads.
+     *
+     * @return The number of times we've resumed reads.
+     */
+    public long getResumptions()
+        {
+        return this.m_resumptions.get();
+        }
+
+    /**
+     * Returns the number of sessions with reads currently suspended.
+     *
+     * @return The number of sessions with reads currently suspended.
+     */
+    public int getSuspendedSessions()
+        {
+        return this.m_suspendedSessions.get();
+        }
+
+    /**
+     * The sessions suspended for a single writer.
+     */
+    private final class PausedReaders
+        {
+
+        private final List<IoSession> m_readers = new ArrayList<IoSession>(2);
+
+        /**
+         * The number of suspended readers, for checking without the lock.
+         */
+        private volatile int m_count;
+
+        private synchronized void suspend(final IoSession reader)
+            {
+            if (this.m_readers.contains(reader))
+                {
+                return;
+                }
+            this.m_readers.add(reader);
+            this.m_count = this.m_readers.size();
+            FlowController.suspendRead(reader);
+            m_suspensions.incrementAndGet();
+            m_suspendedSessions.incrementAndGet();
+            }
+
+        private void resumeIfDrained(final IoSession writer)
+            {
+            if (this.m_count > 0 &&
+                writer.getScheduledWriteBytes() <= m_lowWaterMark)
+                {
+                resumeAll();
+                }
+            }
+
+        private synchronized void resumeAll()
+            {
+            if (this.m_readers.isEmpty())
+                {
+                return;
+                }
+            for (final IoSession reader : this.m_readers)
+                {
+                FlowController.resumeRead(reader);
+                m_resumptions.incrementAndGet();
+                m_suspendedSessions.decrementAndGet();
+                }
+            this.m_readers.clear();
+            this.m_count = 0;
+            }
+        }
+    }
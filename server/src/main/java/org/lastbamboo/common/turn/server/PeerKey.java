@@ -0,0 +1,178 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * The address and port of a remote host packed into primitives, so we can
+ * look up the connection to a remote host without creating an
+ * {@link InetSocketAddress} for every packet.  Addresses are kept as 128
+ * bits, with IPv4 addresses in their IPv4-mapped IPv6 form.<p>
+ *
+ * Keys are mutable so a decoder can reuse a single key for every message it
+ * reads.  Keys held by a {@link PeerTable} are never changed.
+ */
+public final class PeerKey
+    {
+
+    private static final long IPV4_MAPPED_PREFIX = 0xffffL << 32;
+
+    private long m_high;
+
+    private long m_low;
+
+    private int m_port;
+
+    /**
+     * Creates a new key that matches nothing until it's set.
+     */
+    public PeerKey()
+        {
+        this.m_port = -1;
+        }
+
+    /**
+     * Creates a new key for the specified address.
+     *
+     * @param address The address.
+     */
+    public PeerKey(final InetSocketAddress address)
+        {
+        set(address);
+        }
+
+    /**
+     * Sets the key to the specified address.
+     *
+     * @param address The address.
+     */
+    public void set(final InetSocketAddress address)
+        {
+        final byte[] bytes = address.getAddress().getAddress();
+        set(bytes, 0, bytes.length);
+        this.m_port = address.getPort();
+        }
+
+    /**
+     * Sets the key from the value of a REMOTE-ADDRESS style attribute:  a
+     * reserved byte, the family, the port and then the address.
+     *
+     * @param value The attribute value.
+     * @param length The length of the value.
+     * @return <code>true</code> if the value held a valid address,
+     * otherwise <code>false</code>.
+     */
+    public boolean set(final byte[] value, final int length)
+        {
+        final int family = value[1] & 0xff;
+        if (!(family == TurnWireFormat.FAMILY_IPV4 && length == 8) &&
+            !(family == TurnWireFormat.FAMILY_IPV6 && length == 20))
+            {
+            return false;
+            }
+        set(value, 4, length - 4);
+        this.m_port = ((value[2] & 0xff) << 8) | (value[3] & 0xff);
+        return true;
+        }
+
+    private void set(final byte[] bytes, final int offset, final int length)
+        {
+        if (length == 4)
+            {
+            this.m_high = 0;
+            this.m_low = IPV4_MAPPED_PREFIX | (readInt(bytes, offset) &
+                0xffffffffL);
+            }
+        else
+            {
+            this.m_high = ((long) readInt(bytes, offset) << 32) |
+                (readInt(bytes, offset + 4) & 0xffffffffL);
+            this.m_low = ((long) readInt(bytes, offset + 8) << 32) |
+                (readInt(bytes, offset + 12) & 0xffffffffL);
+            }
+        }
+
+    private static int readInt(final byte[] bytes, final int offset)
+        {
+        return ((bytes[offset] & 0xff) << 24) |
+            ((bytes[offset + 1] & 0xff) << 16) |
+            ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+        }
+
+    /**
+     * Returns whether this key is for the same address and port as another.
+     *
+     * @param other The other key.
+     * @return <code>true</code> if the keys match, otherwise
+     * <code>false</code>.
+     */
+    public boolean matches(final PeerKey other)
+        {
+        return this.m_low == other.m_low && this.m_port == other.m_port &&
+            this.m_high == other.m_high;
+        }
+
+    /**
+     * Creates the socket address for this key.  This allocates, so it's
+     * only for when we don't already have a connection to the host.
+     *
+     * @return The socket address.
+     */
+    public InetSocketAddress toSocketAddress()
+        {
+        final byte[] bytes;
+        if (this.m_high == 0 && (this.m_low >>> 32) == 0xffffL)
+            {
+            bytes = new byte[4];
+            writeInt(bytes, 0, (int) this.m_low);
+            }
+        else
+            {
+            bytes = new byte[16];
+            writeInt(bytes, 0, (int) (this.m_high >>> 32));
+            writeInt(bytes, 4, (int) this.m_high);
+            writeInt(bytes, 8, (int) (this.m_low >>> 32));
+            writeInt(bytes, 12, (int) this.m_low);
+            }
+        try
+            {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes),
+                this.m_port);
+            }
+        catch (final UnknownHostException e)
+            {
+            // Only thrown for bad lengths.
+            throw new IllegalStateException("Bad address length", e);
+            }
+        }
+
+    private static void writeInt(final byte[] bytes, final int offset,
+        final int value)
+        {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+        }
+
+    @Override
+    public int hashCode()
+        {
+        long hash = this.m_low * 0x9E3779B97F4A7C15L + this.m_high;
+        hash = hash * 31 + this.m_port;
+        return (int) (hash ^ (hash >>> 32));
+        }
+
+    @Override
+    public boolean equals(final Object obj)
+        {
+        return obj instanceof PeerKey && matches((PeerKey) obj);
+        }
+
+    @Override
+    public String toString()
+        {
+        return toSocketAddress().toString();
+        }
+    }
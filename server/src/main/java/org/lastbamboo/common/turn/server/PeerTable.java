@@ -0,0 +1,224 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * The connections to remote hosts for a single TURN client, keyed by
+ * {@link PeerKey}.  Lookups are the per-packet operation, so they probe an
+ * open addressing table without locking or allocating.  Remote hosts come
+ * and go far less often, so changes copy the table under a lock and
+ * publish the copy.
+ */
+final class PeerTable
+    {
+
+    private static final Entry[] EMPTY = new Entry[8];
+
+    /**
+     * The table, never more than half full.  Replaced, never modified, once
+     * published.
+     */
+    private volatile Entry[] m_entries = EMPTY;
+
+    /**
+     * The number of entries.  Guarded by this.
+     */
+    private int m_size;
+
+    /**
+     * Returns the connection to the specified remote host.
+     *
+     * @param key The remote host.
+     * @return The connection, or <code>null</code> if there isn't one.
+     */
+    IoSession get(final PeerKey key)
+        {
+        final Entry[] entries = this.m_entries;
+        final int mask = entries.length - 1;
+        int i = key.hashCode() & mask;
+        while (true)
+            {
+            final Entry entry = entries[i];
+            if (entry == null)
+                {
+                return null;
+                }
+            if (entry.m_key.matches(key))
+                {
+                return entry.m_session;
+                }
+            i = (i + 1) & mask;
+            }
+        }
+
+    /**
+     * Returns the connection to the specified remote host.
+     *
+     * @param address The remote host.
+     * @return The connection, or <code>null</code> if there isn't one.
+     */
+    IoSession get(final InetSocketAddress address)
+        {
+        return get(new PeerKey(address));
+        }
+
+    /**
+     * Adds a connection, replacing any existing connection to the same
+     * remote host.
+     *
+     * @param address The remote host.
+     * @param session The connection.
+     * @return The connection we replaced, or <code>null</code> if there
+     * wasn't one.
+     */
+    synchronized IoSession put(final InetSocketAddress address,
+        final IoSession session)
+        {
+        final IoSession previous = remove(address);
+        final Entry[] copy = copy(this.m_size + 1);
+        insert(copy, new Entry(address, session));
+        this.m_size++;
+        this.m_entries = copy;
+        return previous;
+        }
+
+    /**
+     * Removes the connection to the specified remote host.
+     *
+     * @param address The remote host.
+     * @return The connection we removed, or <code>null</code> if there
+     * wasn't one.
+     */
+    synchronized IoSession remove(final InetSocketAddress address)
+        {
+        return remove(new PeerKey(address), null);
+        }
+
+    /**
+     * Removes the connection to the specified remote host if it's the
+     * specified session.
+     *
+     * @param address The remote host.
+     * @param session The connection.
+     * @return <code>true</code> if we removed the connection, otherwise
+     * <code>false</code>.
+     */
+    synchronized boolean remove(final InetSocketAddress address,
+        final IoSession session)
+        {
+        return remove(new PeerKey(address), session) != null;
+        }
+
+    private IoSession remove(final PeerKey key, final IoSession session)
+        {
+        final IoSession existing = get(key);
+        if (existing == null || (session != null && existing != session))
+            {
+            return null;
+            }
+
+        // Rebuilding beats fixing up the probe sequences we'd break.
+        final Entry[] copy = new Entry[tableSize(this.m_size - 1)];
+        for (final Entry entry : this.m_entries)
+            {
+            if (entry != null && !entry.m_key.matches(key))
+                {
+                insert(copy, entry);
+                }
+            }
+        this.m_size--;
+        this.m_entries = copy;
+        return existing;
+        }
+
+    /**
+     * Returns the number of connections.
+     *
+     * @return The number of connections.
+     */
+    synchronized int size()
+        {
+        return this.m_size;
+        }
+
+    /**
+     * Returns a copy of the connections, for the rare operations that need
+     * all of them.
+     *
+     * @return The connections, keyed by remote host.
+     */
+    Map<InetSocketAddress, IoSession> toMap()
+        {
+        final Map<InetSocketAddress, IoSession> map =
+            new LinkedHashMap<InetSocketAddress, IoSession>();
+        for (final Entry entry : this.m_entries)
+            {
+            if (entry != null)
+                {
+                map.put(entry.m_address, entry.m_session);
+                }
+            }
+        return map;
+        }
+
+    @Override
+    public String toString()
+        {
+        return toMap().keySet().toString();
+        }
+
+    private Entry[] copy(final int size)
+        {
+        final Entry[] copy = new Entry[tableSize(size)];
+        for (final Entry entry : this.m_entries)
+            {
+            if (entry != null)
+                {
+                insert(copy, entry);
+                }
+            }
+        return copy;
+        }
+
+    private static int tableSize(final int entries)
+        {
+        int size = EMPTY.length;
+        while (size < entries * 2)
+            {
+            size <<= 1;
+            }
+        return size;
+        }
+
+    private static void insert(final Entry[] entries, final Entry entry)
+        {
+        final int mask = entries.length - 1;
+        int i = entry.m_key.hashCode() & mask;
+        while (entries[i] != null)
+            {
+            i = (i + 1) & mask;
+            }
+        entries[i] = entry;
+        }
+
+    private static final class Entry
+        {
+        private final PeerKey m_key;
+
+        private final InetSocketAddress m_address;
+
+        private final IoSession m_session;
+
+        private Entry(final InetSocketAddress address,
+            final IoSession session)
+            {
+            this.m_key = new PeerKey(address);
+            this.m_address = address;
+            this.m_session = session;
+            }
+        }
+    }
@@ -0,0 +1,160 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+
+/**
+ * The remote hosts a TURN client has given permission to send it data, each
+ * with its own lifetime.  We check this for every connection from a remote
+ * host, so lookups are a single read from a concurrent map and never take
+ * a lock.  Expired permissions are removed by timeouts on a timer wheel
+ * shared by all clients, rather than by sweeping each client's table.<p>
+ *
+ * Refreshing a permission just moves its expiry time.  When the timeout
+ * fires early because of that, it reschedules itself for the remainder.
+ */
+public final class PermissionTable
+    {
+
+    private final ConcurrentMap<InetAddress, Permission> m_permissions =
+        new ConcurrentHashMap<InetAddress, Permission>();
+
+    private final HashedWheelTimer m_timer;
+
+    private final long m_lifetimeMillis;
+
+    /**
+     * Creates a new permission table.
+     *
+     * @param timer The timer for expiring permissions.
+     * @param lifetimeMillis How long permissions last without being
+     * refreshed, in milliseconds.
+     */
+    public PermissionTable(final HashedWheelTimer timer,
+        final long lifetimeMillis)
+        {
+        this.m_timer = timer;
+        this.m_lifetimeMillis = lifetimeMillis;
+        }
+
+    /**
+     * Adds a permission for the specified address, or refreshes the
+     * existing one.
+     *
+     * @param address The address of the remote host.
+     */
+    public void add(final InetAddress address)
+        {
+        final long expires = System.currentTimeMillis() + m_lifetimeMillis;
+        while (true)
+            {
+            final Permission existing = this.m_permissions.get(address);
+            if (existing != null)
+                {
+                existing.m_expires = expires;
+
+                // Make sure the timeout didn't remove it while we refreshed.
+                if (this.m_permissions.get(address) == existing)
+                    {
+                    return;
+                    }
+                }
+            else
+                {
+                final Permission permission = new Permission(expires);
+                if (this.m_permissions.putIfAbsent(address, permission) == null)
+                    {
+                    schedule(address, permission, this.m_lifetimeMillis);
+                    return;
+                    }
+                }
+            }
+        }
+
+    /**
+     * Returns whether the specified address has a permission that hasn't
+     * expired.
+     *
+     * @param address The address of the remote host.
+     * @return <code>true</code> if the remote host has permission.
+     */
+    public boolean contains(final InetAddress address)
+        {
+        final Permission permission = this.m_permissions.get(address);
+        return permission != null &&
+            permission.m_expires > System.currentTimeMillis();
+        }
+
+    /**
+     * Returns the number of permissions, including any that have expired
+     * but haven't been removed yet.
+     *
+     * @return The number of permissions.
+     */
+    public int size()
+        {
+        return this.m_permissions.size();
+        }
+
+    /**
+     * Removes all permissions.
+     */
+    public void clear()
+        {
+        for (final Permission permission : this.m_permissions.values())
+            {
+            final HashedWheelTimer.Timeout timeout = permission.m_timeout;
+            if (timeout != null)
+                {
+                timeout.cancel();
+                }
+            }
+        this.m_permissions.clear();
+        }
+
+    private void schedule(final InetAddress address,
+        final Permission permission, final long delayMillis)
+        {
+        permission.m_timeout = this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                expire(address, permission);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+    private void expire(final InetAddress address,
+        final Permission permission)
+        {
+        final long remaining =
+            permission.m_expires - System.currentTimeMillis();
+        if (remaining > 0)
+            {
+            schedule(address, permission, remaining);
+            }
+        else if (this.m_permissions.remove(address, permission) &&
+            permission.m_expires > System.currentTimeMillis() &&
+            this.m_permissions.putIfAbsent(address, permission) == null)
+            {
+            // It was refreshed just as we removed it.
+            schedule(address, permission,
+                permission.m_expires - System.currentTimeMillis());
+            }
+        }
+
+    private static final class Permission
+        {
+        private volatile long m_expires;
+        private volatile HashedWheelTimer.Timeout m_timeout;
+
+        private Permission(final long expires)
+            {
+            this.m_expires = expires;
+            }
+        }
+    }
@@ -0,0 +1,347 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.lastbamboo.common.amazon.ec2.AmazonEc2Utils;
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the public address of the server, which we give clients as the
+ * address of their relays.  The address comes from the configuration if
+ * it's there, then from the configured file, and otherwise from the EC2
+ * instance metadata.  Looking up the metadata can take seconds, or forever
+ * when we're not on EC2, so we do it in the background with a timeout,
+ * retrying with backoff until it works.  The address never changes once
+ * we have it.<p>
+ *
+ * Anything that needs the address waits for it with
+ * {@link #whenResolved(Runnable, Runnable)}, so the servers can start
+ * listening right away.  Tasks run in the order they started waiting, and
+ * give up after the lookup timeout, or right away if too many are already
+ * waiting.
+ */
+public final class PublicAddressResolver
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(PublicAddressResolver.class);
+
+    private static final long MIN_RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The most tasks we let wait for the address at once.
+     */
+    static final int MAX_WAITING = 10000;
+
+    private final String m_configuredAddress;
+
+    private final String m_addressFile;
+
+    private final long m_timeoutMillis;
+
+    private final HashedWheelTimer m_timer;
+
+    private final ExecutorService m_lookups = Executors.newCachedThreadPool(
+        new DaemonThreadFactory("Public-Address-Lookup"));
+
+    private volatile InetAddress m_address;
+
+    /**
+     * Whether tasks can run right away.  We only set this once everything
+     * that waited for the address has run, so later tasks can't overtake
+     * them.
+     */
+    private volatile boolean m_ready;
+
+    /**
+     * Tasks waiting for the address, oldest first.  Guarded by this.
+     */
+    private final LinkedList<Waiter> m_waiting = new LinkedList<Waiter>();
+
+    /**
+     * Creates a new resolver.  Call {@link #start()} to find the address.
+     *
+     * @param config The server configuration.
+     * @param timer The timer for giving up on tasks that wait too long.
+     */
+    public PublicAddressResolver(final TurnServerConfig config,
+        final HashedWheelTimer timer)
+        {
+        this.m_configuredAddress = config.getPublicAddress();
+        this.m_addressFile = config.getPublicAddressFile();
+        this.m_timeoutMillis =
+            TimeUnit.SECONDS.toMillis(config.getPublicAddressTimeout());
+        this.m_timer = timer;
+        }
+
+    /**
+     * Finds the address.  A configured address or file is read right away,
+     * while the metadata lookup happens in the background.
+     */
+    public void start()
+        {
+        if (this.m_configuredAddress != null)
+            {
+            try
+                {
+                resolved(InetAddress.getByName(this.m_configuredAddress));
+                return;
+                }
+            catch (final IOException e)
+                {
+                LOG.warn("Bad public address '" + this.m_configuredAddress +
+                    "' -- looking it up", e);
+                }
+            }
+        else if (this.m_addressFile != null)
+            {
+            try
+                {
+                resolved(readAddressFile());
+                return;
+                }
+            catch (final IOException e)
+                {
+                LOG.warn("Could not read public address from " +
+                    this.m_addressFile + " -- looking it up", e);
+                }
+            }
+        this.m_lookups.execute(new Runnable()
+            {
+            public void run()
+                {
+                lookUp();
+                }
+            });
+        }
+
+    /**
+     * Stops any lookup still in progress.
+     */
+    public void stop()
+        {
+        this.m_lookups.shutdownNow();
+        }
+
+    /**
+     * Returns the address.
+     *
+     * @return The address, or <code>null</code> if we don't have it yet.
+     */
+    public InetAddress getAddress()
+        {
+        return this.m_address;
+        }
+
+    /**
+     * Runs the specified task once we have the address.  If we already
+     * have it, the task runs right away on the calling thread.  Otherwise it
+     * runs on the thread that finds the address, after any tasks that
+     * started waiting before it.  If we don't find the address within the
+     * lookup timeout, or too many tasks are already waiting, we run the
+     * expired task instead.
+     *
+     * @param task The task.
+     * @param expired The task to run if we give up waiting.
+     */
+    public void whenResolved(final Runnable task, final Runnable expired)
+        {
+        if (!this.m_ready)
+            {
+            synchronized (this)
+                {
+                if (!this.m_ready)
+                    {
+                    if (this.m_waiting.size() < MAX_WAITING)
+                        {
+                        this.m_waiting.add(new Waiter(task, expired));
+                        return;
+                        }
+                    LOG.warn("Too many tasks waiting for our address");
+                    expired.run();
+                    return;
+                    }
+                }
+            }
+        task.run();
+        }
+
+    /**
+     * Returns the number of tasks waiting for the address.
+     *
+     * @return The number of tasks waiting.
+     */
+    public synchronized int getWaiting()
+        {
+        return this.m_waiting.size();
+        }
+
+    private InetAddress readAddressFile() throws IOException
+        {
+        final BufferedReader reader =
+            new BufferedReader(new FileReader(new File(this.m_addressFile)));
+        try
+            {
+            final String line = reader.readLine();
+            if (line == null || line.trim().length() == 0)
+                {
+                throw new IOException("No address in file");
+                }
+            return InetAddress.getByName(line.trim());
+            }
+        finally
+            {
+            reader.close();
+            }
+        }
+
+    private void lookUp()
+        {
+        long delay = MIN_RETRY_DELAY;
+        Future<InetAddress> lookup = null;
+        while (!Thread.currentThread().isInterrupted())
+            {
+            // A lookup stuck in socket I/O ignores being cancelled, so we
+            // go back to waiting on it instead of starting another thread
+            // alongside it on every retry.
+            if (lookup == null || lookup.isDone())
+                {
+                lookup = this.m_lookups.submit(new Callable<InetAddress>()
+                    {
+                    public InetAddress call()
+                        {
+                        return AmazonEc2Utils.getPublicAddress();
+                        }
+                    });
+                }
+            try
+                {
+                final InetAddress address =
+                    lookup.get(this.m_timeoutMillis, TimeUnit.MILLISECONDS);
+                if (address != null)
+                    {
+                    resolved(address);
+                    return;
+                    }
+                LOG.warn("No public address from instance metadata");
+                }
+            catch (final TimeoutException e)
+                {
+                LOG.warn("Public address lookup still running after {} ms",
+                    this.m_timeoutMillis);
+                }
+            catch (final ExecutionException e)
+                {
+                LOG.warn("Public address lookup failed", e.getCause());
+                }
+            catch (final InterruptedException e)
+                {
+                return;
+                }
+
+            try
+                {
+                Thread.sleep(delay);
+                }
+            catch (final InterruptedException e)
+                {
+                return;
+                }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+            }
+        }
+
+    /**
+     * Uses the specified address, running everything that waited for it.
+     *
+     * @param address The address.
+     */
+    void resolved(final InetAddress address)
+        {
+        LOG.info("Using public address: {}", address);
+        this.m_address = address;
+
+        // Tasks that start waiting while we run these go on the end, so we
+        // keep going until there are none left.
+        while (true)
+            {
+            final Waiter waiter;
+            synchronized (this)
+                {
+                if (this.m_waiting.isEmpty())
+                    {
+                    this.m_ready = true;
+                    return;
+                    }
+                waiter = this.m_waiting.removeFirst();
+                }
+            if (!waiter.m_timeout.cancel())
+                {
+                // It expired while we got to it.
+                continue;
+                }
+            try
+                {
+                waiter.m_task.run();
+                }
+            catch (final RuntimeException e)
+                {
+                LOG.warn("Error running task waiting for address", e);
+                }
+            }
+        }
+
+    private void expired(final Waiter waiter)
+        {
+        synchronized (this)
+            {
+            this.m_waiting.remove(waiter);
+            }
+        LOG.debug("Gave up waiting for our address");
+        waiter.m_expired.run();
+        }
+
+    /**
+     * A task waiting for the address.  Whichever of running it and expiring
+     * it cancels or fires the timeout first gets to go.
+     */
+    private final class Waiter implements Runnable
+        {
+
+        private final Runnable m_task;
+
+        private final Runnable m_expired;
+
+        private final HashedWheelTimer.Timeout m_timeout;
+
+        private Waiter(final Runnable task, final Runnable expired)
+            {
+            this.m_task = task;
+            this.m_expired = expired;
+            this.m_timeout = m_timer.schedule(this, m_timeoutMillis,
+                TimeUnit.MILLISECONDS);
+            }
+
+        public void run()
+            {
+            expired(this);
+            }
+        }
+    }
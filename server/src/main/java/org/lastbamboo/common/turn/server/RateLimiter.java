@@ -0,0 +1,354 @@
+package org.lastbamboo.common.turn.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.TransportType;
+
+/**
+ * Bandwidth limits for relayed data, so a single bulk transfer can't take
+ * all of the server's bandwidth.  Data going each way passes three token
+ * buckets:  one for the whole server, one for the TURN client and one for
+ * the remote host.  A rate of 0 turns off that level.<p>
+ *
+ * We've already read the data by the time we see it, so over TCP we relay
+ * it anyway and suspend reads on the session it came from until the
+ * buckets have paid for it.  We can't suspend a UDP session without
+ * suspending everyone on the same socket, so over UDP we drop data over
+ * the limits instead.<p>
+ *
+ * Each bucket is a single timestamp, the time the data charged to it so
+ * far will have been paid for, and charging it is one compare-and-set.
+ * The rates are read on every charge, so changing them takes effect right
+ * away for every bucket.  Buckets for each session are kept in a session
+ * attribute, like {@link FlowController} does with its readers.<p>
+ *
+ * Reads resume on the timer, so pauses are rounded up to the timer's tick.
+ * The {@link FlowController} suspends reads on the same sessions, so we
+ * suspend and resume through it, and reads stay suspended while either of
+ * us is holding them back.
+ */
+public final class RateLimiter
+    {
+
+    private static final String BUCKETS =
+        RateLimiter.class.getName() + ".buckets";
+
+    private final HashedWheelTimer m_timer;
+
+    /**
+     * How far ahead of its rate a bucket can get before we hold back data.
+     */
+    private final long m_burstNanos;
+
+    private volatile long m_globalRate;
+
+    private volatile long m_clientRate;
+
+    private volatile long m_peerRate;
+
+    private final Bucket m_globalToPeer = new Bucket();
+
+    private final Bucket m_globalToClient = new Bucket();
+
+    private final AtomicLong m_pauses = new AtomicLong();
+
+    private final AtomicLong m_drops = new AtomicLong();
+
+    /**
+     * Creates a new rate limiter.
+     *
+     * @param timer The timer for resuming reads.
+     * @param globalRate The limit for the whole server in each direction,
+     * in bytes per second, or 0 for no limit.
+     * @param clientRate The limit for each TURN client in each direction,
+     * in bytes per second, or 0 for no limit.
+     * @param peerRate The limit for each remote host in each direction, in
+     * bytes per second, or 0 for no limit.
+     * @param burstMillis How much data above the rates we let through at
+     * once, in milliseconds of each rate.
+     */
+    public RateLimiter(final HashedWheelTimer timer, final long globalRate,
+        final long clientRate, final long peerRate, final int burstMillis)
+        {
+        this.m_timer = timer;
+        this.m_burstNanos = TimeUnit.MILLISECONDS.toNanos(burstMillis);
+        setGlobalRate(globalRate);
+        setClientRate(clientRate);
+        setPeerRate(peerRate);
+        }
+
+    /**
+     * Charges data from a TURN client to a remote host against the limits.
+     * Call this before writing the data.
+     *
+     * @param client The TURN client's session, which the data came from.
+     * @param peer The remote host's session.
+     * @param bytes The number of bytes.
+     * @return <code>true</code> to relay the data, or <code>false</code> to
+     * drop it.
+     */
+    public boolean toPeer(final IoSession client, final IoSession peer,
+        final int bytes)
+        {
+        if (isUnlimited())
+            {
+            return true;
+            }
+        final Buckets clientBuckets = getBuckets(client);
+        return admit(client, clientBuckets, this.m_globalToPeer,
+            clientBuckets.m_toPeer, getBuckets(peer).m_toPeer, bytes);
+        }
+
+    /**
+     * Charges data from a remote host to a TURN client against the limits.
+     * Call this before writing the data.
+     *
+     * @param peer The remote host's session, which the data came from.
+     * @param client The TURN client's session.
+     * @param bytes The number of bytes.
+     * @return <code>true</code> to relay the data, or <code>false</code> to
+     * drop it.
+     */
+    public boolean toClient(final IoSession peer, final IoSession client,
+        final int bytes)
+        {
+        if (isUnlimited())
+            {
+            return true;
+            }
+        final Buckets peerBuckets = getBuckets(peer);
+        return admit(peer, peerBuckets, this.m_globalToClient,
+            getBuckets(client).m_toClient, peerBuckets.m_toClient, bytes);
+        }
+
+    private boolean isUnlimited()
+        {
+        return this.m_globalRate == 0 && this.m_clientRate == 0 &&
+            this.m_peerRate == 0;
+        }
+
+    private boolean admit(final IoSession reader, final Buckets readerBuckets,
+        final Bucket global, final Bucket client, final Bucket peer,
+        final int bytes)
+        {
+        final long globalRate = this.m_globalRate;
+        final long clientRate = this.m_clientRate;
+        final long peerRate = this.m_peerRate;
+        final long now = System.nanoTime();
+        if (reader.getTransportType() == TransportType.DATAGRAM)
+            {
+            if (global.peek(globalRate, bytes, now) > this.m_burstNanos ||
+                client.peek(clientRate, bytes, now) > this.m_burstNanos ||
+                peer.peek(peerRate, bytes, now) > this.m_burstNanos)
+                {
+                this.m_drops.incrementAndGet();
+                return false;
+                }
+            }
+        final long ahead = Math.max(global.charge(globalRate, bytes, now),
+            Math.max(client.charge(clientRate, bytes, now),
+                peer.charge(peerRate, bytes, now)));
+        if (ahead > this.m_burstNanos &&
+            reader.getTransportType() != TransportType.DATAGRAM)
+            {
+            pause(reader, readerBuckets, ahead - this.m_burstNanos);
+            }
+        return true;
+        }
+
+    private void pause(final IoSession reader, final Buckets buckets,
+        final long nanos)
+        {
+        if (!buckets.m_paused.compareAndSet(false, true))
+            {
+            return;
+            }
+        FlowController.suspendRead(reader);
+        this.m_pauses.incrementAndGet();
+        this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                buckets.m_paused.set(false);
+                FlowController.resumeRead(reader);
+                }
+            }, nanos, TimeUnit.NANOSECONDS);
+        }
+
+    private Buckets getBuckets(final IoSession session)
+        {
+        final Buckets buckets = (Buckets) session.getAttribute(BUCKETS);
+        if (buckets != null)
+            {
+            return buckets;
+            }
+        synchronized (this)
+            {
+            Buckets created = (Buckets) session.getAttribute(BUCKETS);
+            if (created == null)
+                {
+                created = new Buckets();
+                session.setAttribute(BUCKETS, created);
+                }
+            return created;
+            }
+        }
+
+    /**
+     * Returns the limit for the whole server in each direction.
+     *
+     * @return The limit in bytes per second, or 0 for no limit.
+     */
+    public long getGlobalRate()
+        {
+        return this.m_globalRate;
+        }
+
+    /**
+     * Sets the limit for the whole server in each direction.
+     *
+     * @param globalRate The limit in bytes per second, or 0 for no limit.
+     */
+    public void setGlobalRate(final long globalRate)
+        {
+        this.m_globalRate = checkRate(globalRate);
+        }
+
+    /**
+     * Returns the limit for each TURN client in each direction.
+     *
+     * @return The limit in bytes per second, or 0 for no limit.
+     */
+    public long getClientRate()
+        {
+        return this.m_clientRate;
+        }
+
+    /**
+     * Sets the limit for each TURN client in each direction.
+     *
+     * @param clientRate The limit in bytes per second, or 0 for no limit.
+     */
+    public void setClientRate(final long clientRate)
+        {
+        this.m_clientRate = checkRate(clientRate);
+        }
+
+    /**
+     * Returns the limit for each remote host in each direction.
+     *
+     * @return The limit in bytes per second, or 0 for no limit.
+     */
+    public long getPeerRate()
+        {
+        return this.m_peerRate;
+        }
+
+    /**
+     * Sets the limit for each remote host in each direction.
+     *
+     * @param peerRate The limit in bytes per second, or 0 for no limit.
+     */
+    public void setPeerRate(final long peerRate)
+        {
+        this.m_peerRate = checkRate(peerRate);
+        }
+
+    private static long checkRate(final long rate)
+        {
+        if (rate < 0)
+            {
+            throw new IllegalArgumentException("Bad rate: " + rate);
+            }
+        return rate;
+        }
+
+    /**
+     * Returns the number of times we've suspended reads to stay within the
+     * limits.
+     *
+     * @return The number of times we've suspended reads.
+     */
+    public long getPauses()
+        {
+        return this.m_pauses.get();
+        }
+
+    /**
+     * Returns the number of UDP messages we've dropped to stay within the
+     * limits.
+     *
+     * @return The number of messages we've dropped.
+     */
+    public long getDrops()
+        {
+        return this.m_drops.get();
+        }
+
+    /**
+     * A token bucket, kept as the time everything charged to it will have
+     * been paid for at its rate.
+     */
+    private static final class Bucket
+        {
+
+        private final AtomicLong m_paidAt = new AtomicLong(System.nanoTime());
+
+        /**
+         * Charges data to the bucket.
+         *
+         * @return How far ahead of its rate the bucket is, in nanoseconds.
+         */
+        private long charge(final long rate, final int bytes, final long now)
+            {
+            if (rate == 0)
+                {
+                return 0;
+                }
+            final long cost = bytes * 1000000000L / rate;
+            while (true)
+                {
+                final long paidAt = this.m_paidAt.get();
+                final long next = Math.max(paidAt, now) + cost;
+                if (this.m_paidAt.compareAndSet(paidAt, next))
+                    {
+                    return next - now;
+                    }
+                }
+            }
+
+        /**
+         * Returns how far ahead of its rate the bucket would be if we
+         * charged the data to it, without charging it.
+         */
+        private long peek(final long rate, final int bytes, final long now)
+            {
+            if (rate == 0)
+                {
+                return 0;
+                }
+            return Math.max(this.m_paidAt.get(), now) +
+                bytes * 1000000000L / rate - now;
+            }
+        }
+
+    /**
+     * The buckets for a single session, each counting data in one
+     * direction.
+     */
+    private static final class Buckets
+        {
+        private final Bucket m_toPeer = new Bucket();
+
+        private final Bucket m_toClient = new Bucket();
+
+        /**
+         * Whether we've suspended reads on the session.
+         */
+        private final AtomicBoolean m_paused = new AtomicBoolean();
+        }
+    }
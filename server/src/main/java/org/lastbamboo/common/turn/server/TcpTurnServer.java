@@ -0,0 +1,206 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.MBeanServer;
+
+import org.lastbamboo.common.turn.server.buffer.ByteBufferAllocators;
+import org.lastbamboo.common.turn.server.buffer.SizeClassedByteBufferAllocator;
+import org.lastbamboo.common.turn.server.metrics.AcceptMeter;
+import org.littleshoot.mina.common.ByteBufferAllocator;
+import org.littleshoot.mina.common.DefaultIoFilterChainBuilder;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.filter.executor.ExecutorFilter;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.littleshoot.stun.stack.StunConstants;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.littleshoot.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server for processing TURN TCP messages.<p>
+ * 
+ * A single acceptor thread accepts every connection to the TURN port and
+ * hands it to one of the selector processors, so during reconnect storms
+ * connections wait in the kernel's accept queue.  We size that queue from
+ * the configuration rather than taking MINA's default of 50, which drops
+ * connections a few milliseconds into a storm.
+ */
+public class TcpTurnServer implements TurnServer, IoServiceListener,
+    TcpTurnServerMBean
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(TcpTurnServer.class);
+    
+    private final TurnClientManager m_turnClientManager;
+
+    private final TurnServerConfig m_config;
+
+    private final ExecutorService m_threadPool = Executors.newCachedThreadPool(
+        new DaemonThreadFactory("TCP-TURN-Server-Thread-Pool"));
+
+    private final SocketAcceptor m_acceptor;
+
+    private final IoHandler m_handler;
+
+    private final ByteBufferAllocator m_allocator;
+
+    private final AcceptMeter m_accepts;
+    
+    /**
+     * Creates a new TCP TURN server.
+     */
+    public TcpTurnServer()
+        {
+        this (new TurnClientManagerImpl());
+        }
+    
+    /**
+     * Creates a new TCP TURN server.
+     * 
+     * @param turnClientManager The class that manages TURN clients.
+     */
+    public TcpTurnServer(final TurnClientManager turnClientManager)
+        {
+        this (turnClientManager, new TurnServerConfig());
+        }
+    
+    /**
+     * Creates a new TCP TURN server.
+     * 
+     * @param turnClientManager The class that manages TURN clients.
+     * @param config The server configuration.
+     */
+    public TcpTurnServer(final TurnClientManager turnClientManager,
+        final TurnServerConfig config)
+        {
+        this.m_turnClientManager = turnClientManager;
+        this.m_config = config;
+        
+        // Configure the MINA buffers for optimal performance.  This only 
+        // takes effect the first time, as the allocator is global.
+        this.m_allocator = ByteBufferAllocators.install(config);
+        this.m_accepts = 
+            turnClientManager.getMetrics().getAcceptMeter("tcp");
+        this.m_acceptor = new SocketAcceptor(
+            Runtime.getRuntime().availableProcessors() + 1, 
+            this.m_threadPool);
+        this.m_acceptor.addListener(this);
+        
+        final SocketAcceptorConfig acceptorConfig = 
+            this.m_acceptor.getDefaultConfig();
+        acceptorConfig.setThreadModel(ThreadModel.MANUAL);
+        acceptorConfig.setReuseAddress(true);
+        acceptorConfig.setBacklog(config.getAcceptBacklog());
+        final DefaultIoFilterChainBuilder filterChainBuilder =
+            acceptorConfig.getFilterChain();
+        filterChainBuilder.addLast("codec",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+        filterChainBuilder.addLast("threadPool",
+            new ExecutorFilter(this.m_threadPool));
+        
+        final StunMessageVisitorFactory visitorFactory =
+            new TurnServerMessageVisitorFactory(this.m_turnClientManager);
+        this.m_handler = new TurnServerIoHandler(visitorFactory);
+        }
+    
+    public void start() throws IOException
+        {
+        this.m_acceptor.bind(new InetSocketAddress(StunConstants.STUN_PORT),
+            this.m_handler);
+        if (this.m_config.isJmxEnabled())
+            {
+            startJmxServer();
+            }
+        }
+    
+    public void stop()
+        {
+        m_log.debug("Stopping server...");
+        this.m_acceptor.unbindAll();
+        this.m_threadPool.shutdown();
+        }
+
+    public void serviceActivated(final IoService service, 
+        final SocketAddress serviceAddress, final IoHandler handler, 
+        final IoServiceConfig config)
+        {
+        m_log.debug("Started server on: {}", serviceAddress);
+        }
+
+    public void serviceDeactivated(final IoService service, 
+        final SocketAddress serviceAddress, final IoHandler handler, 
+        final IoServiceConfig config)
+        {
+        m_log.warn("TURN Server deactivated on: {}", serviceAddress);
+        }
+
+    public void sessionCreated(final IoSession session)
+        {
+        this.m_accepts.accepted();
+        if (TurnFastPathFilter.isNeeded(this.m_config))
+            {
+            // This goes before the decoder so it sees the raw read buffers.
+            session.getFilterChain().addFirst("turn-fast-path", 
+                new TurnFastPathFilter(this.m_turnClientManager, 
+                    this.m_config));
+            }
+        }
+
+    public void sessionDestroyed(final IoSession session)
+        {
+        // Key -- we need to tell the client manager the session with the
+        // TURN client has closed.
+        m_log.debug("TURN client disconnected: "+session);
+        this.m_turnClientManager.removeBinding(session);
+        }
+    
+    private void startJmxServer()
+        {
+        m_log.debug("Starting JMX server...");
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        JmxUtils.register(mbs, this.m_turnClientManager);
+        JmxUtils.register(mbs, this.m_turnClientManager.getMetrics());
+        JmxUtils.register(mbs, this);
+        if (this.m_allocator instanceof SizeClassedByteBufferAllocator)
+            {
+            JmxUtils.register(mbs, this.m_allocator);
+            }
+        }
+
+    public int getTurnPort()
+        {
+        return StunConstants.STUN_PORT;
+        }
+
+    public long getAccepts()
+        {
+        return this.m_accepts.getAccepts();
+        }
+
+    public int getAcceptsLastSecond()
+        {
+        return this.m_accepts.getAcceptsLastSecond();
+        }
+
+    public int getMaxAcceptsPerSecond()
+        {
+        return this.m_accepts.getMaxAcceptsPerSecond();
+        }
+
+    }
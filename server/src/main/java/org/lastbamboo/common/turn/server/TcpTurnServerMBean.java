@@ -0,0 +1,38 @@
+package org.lastbamboo.common.turn.server;
+
+/**
+ * MBean interface for the TURN server class.
+ */
+public interface TcpTurnServerMBean
+    {
+    
+    /**
+     * Accessor for the port the TURN server is running on.
+     * 
+     * @return The port the server is running on.
+     */
+    int getTurnPort();
+
+    /**
+     * Accessor for the number of connections accepted on the TURN port.
+     * 
+     * @return The number of connections accepted.
+     */
+    long getAccepts();
+
+    /**
+     * Accessor for the number of connections accepted on the TURN port in
+     * the second before the latest one.
+     * 
+     * @return The number of connections accepted in the last second.
+     */
+    int getAcceptsLastSecond();
+
+    /**
+     * Accessor for the most connections accepted on the TURN port in any
+     * one second.
+     * 
+     * @return The most connections accepted in a second.
+     */
+    int getMaxAcceptsPerSecond();
+    }
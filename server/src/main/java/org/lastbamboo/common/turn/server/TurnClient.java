@@ -1,9 +1,11 @@
 package org.lastbamboo.common.turn.server;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.turn.server.metrics.PacketTrace;
 
 /**
  * Interface for classes that keep track of data for TURN clients that this
@@ -28,6 +30,48 @@ public interface TurnClient
      * attempting to connect to that remote host.
      */
     boolean write(InetSocketAddress remoteAddress, ByteBuffer data);
+
+    /**
+     * Writes the specified data to the specified remote host, like
+     * {@link #write(InetSocketAddress, ByteBuffer)}, without creating an
+     * address when we already have a connection to the host.
+     *
+     * @param remoteHost The IP address and port of the remote host to send
+     * data to.
+     * @param data The data to send the remote host.
+     * @return <code>true</code> if the data was send to an existing binding,
+     * otherwise <code>false</code>, including when we dropped UDP data over
+     * the bandwidth limits.
+     */
+    boolean write(PeerKey remoteHost, ByteBuffer data);
+
+    /**
+     * Binds a channel number to a remote host, so the TURN client and the
+     * remote host can exchange data with a 4 byte ChannelData header instead
+     * of Send and Data Indications.  This also gives the remote host
+     * permission to send data to the client, like a connect request.
+     * Rebinding a channel to the same remote host just refreshes it.
+     *
+     * @param channelNumber The channel number, from 0x4000 through 0x7FFF.
+     * @param remoteAddress The remote host.
+     * @return <code>true</code> if the channel is bound, or
+     * <code>false</code> if the channel number is invalid or either the
+     * channel or the remote host is already bound to something else.
+     */
+    boolean bindChannel(int channelNumber, InetSocketAddress remoteAddress);
+
+    /**
+     * Writes data from this TURN client to the remote host bound to the
+     * specified channel.
+     *
+     * @param channelNumber The channel number.
+     * @param data The data to send the remote host.
+     * @return <code>true</code> if the data was written, or
+     * <code>false</code> if the channel isn't bound, there's no
+     * connection to the remote host, or we dropped UDP data over the
+     * bandwidth limits.
+     */
+    boolean writeChannel(int channelNumber, ByteBuffer data);
     
     /**
      * Tells the client to appropriately handle a connect request to the 
@@ -56,6 +100,19 @@ public interface TurnClient
      */
     IoSession getIoSession();
 
+    /**
+     * Sets the TURN client's "active destination."  From then on the TURN
+     * client's connection is spliced to that remote host:  data passes in 
+     * both directions without any TURN framing, and data from other remote
+     * hosts is dropped.  The remote host must already have permission.
+     *
+     * @param remoteAddress The remote host.
+     * @return <code>true</code> if the active destination is set, or
+     * <code>false</code> if the remote host doesn't have permission or the
+     * client already has a different active destination.
+     */
+    boolean setActiveDestination(InetSocketAddress remoteAddress);
+
     /**
      * Returns whether or not the TURN client has set its "active destination"
      * turning off TURN messaging on that connection.
@@ -100,11 +157,36 @@ public interface TurnClient
      */
     int getNumConnections();
 
+    /**
+     * Accessor for the trace of this client's packets.
+     *
+     * @return The trace, or <code>null</code> if we're not tracing this
+     * client.
+     */
+    PacketTrace getPacketTrace();
+
+    /**
+     * Starts or stops tracing this client's packets.
+     *
+     * @param trace The trace, or <code>null</code> to stop tracing.
+     */
+    void setPacketTrace(PacketTrace trace);
+
     /**
      * Starts the separate server running on the client's allocated address
      * for accepting connections from remote hosts.
+     * 
+     * @throws IOException If we could not bind the allocated address.
+     */
+    void startServer() throws IOException;
+    
+    /**
+     * Accessor for when the client's allocation was created.  Allocations
+     * can come well after the client connects, and are sometimes refused.
+     * 
+     * @return The time of the allocation, in milliseconds since the epoch.
      */
-    void startServer();
+    long getAllocationTime();
     
     /**
      * Accessor for the MAPPED ADDRESS, otherwise known as the server
@@ -0,0 +1,552 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.attributes.turn.ConnectionStatus;
+import org.littleshoot.stun.stack.message.turn.ConnectionStatusIndication;
+import org.lastbamboo.common.turn.server.allocated.AllocatedTurnServer;
+import org.lastbamboo.common.turn.server.allocated.AllocatedTurnServerFactory;
+import org.lastbamboo.common.turn.server.allocated.TurnRawDataFilter;
+import org.lastbamboo.common.turn.server.metrics.PacketTrace;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Default TURN client implementation.  Starts the server on behalf of the
+ * TURN client and keeps track of remote hosts that have permission to send
+ * incoming data to this client.<p>
+ *
+ * Note that this class does not implement <code>CloseListener</code> because
+ * doing so would require us to keep track of a separate data structure of
+ * "canceled" connections.  Instead, we simply allow the write attempt to
+ * throw an <code>IOException</code>, allowing the caller to respond with
+ * "Send Error Response" messages to the TURN client as appropriate.<p>
+ *
+ * Note that the lifetime of TURN allocations is handled externally 
+ * according to how the connection has been idle.<p>
+ * 
+ * We deviate from the TURN spec here because it just seems to make sense
+ * to only close TURN sessions when there's been no data, not after fixed
+ * periods regardless of whether there's data or not.
+ */
+public final class TurnClientImpl implements TurnClient
+    {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(TurnClientImpl.class);
+
+    private final InetAddress m_publicAddress;
+    
+    private final InetSocketAddress m_mappedAddress;
+
+    private final long m_allocationTime = System.currentTimeMillis();
+
+    /**
+     * The connections to remote hosts, keyed by their addresses.
+     */
+    private final PeerTable m_connections = new PeerTable();
+
+    /**
+     * The addresses that the TURN client has issued connect requests or
+     * channel bindings for, giving them permission to send incoming data to
+     * the client.
+     */
+    private final PermissionTable m_permissions;
+
+    private final FlowController m_flowController;
+
+    private final RateLimiter m_rateLimiter;
+
+    private final TurnMetrics m_metrics;
+
+    /**
+     * Channel bindings indexed by channel number less 0x4000.  ChannelData
+     * looks these up on every message, so this is a plain array that we 
+     * copy whenever a channel is bound.  That's rare, and clients typically
+     * number channels up from 0x4000, so the array stays small.
+     */
+    private volatile ChannelBinding[] m_channels = new ChannelBinding[0];
+
+    /**
+     * Channel bindings keyed by remote host.  Guarded by itself, which also
+     * guards copying {@link #m_channels}.
+     */
+    private final Map<InetSocketAddress, ChannelBinding> m_channelsByPeer =
+        new ConcurrentHashMap<InetSocketAddress, ChannelBinding>();
+
+    /**
+     * The remote host the client's connection is spliced to, if any.
+     */
+    private volatile InetSocketAddress m_activeDestination;
+
+    /**
+     * The trace of this client's packets, or <code>null</code> when we're
+     * not tracing, which is nearly always.
+     */
+    private volatile PacketTrace m_packetTrace;
+
+    private final IoSession m_ioSession;
+
+    private final AllocatedTurnServerFactory m_serverFactory;
+
+    private AllocatedTurnServer m_allocatedTurnServer;
+
+    /**
+     * Creates a new TURN client abstraction for the specified TURN client
+     * address and port.
+     * 
+     * @param publicAddress The public address of the server.  The port will
+     * be determined later using an ephemeral port when we bind.
+     * @param ioSession The handler for writing data back to the TURN client.
+     * @param serverFactory The factory for creating the server that listens
+     * on our relay address.
+     * @param permissions The table for remote hosts the client gives
+     * permission to send it data.
+     * @param flowController The class that stops reading from the client
+     * when remote hosts fall behind.
+     * @param rateLimiter The bandwidth limits for relayed data.
+     * @param metrics The server-wide traffic metrics.
+     */
+    public TurnClientImpl(final InetAddress publicAddress,
+        final IoSession ioSession,
+        final AllocatedTurnServerFactory serverFactory,
+        final PermissionTable permissions,
+        final FlowController flowController, final RateLimiter rateLimiter,
+        final TurnMetrics metrics)
+        {
+        this.m_publicAddress = publicAddress;
+        this.m_ioSession = ioSession;
+        this.m_serverFactory = serverFactory;
+        this.m_permissions = permissions;
+        this.m_flowController = flowController;
+        this.m_rateLimiter = rateLimiter;
+        this.m_metrics = metrics;
+        
+        // The address of the client from the perspective of the server --
+        // the client's public address.
+        this.m_mappedAddress = (InetSocketAddress) ioSession.getRemoteAddress();
+        }
+
+    public void startServer() throws IOException
+        {
+        this.m_allocatedTurnServer = 
+            this.m_serverFactory.createServer(this, this.m_publicAddress);
+        this.m_allocatedTurnServer.start();
+        }
+
+    public boolean write(final InetSocketAddress remoteAddress,
+        final ByteBuffer data) 
+        {
+        IoSession session = this.m_connections.get(remoteAddress);
+        if (session == null && this.m_allocatedTurnServer != null &&
+            this.m_permissions.contains(remoteAddress.getAddress()))
+            {
+            // Over UDP we can send to permitted hosts that haven't sent 
+            // anything to us yet.  This is null for TCP.
+            session = this.m_allocatedTurnServer.connect(remoteAddress);
+            }
+        return relay(session, remoteAddress, data);
+        }
+
+    public boolean write(final PeerKey remoteHost, final ByteBuffer data)
+        {
+        final IoSession session = this.m_connections.get(remoteHost);
+        if (session == null)
+            {
+            // We may be able to open a connection, which is rare enough 
+            // that we don't mind creating the address.
+            return write(remoteHost.toSocketAddress(), data);
+            }
+        return relay(session, remoteHost, data);
+        }
+
+    private boolean relay(final IoSession session, final Object remoteHost,
+        final ByteBuffer data)
+        {
+        if (session == null)
+            {
+            // The remote host likely just disconnected, and we should have
+            // properly informed the TURN client with a connection status
+            // message.  This will happen periodically if the TURN client
+            // has sent a little extra data.
+            if (LOG.isDebugEnabled())
+                {
+                LOG.debug("Attempting to send data to host that's not " +
+                    "there: " + remoteHost + " We have: " + 
+                    this.m_connections);
+                }
+            return false;
+            }
+        else
+            {
+            final int bytes = data.remaining();
+            if (!this.m_rateLimiter.toPeer(this.m_ioSession, session, bytes))
+                {
+                return false;
+                }
+            session.write(data);
+            this.m_metrics.relayedToPeer(session, data, bytes);
+            this.m_flowController.writeScheduled(this.m_ioSession, session);
+            final PacketTrace trace = this.m_packetTrace;
+            if (trace != null)
+                {
+                trace.packet("to", remoteHost, bytes);
+                }
+            return true;
+            }
+        }
+    
+    public boolean bindChannel(final int channelNumber,
+        final InetSocketAddress remoteAddress)
+        {
+        if (channelNumber < TurnWireFormat.MIN_CHANNEL ||
+            channelNumber > TurnWireFormat.MAX_CHANNEL)
+            {
+            return false;
+            }
+        final int index = channelNumber - TurnWireFormat.MIN_CHANNEL;
+        synchronized (this.m_channelsByPeer)
+            {
+            final ChannelBinding[] channels = this.m_channels;
+            final ChannelBinding existing = 
+                index < channels.length ? channels[index] : null;
+            final ChannelBinding peerBinding = 
+                this.m_channelsByPeer.get(remoteAddress);
+            if (existing != null || peerBinding != null)
+                {
+                // Either a refresh of the same binding, or a conflict.
+                return existing == peerBinding;
+                }
+
+            final ChannelBinding binding = 
+                new ChannelBinding(channelNumber, remoteAddress);
+            final ChannelBinding[] copy = new ChannelBinding[
+                Math.max(channels.length, index + 1)];
+            System.arraycopy(channels, 0, copy, 0, channels.length);
+            copy[index] = binding;
+            this.m_channelsByPeer.put(remoteAddress, binding);
+            this.m_channels = copy;
+
+            final IoSession session = this.m_connections.get(remoteAddress);
+            if (session != null)
+                {
+                bind(binding, session);
+                }
+            }
+        
+        addPermission(remoteAddress.getAddress());
+        return true;
+        }
+
+    public boolean writeChannel(final int channelNumber, final ByteBuffer data)
+        {
+        final int index = channelNumber - TurnWireFormat.MIN_CHANNEL;
+        final ChannelBinding[] channels = this.m_channels;
+        if (index < 0 || index >= channels.length || channels[index] == null)
+            {
+            if (LOG.isDebugEnabled())
+                {
+                LOG.debug("Data on unbound channel: " + channelNumber);
+                }
+            return false;
+            }
+        final ChannelBinding binding = channels[index];
+        final IoSession session = binding.m_session;
+        if (session != null)
+            {
+            final int bytes = data.remaining();
+            if (!this.m_rateLimiter.toPeer(this.m_ioSession, session, bytes))
+                {
+                return false;
+                }
+            session.write(data);
+            this.m_metrics.relayedToPeer(session, data, bytes);
+            this.m_flowController.writeScheduled(this.m_ioSession, session);
+            final PacketTrace trace = this.m_packetTrace;
+            if (trace != null)
+                {
+                trace.packet("to", binding.m_remoteAddress, bytes);
+                }
+            return true;
+            }
+        
+        // No connection yet, which over UDP means we may need to open one.
+        return write(binding.m_remoteHost, data);
+        }
+
+    private static void bind(final ChannelBinding binding,
+        final IoSession session)
+        {
+        // The raw data filter frames data from the remote host as 
+        // ChannelData when the session has a channel.
+        session.setAttribute(TurnRawDataFilter.CHANNEL_ATTRIBUTE,
+            Integer.valueOf(binding.m_channelNumber));
+        binding.m_session = session;
+        }
+
+    public void handleConnect(final InetSocketAddress remoteAddress)
+        {
+        LOG.debug("Adding connect permission for: {} {}", remoteAddress, this);
+        addPermission(remoteAddress.getAddress());
+        updateConnectionStatus(remoteAddress, ConnectionStatus.LISTEN);
+        }
+
+    private void addPermission(final InetAddress address)
+        {
+        this.m_permissions.add(address);
+        }
+
+    public InetSocketAddress getRelayAddress()
+        {
+        return this.m_allocatedTurnServer.getSocketAddress();
+        }
+    
+    public InetSocketAddress getMappedAddress()
+        {
+        return this.m_mappedAddress;
+        }
+
+    public long getAllocationTime()
+        {
+        return this.m_allocationTime;
+        }
+
+    public void close()
+        {
+        if (LOG.isDebugEnabled())
+            {
+            LOG.debug("Closing client at: " + this.m_ioSession);
+            }
+        closeAllConnections();
+        this.m_allocatedTurnServer.stop();
+        this.m_permissions.clear();
+        synchronized (this.m_channelsByPeer)
+            {
+            this.m_channelsByPeer.clear();
+            this.m_channels = new ChannelBinding[0];
+            }
+        
+        // The session is probably already closed, but just make sure.
+        this.m_ioSession.close();
+        }
+
+    /**
+     * Closes all connections to remote hosts associated with this TURN client.
+     */
+    private void closeAllConnections()
+        {
+        for (final Map.Entry<InetSocketAddress, IoSession> entry : 
+            this.m_connections.toMap().entrySet())
+            {
+            final IoSession readerWriter = entry.getValue();
+            readerWriter.close();
+            
+            // The session may have closed on its own and been removed
+            // already, in which case it's been counted.
+            if (this.m_connections.remove(entry.getKey(), readerWriter))
+                {
+                this.m_metrics.remoteHostDisconnected();
+                }
+            }
+        }
+
+    public IoSession getIoSession()
+        {
+        return this.m_ioSession;
+        }
+
+    public boolean hasActiveDestination()
+        {
+        return this.m_activeDestination != null;
+        }
+
+    public synchronized boolean setActiveDestination(
+        final InetSocketAddress remoteAddress)
+        {
+        if (this.m_activeDestination != null)
+            {
+            return this.m_activeDestination.equals(remoteAddress);
+            }
+        if (!this.m_permissions.contains(remoteAddress.getAddress()))
+            {
+            LOG.debug("No permission for active destination: {}", 
+                remoteAddress);
+            return false;
+            }
+        
+        // Data the remote host sends from here on goes to the client as is.
+        // Anything it sent before is already framed, so the remote host 
+        // shouldn't send until the client has its response.
+        this.m_activeDestination = remoteAddress;
+        final IoSession session = this.m_connections.get(remoteAddress);
+        if (session != null)
+            {
+            splice(session);
+            }
+        return true;
+        }
+
+    private static void splice(final IoSession session)
+        {
+        session.setAttribute(TurnRawDataFilter.ACTIVE_DESTINATION_ATTRIBUTE,
+            Boolean.TRUE);
+        }
+
+    public void removeConnection(final IoSession session)
+        {
+        LOG.debug("Removing connection to: {}", session);
+        final InetSocketAddress remoteAddress = 
+            (InetSocketAddress) session.getRemoteAddress();
+        final IoSession connection = this.m_connections.remove(remoteAddress);
+        final ChannelBinding binding = this.m_channelsByPeer.get(remoteAddress);
+        if (binding != null && binding.m_session == session)
+            {
+            binding.m_session = null;
+            }
+
+        // The connection can be null if a host attempted to connect that 
+        // never had permission to, and we've closed it.  That will generate
+        // this event.
+        if (connection != null)
+            {
+            this.m_metrics.remoteHostDisconnected();
+            
+            // It's probably already closed, but just in case.
+            connection.close();
+            updateConnectionStatus(remoteAddress, ConnectionStatus.CLOSED);
+            }
+        else
+            {
+            LOG.warn("Asked to remove connection we don't know about:\n"+
+                session + " not in:\n"+this.m_connections);
+            }
+        if (LOG.isDebugEnabled())
+            {
+            LOG.debug("Number of connections after removal: " + 
+               this.m_connections.size());
+            }
+        }
+    
+    public void addConnection(final IoSession session) 
+        {
+        final InetSocketAddress socketAddress = 
+            (InetSocketAddress) session.getRemoteAddress();
+        // Make sure the host has permissions.
+        if (!hasIncomingPermission(session))
+            {
+            // Either the client never asked for this host, or the 
+            // permission expired.  Just close the session here.
+            LOG.debug("No permissions for host: {}", 
+                socketAddress.getAddress());
+            session.close();
+            }
+        else
+            {
+            if (this.m_connections.put(socketAddress, session) == null)
+                {
+                this.m_metrics.remoteHostConnected(
+                    this.m_connections.size());
+                }
+            synchronized (this.m_channelsByPeer)
+                {
+                final ChannelBinding binding = 
+                    this.m_channelsByPeer.get(socketAddress);
+                if (binding != null)
+                    {
+                    bind(binding, session);
+                    }
+                }
+            if (socketAddress.equals(this.m_activeDestination))
+                {
+                splice(session);
+                }
+            updateConnectionStatus(socketAddress, ConnectionStatus.ESTABLISHED);
+            if (LOG.isDebugEnabled())
+                {
+                LOG.debug("Now "+this.m_connections.size()+" connection(s)...");
+                }
+            }
+        }
+
+    private void updateConnectionStatus(final InetSocketAddress remoteAddress, 
+        final ConnectionStatus status)
+        {
+        if (this.m_activeDestination != null)
+            {
+            // The client's connection isn't carrying TURN messages anymore.
+            return;
+            }
+        LOG.debug("Writing connection status indication...");
+        final ConnectionStatusIndication indication = 
+            new ConnectionStatusIndication(remoteAddress, status);
+        
+        // Any data from the host has to reach the client before it hears
+        // the connection closed.
+        WriteCoalescer.flush(this.m_ioSession);
+        this.m_ioSession.write(indication);
+        }
+
+    public boolean hasIncomingPermission(final IoSession session)
+        {
+        final InetSocketAddress socketAddress = 
+            (InetSocketAddress) session.getRemoteAddress();
+        
+        final boolean hasPermission = 
+            m_permissions.contains(socketAddress.getAddress());
+        if (LOG.isDebugEnabled())
+            {
+            LOG.debug(this + " returning permission for " + session + 
+                ": " + hasPermission);
+            }
+        return hasPermission;
+        }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getNumConnections()
+        {
+        return m_connections.size();
+        }
+
+    public PacketTrace getPacketTrace()
+        {
+        return this.m_packetTrace;
+        }
+
+    public void setPacketTrace(final PacketTrace trace)
+        {
+        this.m_packetTrace = trace;
+        }
+
+    /**
+     * A channel bound to a remote host, along with the connection to that
+     * host once there is one.
+     */
+    private static final class ChannelBinding
+        {
+        private final int m_channelNumber;
+        private final InetSocketAddress m_remoteAddress;
+        private final PeerKey m_remoteHost;
+        private volatile IoSession m_session;
+
+        private ChannelBinding(final int channelNumber,
+            final InetSocketAddress remoteAddress)
+            {
+            this.m_channelNumber = channelNumber;
+            this.m_remoteAddress = remoteAddress;
+            this.m_remoteHost = new PeerKey(remoteAddress);
+            }
+        }
+    }
@@ -0,0 +1,83 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Interface for classes that manage allocated binding for TURN clients.  These
+ * bindings allow external agents to access TURN clients as if the bindings
+ * were there own.
+ */
+public interface TurnClientManager
+    {
+
+    /**
+     * Allocates a binding for the specified TURN client that other nodes can
+     * use to access it.
+     *  
+     * @param readerWriter The class for writing data back to the TURN client.
+     * @return The client proxy, or <code>null</code> if we're too loaded to
+     * take a new client or the session closed.
+     * @throws IOException If we could not bind a relay address for the 
+     * client.
+     */
+    TurnClient allocateBinding(final IoSession readerWriter) 
+        throws IOException;
+
+    /**
+     * Runs the specified task once the manager can allocate bindings.  
+     * That's right away unless we're still finding the server's public
+     * address, in which case the task runs on another thread once we 
+     * have it, after any tasks that started waiting before it.  If we give
+     * up waiting, we run the expired task instead.
+     * 
+     * @param task The task.
+     * @param expired The task to run if we give up waiting.
+     */
+    void whenReady(Runnable task, Runnable expired);
+
+    /**
+     * Accessor for the server we send clients to when we refuse to 
+     * allocate bindings for them.
+     * 
+     * @return The alternate server, or <code>null</code> if there isn't 
+     * one.
+     */
+    InetSocketAddress getAlternateServer();
+
+    /**
+     * Accessor for the TURN client handler for the specified TURN client 
+     * address.  This is called for every message the client sends, so it
+     * should be cheap.
+     * @param readerWriter The reader/writer for the client. 
+     * @return The TURN client class that handles writing data to the client
+     * and accepting incoming connection on the client's behalf.
+     */
+    TurnClient getTurnClient(final IoSession readerWriter);
+
+    /**
+     * Removes the TURN client associated with the specified reader/writer
+     * instance.
+     * @param readerWriter The reader/writer to remove.
+     * @return The removed client instance.
+     */
+    TurnClient removeBinding(final IoSession readerWriter);
+
+    /**
+     * Accessor for the traffic metrics of all the clients this class
+     * manages.
+     * 
+     * @return The traffic metrics.
+     */
+    TurnMetrics getMetrics();
+
+    /**
+     * Stops the manager's timers and background lookups.  Call this once no
+     * server is using the manager any more.
+     */
+    void stop();
+
+    }
@@ -0,0 +1,537 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.TransportType;
+import org.lastbamboo.common.turn.server.allocated.AllocatedTurnServerFactory;
+import org.lastbamboo.common.turn.server.allocated.DefaultAllocatedTurnServerFactory;
+import org.lastbamboo.common.turn.server.metrics.PacketTrace;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.lastbamboo.common.turn.server.timer.SessionReaper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages endpoint bindings for TURN clients.  This includes allocating
+ * bindings, timing out bindings, etc.  A single timer wheel handles every
+ * timeout for all clients:  allocation lifetimes, permission lifetimes and
+ * idle connections from remote hosts.<p>
+ *
+ * Clients are spread over a fixed number of shards by session, each with
+ * its own lock for allocating and removing bindings.  Allocations on
+ * different shards never contend, and lookups don't lock at all.
+ */
+public final class TurnClientManagerImpl implements TurnClientManager,
+    TurnClientManagerImplMBean
+    {
+    
+    /**
+     * Logger for this class.
+     */
+    private final Logger m_log = 
+        LoggerFactory.getLogger(TurnClientManagerImpl.class);
+    
+    /**
+     * Maps of {@link IoSession}s to TURN clients.  Each {@link IoSession}
+     * represents a connection over which a client has issued an Allocate
+     * Request method. 
+     */
+    private final Shard[] m_shards;
+
+    private final AtomicInteger m_numClients = new AtomicInteger();
+
+    /**
+     * The session attribute for the session's TURN client.  This lets us
+     * find the client for every message without touching the shared maps.
+     * It's set while the binding exists and removed with the binding.
+     */
+    private static final String TURN_CLIENT_ATTRIBUTE =
+        TurnClientManagerImpl.class.getName() + ".turnClient";
+
+    /**
+     * Finds the public address we give clients for their relays.
+     */
+    private final PublicAddressResolver m_publicAddress;
+
+    /**
+     * The timer shared by all clients.
+     */
+    private final HashedWheelTimer m_timer = new HashedWheelTimer();
+
+    /**
+     * Creates relays on the acceptors shared by all allocations.
+     */
+    private final AllocatedTurnServerFactory m_serverFactory;
+
+    /**
+     * Closes TURN client connections once their allocations expire.
+     */
+    private final SessionReaper m_allocationReaper;
+
+    /**
+     * Traffic metrics for all clients and their relays.
+     */
+    private final TurnMetrics m_metrics = new TurnMetrics();
+
+    /**
+     * Suspends reads on sessions we're relaying from when the sessions
+     * we're relaying to fall behind.
+     */
+    private final FlowController m_flowController;
+
+    /**
+     * Bandwidth limits for the whole server, each client and each remote
+     * host.
+     */
+    private final RateLimiter m_rateLimiter;
+
+    /**
+     * Decides whether we have room for new allocations.
+     */
+    private final AdmissionController m_admission;
+
+    /**
+     * Where we send clients we don't have room for, if anywhere.
+     */
+    private final InetSocketAddress m_alternateServer;
+
+    private final long m_permissionLifetimeMillis;
+
+    private final int m_coalesceBytes;
+
+    private final int m_coalesceDelayMicros;
+
+    /**
+     * Creates a new TURN client manager with the default configuration.
+     */
+    public TurnClientManagerImpl()
+        {
+        this(new TurnServerConfig());
+        }
+
+    /**
+     * Creates a new TURN client manager.
+     * 
+     * @param config The server configuration.
+     */
+    public TurnClientManagerImpl(final TurnServerConfig config)
+        {
+        m_permissionLifetimeMillis = 
+            TimeUnit.SECONDS.toMillis(config.getPermissionLifetime());
+        m_allocationReaper = new SessionReaper(m_timer, 
+            TimeUnit.SECONDS.toMillis(config.getAllocationLifetime()));
+        m_flowController = new FlowController(config.getWriteHighWaterMark(),
+            config.getWriteLowWaterMark());
+        m_rateLimiter = new RateLimiter(m_timer, config.getGlobalRateLimit(),
+            config.getClientRateLimit(), config.getPeerRateLimit(),
+            config.getRateLimitBurstMillis());
+        m_admission = new AdmissionController(config, m_timer);
+        m_admission.start();
+        m_alternateServer = parseAlternateServer(config.getAlternateServer());
+        m_shards = new Shard[shardCount()];
+        for (int i = 0; i < m_shards.length; i++)
+            {
+            m_shards[i] = new Shard();
+            }
+        m_coalesceBytes = config.getCoalesceBytes();
+        m_coalesceDelayMicros = config.getCoalesceDelayMicros();
+        m_serverFactory = new DefaultAllocatedTurnServerFactory(
+            new SessionReaper(m_timer, 
+                TimeUnit.SECONDS.toMillis(config.getPeerIdleTime())),
+            m_flowController, m_rateLimiter, m_metrics, config);
+        
+        // We need to determine the public address of the server to give
+        // to clients when allocating relays.  This can take a while, so
+        // Allocate Requests wait for it with whenReady.
+        m_publicAddress = new PublicAddressResolver(config, m_timer);
+        m_publicAddress.start();
+        }
+
+    private InetSocketAddress parseAlternateServer(final String server)
+        {
+        if (server == null)
+            {
+            return null;
+            }
+        final int colon = server.lastIndexOf(':');
+        try
+            {
+            final InetSocketAddress address = new InetSocketAddress(
+                server.substring(0, colon),
+                Integer.parseInt(server.substring(colon + 1)));
+            if (!address.isUnresolved())
+                {
+                return address;
+                }
+            }
+        catch (final RuntimeException e)
+            {
+            // Handled below.
+            }
+        m_log.warn("Bad alternate server '{}' -- ignoring it", server);
+        return null;
+        }
+
+    public void whenReady(final Runnable task, final Runnable expired)
+        {
+        this.m_publicAddress.whenResolved(task, expired);
+        }
+
+    public InetSocketAddress getAlternateServer()
+        {
+        return this.m_alternateServer;
+        }
+
+    public TurnClient allocateBinding(final IoSession ioSession) 
+        throws IOException
+        {
+        final TurnClient cached = 
+            (TurnClient) ioSession.getAttribute(TURN_CLIENT_ATTRIBUTE);
+        if (cached != null)
+            {
+            m_log.debug("Keep alive -- we already have the binding");
+            return cached;
+            }
+        final Shard shard = shard(ioSession);
+        final TurnClient turnClient;
+        
+        // Checking and allocating under the shard's lock makes sure two
+        // Allocate Requests on the same session can't both start a relay.
+        synchronized (shard)
+            {
+            // If we already have a client, then the allocation acts as a 
+            // keep-alive to keep the binding active.  Just the fact that 
+            // there's traffic suffices to keep it alive -- we don't need to
+            // notify the client.
+            final TurnClient existing = shard.m_clients.get(ioSession);
+            if (existing != null)
+                {
+                m_log.debug("Keep alive -- we already have the binding");
+                return existing;
+                }
+            
+            // Otherwise, we need to allocate a new server for the new 
+            // client, if we have room.  The count can run a little over
+            // the limit with allocations racing on other shards.
+            final String overload = 
+                this.m_admission.admit(this.m_numClients.get());
+            if (overload != null)
+                {
+                m_log.debug("Refusing allocation -- too many {}", overload);
+                this.m_metrics.allocationRefused();
+                return null;
+                }
+            turnClient = 
+                new TurnClientImpl(m_publicAddress.getAddress(), ioSession, 
+                    m_serverFactory,
+                    new PermissionTable(m_timer, m_permissionLifetimeMillis),
+                    m_flowController, m_rateLimiter, m_metrics);
+            try
+                {
+                turnClient.startServer();
+                }
+            catch (final IOException e)
+                {
+                // Nothing's bound, so there's nothing to clean up.
+                this.m_metrics.allocationRefused();
+                throw e;
+                }
+            if (this.m_coalesceBytes > 0 &&
+                ioSession.getTransportType() == TransportType.SOCKET)
+                {
+                WriteCoalescer.install(ioSession, this.m_coalesceBytes,
+                    this.m_coalesceDelayMicros);
+                }
+            shard.m_clients.put(ioSession, turnClient);
+            ioSession.setAttribute(TURN_CLIENT_ATTRIBUTE, turnClient);
+            
+            // The session may have closed while we were allocating, with
+            // removeBinding already run and finding nothing.  Nothing would
+            // ever remove the binding then, so we undo it.  If it closes
+            // after this, removeBinding waits for the lock and finds it.
+            if (!ioSession.isConnected())
+                {
+                m_log.debug("Session closed during allocation");
+                shard.m_clients.remove(ioSession);
+                ioSession.removeAttribute(TURN_CLIENT_ATTRIBUTE);
+                turnClient.close();
+                WriteCoalescer.sessionClosed(ioSession);
+                return null;
+                }
+            }
+        this.m_metrics.allocated(this.m_numClients.incrementAndGet());
+        
+        // Closing the session removes the binding.
+        this.m_allocationReaper.watch(ioSession);
+        return turnClient;
+        }
+
+    public TurnClient getTurnClient(final IoSession readerWriter)
+        {
+        final TurnClient cached = 
+            (TurnClient) readerWriter.getAttribute(TURN_CLIENT_ATTRIBUTE);
+        if (cached != null)
+            {
+            return cached;
+            }
+        
+        // Only messages from sessions without an allocation get here.
+        return shard(readerWriter).m_clients.get(readerWriter);
+        }
+
+    public TurnClient removeBinding(final IoSession session)
+        {
+        if (m_log.isDebugEnabled())
+            {
+            m_log.debug("Removing binding for: "+session);
+            }
+        final Shard shard = shard(session);
+        final TurnClient client;
+        synchronized (shard)
+            {
+            client = shard.m_clients.remove(session);
+            session.removeAttribute(TURN_CLIENT_ATTRIBUTE);
+            }
+        if (client != null)
+            {
+            this.m_numClients.decrementAndGet();
+            client.close();
+            WriteCoalescer.sessionClosed(session);
+            this.m_metrics.allocationClosed(
+                System.currentTimeMillis() - client.getAllocationTime());
+            }
+        return client;
+        }
+
+    public TurnMetrics getMetrics()
+        {
+        return this.m_metrics;
+        }
+
+    public void stop()
+        {
+        m_log.debug("Stopping client manager...");
+        this.m_admission.stop();
+        this.m_publicAddress.stop();
+        this.m_timer.stop();
+        }
+
+    /**
+     * Returns the server-wide metrics followed by the traffic for each
+     * allocation, one "name value" line each.  The per-allocation traffic
+     * is what MINA has counted on each TURN client's connection.
+     * 
+     * @return The metrics as text.
+     */
+    public String getMetricsText()
+        {
+        final StringBuilder sb = new StringBuilder();
+        this.m_metrics.appendText(sb);
+        sb.append("turn_allocations_active ").append(getNumTurnClients());
+        sb.append('\n');
+        sb.append("turn_read_suspensions_total ");
+        sb.append(getReadSuspensions()).append('\n');
+        sb.append("turn_suspended_sessions ");
+        sb.append(getNumSuspendedSessions()).append('\n');
+        sb.append("turn_rate_limit_pauses_total ");
+        sb.append(getRateLimitPauses()).append('\n');
+        sb.append("turn_rate_limit_drops_total ");
+        sb.append(getRateLimitDrops()).append('\n');
+        sb.append("turn_timer_lag_millis ");
+        sb.append(getTimerLagMillis()).append('\n');
+        sb.append("turn_overloaded ");
+        sb.append(getOverload() == null ? 0 : 1).append('\n');
+        for (final TurnClient client : getClients())
+            {
+            final IoSession session = client.getIoSession();
+            final String labels = "{client=\"" + client.getMappedAddress() +
+                "\",relay=\"" + client.getRelayAddress() + "\"} ";
+            sb.append("turn_allocation_read_bytes").append(labels);
+            sb.append(session.getReadBytes()).append('\n');
+            sb.append("turn_allocation_written_bytes").append(labels);
+            sb.append(session.getWrittenBytes()).append('\n');
+            sb.append("turn_allocation_remote_hosts").append(labels);
+            sb.append(client.getNumConnections()).append('\n');
+            }
+        return sb.toString();
+        }
+
+    public int getNumTurnClients()
+        {
+        return this.m_numClients.get();
+        }
+
+    public int getMaxNumTurnClients()
+        {
+        return this.m_metrics.getMaxAllocations();
+        }
+    
+    public int getNumRemoteTurnClients()
+        {
+        // The clients keep this up to date as remote hosts come and go, so
+        // we don't have to walk all of them on every poll.
+        return this.m_metrics.getRemoteHosts();
+        }
+
+    public int getMaxNumRemoteTurnClients()
+        {
+        return this.m_metrics.getMaxRemoteHosts();
+        }
+
+    public int getMaxNumRemoteSingleTurnClient()
+        {
+        return this.m_metrics.getMaxRemoteHostsPerClient();
+        }
+
+    public long getReadSuspensions()
+        {
+        return this.m_flowController.getSuspensions();
+        }
+
+    public long getReadResumptions()
+        {
+        return this.m_flowController.getResumptions();
+        }
+
+    public int getNumSuspendedSessions()
+        {
+        return this.m_flowController.getSuspendedSessions();
+        }
+
+    public long getGlobalRateLimit()
+        {
+        return this.m_rateLimiter.getGlobalRate();
+        }
+
+    public void setGlobalRateLimit(final long bytesPerSecond)
+        {
+        m_log.info("Setting global rate limit to {}", bytesPerSecond);
+        this.m_rateLimiter.setGlobalRate(bytesPerSecond);
+        }
+
+    public long getClientRateLimit()
+        {
+        return this.m_rateLimiter.getClientRate();
+        }
+
+    public void setClientRateLimit(final long bytesPerSecond)
+        {
+        m_log.info("Setting client rate limit to {}", bytesPerSecond);
+        this.m_rateLimiter.setClientRate(bytesPerSecond);
+        }
+
+    public long getPeerRateLimit()
+        {
+        return this.m_rateLimiter.getPeerRate();
+        }
+
+    public void setPeerRateLimit(final long bytesPerSecond)
+        {
+        m_log.info("Setting remote host rate limit to {}", bytesPerSecond);
+        this.m_rateLimiter.setPeerRate(bytesPerSecond);
+        }
+
+    public long getRateLimitPauses()
+        {
+        return this.m_rateLimiter.getPauses();
+        }
+
+    public long getRateLimitDrops()
+        {
+        return this.m_rateLimiter.getDrops();
+        }
+
+    public long getTimerLagMillis()
+        {
+        return this.m_admission.getLagMillis();
+        }
+
+    public String getOverload()
+        {
+        return this.m_admission.getOverload();
+        }
+
+    public boolean tracePackets(final String mappedAddress, 
+        final int sampleRate, final int maxLines)
+        {
+        for (final TurnClient client : getClients())
+            {
+            final InetSocketAddress address = client.getMappedAddress();
+            final String hostAndPort = 
+                address.getAddress().getHostAddress() + ":" + 
+                address.getPort();
+            if (hostAndPort.equals(mappedAddress.trim()))
+                {
+                m_log.info("Tracing packets for {}", client);
+                client.setPacketTrace(
+                    new PacketTrace(hostAndPort, sampleRate, maxLines));
+                return true;
+                }
+            }
+        return false;
+        }
+
+    public void stopTracingPackets()
+        {
+        for (final TurnClient client : getClients())
+            {
+            client.setPacketTrace(null);
+            }
+        }
+
+    private Shard shard(final IoSession session)
+        {
+        // Mix the high bits into the low ones we keep.
+        final int hash = session.hashCode();
+        return this.m_shards[(hash ^ (hash >>> 16)) & 
+            (this.m_shards.length - 1)];
+        }
+
+    private Collection<TurnClient> getClients()
+        {
+        final Collection<TurnClient> clients = 
+            new ArrayList<TurnClient>(this.m_numClients.get());
+        for (final Shard shard : this.m_shards)
+            {
+            clients.addAll(shard.m_clients.values());
+            }
+        return clients;
+        }
+
+    /**
+     * Returns the number of shards to use, a power of two a few times the
+     * number of processors so unrelated allocations rarely share one.
+     * 
+     * @return The number of shards.
+     */
+    private static int shardCount()
+        {
+        final int target = 
+            Runtime.getRuntime().availableProcessors() * 4;
+        int count = 1;
+        while (count < target)
+            {
+            count <<= 1;
+            }
+        return count;
+        }
+
+    /**
+     * The clients for a share of the sessions.  The lock guards allocating
+     * and removing clients, while the map lets lookups skip the lock.
+     */
+    private static final class Shard
+        {
+        private final Map<IoSession, TurnClient> m_clients = 
+            new ConcurrentHashMap<IoSession, TurnClient>();
+        }
+    }
@@ -0,0 +1,168 @@
+package org.lastbamboo.common.turn.server;
+
+/**
+ * MBean for accessing data about the {@link TurnClientManagerImpl}.
+ */
+public interface TurnClientManagerImplMBean
+    {
+
+    /**
+     * Accessor for the number of clients currently connected to this 
+     * TURN server.
+     * 
+     * @return The number of clients currently connected to this TURN server.
+     */
+    int getNumTurnClients();
+    
+    /**
+     * Accessor for the maximum number of TURN clients seen.
+     * 
+     * @return The maximum number of TURN clients seen.
+     */
+    int getMaxNumTurnClients();
+    
+    /**
+     * Accessor for the total number of remote clients accessing the server.
+     * 
+     * @return The total number of remote clients accessing the server.
+     */
+    int getNumRemoteTurnClients();
+    
+    /**
+     * Accessor for the maximum number of remote clients at any one time.
+     * 
+     * @return The maximum number of remote clients at any one time.
+     */
+    int getMaxNumRemoteTurnClients();
+    
+    /**
+     * Get the maximum number of remote host connections we've seen for any
+     * single client.
+     * 
+     * @return The maximum number of remote host connections we've seen for
+     * any single client. 
+     */
+    int getMaxNumRemoteSingleTurnClient();
+
+    /**
+     * Accessor for the number of times we've suspended reads on a session
+     * because the session we're relaying its data to fell behind.
+     * 
+     * @return The number of times we've suspended reads.
+     */
+    long getReadSuspensions();
+
+    /**
+     * Accessor for the number of times we've resumed suspended reads.
+     * 
+     * @return The number of times we've resumed reads.
+     */
+    long getReadResumptions();
+
+    /**
+     * Accessor for the number of sessions with reads currently suspended.
+     * 
+     * @return The number of sessions with reads currently suspended.
+     */
+    int getNumSuspendedSessions();
+
+    /**
+     * Accessor for the bandwidth limit for the whole server.
+     * 
+     * @return The limit in each direction in bytes per second, or 0 for no
+     * limit.
+     */
+    long getGlobalRateLimit();
+
+    /**
+     * Sets the bandwidth limit for the whole server.  This applies right
+     * away.
+     * 
+     * @param bytesPerSecond The limit in each direction, or 0 for no limit.
+     */
+    void setGlobalRateLimit(long bytesPerSecond);
+
+    /**
+     * Accessor for the bandwidth limit for each TURN client.
+     * 
+     * @return The limit in each direction in bytes per second, or 0 for no
+     * limit.
+     */
+    long getClientRateLimit();
+
+    /**
+     * Sets the bandwidth limit for each TURN client.  This applies right
+     * away.
+     * 
+     * @param bytesPerSecond The limit in each direction, or 0 for no limit.
+     */
+    void setClientRateLimit(long bytesPerSecond);
+
+    /**
+     * Accessor for the bandwidth limit for each remote host.
+     * 
+     * @return The limit in each direction in bytes per second, or 0 for no
+     * limit.
+     */
+    long getPeerRateLimit();
+
+    /**
+     * Sets the bandwidth limit for each remote host.  This applies right
+     * away.
+     * 
+     * @param bytesPerSecond The limit in each direction, or 0 for no limit.
+     */
+    void setPeerRateLimit(long bytesPerSecond);
+
+    /**
+     * Accessor for the number of times we've suspended reads on a session
+     * to keep within the bandwidth limits.
+     * 
+     * @return The number of times we've suspended reads.
+     */
+    long getRateLimitPauses();
+
+    /**
+     * Accessor for the number of UDP messages we've dropped to keep within
+     * the bandwidth limits.
+     * 
+     * @return The number of messages we've dropped.
+     */
+    long getRateLimitDrops();
+
+    /**
+     * Accessor for how late the timer ran the last time we checked, which
+     * tells us how short of CPU we are.
+     * 
+     * @return The timer lag in milliseconds.
+     */
+    long getTimerLagMillis();
+
+    /**
+     * Accessor for the signal that has us refusing new allocations, such 
+     * as "heap".  This doesn't include the allocation limit.
+     * 
+     * @return The signal over its threshold, or <code>null</code> if 
+     * we're accepting allocations.
+     */
+    String getOverload();
+
+    /**
+     * Starts logging a sample of the packets relayed for a single TURN 
+     * client.  The trace stops on its own after the specified number of 
+     * lines.
+     * 
+     * @param mappedAddress The client's MAPPED ADDRESS, as "ip:port".
+     * @param sampleRate We log one packet in this many.
+     * @param maxLines The number of lines to log before we stop.
+     * @return <code>true</code> if we found the client, otherwise 
+     * <code>false</code>.
+     */
+    boolean tracePackets(String mappedAddress, int sampleRate, int maxLines);
+
+    /**
+     * Stops any packet traces we're running.
+     */
+    void stopTracingPackets();
+
+    }
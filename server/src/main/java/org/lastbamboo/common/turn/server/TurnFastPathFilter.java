@@ -0,0 +1,1157 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lastbamboo.common.turn.server.buffer.ReadBufferSlice;
+import org.lastbamboo.common.turn.server.metrics.StripedCounter;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.TransportType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Filter that relays Send Indications from a TURN client straight out of the
+ * read buffer, ahead of the STUN decoder.  The DATA attribute is never
+ * copied -- we hand slices of the read buffer directly to the remote host's
+ * session, and each slice keeps the read buffer alive until it's written.
+ * All other messages pass through to the decoder untouched.<p>
+ *
+ * When channels are enabled, this also handles ChannelBind requests and
+ * ChannelData.  The STUN stack knows nothing about either, and ChannelData
+ * isn't even a STUN message, so we recognize it from the first two bits
+ * before the decoder ever sees it and relay it the same way as Send
+ * Indication DATA.<p>
+ *
+ * Once a TCP client sets its active destination, everything after the
+ * request is spliced to that remote host.  We stop parsing altogether and
+ * relay each read as a slice of itself.<p>
+ *
+ * Messages frequently span reads, so rather than waiting for whole messages
+ * this streams DATA to the remote host as it arrives.  That means the filter
+ * keeps parse state for a single TCP stream, and each session needs its own
+ * instance.  Over UDP every read is a whole datagram, so the state starts
+ * over with each one.<p>
+ *
+ * We run on the I/O thread, while the decoder's messages are handled on
+ * the session's ordered executor, so a message we handle could overtake an
+ * Allocate or Connect Request the client sent before it.  To keep the
+ * client's messages in order, each message we pass to the decoder is
+ * followed by a marker that runs once the executor gets to it.  While any
+ * markers are outstanding, we queue our own work behind them on the same
+ * executor instead of doing it right away.  The handler runs anything
+ * queued this way.  A Set Active Destination request decides what the rest
+ * of the stream is, so while it waits we stop reading and hold on to
+ * anything already read.
+ */
+public final class TurnFastPathFilter extends IoFilterAdapter
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(TurnFastPathFilter.class);
+
+    /**
+     * At a message boundary, or partway through a header that spans reads.
+     */
+    private static final int STATE_HEADER = 0;
+
+    /**
+     * Passing the rest of a message the decoder handles.
+     */
+    private static final int STATE_PASS = 1;
+
+    /**
+     * Reading the type and length of a Send Indication attribute.
+     */
+    private static final int STATE_ATTRIBUTE_HEADER = 2;
+
+    /**
+     * Reading the REMOTE-ADDRESS value.
+     */
+    private static final int STATE_ADDRESS = 3;
+
+    /**
+     * Relaying the DATA value to the remote host.
+     */
+    private static final int STATE_DATA = 4;
+
+    /**
+     * Skipping an attribute we don't need, or padding.
+     */
+    private static final int STATE_SKIP = 5;
+
+    /**
+     * Relaying ChannelData to the remote host bound to the channel.
+     */
+    private static final int STATE_CHANNEL_DATA = 6;
+
+    /**
+     * Collecting a small request we answer ourselves, like ChannelBind or
+     * Set Active Destination.
+     */
+    private static final int STATE_MESSAGE = 7;
+
+    /**
+     * Relaying everything to the active destination.
+     */
+    private static final int STATE_SPLICED = 8;
+
+    /**
+     * Holding the stream until a Set Active Destination request queued
+     * behind the decoder decides whether it's spliced.
+     */
+    private static final int STATE_SPLICE_PENDING = 9;
+
+    /**
+     * The largest request we'll collect in {@link #STATE_MESSAGE}.  Valid
+     * ChannelBind requests are much smaller than this.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 512;
+
+    private final TurnClientManager m_turnClientManager;
+
+    private final boolean m_relaySendIndications;
+
+    private final boolean m_channelsEnabled;
+
+    private final boolean m_activeDestinationEnabled;
+
+    private final StripedCounter m_sendIndications;
+
+    private final StripedCounter m_channelBindRequests;
+
+    private final StripedCounter m_setActiveDestinationRequests;
+
+    private final StripedCounter m_channelData;
+
+    /**
+     * The markers and tasks we've queued on the session's executor that
+     * haven't run yet.
+     */
+    private final AtomicInteger m_queued = new AtomicInteger();
+
+    /**
+     * Counts off a marker once whatever it follows is handled.
+     */
+    private final Runnable m_handled = new Runnable()
+        {
+        public void run()
+            {
+            m_queued.decrementAndGet();
+            }
+        };
+
+    /**
+     * The marker that follows each message we pass to the decoder.  An
+     * Allocate may still be waiting for our public address when the
+     * executor gets to the marker, so the marker waits behind it.
+     */
+    private final Runnable m_passed = new Runnable()
+        {
+        public void run()
+            {
+            m_turnClientManager.whenReady(m_handled, m_handled);
+            }
+        };
+
+    /**
+     * Holds headers and address values that span reads.
+     */
+    private final byte[] m_scratch = new byte[TurnWireFormat.HEADER_LENGTH];
+
+    private int m_scratchLength;
+
+    private int m_state = STATE_HEADER;
+
+    /**
+     * The bytes left to process in the current state.
+     */
+    private int m_remaining;
+
+    /**
+     * The bytes left in the current Send Indication after the current
+     * attribute.
+     */
+    private int m_messageRemaining;
+
+    private int m_attributeLength;
+
+    /**
+     * Reads held in {@link #STATE_SPLICE_PENDING}, in order.
+     */
+    private final List<ByteBuffer> m_held = new ArrayList<ByteBuffer>();
+
+    /**
+     * The TURN client once we're spliced to its active destination.
+     */
+    private TurnClient m_client;
+
+    /**
+     * The REMOTE-ADDRESS of the Send Indication we're relaying, or the
+     * active destination once we're spliced.  We reuse this for every
+     * message.
+     */
+    private final PeerKey m_remoteAddress = new PeerKey();
+
+    private boolean m_hasRemoteAddress;
+
+    /**
+     * The channel of the ChannelData we're relaying, or -1 when relaying
+     * Send Indication DATA.
+     */
+    private int m_channel = -1;
+
+    /**
+     * The request we're collecting in {@link #STATE_MESSAGE}.
+     */
+    private ByteBuffer m_message;
+
+    private int m_messageType;
+
+    /**
+     * DATA that arrived before the REMOTE-ADDRESS telling us where to send
+     * it.  This is the only case where we copy.
+     */
+    private ByteBuffer m_pendingData;
+
+    /**
+     * The start of the bytes in the current read buffer that we still need
+     * to pass to the decoder.
+     */
+    private int m_runStart;
+
+    /**
+     * Whether we've passed anything other than the whole read buffer on to
+     * the decoder for the current read.
+     */
+    private boolean m_sliced;
+
+    /**
+     * Creates a new filter for a single TURN client session.
+     *
+     * @param clientManager The class for looking up the TURN client.
+     * @param config The server configuration, which determines which
+     * messages we handle.
+     */
+    public TurnFastPathFilter(final TurnClientManager clientManager,
+        final TurnServerConfig config)
+        {
+        this.m_turnClientManager = clientManager;
+        this.m_relaySendIndications = config.isZeroCopySend();
+        this.m_channelsEnabled = config.isChannelsEnabled();
+        this.m_activeDestinationEnabled = config.isActiveDestinationEnabled();
+
+        // These count the messages the decoder never sees.
+        final TurnMetrics metrics = clientManager.getMetrics();
+        this.m_sendIndications = metrics.getMessageCounter("SendIndication");
+        this.m_channelBindRequests =
+            metrics.getMessageCounter("ChannelBindRequest");
+        this.m_setActiveDestinationRequests =
+            metrics.getMessageCounter("SetActiveDestinationRequest");
+        this.m_channelData = metrics.getMessageCounter("ChannelData");
+        }
+
+    /**
+     * Returns whether the configuration needs this filter on TURN client
+     * sessions.
+     *
+     * @param config The server configuration.
+     * @return <code>true</code> if any of the messages this filter handles
+     * are enabled.
+     */
+    public static boolean isNeeded(final TurnServerConfig config)
+        {
+        return config.isZeroCopySend() || config.isChannelsEnabled() ||
+            config.isActiveDestinationEnabled();
+        }
+
+    @Override
+    public synchronized void messageReceived(final NextFilter nextFilter,
+        final IoSession session, final Object message)
+        {
+        if (!(message instanceof ByteBuffer))
+            {
+            nextFilter.messageReceived(session, message);
+            return;
+            }
+
+        final ByteBuffer in = (ByteBuffer) message;
+        if (session.getTransportType() == TransportType.DATAGRAM)
+            {
+            // Anything left over from the last datagram, like ChannelData
+            // padding, didn't arrive and never will.
+            reset();
+            }
+        process(nextFilter, session, in);
+        }
+
+    /**
+     * Handles a read, taking ownership of the buffer.
+     */
+    private void process(final NextFilter nextFilter,
+        final IoSession session, final ByteBuffer in)
+        {
+        final int start = in.position();
+        this.m_runStart = start;
+        this.m_sliced = false;
+        while (in.hasRemaining())
+            {
+            switch (this.m_state)
+                {
+                case STATE_HEADER:
+                    readHeader(nextFilter, session, in);
+                    break;
+                case STATE_PASS:
+                    this.m_remaining -= skip(in, this.m_remaining);
+                    if (this.m_remaining == 0)
+                        {
+                        this.m_state = STATE_HEADER;
+                        }
+                    break;
+                case STATE_ATTRIBUTE_HEADER:
+                    readAttributeHeader(in);
+                    break;
+                case STATE_ADDRESS:
+                    readAddress(nextFilter, session, in);
+                    break;
+                case STATE_DATA:
+                    readData(nextFilter, session, in);
+                    break;
+                case STATE_SKIP:
+                    this.m_remaining -= skip(in, this.m_remaining);
+                    this.m_runStart = in.position();
+                    if (this.m_remaining == 0)
+                        {
+                        nextAttribute();
+                        }
+                    break;
+                case STATE_CHANNEL_DATA:
+                    readData(nextFilter, session, in);
+                    break;
+                case STATE_MESSAGE:
+                    readMessage(nextFilter, session, in);
+                    break;
+                case STATE_SPLICED:
+                    relay(nextFilter, session, new ReadBufferSlice(in,
+                        in.position(), in.remaining()));
+                    in.position(in.limit());
+                    this.m_runStart = in.position();
+                    break;
+                case STATE_SPLICE_PENDING:
+                    // Reads were already on their way when we suspended
+                    // them.
+                    this.m_held.add(new ReadBufferSlice(in, in.position(),
+                        in.remaining()));
+                    in.position(in.limit());
+                    this.m_runStart = in.position();
+                    break;
+                default:
+                    throw new IllegalStateException("Bad state: "+m_state);
+                }
+            }
+
+        if (!this.m_sliced && this.m_runStart == start)
+            {
+            // The common case when the client isn't sending data.
+            in.position(start);
+            pass(nextFilter, session, in);
+            }
+        else
+            {
+            flushRun(nextFilter, session, in);
+            in.release();
+            }
+        }
+
+    @Override
+    public synchronized void sessionClosed(final NextFilter nextFilter,
+        final IoSession session)
+        {
+        // Hand back any message we were partway through.
+        reset();
+        nextFilter.sessionClosed(session);
+        }
+
+    private void readHeader(final NextFilter nextFilter,
+        final IoSession session, final ByteBuffer in)
+        {
+        final int pos = in.position();
+        if (this.m_scratchLength == 0 &&
+            in.remaining() >= TurnWireFormat.CHANNEL_HEADER_LENGTH)
+            {
+            final int type = in.getShort(pos) & 0xffff;
+            final int length = in.getShort(pos + 2) & 0xffff;
+            if (this.m_channelsEnabled && TurnWireFormat.isChannelData(type))
+                {
+                flushRun(nextFilter, session, in);
+                in.position(pos + TurnWireFormat.CHANNEL_HEADER_LENGTH);
+                this.m_runStart = in.position();
+                startChannelData(session, type, length);
+                return;
+                }
+            if (in.remaining() >= TurnWireFormat.HEADER_LENGTH)
+                {
+                if (!isHandled(type))
+                    {
+                    this.m_state = STATE_PASS;
+                    this.m_remaining = TurnWireFormat.HEADER_LENGTH + length;
+                    return;
+                    }
+
+                // Pull the message out of the stream the decoder sees.
+                flushRun(nextFilter, session, in);
+                in.get(this.m_scratch, 0, TurnWireFormat.HEADER_LENGTH);
+                this.m_runStart = in.position();
+                startMessage(nextFilter, session, type, length);
+                return;
+                }
+            }
+
+        // The header spans reads.  We don't know whether the decoder should
+        // see it until we have enough of it -- the first 4 bytes tell us if
+        // it's ChannelData, and otherwise we need the whole STUN header.
+        if (this.m_scratchLength == 0)
+            {
+            flushRun(nextFilter, session, in);
+            }
+        final int needed = 
+            this.m_scratchLength < TurnWireFormat.CHANNEL_HEADER_LENGTH ?
+            TurnWireFormat.CHANNEL_HEADER_LENGTH : TurnWireFormat.HEADER_LENGTH;
+        final int read = Math.min(needed - this.m_scratchLength,
+            in.remaining());
+        in.get(this.m_scratch, this.m_scratchLength, read);
+        this.m_scratchLength += read;
+        this.m_runStart = in.position();
+        if (this.m_scratchLength < needed)
+            {
+            return;
+            }
+
+        final int type = readShort(0);
+        final int length = readShort(2);
+        if (needed == TurnWireFormat.CHANNEL_HEADER_LENGTH)
+            {
+            if (this.m_channelsEnabled && TurnWireFormat.isChannelData(type))
+                {
+                this.m_scratchLength = 0;
+                startChannelData(session, type, length);
+                }
+            // Otherwise keep reading the STUN header.
+            return;
+            }
+
+        this.m_scratchLength = 0;
+        if (!isHandled(type))
+            {
+            final byte[] header = new byte[TurnWireFormat.HEADER_LENGTH];
+            System.arraycopy(this.m_scratch, 0, header, 0, header.length);
+            this.m_sliced = true;
+            pass(nextFilter, session, ByteBuffer.wrap(header));
+            this.m_state = STATE_PASS;
+            this.m_remaining = length;
+            }
+        else
+            {
+            startMessage(nextFilter, session, type, length);
+            }
+        }
+
+    /**
+     * Returns whether we handle the STUN message type ourselves rather than
+     * passing it to the decoder.
+     */
+    private boolean isHandled(final int type)
+        {
+        return (this.m_relaySendIndications &&
+            type == TurnWireFormat.SEND_INDICATION) ||
+            (this.m_channelsEnabled &&
+            type == TurnWireFormat.CHANNEL_BIND_REQUEST) ||
+            (this.m_activeDestinationEnabled &&
+            type == TurnWireFormat.SET_ACTIVE_DESTINATION_REQUEST);
+        }
+
+    /**
+     * Starts a message we handle ourselves.  The header is in the scratch
+     * buffer.
+     */
+    private void startMessage(final NextFilter nextFilter,
+        final IoSession session, final int type, final int bodyLength)
+        {
+        if (type == TurnWireFormat.SEND_INDICATION)
+            {
+            this.m_sendIndications.increment();
+            startSendIndication(session, bodyLength);
+            }
+        else if (bodyLength > MAX_MESSAGE_LENGTH)
+            {
+            // We won't collect it, but the client still gets an answer.
+            LOG.warn("Rejecting oversized request: {}", bodyLength);
+            final int errorType = type == TurnWireFormat.CHANNEL_BIND_REQUEST ?
+                TurnWireFormat.CHANNEL_BIND_ERROR_RESPONSE :
+                TurnWireFormat.SET_ACTIVE_DESTINATION_ERROR_RESPONSE;
+            session.write(TurnWireFormat.newErrorResponse(
+                ByteBuffer.wrap(this.m_scratch), errorType, 400,
+                "Bad Request"));
+            this.m_state = STATE_SKIP;
+            this.m_remaining = bodyLength;
+            this.m_messageRemaining = 0;
+            }
+        else
+            {
+            if (type == TurnWireFormat.CHANNEL_BIND_REQUEST)
+                {
+                this.m_channelBindRequests.increment();
+                }
+            else
+                {
+                this.m_setActiveDestinationRequests.increment();
+                }
+            this.m_message = ByteBuffer.allocate(
+                TurnWireFormat.HEADER_LENGTH + bodyLength);
+            this.m_message.put(this.m_scratch, 0,
+                TurnWireFormat.HEADER_LENGTH);
+            this.m_messageType = type;
+            this.m_state = STATE_MESSAGE;
+            this.m_remaining = bodyLength;
+            if (bodyLength == 0)
+                {
+                endMessage(nextFilter, session);
+                }
+            }
+        }
+
+    private void readMessage(final NextFilter nextFilter,
+        final IoSession session, final ByteBuffer in)
+        {
+        final int length = Math.min(this.m_remaining, in.remaining());
+        final int limit = in.limit();
+        in.limit(in.position() + length);
+        this.m_message.put(in);
+        in.limit(limit);
+        this.m_remaining -= length;
+        this.m_runStart = in.position();
+        if (this.m_remaining == 0)
+            {
+            endMessage(nextFilter, session);
+            }
+        }
+
+    private void endMessage(final NextFilter nextFilter,
+        final IoSession session)
+        {
+        final ByteBuffer request = this.m_message;
+        this.m_message = null;
+        this.m_state = STATE_HEADER;
+        request.flip();
+        if (this.m_messageType == TurnWireFormat.CHANNEL_BIND_REQUEST)
+            {
+            if (this.m_queued.get() > 0)
+                {
+                // The Allocate Request for the binding may still be
+                // waiting for the executor.
+                queue(nextFilter, session, new QueuedTask()
+                    {
+                    protected void execute()
+                        {
+                        handleChannelBind(session, request);
+                        request.release();
+                        }
+                    });
+                return;
+                }
+            handleChannelBind(session, request);
+            }
+        else if (this.m_queued.get() > 0)
+            {
+            // Whether the rest of the stream is spliced depends on the
+            // allocation, which the executor may not have gotten to, and
+            // anything spliced has to follow the data the decoder has yet
+            // to relay.
+            if (session.getTransportType() != TransportType.DATAGRAM)
+                {
+                this.m_state = STATE_SPLICE_PENDING;
+                FlowController.suspendRead(session);
+                }
+            queue(nextFilter, session, new QueuedTask()
+                {
+                protected void execute()
+                    {
+                    activeDestinationReady(nextFilter, session, request);
+                    }
+                });
+            return;
+            }
+        else
+            {
+            handleSetActiveDestination(session, request);
+            }
+
+        // The response copied what it needed.
+        request.release();
+        }
+
+    /**
+     * Handles a Set Active Destination request once everything the client
+     * sent before it has been handled, and picks the stream back up.
+     */
+    private synchronized void activeDestinationReady(
+        final NextFilter nextFilter, final IoSession session,
+        final ByteBuffer request)
+        {
+        final boolean pending = this.m_state == STATE_SPLICE_PENDING;
+        if (pending)
+            {
+            this.m_state = STATE_HEADER;
+            }
+        handleSetActiveDestination(session, request);
+        request.release();
+        if (!pending)
+            {
+            return;
+            }
+
+        // Anything held that needs to wait again is simply held again.
+        final List<ByteBuffer> held = new ArrayList<ByteBuffer>(this.m_held);
+        this.m_held.clear();
+        for (final ByteBuffer in : held)
+            {
+            process(nextFilter, session, in);
+            }
+        FlowController.resumeRead(session);
+        }
+
+    /**
+     * Sets the active destination in a Set Active Destination request, and
+     * splices the rest of the stream to it if that works.
+     */
+    private void handleSetActiveDestination(final IoSession session,
+        final ByteBuffer request)
+        {
+        InetSocketAddress destination = null;
+        int pos = TurnWireFormat.HEADER_LENGTH;
+        final int end = request.limit();
+        while (pos + TurnWireFormat.ATTRIBUTE_HEADER_LENGTH <= end)
+            {
+            final int type = request.getShort(pos) & 0xffff;
+            final int length = request.getShort(pos + 2) & 0xffff;
+            final int value = pos + TurnWireFormat.ATTRIBUTE_HEADER_LENGTH;
+            if (value + length > end)
+                {
+                break;
+                }
+            if (type == TurnWireFormat.REMOTE_ADDRESS && 
+                length <= TurnWireFormat.MAX_ADDRESS_LENGTH)
+                {
+                final byte[] address = new byte[length];
+                for (int i = 0; i < length; i++)
+                    {
+                    address[i] = request.get(value + i);
+                    }
+                try
+                    {
+                    destination = TurnWireFormat.readAddress(address, length);
+                    }
+                catch (final UnknownHostException e)
+                    {
+                    LOG.warn("Bad REMOTE-ADDRESS in Set Active Destination", 
+                        e);
+                    }
+                }
+            pos = value + length;
+            if (TurnWireFormat.isPadded(length, end - pos))
+                {
+                pos += TurnWireFormat.padding(length);
+                }
+            }
+
+        // Over UDP, data can't be told apart from TURN messages without
+        // framing, so splicing only makes sense for TCP.
+        final TurnClient client = 
+            this.m_turnClientManager.getTurnClient(session);
+        if (session.getTransportType() != TransportType.DATAGRAM &&
+            client != null && destination != null &&
+            client.setActiveDestination(destination))
+            {
+            session.write(TurnWireFormat.newResponse(request,
+                TurnWireFormat.SET_ACTIVE_DESTINATION_SUCCESS_RESPONSE));
+            this.m_client = client;
+            this.m_remoteAddress.set(destination);
+            this.m_hasRemoteAddress = true;
+            this.m_state = STATE_SPLICED;
+            }
+        else
+            {
+            LOG.debug("Rejecting active destination: {}", destination);
+            session.write(TurnWireFormat.newErrorResponse(request,
+                TurnWireFormat.SET_ACTIVE_DESTINATION_ERROR_RESPONSE, 400,
+                "Bad Request"));
+            }
+        }
+
+    /**
+     * Binds the channel in a ChannelBind request and responds to the TURN
+     * client.
+     */
+    private void handleChannelBind(final IoSession session,
+        final ByteBuffer request)
+        {
+        int channel = -1;
+        InetSocketAddress peer = null;
+        int pos = TurnWireFormat.HEADER_LENGTH;
+        final int end = request.limit();
+        while (pos + TurnWireFormat.ATTRIBUTE_HEADER_LENGTH <= end)
+            {
+            final int type = request.getShort(pos) & 0xffff;
+            final int length = request.getShort(pos + 2) & 0xffff;
+            final int value = pos + TurnWireFormat.ATTRIBUTE_HEADER_LENGTH;
+            if (value + length > end)
+                {
+                break;
+                }
+            if (type == TurnWireFormat.CHANNEL_NUMBER && length == 4)
+                {
+                channel = request.getShort(value) & 0xffff;
+                }
+            else if (type == TurnWireFormat.XOR_PEER_ADDRESS)
+                {
+                try
+                    {
+                    peer = TurnWireFormat.readXorAddress(request, value,
+                        length);
+                    }
+                catch (final UnknownHostException e)
+                    {
+                    LOG.warn("Bad XOR-PEER-ADDRESS in ChannelBind", e);
+                    }
+                }
+            
+            // ChannelBind comes from newer clients that always pad.
+            pos = value + length + TurnWireFormat.padding(length);
+            }
+
+        final TurnClient client = 
+            this.m_turnClientManager.getTurnClient(session);
+        if (client != null && peer != null && 
+            client.bindChannel(channel, peer))
+            {
+            session.write(TurnWireFormat.newResponse(request,
+                TurnWireFormat.CHANNEL_BIND_SUCCESS_RESPONSE));
+            }
+        else
+            {
+            LOG.debug("Rejecting bind of channel {} to {}", 
+                Integer.valueOf(channel), peer);
+            session.write(TurnWireFormat.newErrorResponse(request,
+                TurnWireFormat.CHANNEL_BIND_ERROR_RESPONSE, 400,
+                "Bad Request"));
+            }
+        }
+
+    private void startChannelData(final IoSession session, final int channel,
+        final int length)
+        {
+        this.m_channelData.increment();
+        this.m_channel = channel;
+        this.m_remaining = length;
+        
+        // ChannelData is padded over TCP so the next message starts on a
+        // 4 byte boundary.
+        this.m_messageRemaining = 
+            session.getTransportType() == TransportType.DATAGRAM ?
+            0 : TurnWireFormat.padding(length);
+        this.m_state = STATE_CHANNEL_DATA;
+        if (length == 0)
+            {
+            endChannelData();
+            }
+        }
+
+    private void endChannelData()
+        {
+        this.m_channel = -1;
+        if (this.m_messageRemaining > 0)
+            {
+            this.m_state = STATE_SKIP;
+            this.m_remaining = this.m_messageRemaining;
+            this.m_messageRemaining = 0;
+            }
+        else
+            {
+            nextAttribute();
+            }
+        }
+
+    private void startSendIndication(final IoSession session,
+        final int bodyLength)
+        {
+        this.m_hasRemoteAddress = false;
+        this.m_messageRemaining = bodyLength;
+        nextAttribute();
+        }
+
+    private void nextAttribute()
+        {
+        if (this.m_messageRemaining >= TurnWireFormat.ATTRIBUTE_HEADER_LENGTH)
+            {
+            this.m_state = STATE_ATTRIBUTE_HEADER;
+            this.m_scratchLength = 0;
+            }
+        else if (this.m_messageRemaining > 0)
+            {
+            this.m_state = STATE_SKIP;
+            this.m_remaining = this.m_messageRemaining;
+            this.m_messageRemaining = 0;
+            }
+        else
+            {
+            if (this.m_pendingData != null)
+                {
+                LOG.debug("No REMOTE-ADDRESS for Send Indication data");
+                this.m_pendingData.release();
+                this.m_pendingData = null;
+                }
+            this.m_state = STATE_HEADER;
+            }
+        }
+
+    private void readAttributeHeader(final ByteBuffer in)
+        {
+        if (!fillScratch(in, TurnWireFormat.ATTRIBUTE_HEADER_LENGTH))
+            {
+            return;
+            }
+        final int type = readShort(0);
+        final int length = readShort(2);
+        this.m_messageRemaining -= TurnWireFormat.ATTRIBUTE_HEADER_LENGTH;
+        if (length > this.m_messageRemaining)
+            {
+            LOG.warn("Attribute length {} exceeds message", length);
+            this.m_state = STATE_SKIP;
+            this.m_remaining = this.m_messageRemaining;
+            this.m_messageRemaining = 0;
+            return;
+            }
+
+        this.m_attributeLength = length;
+        this.m_messageRemaining -= length;
+        this.m_remaining = length;
+        this.m_scratchLength = 0;
+        if (type == TurnWireFormat.REMOTE_ADDRESS && length > 0 &&
+            length <= TurnWireFormat.MAX_ADDRESS_LENGTH)
+            {
+            this.m_state = STATE_ADDRESS;
+            }
+        else if (type == TurnWireFormat.DATA && length > 0)
+            {
+            this.m_state = STATE_DATA;
+            if (!this.m_hasRemoteAddress)
+                {
+                // Only the last DATA counts if there's more than one.
+                if (this.m_pendingData != null)
+                    {
+                    this.m_pendingData.release();
+                    }
+                this.m_pendingData = ByteBuffer.allocate(length);
+                }
+            }
+        else
+            {
+            this.m_state = STATE_SKIP;
+            if (TurnWireFormat.isPadded(length, this.m_messageRemaining))
+                {
+                final int padding = TurnWireFormat.padding(length);
+                this.m_remaining += padding;
+                this.m_messageRemaining -= padding;
+                }
+            }
+        }
+
+    private void readAddress(final NextFilter nextFilter,
+        final IoSession session, final ByteBuffer in)
+        {
+        if (!fillScratch(in, this.m_attributeLength))
+            {
+            return;
+            }
+        this.m_hasRemoteAddress = this.m_remoteAddress.set(this.m_scratch,
+            this.m_attributeLength);
+        if (!this.m_hasRemoteAddress)
+            {
+            LOG.warn("Bad REMOTE-ADDRESS in Send Indication");
+            }
+        if (this.m_pendingData != null && this.m_hasRemoteAddress)
+            {
+            this.m_pendingData.flip();
+            relay(nextFilter, session, this.m_pendingData);
+            this.m_pendingData = null;
+            }
+        endValue();
+        }
+
+    private void readData(final NextFilter nextFilter,
+        final IoSession session, final ByteBuffer in)
+        {
+        final int pos = in.position();
+        final int length = Math.min(this.m_remaining, in.remaining());
+        if (this.m_pendingData != null)
+            {
+            final int limit = in.limit();
+            in.limit(pos + length);
+            this.m_pendingData.put(in);
+            in.limit(limit);
+            }
+        else
+            {
+            relay(nextFilter, session, new ReadBufferSlice(in, pos, length));
+            in.position(pos + length);
+            }
+        this.m_remaining -= length;
+        this.m_runStart = in.position();
+        if (this.m_remaining == 0)
+            {
+            if (this.m_channel != -1)
+                {
+                endChannelData();
+                }
+            else
+                {
+                endValue();
+                }
+            }
+        }
+
+    private void endValue()
+        {
+        if (TurnWireFormat.isPadded(this.m_attributeLength,
+            this.m_messageRemaining))
+            {
+            final int padding = TurnWireFormat.padding(this.m_attributeLength);
+            this.m_messageRemaining -= padding;
+            this.m_state = STATE_SKIP;
+            this.m_remaining = padding;
+            }
+        else
+            {
+            nextAttribute();
+            }
+        }
+
+    private void relay(final NextFilter nextFilter, final IoSession session,
+        final ByteBuffer data)
+        {
+        if (this.m_channel == -1 && !this.m_hasRemoteAddress)
+            {
+            LOG.debug("Dropping data for unknown host");
+            data.release();
+            return;
+            }
+        if (this.m_queued.get() > 0)
+            {
+            // The client's earlier messages are still waiting for the
+            // executor, and may be what lets us relay this at all.
+            queue(nextFilter, session, new QueuedRelay(session, data));
+            return;
+            }
+        final TurnClient client = this.m_state == STATE_SPLICED ?
+            this.m_client : this.m_turnClientManager.getTurnClient(session);
+        write(client, this.m_channel, this.m_remoteAddress, data);
+        }
+
+    /**
+     * Writes data to the remote host, releasing it if we can't.  This is a
+     * non-blocking write.
+     */
+    private static void write(final TurnClient client, final int channel,
+        final PeerKey remoteAddress, final ByteBuffer data)
+        {
+        final boolean written;
+        if (client == null)
+            {
+            written = false;
+            }
+        else if (channel != -1)
+            {
+            written = client.writeChannel(channel, data);
+            }
+        else
+            {
+            written = client.write(remoteAddress, data);
+            }
+        if (!written)
+            {
+            if (LOG.isDebugEnabled())
+                {
+                LOG.debug("Dropping data for: " + (channel != -1 ?
+                    "channel " + channel : remoteAddress.toString()));
+                }
+            data.release();
+            }
+        }
+
+    private void reset()
+        {
+        this.m_state = STATE_HEADER;
+        this.m_scratchLength = 0;
+        this.m_client = null;
+        this.m_channel = -1;
+
+        // These are ours, so they go back to the allocator.
+        for (final ByteBuffer held : this.m_held)
+            {
+            held.release();
+            }
+        this.m_held.clear();
+        if (this.m_pendingData != null)
+            {
+            this.m_pendingData.release();
+            this.m_pendingData = null;
+            }
+        if (this.m_message != null)
+            {
+            this.m_message.release();
+            this.m_message = null;
+            }
+        }
+
+    /**
+     * Passes bytes on to the decoder, followed by a marker so we know when
+     * the executor has handled whatever they decode to.
+     */
+    private void pass(final NextFilter nextFilter, final IoSession session,
+        final ByteBuffer buf)
+        {
+        this.m_queued.incrementAndGet();
+        nextFilter.messageReceived(session, buf);
+        nextFilter.messageReceived(session, this.m_passed);
+        }
+
+    /**
+     * Queues a task behind the messages we've passed to the decoder.
+     */
+    private void queue(final NextFilter nextFilter, final IoSession session,
+        final QueuedTask task)
+        {
+        this.m_queued.incrementAndGet();
+        nextFilter.messageReceived(session, task);
+        }
+
+    /**
+     * Passes any bytes in the current read we haven't consumed ourselves on
+     * to the decoder.
+     */
+    private void flushRun(final NextFilter nextFilter,
+        final IoSession session, final ByteBuffer in)
+        {
+        final int length = in.position() - this.m_runStart;
+        if (length > 0)
+            {
+            pass(nextFilter, session,
+                new ReadBufferSlice(in, this.m_runStart, length));
+            this.m_runStart = in.position();
+            }
+        this.m_sliced = true;
+        }
+
+    private boolean fillScratch(final ByteBuffer in, final int needed)
+        {
+        final int read = Math.min(needed - this.m_scratchLength,
+            in.remaining());
+        in.get(this.m_scratch, this.m_scratchLength, read);
+        this.m_scratchLength += read;
+        this.m_runStart = in.position();
+        if (this.m_scratchLength < needed)
+            {
+            return false;
+            }
+        this.m_scratchLength = 0;
+        return true;
+        }
+
+    private int readShort(final int index)
+        {
+        return ((this.m_scratch[index] & 0xff) << 8) |
+            (this.m_scratch[index + 1] & 0xff);
+        }
+
+    private static int skip(final ByteBuffer in, final int length)
+        {
+        final int skipped = Math.min(length, in.remaining());
+        in.position(in.position() + skipped);
+        return skipped;
+        }
+
+    /**
+     * Work we've queued on the session's executor, which counts itself off
+     * once it's done.  Like the markers, it waits behind an Allocate still
+     * waiting for our public address, and runs anyway if we give up on
+     * that.
+     */
+    private abstract class QueuedTask implements Runnable
+        {
+
+        private final Runnable m_ready = new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    execute();
+                    }
+                finally
+                    {
+                    m_queued.decrementAndGet();
+                    }
+                }
+            };
+
+        public final void run()
+            {
+            m_turnClientManager.whenReady(this.m_ready, this.m_ready);
+            }
+
+        protected abstract void execute();
+        }
+
+    /**
+     * Data we're relaying once the client's earlier messages are handled.
+     * We look up the TURN client when we get to it, since it may not have
+     * existed yet when the data arrived.
+     */
+    private final class QueuedRelay extends QueuedTask
+        {
+
+        private final IoSession m_session;
+
+        private final TurnClient m_splicedClient;
+
+        private final int m_channelNumber;
+
+        private final PeerKey m_peer;
+
+        private final ByteBuffer m_data;
+
+        private QueuedRelay(final IoSession session, final ByteBuffer data)
+            {
+            this.m_session = session;
+            this.m_splicedClient = m_state == STATE_SPLICED ? m_client : null;
+            this.m_channelNumber = m_channel;
+            this.m_peer = m_channel == -1 ?
+                new PeerKey(m_remoteAddress.toSocketAddress()) : null;
+            this.m_data = data;
+            }
+
+        protected void execute()
+            {
+            final TurnClient client = this.m_splicedClient != null ?
+                this.m_splicedClient :
+                m_turnClientManager.getTurnClient(this.m_session);
+            write(client, this.m_channelNumber, this.m_peer, this.m_data);
+            }
+        }
+    }
@@ -1,6 +1,8 @@
 package org.lastbamboo.common.turn.server;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,14 +37,33 @@ public class TurnLauncher
             }
         }
 
-    private TurnServer m_turnServer;
+    private final Collection<TurnServer> m_turnServers = 
+        new ArrayList<TurnServer>();
+
+    private final TurnClientManagerImpl m_clientManager;
 
     /**
      * Creates a new TURN launcher.
      */
     public TurnLauncher()
         {
-        this.m_turnServer = new TcpTurnServer(new TurnClientManagerImpl());
+        final TurnServerConfig config = 
+            TurnServerConfig.fromProperties(System.getProperties());
+        
+        // The TCP and UDP servers share the same clients and relays.
+        this.m_clientManager = new TurnClientManagerImpl(config);
+        this.m_turnServers.add(
+            new TcpTurnServer(this.m_clientManager, config));
+        if (config.isUdpEnabled())
+            {
+            this.m_turnServers.add(
+                new UdpTurnServer(this.m_clientManager, config));
+            }
+        if (config.getMetricsPort() > 0)
+            {
+            this.m_turnServers.add(new TurnMetricsHttpServer(
+                config.getMetricsPort(), this.m_clientManager));
+            }
         }
 
     /**
@@ -52,8 +73,11 @@ public class TurnLauncher
      */
     public void start() throws IOException
         {
-        // Launch the TURN server
-        m_turnServer.start ();
+        // Launch the TURN servers
+        for (final TurnServer server : this.m_turnServers)
+            {
+            server.start();
+            }
         
         // Just keep the thread open.
         try
@@ -75,6 +99,12 @@ public class TurnLauncher
      */
     public void stop()
         {
-        this.m_turnServer.stop();
+        for (final TurnServer server : this.m_turnServers)
+            {
+            server.stop();
+            }
+
+        // The servers share the manager, so it goes once they're all done.
+        this.m_clientManager.stop();
         }
     }
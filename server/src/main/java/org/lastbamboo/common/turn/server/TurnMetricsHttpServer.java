@@ -0,0 +1,88 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics as plain text at <code>/metrics</code>, for anything
+ * that polls over HTTP.  Requests are handled one at a time on a single
+ * thread of their own, so polling never touches the I/O threads beyond
+ * reading their counters.
+ */
+public class TurnMetricsHttpServer implements TurnServer
+    {
+
+    private final Logger m_log =
+        LoggerFactory.getLogger(TurnMetricsHttpServer.class);
+
+    private final int m_port;
+
+    private final TurnClientManagerImpl m_clientManager;
+
+    private HttpServer m_server;
+
+    private ExecutorService m_executor;
+
+    /**
+     * Creates a new metrics server.
+     *
+     * @param port The port to listen on.
+     * @param clientManager The client manager with the metrics.
+     */
+    public TurnMetricsHttpServer(final int port,
+        final TurnClientManagerImpl clientManager)
+        {
+        this.m_port = port;
+        this.m_clientManager = clientManager;
+        }
+
+    public void start() throws IOException
+        {
+        this.m_server = HttpServer.create(new InetSocketAddress(m_port), 0);
+        this.m_server.createContext("/metrics", new HttpHandler()
+            {
+            public void handle(final HttpExchange exchange) throws IOException
+                {
+                final byte[] body =
+                    m_clientManager.getMetricsText().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type",
+                    "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream os = exchange.getResponseBody();
+                try
+                    {
+                    os.write(body);
+                    }
+                finally
+                    {
+                    os.close();
+                    }
+                }
+            });
+        this.m_executor = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("TURN-Metrics-Server"));
+        this.m_server.setExecutor(this.m_executor);
+        this.m_server.start();
+        m_log.debug("Serving metrics on port: {}", m_port);
+        }
+
+    public void stop()
+        {
+        if (this.m_server != null)
+            {
+            this.m_server.stop(0);
+            this.m_executor.shutdown();
+            }
+        }
+    }
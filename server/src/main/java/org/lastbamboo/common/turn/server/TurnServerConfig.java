@@ -0,0 +1,996 @@
+package org.lastbamboo.common.turn.server;
+
+import java.util.Properties;
+
+import org.lastbamboo.common.turn.server.allocated.RelayExecution;
+import org.lastbamboo.common.turn.server.buffer.ByteBufferAllocators;
+
+/**
+ * Configuration options for the TURN server.  The defaults are
+ * conservative, so a config created with the no-argument constructor is
+ * always safe to use.
+ */
+public class TurnServerConfig
+    {
+
+    private boolean m_zeroCopySend = false;
+
+    private String m_bufferAllocator = ByteBufferAllocators.SIMPLE;
+
+    private boolean m_directBuffers = false;
+
+    private int m_bufferPoolSize = 1024;
+
+    private boolean m_udpEnabled = false;
+
+    private boolean m_channelsEnabled = false;
+
+    private boolean m_activeDestinationEnabled = false;
+
+    private int m_permissionLifetime = 300;
+
+    private int m_allocationLifetime = 600;
+
+    private int m_peerIdleTime = 300;
+
+    private int m_writeHighWaterMark = 1024 * 1024;
+
+    private int m_writeLowWaterMark = 256 * 1024;
+
+    private int m_metricsPort = 0;
+
+    private boolean m_jmxEnabled = false;
+
+    private int m_coalesceBytes = 0;
+
+    private int m_coalesceDelayMicros = 500;
+
+    private int m_relayPortMin = 0;
+
+    private int m_relayPortMax = 0;
+
+    private int m_relayPortQuarantine = 30;
+
+    private String m_relayExecution = RelayExecution.CACHED;
+
+    private int m_relayThreads = 
+        Runtime.getRuntime().availableProcessors() * 2;
+
+    private int m_acceptBacklog = 1024;
+
+    private String m_publicAddress = null;
+
+    private String m_publicAddressFile = null;
+
+    private int m_publicAddressTimeout = 5;
+
+    private long m_globalRateLimit = 0;
+
+    private long m_clientRateLimit = 0;
+
+    private long m_peerRateLimit = 0;
+
+    private int m_rateLimitBurstMillis = 250;
+
+    private int m_maxAllocations = 0;
+
+    private int m_maxFdUsage = 0;
+
+    private int m_maxHeapUsage = 0;
+
+    private int m_maxDirectMemory = 0;
+
+    private int m_maxLagMillis = 0;
+
+    private String m_alternateServer = null;
+
+    /**
+     * Creates a new configuration using the values of any "turn.*" keys in
+     * the specified properties, typically the system properties.
+     *
+     * @param props The properties to read.
+     * @return The new configuration.
+     */
+    public static TurnServerConfig fromProperties(final Properties props)
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setZeroCopySend(getBoolean(props, "turn.zeroCopySend",
+            config.isZeroCopySend()));
+        config.setBufferAllocator(props.getProperty("turn.bufferAllocator",
+            config.getBufferAllocator()).trim());
+        config.setDirectBuffers(getBoolean(props, "turn.directBuffers",
+            config.isDirectBuffers()));
+        config.setBufferPoolSize(getInt(props, "turn.bufferPoolSize",
+            config.getBufferPoolSize()));
+        config.setUdpEnabled(getBoolean(props, "turn.udp",
+            config.isUdpEnabled()));
+        config.setChannelsEnabled(getBoolean(props, "turn.channels",
+            config.isChannelsEnabled()));
+        config.setActiveDestinationEnabled(getBoolean(props,
+            "turn.activeDestination", config.isActiveDestinationEnabled()));
+        config.setPermissionLifetime(getInt(props, "turn.permissionLifetime",
+            config.getPermissionLifetime()));
+        config.setAllocationLifetime(getInt(props, "turn.allocationLifetime",
+            config.getAllocationLifetime()));
+        config.setPeerIdleTime(getInt(props, "turn.peerIdleTime",
+            config.getPeerIdleTime()));
+        config.setWriteHighWaterMark(getInt(props, "turn.writeHighWaterMark",
+            config.getWriteHighWaterMark()));
+        config.setWriteLowWaterMark(getInt(props, "turn.writeLowWaterMark",
+            config.getWriteLowWaterMark()));
+        config.setMetricsPort(getInt(props, "turn.metricsPort",
+            config.getMetricsPort()));
+        config.setJmxEnabled(getBoolean(props, "turn.jmx",
+            config.isJmxEnabled()));
+        config.setCoalesceBytes(getInt(props, "turn.coalesceBytes",
+            config.getCoalesceBytes()));
+        config.setCoalesceDelayMicros(getInt(props,
+            "turn.coalesceDelayMicros", config.getCoalesceDelayMicros()));
+        config.setRelayPortMin(getInt(props, "turn.relayPortMin",
+            config.getRelayPortMin()));
+        config.setRelayPortMax(getInt(props, "turn.relayPortMax",
+            config.getRelayPortMax()));
+        config.setRelayPortQuarantine(getInt(props, 
+            "turn.relayPortQuarantine", config.getRelayPortQuarantine()));
+        config.setRelayExecution(props.getProperty("turn.relayExecution",
+            config.getRelayExecution()).trim());
+        config.setRelayThreads(getInt(props, "turn.relayThreads",
+            config.getRelayThreads()));
+        config.setAcceptBacklog(getInt(props, "turn.acceptBacklog",
+            config.getAcceptBacklog()));
+        config.setPublicAddress(getString(props, "turn.publicAddress",
+            config.getPublicAddress()));
+        config.setPublicAddressFile(getString(props, 
+            "turn.publicAddressFile", config.getPublicAddressFile()));
+        config.setPublicAddressTimeout(getInt(props, 
+            "turn.publicAddressTimeout", config.getPublicAddressTimeout()));
+        config.setGlobalRateLimit(getLong(props, "turn.globalRateLimit",
+            config.getGlobalRateLimit()));
+        config.setClientRateLimit(getLong(props, "turn.clientRateLimit",
+            config.getClientRateLimit()));
+        config.setPeerRateLimit(getLong(props, "turn.peerRateLimit",
+            config.getPeerRateLimit()));
+        config.setRateLimitBurstMillis(getInt(props, 
+            "turn.rateLimitBurstMillis", config.getRateLimitBurstMillis()));
+        config.setMaxAllocations(getInt(props, "turn.maxAllocations",
+            config.getMaxAllocations()));
+        config.setMaxFdUsage(getInt(props, "turn.maxFdUsage",
+            config.getMaxFdUsage()));
+        config.setMaxHeapUsage(getInt(props, "turn.maxHeapUsage",
+            config.getMaxHeapUsage()));
+        config.setMaxDirectMemory(getInt(props, "turn.maxDirectMemory",
+            config.getMaxDirectMemory()));
+        config.setMaxLagMillis(getInt(props, "turn.maxLagMillis",
+            config.getMaxLagMillis()));
+        config.setAlternateServer(getString(props, "turn.alternateServer",
+            config.getAlternateServer()));
+        return config;
+        }
+
+    private static String getString(final Properties props,
+        final String key, final String defaultValue)
+        {
+        final String value = props.getProperty(key);
+        if (value == null || value.trim().length() == 0)
+            {
+            return defaultValue;
+            }
+        return value.trim();
+        }
+
+    private static boolean getBoolean(final Properties props,
+        final String key, final boolean defaultValue)
+        {
+        final String value = props.getProperty(key);
+        if (value == null)
+            {
+            return defaultValue;
+            }
+        return Boolean.valueOf(value.trim()).booleanValue();
+        }
+
+    private static int getInt(final Properties props, final String key,
+        final int defaultValue)
+        {
+        final String value = props.getProperty(key);
+        if (value == null)
+            {
+            return defaultValue;
+            }
+        return Integer.parseInt(value.trim());
+        }
+
+    private static long getLong(final Properties props, final String key,
+        final long defaultValue)
+        {
+        final String value = props.getProperty(key);
+        if (value == null)
+            {
+            return defaultValue;
+            }
+        return Long.parseLong(value.trim());
+        }
+
+    /**
+     * Returns whether Send Indications from TURN clients are relayed
+     * straight out of the read buffer instead of going through the STUN
+     * decoder.
+     *
+     * @return <code>true</code> if Send Indications are relayed without
+     * copying, otherwise <code>false</code>.
+     */
+    public boolean isZeroCopySend()
+        {
+        return m_zeroCopySend;
+        }
+
+    /**
+     * Sets whether Send Indications from TURN clients are relayed
+     * straight out of the read buffer instead of going through the STUN
+     * decoder.
+     *
+     * @param zeroCopySend Whether or not to relay Send Indications without
+     * copying.
+     */
+    public void setZeroCopySend(final boolean zeroCopySend)
+        {
+        m_zeroCopySend = zeroCopySend;
+        }
+
+    /**
+     * Returns the MINA buffer allocator to install, either
+     * {@link ByteBufferAllocators#SIMPLE} or
+     * {@link ByteBufferAllocators#POOLED}.
+     *
+     * @return The buffer allocator to install.
+     */
+    public String getBufferAllocator()
+        {
+        return m_bufferAllocator;
+        }
+
+    /**
+     * Sets the MINA buffer allocator to install.
+     *
+     * @param bufferAllocator The buffer allocator to install.
+     */
+    public void setBufferAllocator(final String bufferAllocator)
+        {
+        m_bufferAllocator = bufferAllocator;
+        }
+
+    /**
+     * Returns whether MINA should allocate direct, off-heap buffers.
+     *
+     * @return <code>true</code> to use direct buffers, otherwise
+     * <code>false</code>.
+     */
+    public boolean isDirectBuffers()
+        {
+        return m_directBuffers;
+        }
+
+    /**
+     * Sets whether MINA should allocate direct, off-heap buffers.
+     *
+     * @param directBuffers Whether to use direct buffers.
+     */
+    public void setDirectBuffers(final boolean directBuffers)
+        {
+        m_directBuffers = directBuffers;
+        }
+
+    /**
+     * Returns the maximum number of free buffers the pooled allocator keeps
+     * for each size class.
+     *
+     * @return The maximum number of free buffers per size class.
+     */
+    public int getBufferPoolSize()
+        {
+        return m_bufferPoolSize;
+        }
+
+    /**
+     * Sets the maximum number of free buffers the pooled allocator keeps
+     * for each size class.
+     *
+     * @param bufferPoolSize The maximum number of free buffers per size
+     * class.
+     */
+    public void setBufferPoolSize(final int bufferPoolSize)
+        {
+        m_bufferPoolSize = bufferPoolSize;
+        }
+
+    /**
+     * Returns whether we also accept TURN clients over UDP, giving them UDP
+     * relays.
+     *
+     * @return <code>true</code> to run the UDP TURN server, otherwise
+     * <code>false</code>.
+     */
+    public boolean isUdpEnabled()
+        {
+        return m_udpEnabled;
+        }
+
+    /**
+     * Sets whether we also accept TURN clients over UDP.
+     *
+     * @param udpEnabled Whether to run the UDP TURN server.
+     */
+    public void setUdpEnabled(final boolean udpEnabled)
+        {
+        m_udpEnabled = udpEnabled;
+        }
+    
+    /**
+     * Returns whether TURN clients can bind channels to remote hosts and
+     * send data as ChannelData, with its 4 byte header, instead of as Send
+     * Indications.
+     *
+     * @return <code>true</code> if channels are enabled, otherwise
+     * <code>false</code>.
+     */
+    public boolean isChannelsEnabled()
+        {
+        return m_channelsEnabled;
+        }
+
+    /**
+     * Sets whether TURN clients can bind channels to remote hosts.
+     *
+     * @param channelsEnabled Whether to handle ChannelBind requests and
+     * ChannelData.
+     */
+    public void setChannelsEnabled(final boolean channelsEnabled)
+        {
+        m_channelsEnabled = channelsEnabled;
+        }
+    
+    /**
+     * Returns whether TCP TURN clients can set an active destination, which
+     * splices their connection to a single remote host with no TURN framing
+     * in either direction.
+     *
+     * @return <code>true</code> if clients can set an active destination,
+     * otherwise <code>false</code>.
+     */
+    public boolean isActiveDestinationEnabled()
+        {
+        return m_activeDestinationEnabled;
+        }
+
+    /**
+     * Sets whether TCP TURN clients can set an active destination.
+     *
+     * @param activeDestinationEnabled Whether to handle Set Active
+     * Destination requests.
+     */
+    public void setActiveDestinationEnabled(
+        final boolean activeDestinationEnabled)
+        {
+        m_activeDestinationEnabled = activeDestinationEnabled;
+        }
+    
+    /**
+     * Returns how long a remote host has permission to reach a TURN client
+     * after the client's last Connect Request or ChannelBind for it.
+     *
+     * @return The permission lifetime, in seconds.
+     */
+    public int getPermissionLifetime()
+        {
+        return m_permissionLifetime;
+        }
+
+    /**
+     * Sets how long permissions last without being refreshed.
+     *
+     * @param permissionLifetime The permission lifetime, in seconds.
+     */
+    public void setPermissionLifetime(final int permissionLifetime)
+        {
+        m_permissionLifetime = permissionLifetime;
+        }
+
+    /**
+     * Returns how long an allocation lasts without any traffic on the TURN
+     * client's connection.  Clients refresh allocations with Allocate 
+     * Requests, but traffic in either direction also counts, since those
+     * might not come for awhile during a large file transfer.
+     *
+     * @return The allocation lifetime, in seconds.
+     */
+    public int getAllocationLifetime()
+        {
+        return m_allocationLifetime;
+        }
+
+    /**
+     * Sets how long an allocation lasts without any traffic.
+     *
+     * @param allocationLifetime The allocation lifetime, in seconds.
+     */
+    public void setAllocationLifetime(final int allocationLifetime)
+        {
+        m_allocationLifetime = allocationLifetime;
+        }
+
+    /**
+     * Returns how long a connection from a remote host can go without
+     * traffic in either direction before we close it.
+     *
+     * @return The idle time, in seconds.
+     */
+    public int getPeerIdleTime()
+        {
+        return m_peerIdleTime;
+        }
+
+    /**
+     * Sets how long connections from remote hosts can be idle.
+     *
+     * @param peerIdleTime The idle time, in seconds.
+     */
+    public void setPeerIdleTime(final int peerIdleTime)
+        {
+        m_peerIdleTime = peerIdleTime;
+        }
+
+    /**
+     * Returns the number of bytes that can be queued for writing to a
+     * session before we stop reading from the session the data is coming
+     * from.
+     *
+     * @return The high water mark in bytes, or 0 for no flow control.
+     */
+    public int getWriteHighWaterMark()
+        {
+        return m_writeHighWaterMark;
+        }
+
+    /**
+     * Sets the number of queued bytes at which we suspend reads.
+     *
+     * @param writeHighWaterMark The high water mark in bytes, or 0 for no
+     * flow control.
+     */
+    public void setWriteHighWaterMark(final int writeHighWaterMark)
+        {
+        m_writeHighWaterMark = writeHighWaterMark;
+        }
+
+    /**
+     * Returns the number of queued bytes at or below which we resume reads
+     * we've suspended.
+     *
+     * @return The low water mark in bytes.
+     */
+    public int getWriteLowWaterMark()
+        {
+        return m_writeLowWaterMark;
+        }
+
+    /**
+     * Sets the number of queued bytes at which we resume reads.
+     *
+     * @param writeLowWaterMark The low water mark in bytes.
+     */
+    public void setWriteLowWaterMark(final int writeLowWaterMark)
+        {
+        m_writeLowWaterMark = writeLowWaterMark;
+        }
+
+    /**
+     * Returns the port for the HTTP endpoint that serves the metrics as
+     * text.
+     *
+     * @return The port, or 0 for no metrics endpoint.
+     */
+    public int getMetricsPort()
+        {
+        return m_metricsPort;
+        }
+
+    /**
+     * Sets the port for the metrics endpoint.
+     *
+     * @param metricsPort The port, or 0 for no metrics endpoint.
+     */
+    public void setMetricsPort(final int metricsPort)
+        {
+        m_metricsPort = metricsPort;
+        }
+
+    /**
+     * Returns whether we register our MBeans with the platform MBean server
+     * on startup.
+     *
+     * @return Whether JMX is enabled.
+     */
+    public boolean isJmxEnabled()
+        {
+        return m_jmxEnabled;
+        }
+
+    /**
+     * Sets whether we register our MBeans with the platform MBean server.
+     *
+     * @param jmxEnabled Whether JMX is enabled.
+     */
+    public void setJmxEnabled(final boolean jmxEnabled)
+        {
+        m_jmxEnabled = jmxEnabled;
+        }
+
+    /**
+     * Returns the most data we batch into a single write to a TURN client
+     * over TCP while an earlier write is still in flight.
+     *
+     * @return The most bytes per batch, or 0 to never batch writes.
+     */
+    public int getCoalesceBytes()
+        {
+        return m_coalesceBytes;
+        }
+
+    /**
+     * Sets the most data we batch into a single write to a TURN client.
+     *
+     * @param coalesceBytes The most bytes per batch, or 0 to never batch
+     * writes.
+     */
+    public void setCoalesceBytes(final int coalesceBytes)
+        {
+        m_coalesceBytes = coalesceBytes;
+        }
+
+    /**
+     * Returns the longest we hold data back for a batch, in microseconds.
+     *
+     * @return The longest we hold data back, in microseconds.
+     */
+    public int getCoalesceDelayMicros()
+        {
+        return m_coalesceDelayMicros;
+        }
+
+    /**
+     * Sets the longest we hold data back for a batch.
+     *
+     * @param coalesceDelayMicros The longest we hold data back, in
+     * microseconds.
+     */
+    public void setCoalesceDelayMicros(final int coalesceDelayMicros)
+        {
+        m_coalesceDelayMicros = coalesceDelayMicros;
+        }
+
+    /**
+     * Returns the lowest port in the range we allocate relay ports from.
+     *
+     * @return The lowest relay port, or 0 to use ephemeral ports.
+     */
+    public int getRelayPortMin()
+        {
+        return m_relayPortMin;
+        }
+
+    /**
+     * Sets the lowest port in the range we allocate relay ports from.
+     *
+     * @param relayPortMin The lowest relay port, or 0 to use ephemeral
+     * ports.
+     */
+    public void setRelayPortMin(final int relayPortMin)
+        {
+        m_relayPortMin = relayPortMin;
+        }
+
+    /**
+     * Returns the highest port in the range we allocate relay ports from.
+     *
+     * @return The highest relay port.
+     */
+    public int getRelayPortMax()
+        {
+        return m_relayPortMax;
+        }
+
+    /**
+     * Sets the highest port in the range we allocate relay ports from.
+     *
+     * @param relayPortMax The highest relay port.
+     */
+    public void setRelayPortMax(final int relayPortMax)
+        {
+        m_relayPortMax = relayPortMax;
+        }
+
+    /**
+     * Returns how long a freed relay port goes unused, in seconds.
+     *
+     * @return The relay port quarantine in seconds.
+     */
+    public int getRelayPortQuarantine()
+        {
+        return m_relayPortQuarantine;
+        }
+
+    /**
+     * Sets how long a freed relay port goes unused.
+     *
+     * @param relayPortQuarantine The relay port quarantine in seconds.
+     */
+    public void setRelayPortQuarantine(final int relayPortQuarantine)
+        {
+        m_relayPortQuarantine = relayPortQuarantine;
+        }
+
+    /**
+     * Returns how relays run their handlers:  one of the models in
+     * {@link RelayExecution}.
+     *
+     * @return The relay execution model.
+     */
+    public String getRelayExecution()
+        {
+        return m_relayExecution;
+        }
+
+    /**
+     * Sets how relays run their handlers.
+     *
+     * @param relayExecution The relay execution model, such as
+     * {@link RelayExecution#IO}.
+     */
+    public void setRelayExecution(final String relayExecution)
+        {
+        m_relayExecution = relayExecution;
+        }
+
+    /**
+     * Returns the number of handler threads for each transport with the
+     * {@link RelayExecution#ORDERED} model.
+     *
+     * @return The number of relay handler threads.
+     */
+    public int getRelayThreads()
+        {
+        return m_relayThreads;
+        }
+
+    /**
+     * Sets the number of handler threads for each transport with the
+     * {@link RelayExecution#ORDERED} model.
+     *
+     * @param relayThreads The number of relay handler threads.
+     */
+    public void setRelayThreads(final int relayThreads)
+        {
+        m_relayThreads = relayThreads;
+        }
+
+    /**
+     * Returns the length of the queue of connections to the TCP TURN port
+     * the kernel has completed but we haven't accepted yet.  When every
+     * client reconnects at once, connections beyond this are dropped and
+     * have to retry.
+     *
+     * @return The accept backlog.
+     */
+    public int getAcceptBacklog()
+        {
+        return m_acceptBacklog;
+        }
+
+    /**
+     * Sets the length of the queue of connections to the TCP TURN port the
+     * kernel has completed but we haven't accepted yet.  The kernel caps
+     * this at net.core.somaxconn.
+     *
+     * @param acceptBacklog The accept backlog.
+     */
+    public void setAcceptBacklog(final int acceptBacklog)
+        {
+        m_acceptBacklog = acceptBacklog;
+        }
+
+    /**
+     * Returns the public address of the server to give clients for their
+     * relays.
+     *
+     * @return The public address, or <code>null</code> to read it from the
+     * public address file or look it up.
+     */
+    public String getPublicAddress()
+        {
+        return m_publicAddress;
+        }
+
+    /**
+     * Sets the public address of the server to give clients for their
+     * relays.  This should be an IP address, as a host name would need a
+     * DNS lookup at startup.
+     *
+     * @param publicAddress The public address, or <code>null</code> to read
+     * it from the public address file or look it up.
+     */
+    public void setPublicAddress(final String publicAddress)
+        {
+        m_publicAddress = publicAddress;
+        }
+
+    /**
+     * Returns the file holding the public address of the server, on its
+     * first line.
+     *
+     * @return The path of the file, or <code>null</code> to look up the
+     * address when it isn't configured.
+     */
+    public String getPublicAddressFile()
+        {
+        return m_publicAddressFile;
+        }
+
+    /**
+     * Sets the file holding the public address of the server, typically
+     * written when the instance is provisioned.
+     *
+     * @param publicAddressFile The path of the file, or <code>null</code> to
+     * look up the address when it isn't configured.
+     */
+    public void setPublicAddressFile(final String publicAddressFile)
+        {
+        m_publicAddressFile = publicAddressFile;
+        }
+
+    /**
+     * Returns how long a single lookup of the public address from the
+     * instance metadata can take before we give up and try again.
+     *
+     * @return The lookup timeout in seconds.
+     */
+    public int getPublicAddressTimeout()
+        {
+        return m_publicAddressTimeout;
+        }
+
+    /**
+     * Sets how long a single lookup of the public address from the instance
+     * metadata can take before we give up and try again.
+     *
+     * @param publicAddressTimeout The lookup timeout in seconds.
+     */
+    public void setPublicAddressTimeout(final int publicAddressTimeout)
+        {
+        m_publicAddressTimeout = publicAddressTimeout;
+        }
+
+    /**
+     * Returns the bandwidth limit for all relayed data on the server, in
+     * each direction.
+     *
+     * @return The limit in bytes per second, or 0 for no limit.
+     */
+    public long getGlobalRateLimit()
+        {
+        return m_globalRateLimit;
+        }
+
+    /**
+     * Sets the bandwidth limit for all relayed data on the server, in each
+     * direction.
+     *
+     * @param globalRateLimit The limit in bytes per second, or 0 for no
+     * limit.
+     */
+    public void setGlobalRateLimit(final long globalRateLimit)
+        {
+        m_globalRateLimit = globalRateLimit;
+        }
+
+    /**
+     * Returns the bandwidth limit for data relayed for each TURN client, in
+     * each direction.
+     *
+     * @return The limit in bytes per second, or 0 for no limit.
+     */
+    public long getClientRateLimit()
+        {
+        return m_clientRateLimit;
+        }
+
+    /**
+     * Sets the bandwidth limit for data relayed for each TURN client, in
+     * each direction.
+     *
+     * @param clientRateLimit The limit in bytes per second, or 0 for no
+     * limit.
+     */
+    public void setClientRateLimit(final long clientRateLimit)
+        {
+        m_clientRateLimit = clientRateLimit;
+        }
+
+    /**
+     * Returns the bandwidth limit for data relayed to or from each remote
+     * host, in each direction.
+     *
+     * @return The limit in bytes per second, or 0 for no limit.
+     */
+    public long getPeerRateLimit()
+        {
+        return m_peerRateLimit;
+        }
+
+    /**
+     * Sets the bandwidth limit for data relayed to or from each remote
+     * host, in each direction.
+     *
+     * @param peerRateLimit The limit in bytes per second, or 0 for no limit.
+     */
+    public void setPeerRateLimit(final long peerRateLimit)
+        {
+        m_peerRateLimit = peerRateLimit;
+        }
+
+    /**
+     * Returns how much data above the bandwidth limits we let through at
+     * once before holding data back.
+     *
+     * @return The burst in milliseconds of each limit.
+     */
+    public int getRateLimitBurstMillis()
+        {
+        return m_rateLimitBurstMillis;
+        }
+
+    /**
+     * Sets how much data above the bandwidth limits we let through at once
+     * before holding data back.  Pauses are at least a timer tick, so this
+     * should be well over 100 milliseconds.
+     *
+     * @param rateLimitBurstMillis The burst in milliseconds of each limit.
+     */
+    public void setRateLimitBurstMillis(final int rateLimitBurstMillis)
+        {
+        m_rateLimitBurstMillis = rateLimitBurstMillis;
+        }
+
+    /**
+     * Returns the most allocations we'll hold at once before refusing new
+     * ones.
+     *
+     * @return The most allocations, or 0 for no limit.
+     */
+    public int getMaxAllocations()
+        {
+        return m_maxAllocations;
+        }
+
+    /**
+     * Sets the most allocations we'll hold at once before refusing new
+     * ones.
+     *
+     * @param maxAllocations The most allocations, or 0 for no limit.
+     */
+    public void setMaxAllocations(final int maxAllocations)
+        {
+        m_maxAllocations = maxAllocations;
+        }
+
+    /**
+     * Returns the share of the file descriptor limit we can have open
+     * before refusing new allocations.
+     *
+     * @return The share as a percentage, or 0 to ignore file descriptors.
+     */
+    public int getMaxFdUsage()
+        {
+        return m_maxFdUsage;
+        }
+
+    /**
+     * Sets the share of the file descriptor limit we can have open before
+     * refusing new allocations.
+     *
+     * @param maxFdUsage The share as a percentage, or 0 to ignore file
+     * descriptors.
+     */
+    public void setMaxFdUsage(final int maxFdUsage)
+        {
+        m_maxFdUsage = maxFdUsage;
+        }
+
+    /**
+     * Returns the share of the heap that can still be in use after a 
+     * collection before we refuse new allocations.
+     *
+     * @return The share as a percentage, or 0 to ignore the heap.
+     */
+    public int getMaxHeapUsage()
+        {
+        return m_maxHeapUsage;
+        }
+
+    /**
+     * Sets the share of the heap that can still be in use after a 
+     * collection before we refuse new allocations.
+     *
+     * @param maxHeapUsage The share as a percentage, or 0 to ignore the 
+     * heap.
+     */
+    public void setMaxHeapUsage(final int maxHeapUsage)
+        {
+        m_maxHeapUsage = maxHeapUsage;
+        }
+
+    /**
+     * Returns the direct buffer memory we can use before refusing new
+     * allocations.
+     *
+     * @return The memory in megabytes, or 0 for no limit.
+     */
+    public int getMaxDirectMemory()
+        {
+        return m_maxDirectMemory;
+        }
+
+    /**
+     * Sets the direct buffer memory we can use before refusing new
+     * allocations.  This should be under -XX:MaxDirectMemorySize.
+     *
+     * @param maxDirectMemory The memory in megabytes, or 0 for no limit.
+     */
+    public void setMaxDirectMemory(final int maxDirectMemory)
+        {
+        m_maxDirectMemory = maxDirectMemory;
+        }
+
+    /**
+     * Returns how late the timer can run before we refuse new allocations.
+     *
+     * @return The lag in milliseconds, or 0 to ignore lag.
+     */
+    public int getMaxLagMillis()
+        {
+        return m_maxLagMillis;
+        }
+
+    /**
+     * Sets how late the timer can run before we refuse new allocations.
+     *
+     * @param maxLagMillis The lag in milliseconds, or 0 to ignore lag.
+     */
+    public void setMaxLagMillis(final int maxLagMillis)
+        {
+        m_maxLagMillis = maxLagMillis;
+        }
+
+    /**
+     * Returns the server we send clients to when we refuse to allocate for
+     * them.
+     *
+     * @return The server as "host:port", or <code>null</code> if there 
+     * isn't one.
+     */
+    public String getAlternateServer()
+        {
+        return m_alternateServer;
+        }
+
+    /**
+     * Sets the server we send clients to when we refuse to allocate for
+     * them.
+     *
+     * @param alternateServer The server as "host:port", or 
+     * <code>null</code> for none.
+     */
+    public void setAlternateServer(final String alternateServer)
+        {
+        m_alternateServer = alternateServer;
+        }
+    }
@@ -0,0 +1,72 @@
+package org.lastbamboo.common.turn.server;
+
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.util.SessionUtil;
+import org.littleshoot.stun.stack.StunIoHandler;
+import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link IoHandler} for TURN STUN servers.
+ */
+public class TurnServerIoHandler extends StunIoHandler
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    /**
+     * Creates a new server IO handler.
+     * 
+     * @param factory The STUN server message visitor for processing read
+     * messages. 
+     */
+    public TurnServerIoHandler(final StunMessageVisitorFactory factory)
+        {
+        super(factory);
+        }
+    
+    @Override
+    public void messageReceived(final IoSession session, final Object message)
+        {
+        // The fast path queues work behind the messages it passes on, so
+        // that it happens in the order the client sent them.
+        if (message instanceof Runnable)
+            {
+            ((Runnable) message).run();
+            return;
+            }
+        super.messageReceived(session, message);
+        }
+
+    @Override
+    public void messageSent(final IoSession session, final Object message)
+        {
+        // Remote hosts we stopped reading from because this client fell
+        // behind can start again once it catches up.
+        FlowController.messageSent(session);
+        WriteCoalescer.messageSent(session, message);
+        if (m_log.isDebugEnabled())
+            {
+            m_log.debug("TURN server sent " + session.getWrittenMessages() +
+                " messages and " + session.getWrittenBytes() + 
+                " bytes for this session");
+            }
+        }
+    
+    @Override
+    public void sessionCreated(final IoSession session) throws Exception
+        {
+        SessionUtil.initialize(session);
+        
+        // The client manager closes the session once the allocation expires.
+        }
+
+    @Override
+    public void sessionClosed(final IoSession session) throws Exception
+        {
+        FlowController.sessionClosed(session);
+        super.sessionClosed(session);
+        }
+    }
@@ -0,0 +1,226 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageVisitorAdapter;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.AllocateSuccessResponse;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class that responds to TURN requests from a single TURN client.  Each TURN 
+ * client is allocated a unique responder for handling all requests.
+ */
+public final class TurnServerMessageVisitor 
+    extends StunMessageVisitorAdapter<StunMessage>
+    {
+    
+    /**
+     * Logger for this class.
+     */
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(TurnServerMessageVisitor.class);
+    private final TurnClientManager m_turnClientManager;
+    private final IoSession m_ioSession;
+
+    /**
+     * Creates a new visitor that responds to incoming TURN client requests.
+     * 
+     * @param ioSession The reader/writer for sending and receiving TURN data
+     * to and from a single client.
+     * @param clientManager The client manager for allocating new bindings for 
+     * the client.
+     */
+    public TurnServerMessageVisitor(final IoSession ioSession,
+        final TurnClientManager clientManager)
+        {
+        this.m_ioSession = ioSession;
+        this.m_turnClientManager = clientManager;
+        }
+
+    public StunMessage visitAllocateRequest(final AllocateRequest request)
+        {
+        LOG.debug("Processing allocate request...");
+        this.m_turnClientManager.getMetrics().messageReceived(request);
+        
+        // We can't give out relay addresses until we know our public
+        // address, which we may still be looking up just after startup.
+        this.m_turnClientManager.whenReady(new Runnable()
+            {
+            public void run()
+                {
+                allocate(request);
+                }
+            }, new Runnable()
+            {
+            public void run()
+                {
+                serverError(request);
+                }
+            });
+        return null;
+        }
+
+    private void allocate(final AllocateRequest request)
+        {
+        if (!this.m_ioSession.isConnected())
+            {
+            LOG.debug("Client left while we waited for our address");
+            return;
+            }
+        
+        // Note that the client here will frequently have already existed,
+        // with the new allocate request simply serving to keep the binding
+        // alive.
+        final TurnClient client;
+        try
+            {
+            client = this.m_turnClientManager.allocateBinding(
+                this.m_ioSession);
+            }
+        catch (final IOException e)
+            {
+            // Most likely the relay port range has run out.
+            LOG.warn("Could not bind relay address", e);
+            insufficientCapacity(request);
+            return;
+            }
+        if (client == null)
+            {
+            refuse(request);
+            return;
+            }
+        
+        final InetSocketAddress relayAddress = client.getRelayAddress();
+        final InetSocketAddress mappedAddress = client.getMappedAddress();
+        
+        final AllocateSuccessResponse response =
+            new AllocateSuccessResponse(request.getTransactionId(), 
+                relayAddress, mappedAddress); 
+
+        this.m_ioSession.write(response);
+        }    
+
+    /**
+     * Tells the client we won't allocate a binding for it, pointing it at
+     * the alternate server if we have one.  We frame the response straight
+     * from the request's transaction ID, without going back through the
+     * STUN encoder, so it stays cheap however overloaded we are.
+     */
+    private void refuse(final AllocateRequest request)
+        {
+        // The STUN stack has no Allocate error response, so we frame it
+        // ourselves.
+        final InetSocketAddress alternate = 
+            this.m_turnClientManager.getAlternateServer();
+        if (alternate != null)
+            {
+            this.m_ioSession.write(TurnWireFormat.newErrorResponse(
+                request.getTransactionId(),
+                TurnWireFormat.ALLOCATE_ERROR_RESPONSE, 300, 
+                "Try Alternate", TurnWireFormat.encodeAddressAttribute(
+                    TurnWireFormat.ALTERNATE_SERVER, alternate)));
+            }
+        else
+            {
+            insufficientCapacity(request);
+            }
+        }
+
+    private void insufficientCapacity(final AllocateRequest request)
+        {
+        this.m_ioSession.write(TurnWireFormat.newErrorResponse(
+            request.getTransactionId(),
+            TurnWireFormat.ALLOCATE_ERROR_RESPONSE, 508, 
+            "Insufficient Capacity", new byte[0]));
+        }
+
+    private void serverError(final AllocateRequest request)
+        {
+        this.m_ioSession.write(TurnWireFormat.newErrorResponse(
+            request.getTransactionId(),
+            TurnWireFormat.ALLOCATE_ERROR_RESPONSE, 500, 
+            "Server Error", new byte[0]));
+        }
+
+    public StunMessage visitSendIndication(final SendIndication indication)
+        {
+        if (LOG.isDebugEnabled())
+            {
+            LOG.debug("Processing Send Indication with body length: "+
+                indication.getBodyLength());
+            }
+        this.m_turnClientManager.getMetrics().messageReceived(indication);
+        
+        // Data sent right after an Allocate that's still waiting for our
+        // address has to wait behind it.
+        final Runnable send = new Runnable()
+            {
+            public void run()
+                {
+                send(indication);
+                }
+            };
+        this.m_turnClientManager.whenReady(send, send);
+        return null;
+        }
+
+    private void send(final SendIndication indication)
+        {
+        final InetSocketAddress remoteAddress = indication.getRemoteAddress();
+        
+        final byte[] data = indication.getData();
+        
+        final TurnClient client = 
+            this.m_turnClientManager.getTurnClient(this.m_ioSession);
+        if (client == null)
+            {
+            LOG.debug("Send Indication without an allocation");
+            return;
+            }
+        
+        // This is a non-blocking write to the remote host.
+        client.write(remoteAddress, ByteBuffer.wrap(data));
+        LOG.trace("Finished handling Send Indication...");
+        }
+
+    public StunMessage visitConnectRequest(final ConnectRequest request)
+        {
+        LOG.debug("Processing connect request for: {}", 
+            request.getRemoteAddress());
+        this.m_turnClientManager.getMetrics().messageReceived(request);
+        
+        // Like data, this has to wait behind an Allocate still waiting for
+        // our address.  If we give up on that, there's no allocation to
+        // connect from, which we find out when we run this anyway.
+        final Runnable connect = new Runnable()
+            {
+            public void run()
+                {
+                connect(request);
+                }
+            };
+        this.m_turnClientManager.whenReady(connect, connect);
+        return null;
+        }
+
+    private void connect(final ConnectRequest request)
+        {
+        final InetSocketAddress remoteAddress = request.getRemoteAddress();
+        final TurnClient client = 
+            this.m_turnClientManager.getTurnClient(this.m_ioSession);
+        if (client == null)
+            {
+            LOG.debug("Connect Request without an allocation");
+            return;
+            }
+        client.handleConnect(remoteAddress);
+        }
+    }
@@ -0,0 +1,467 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.stun.stack.message.StunMessageType;
+import org.littleshoot.stun.stack.message.attributes.StunAttributeType;
+
+/**
+ * Constants and helpers for reading and writing the TURN messages that we
+ * relay on the hot path directly, without going through the STUN codec.
+ * Message and attribute types come from the STUN stack so we always agree
+ * with its encoder and decoder.
+ */
+public final class TurnWireFormat
+    {
+
+    /**
+     * The length of the STUN message header:  type, length and the 16 byte
+     * transaction ID.
+     */
+    public static final int HEADER_LENGTH = 20;
+
+    /**
+     * The length of the type and length fields of an attribute.
+     */
+    public static final int ATTRIBUTE_HEADER_LENGTH = 4;
+
+    /**
+     * The longest address attribute value we understand, an IPv6 address.
+     */
+    public static final int MAX_ADDRESS_LENGTH = 20;
+
+    /**
+     * The length of the ChannelData header:  the channel number and length.
+     */
+    public static final int CHANNEL_HEADER_LENGTH = 4;
+
+    /**
+     * The lowest channel number clients can bind.
+     */
+    public static final int MIN_CHANNEL = 0x4000;
+
+    /**
+     * The highest channel number clients can bind.
+     */
+    public static final int MAX_CHANNEL = 0x7FFF;
+
+    /**
+     * The Send Indication message type.
+     */
+    public static final int SEND_INDICATION =
+        StunMessageType.SEND_INDICATION.toInt();
+
+    /**
+     * The Data Indication message type.
+     */
+    public static final int DATA_INDICATION =
+        StunMessageType.DATA_INDICATION.toInt();
+
+    /**
+     * The REMOTE-ADDRESS attribute type.
+     */
+    public static final int REMOTE_ADDRESS =
+        StunAttributeType.REMOTE_ADDRESS.toInt();
+
+    /**
+     * The DATA attribute type.
+     */
+    public static final int DATA = StunAttributeType.DATA.toInt();
+
+    // The STUN stack predates channels, so these come straight from 
+    // RFC 5766.
+
+    /**
+     * The ChannelBind request message type.
+     */
+    public static final int CHANNEL_BIND_REQUEST = 0x0009;
+
+    /**
+     * The ChannelBind success response message type.
+     */
+    public static final int CHANNEL_BIND_SUCCESS_RESPONSE = 0x0109;
+
+    /**
+     * The ChannelBind error response message type.
+     */
+    public static final int CHANNEL_BIND_ERROR_RESPONSE = 0x0119;
+
+    // Set Active Destination is from the earlier TURN drafts this server 
+    // implements, but the STUN stack doesn't have it either.
+
+    /**
+     * The Set Active Destination request message type.
+     */
+    public static final int SET_ACTIVE_DESTINATION_REQUEST = 0x0006;
+
+    /**
+     * The Set Active Destination success response message type.
+     */
+    public static final int SET_ACTIVE_DESTINATION_SUCCESS_RESPONSE = 0x0106;
+
+    /**
+     * The Set Active Destination error response message type.
+     */
+    public static final int SET_ACTIVE_DESTINATION_ERROR_RESPONSE = 0x0116;
+
+    /**
+     * The Allocate error response message type.  The STUN stack has no
+     * Allocate error response class.
+     */
+    public static final int ALLOCATE_ERROR_RESPONSE = 0x0113;
+
+    /**
+     * The CHANNEL-NUMBER attribute type.
+     */
+    public static final int CHANNEL_NUMBER = 0x000C;
+
+    /**
+     * The XOR-PEER-ADDRESS attribute type.
+     */
+    public static final int XOR_PEER_ADDRESS = 0x0012;
+
+    /**
+     * The ERROR-CODE attribute type.
+     */
+    public static final int ERROR_CODE = 0x0009;
+
+    /**
+     * The ALTERNATE-SERVER attribute type, from RFC 5389.
+     */
+    public static final int ALTERNATE_SERVER = 0x8023;
+
+    static final int FAMILY_IPV4 = 0x01;
+
+    static final int FAMILY_IPV6 = 0x02;
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    /**
+     * Transaction IDs for the indications we frame ourselves.  Nobody
+     * matches indications to anything, so these just need to differ.
+     */
+    private static final AtomicLong TRANSACTION_COUNTER = new AtomicLong();
+
+    private TurnWireFormat()
+        {
+        // Only static methods.
+        }
+
+    /**
+     * Returns the number of bytes needed to pad an attribute value of the
+     * specified length to a four byte boundary.
+     *
+     * @param length The length of the attribute value.
+     * @return The number of padding bytes.
+     */
+    public static int padding(final int length)
+        {
+        return (4 - (length & 3)) & 3;
+        }
+
+    /**
+     * Returns whether an attribute value of the specified length is followed
+     * by padding.  Encoders that pad keep the message body a multiple of
+     * four bytes, while encoders that don't pad leave the naturally aligned
+     * attributes that follow the value at a multiple of four.  We use that
+     * to tell the two apart.
+     *
+     * @param length The length of the attribute value.
+     * @param messageRemaining The number of bytes left in the message after
+     * the attribute value.
+     * @return <code>true</code> if we should skip padding bytes.
+     */
+    public static boolean isPadded(final int length,
+        final int messageRemaining)
+        {
+        final int padding = padding(length);
+        return padding > 0 && messageRemaining >= padding &&
+            ((messageRemaining - padding) & 3) == 0;
+        }
+
+    /**
+     * Reads the address from an address attribute value.
+     *
+     * @param value The attribute value.
+     * @param length The length of the value.
+     * @return The address.
+     * @throws UnknownHostException If the address family or length isn't
+     * valid.
+     */
+    public static InetSocketAddress readAddress(final byte[] value,
+        final int length) throws UnknownHostException
+        {
+        final int family = value[1] & 0xff;
+        final int port = ((value[2] & 0xff) << 8) | (value[3] & 0xff);
+        final byte[] address;
+        if (family == FAMILY_IPV4 && length == 8)
+            {
+            address = new byte[4];
+            }
+        else if (family == FAMILY_IPV6 && length == 20)
+            {
+            address = new byte[16];
+            }
+        else
+            {
+            throw new UnknownHostException("Bad address family " + family +
+                " with length " + length);
+            }
+        System.arraycopy(value, 4, address, 0, address.length);
+        return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        }
+
+    /**
+     * Reads an XOR encoded address attribute value from a message.  The
+     * address is XORed with the magic cookie and transaction ID from the
+     * header, which must start at index 0 of the message.
+     *
+     * @param message The message.
+     * @param offset The index of the attribute value.
+     * @param length The length of the value.
+     * @return The address.
+     * @throws UnknownHostException If the address family or length isn't
+     * valid.
+     */
+    public static InetSocketAddress readXorAddress(final ByteBuffer message,
+        final int offset, final int length) throws UnknownHostException
+        {
+        final int family = message.get(offset + 1) & 0xff;
+        final int port = (message.getShort(offset + 2) & 0xffff) ^
+            (message.getShort(4) & 0xffff);
+        final byte[] address;
+        if (family == FAMILY_IPV4 && length == 8)
+            {
+            address = new byte[4];
+            }
+        else if (family == FAMILY_IPV6 && length == 20)
+            {
+            address = new byte[16];
+            }
+        else
+            {
+            throw new UnknownHostException("Bad address family " + family +
+                " with length " + length);
+            }
+        
+        // The magic cookie and transaction ID are at bytes 4 through 19.
+        for (int i = 0; i < address.length; i++)
+            {
+            address[i] = (byte) (message.get(offset + 4 + i) ^ 
+                message.get(4 + i));
+            }
+        return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        }
+
+    /**
+     * Creates a success response with no attributes to the specified
+     * request.
+     *
+     * @param request The request, with its header at index 0.
+     * @param type The response type.
+     * @return The encoded response.
+     */
+    public static ByteBuffer newResponse(final ByteBuffer request,
+        final int type)
+        {
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+        putResponseHeader(buf, request, type, 0);
+        buf.flip();
+        return buf;
+        }
+
+    /**
+     * Creates an error response to the specified request.
+     *
+     * @param request The request, with its header at index 0.
+     * @param type The response type.
+     * @param code The error code, such as 400.
+     * @param reason The ASCII reason phrase.
+     * @return The encoded response.
+     */
+    public static ByteBuffer newErrorResponse(final ByteBuffer request,
+        final int type, final int code, final String reason)
+        {
+        return newErrorResponse(request, type, code, reason, new byte[0]);
+        }
+
+    /**
+     * Creates an error response to the specified request with an extra
+     * attribute after the error code, such as ALTERNATE-SERVER.
+     *
+     * @param request The request, with its header at index 0.
+     * @param type The response type.
+     * @param code The error code, such as 300.
+     * @param reason The ASCII reason phrase.
+     * @param attribute The complete encoded attribute, padded to 4 bytes.
+     * @return The encoded response.
+     */
+    public static ByteBuffer newErrorResponse(final ByteBuffer request,
+        final int type, final int code, final String reason,
+        final byte[] attribute)
+        {
+        final int bodyLength = errorBodyLength(reason, attribute);
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        putResponseHeader(buf, request, type, bodyLength);
+        putErrorCode(buf, code, reason);
+        buf.put(attribute);
+        buf.flip();
+        return buf;
+        }
+
+    /**
+     * Creates an error response to a request the STUN codec has already
+     * decoded, with an extra attribute after the error code, such as
+     * ALTERNATE-SERVER.
+     *
+     * @param transactionId The request's transaction ID.
+     * @param type The response type.
+     * @param code The error code, such as 300.
+     * @param reason The ASCII reason phrase.
+     * @param attribute The complete encoded attribute, padded to 4 bytes.
+     * @return The encoded response.
+     */
+    public static ByteBuffer newErrorResponse(final UUID transactionId,
+        final int type, final int code, final String reason,
+        final byte[] attribute)
+        {
+        final int bodyLength = errorBodyLength(reason, attribute);
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        buf.putShort((short) type);
+        buf.putShort((short) bodyLength);
+        buf.putLong(transactionId.getMostSignificantBits());
+        buf.putLong(transactionId.getLeastSignificantBits());
+        putErrorCode(buf, code, reason);
+        buf.put(attribute);
+        buf.flip();
+        return buf;
+        }
+
+    private static int errorBodyLength(final String reason,
+        final byte[] attribute)
+        {
+        final int valueLength = 4 + reason.length();
+        return ATTRIBUTE_HEADER_LENGTH + valueLength + padding(valueLength) +
+            attribute.length;
+        }
+
+    private static void putErrorCode(final ByteBuffer buf, final int code,
+        final String reason)
+        {
+        final int valueLength = 4 + reason.length();
+        putAttributeHeader(buf, ERROR_CODE, valueLength);
+        buf.putShort((short) 0);
+        buf.put((byte) (code / 100));
+        buf.put((byte) (code % 100));
+        for (int i = 0; i < reason.length(); i++)
+            {
+            buf.put((byte) reason.charAt(i));
+            }
+        for (int i = 0; i < padding(valueLength); i++)
+            {
+            buf.put((byte) 0);
+            }
+        }
+
+    private static void putResponseHeader(final ByteBuffer buf,
+        final ByteBuffer request, final int type, final int bodyLength)
+        {
+        buf.putShort((short) type);
+        buf.putShort((short) bodyLength);
+
+        // Responses echo the request's magic cookie and transaction ID.
+        for (int i = 4; i < HEADER_LENGTH; i++)
+            {
+            buf.put(request.get(i));
+            }
+        }
+
+    /**
+     * Writes a ChannelData header.
+     *
+     * @param buf The buffer to write to.
+     * @param channelNumber The channel number.
+     * @param length The length of the data.
+     */
+    public static void putChannelHeader(final ByteBuffer buf,
+        final int channelNumber, final int length)
+        {
+        buf.putShort((short) channelNumber);
+        buf.putShort((short) length);
+        }
+
+    /**
+     * Returns whether the first two bytes of a message mark it as
+     * ChannelData rather than a STUN message.
+     *
+     * @param firstShort The first two bytes of the message.
+     * @return <code>true</code> if the message is ChannelData.
+     */
+    public static boolean isChannelData(final int firstShort)
+        {
+        return (firstShort & 0xC000) == 0x4000;
+        }
+
+    /**
+     * Encodes a complete address attribute, including the type and length.
+     * Callers typically cache the result for the life of a connection.
+     *
+     * @param type The attribute type.
+     * @param socketAddress The address to encode.
+     * @return The encoded attribute.
+     */
+    public static byte[] encodeAddressAttribute(final int type,
+        final InetSocketAddress socketAddress)
+        {
+        final byte[] address = socketAddress.getAddress().getAddress();
+        final int length = 4 + address.length;
+        final byte[] attribute = new byte[ATTRIBUTE_HEADER_LENGTH + length];
+        attribute[0] = (byte) (type >>> 8);
+        attribute[1] = (byte) type;
+        attribute[2] = (byte) (length >>> 8);
+        attribute[3] = (byte) length;
+        attribute[5] = 
+            (byte) (address.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6);
+        final int port = socketAddress.getPort();
+        attribute[6] = (byte) (port >>> 8);
+        attribute[7] = (byte) port;
+        System.arraycopy(address, 0, attribute, 8, address.length);
+        return attribute;
+        }
+
+    /**
+     * Writes a message header with a fresh transaction ID.
+     *
+     * @param buf The buffer to write to.
+     * @param type The message type.
+     * @param bodyLength The length of the message body.
+     */
+    public static void putHeader(final ByteBuffer buf, final int type,
+        final int bodyLength)
+        {
+        buf.putShort((short) type);
+        buf.putShort((short) bodyLength);
+        buf.putInt(MAGIC_COOKIE);
+        buf.putInt(0);
+        buf.putLong(TRANSACTION_COUNTER.incrementAndGet());
+        }
+
+    /**
+     * Writes the type and length of an attribute.
+     *
+     * @param buf The buffer to write to.
+     * @param type The attribute type.
+     * @param length The length of the attribute value.
+     */
+    public static void putAttributeHeader(final ByteBuffer buf,
+        final int type, final int length)
+        {
+        buf.putShort((short) type);
+        buf.putShort((short) length);
+        }
+    }
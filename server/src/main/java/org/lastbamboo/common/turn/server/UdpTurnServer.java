@@ -0,0 +1,135 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.lastbamboo.common.turn.server.buffer.ByteBufferAllocators;
+import org.lastbamboo.common.turn.server.metrics.AcceptMeter;
+import org.littleshoot.mina.common.DefaultIoFilterChainBuilder;
+import org.littleshoot.mina.common.ExpiringSessionRecycler;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.filter.executor.ExecutorFilter;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptor;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptorConfig;
+import org.littleshoot.stun.stack.StunConstants;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server for processing TURN UDP messages.  Clients that allocate over UDP
+ * get a UDP relay, which avoids the head-of-line blocking of relaying TCP
+ * over TCP.  This shares the {@link TurnClientManager} with the TCP server.
+ */
+public class UdpTurnServer implements TurnServer, IoServiceListener
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(UdpTurnServer.class);
+
+    private final TurnClientManager m_turnClientManager;
+
+    private final TurnServerConfig m_config;
+
+    private final ExecutorService m_threadPool = Executors.newCachedThreadPool(
+        new DaemonThreadFactory("UDP-TURN-Server-Thread-Pool"));
+
+    private final DatagramAcceptor m_acceptor;
+
+    private final IoHandler m_handler;
+
+    private final AcceptMeter m_accepts;
+
+    /**
+     * Creates a new UDP TURN server.
+     *
+     * @param turnClientManager The class that manages TURN clients.
+     * @param config The server configuration.
+     */
+    public UdpTurnServer(final TurnClientManager turnClientManager,
+        final TurnServerConfig config)
+        {
+        ByteBufferAllocators.install(config);
+        this.m_turnClientManager = turnClientManager;
+        this.m_config = config;
+        this.m_accepts =
+            turnClientManager.getMetrics().getAcceptMeter("udp");
+        this.m_acceptor = new DatagramAcceptor(this.m_threadPool);
+        this.m_acceptor.addListener(this);
+
+        final DatagramAcceptorConfig acceptorConfig =
+            this.m_acceptor.getDefaultConfig();
+        acceptorConfig.setThreadModel(ThreadModel.MANUAL);
+
+        // A UDP TURN client that goes a whole allocation lifetime without
+        // sending us anything has stopped refreshing its allocation.
+        acceptorConfig.setSessionRecycler(
+            new ExpiringSessionRecycler(config.getAllocationLifetime()));
+        final DefaultIoFilterChainBuilder filterChainBuilder =
+            acceptorConfig.getFilterChain();
+        filterChainBuilder.addLast("codec",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+        filterChainBuilder.addLast("threadPool",
+            new ExecutorFilter(this.m_threadPool));
+
+        this.m_handler = new TurnServerIoHandler(
+            new TurnServerMessageVisitorFactory(this.m_turnClientManager));
+        }
+
+    public void start() throws IOException
+        {
+        this.m_acceptor.bind(new InetSocketAddress(StunConstants.STUN_PORT),
+            this.m_handler);
+        }
+
+    public void stop()
+        {
+        m_log.debug("Stopping server...");
+        this.m_acceptor.unbindAll();
+        this.m_threadPool.shutdown();
+        }
+
+    public void serviceActivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config)
+        {
+        m_log.debug("Started server on: {}", serviceAddress);
+        }
+
+    public void serviceDeactivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config)
+        {
+        m_log.warn("TURN Server deactivated on: {}", serviceAddress);
+        }
+
+    public void sessionCreated(final IoSession session)
+        {
+        // Each new client address is a new session.
+        this.m_accepts.accepted();
+        if (TurnFastPathFilter.isNeeded(this.m_config))
+            {
+            // This goes before the decoder so it sees each raw datagram.
+            session.getFilterChain().addFirst("turn-fast-path",
+                new TurnFastPathFilter(this.m_turnClientManager,
+                    this.m_config));
+            }
+        }
+
+    public void sessionDestroyed(final IoSession session)
+        {
+        // The session expired, so the client is gone.  Tell the client
+        // manager so it closes the relay.
+        m_log.debug("TURN client expired: {}", session);
+        this.m_turnClientManager.removeBinding(session);
+        }
+    }
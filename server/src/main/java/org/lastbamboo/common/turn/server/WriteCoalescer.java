@@ -0,0 +1,232 @@
+package org.lastbamboo.common.turn.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Batches the small messages we relay to a TURN client into fewer, larger
+ * writes.  Without this, many remote hosts sending small packets to one
+ * client cost a write, and a system call, per packet.<p>
+ *
+ * Batching only kicks in while a write to the client is already in flight,
+ * so a client that's keeping up sees no added latency.  Anything relayed
+ * in the meantime is copied into a single buffer, which we write as soon
+ * as the write in flight finishes, the buffer fills up, or the oldest data
+ * in it has waited the maximum delay, whichever comes first.<p>
+ *
+ * Like {@link FlowController}, the state for each client lives in an
+ * attribute on the client's session, so the handlers only need the
+ * session.  We only coalesce on TCP, where the client reads a stream of
+ * messages -- over UDP each message needs its own datagram.
+ */
+public final class WriteCoalescer
+    {
+
+    private static final String COALESCER =
+        WriteCoalescer.class.getName() + ".coalescer";
+
+    private final IoSession m_session;
+
+    private final int m_maxBytes;
+
+    private final long m_maxDelayNanos;
+
+    /**
+     * The data waiting for the write in flight to finish, or
+     * <code>null</code> if there's nothing waiting.
+     */
+    private ByteBuffer m_pending;
+
+    private long m_pendingSince;
+
+    /**
+     * The last buffer we wrote, or <code>null</code> once it's been sent.
+     */
+    private Object m_lastWrite;
+
+    private boolean m_closed;
+
+    private WriteCoalescer(final IoSession session, final int maxBytes,
+        final long maxDelayMicros)
+        {
+        this.m_session = session;
+        this.m_maxBytes = maxBytes;
+        this.m_maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        }
+
+    /**
+     * Starts coalescing writes to the specified TURN client session.
+     *
+     * @param session The TURN client session.
+     * @param maxBytes The most data we batch into a single write.
+     * @param maxDelayMicros The longest we hold data back while writes are
+     * in flight, in microseconds.
+     */
+    public static void install(final IoSession session, final int maxBytes,
+        final long maxDelayMicros)
+        {
+        session.setAttribute(COALESCER,
+            new WriteCoalescer(session, maxBytes, maxDelayMicros));
+        }
+
+    /**
+     * Writes data to a TURN client session, batching it with other writes
+     * if we're coalescing writes to that session.  The caller keeps its
+     * reference to the buffer -- messages we're handed from MINA are
+     * released as soon as the handler returns, so anything we queue takes
+     * its own reference.
+     *
+     * @param session The TURN client session.
+     * @param data The data to write.
+     */
+    public static void write(final IoSession session, final ByteBuffer data)
+        {
+        final WriteCoalescer coalescer =
+            (WriteCoalescer) session.getAttribute(COALESCER);
+        if (coalescer == null)
+            {
+            data.acquire();
+            session.write(data);
+            }
+        else
+            {
+            coalescer.write(data);
+            }
+        }
+
+    /**
+     * Writes anything waiting for the specified session right away.  We
+     * call this before writes that don't go through the coalescer but need
+     * to stay in order with the data that does.
+     *
+     * @param session The TURN client session.
+     */
+    public static void flush(final IoSession session)
+        {
+        final WriteCoalescer coalescer =
+            (WriteCoalescer) session.getAttribute(COALESCER);
+        if (coalescer != null)
+            {
+            coalescer.flush();
+            }
+        }
+
+    /**
+     * Tells the coalescer a write to the specified session finished, so it
+     * can write anything that's waiting.
+     *
+     * @param session The TURN client session.
+     * @param message The message that was sent.
+     */
+    public static void messageSent(final IoSession session,
+        final Object message)
+        {
+        final WriteCoalescer coalescer =
+            (WriteCoalescer) session.getAttribute(COALESCER);
+        if (coalescer != null)
+            {
+            coalescer.messageSent(message);
+            }
+        }
+
+    /**
+     * Tells the coalescer the specified session closed, so it can release
+     * anything that's waiting.
+     *
+     * @param session The TURN client session.
+     */
+    public static void sessionClosed(final IoSession session)
+        {
+        final WriteCoalescer coalescer =
+            (WriteCoalescer) session.getAttribute(COALESCER);
+        if (coalescer != null)
+            {
+            coalescer.close();
+            }
+        }
+
+    private synchronized void write(final ByteBuffer data)
+        {
+        if (this.m_closed)
+            {
+            return;
+            }
+        if (this.m_lastWrite == null && this.m_pending == null)
+            {
+            // Nothing in flight, so there's nothing to wait for.
+            data.acquire();
+            writeNow(data);
+            return;
+            }
+        final int bytes = data.remaining();
+        if (this.m_pending != null && this.m_pending.remaining() < bytes)
+            {
+            flushPending();
+            }
+        if (bytes >= this.m_maxBytes)
+            {
+            data.acquire();
+            writeNow(data);
+            return;
+            }
+        if (this.m_pending == null)
+            {
+            this.m_pending = ByteBuffer.allocate(this.m_maxBytes);
+            this.m_pendingSince = System.nanoTime();
+            }
+        this.m_pending.put(data);
+        if (!this.m_pending.hasRemaining() ||
+            System.nanoTime() - this.m_pendingSince >= this.m_maxDelayNanos)
+            {
+            flushPending();
+            }
+        }
+
+    private synchronized void flush()
+        {
+        if (this.m_pending != null)
+            {
+            flushPending();
+            }
+        }
+
+    private synchronized void messageSent(final Object message)
+        {
+        // Writes complete in order, so once the last one's gone they all
+        // have.
+        if (message == this.m_lastWrite)
+            {
+            this.m_lastWrite = null;
+            if (this.m_pending != null)
+                {
+                flushPending();
+                }
+            }
+        }
+
+    private synchronized void close()
+        {
+        this.m_closed = true;
+        if (this.m_pending != null)
+            {
+            this.m_pending.release();
+            this.m_pending = null;
+            }
+        }
+
+    private void flushPending()
+        {
+        final ByteBuffer pending = this.m_pending;
+        this.m_pending = null;
+        pending.flip();
+        writeNow(pending);
+        }
+
+    private void writeNow(final ByteBuffer data)
+        {
+        this.m_lastWrite = data;
+        this.m_session.write(data);
+        }
+    }
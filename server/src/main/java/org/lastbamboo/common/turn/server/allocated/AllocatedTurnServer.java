@@ -0,0 +1,44 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Interface for a TURN server created in response to a TURN Allocate Request
+ * from a client.
+ */
+public interface AllocatedTurnServer
+    {
+
+    /**
+     * Starts the server.
+     * 
+     * @throws IOException If we could not bind the relay address.
+     */
+    void start() throws IOException;
+
+    /**
+     * Stops the server.
+     */
+    void stop();
+    
+    /**
+     * Accessor for the address the server is listening on.
+     * 
+     * @return The address the server is listening on.
+     */
+    InetSocketAddress getSocketAddress();
+
+    /**
+     * Opens a session from the allocated address to a remote host that 
+     * hasn't contacted us.  This is only possible for transports that don't
+     * require the remote host to connect to us.
+     * 
+     * @param remoteAddress The address of the remote host.
+     * @return The new session, or <code>null</code> if remote hosts must 
+     * connect to us.
+     */
+    IoSession connect(InetSocketAddress remoteAddress);
+    }
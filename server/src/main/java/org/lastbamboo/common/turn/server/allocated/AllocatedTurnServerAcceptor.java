@@ -0,0 +1,327 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import org.littleshoot.mina.common.DefaultIoFilterChainBuilder;
+import org.littleshoot.mina.common.ExpiringSessionRecycler;
+import org.littleshoot.mina.common.IoAcceptor;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.mina.filter.executor.ExecutorFilter;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptor;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptorConfig;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Acceptor shared by all allocated TURN servers of one transport.  Rather 
+ * than creating a new {@link SocketAcceptor} with its own selector 
+ * processors and thread pool for every Allocate Request, each allocation 
+ * simply binds a new port on this acceptor.  A single set of processors 
+ * sized to the number of cores multiplexes all allocated relay ports.<p>
+ * 
+ * For UDP, all relay ports share a single {@link DatagramAcceptor}, which 
+ * demultiplexes datagrams into one session per remote 5-tuple rather than
+ * us needing a socket per remote host.<p>
+ * 
+ * Relay ports come from a {@link RelayPortAllocator} when there's a 
+ * configured range, and are otherwise ephemeral ports from the kernel.
+ * Handlers run on the executor from {@link RelayExecution}, or on the I/O
+ * processor threads.
+ */
+public class AllocatedTurnServerAcceptor implements IoServiceListener
+    {
+
+    private final Logger m_log =
+        LoggerFactory.getLogger(AllocatedTurnServerAcceptor.class);
+
+    /**
+     * How many ports from the range we try before giving up, in case
+     * something outside our control holds some of them.
+     */
+    private static final int MAX_BIND_ATTEMPTS = 16;
+
+    private final Executor m_threadPool;
+
+    private final RelayPortAllocator m_ports;
+
+    /**
+     * Runs the relay handlers, or <code>null</code> to run them on the I/O
+     * processor threads.
+     */
+    private final Executor m_handlers;
+
+    private IoAcceptor m_acceptor;
+
+    private TransportType m_transportType;
+
+    /**
+     * The addresses MINA actually bound to, keyed by the handler for each
+     * binding.  We need these because we bind to ephemeral ports, and
+     * the acceptor only tells us the real port through the service listener.
+     */
+    private final Map<IoHandler, InetSocketAddress> m_boundAddresses =
+        new ConcurrentHashMap<IoHandler, InetSocketAddress>();
+
+    /**
+     * Creates a new shared TCP acceptor with one selector processor per core
+     * that binds ephemeral ports and runs handlers on a cached thread pool.
+     */
+    public AllocatedTurnServerAcceptor()
+        {
+        this(Runtime.getRuntime().availableProcessors() + 1, null,
+            RelayExecution.newExecutor(RelayExecution.CACHED, 0, "TCP"));
+        }
+
+    /**
+     * Creates a new shared TCP acceptor.
+     *
+     * @param processorCount The number of selector processors to use for
+     * all allocated relay ports.
+     * @param ports The relay port range, or <code>null</code> to bind
+     * ephemeral ports.
+     * @param handlers The executor for the relay handlers, or 
+     * <code>null</code> to run them on the I/O processor threads.
+     */
+    public AllocatedTurnServerAcceptor(final int processorCount,
+        final RelayPortAllocator ports, final Executor handlers)
+        {
+        this(newThreadPool("TCP"), ports, handlers);
+        final SocketAcceptor acceptor =
+            new SocketAcceptor(processorCount, m_threadPool);
+        final SocketAcceptorConfig config = acceptor.getDefaultConfig();
+        config.setReuseAddress(true);
+        init(acceptor, config, TransportType.SOCKET);
+        }
+
+    /**
+     * Creates a new shared UDP acceptor that binds ephemeral ports and runs
+     * handlers on a cached thread pool.
+     *
+     * @param peerIdleTime How long a remote host can go without sending us
+     * anything before we consider it gone, in seconds.
+     * @return The new acceptor.
+     */
+    public static AllocatedTurnServerAcceptor newDatagramAcceptor(
+        final int peerIdleTime)
+        {
+        return newDatagramAcceptor(null,
+            RelayExecution.newExecutor(RelayExecution.CACHED, 0, "UDP"),
+            peerIdleTime);
+        }
+
+    /**
+     * Creates a new shared UDP acceptor.
+     *
+     * @param ports The relay port range, or <code>null</code> to bind
+     * ephemeral ports.
+     * @param handlers The executor for the relay handlers, or 
+     * <code>null</code> to run them on the I/O processor threads.
+     * @param peerIdleTime How long a remote host can go without sending us
+     * anything before we consider it gone, in seconds.
+     * @return The new acceptor.
+     */
+    public static AllocatedTurnServerAcceptor newDatagramAcceptor(
+        final RelayPortAllocator ports, final Executor handlers,
+        final int peerIdleTime)
+        {
+        final AllocatedTurnServerAcceptor shared =
+            new AllocatedTurnServerAcceptor(newThreadPool("UDP"), ports,
+                handlers);
+        final DatagramAcceptor acceptor =
+            new DatagramAcceptor(shared.m_threadPool);
+        final DatagramAcceptorConfig config = acceptor.getDefaultConfig();
+        config.setSessionRecycler(
+            new ExpiringSessionRecycler(peerIdleTime));
+        shared.init(acceptor, config, TransportType.DATAGRAM);
+        return shared;
+        }
+
+    private AllocatedTurnServerAcceptor(final Executor threadPool,
+        final RelayPortAllocator ports, final Executor handlers)
+        {
+        this.m_threadPool = threadPool;
+        this.m_ports = ports;
+        this.m_handlers = handlers;
+        }
+
+    private static Executor newThreadPool(final String transport)
+        {
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(
+            transport + "-Allocated-TURN-Server-Thread-Pool"));
+        }
+
+    private void init(final IoAcceptor acceptor, final IoServiceConfig config,
+        final TransportType transportType)
+        {
+        this.m_acceptor = acceptor;
+        this.m_transportType = transportType;
+        this.m_acceptor.addListener(this);
+        config.setThreadModel(ThreadModel.MANUAL);
+
+        // Note there's no encoder here because we just write raw bytes to
+        // remote hosts.  The TURN server is responsible for unwrapping the
+        // raw bytes from the TURN Send Indication messages.
+
+        // We're receiving raw data on these sockets and packaging it for
+        // our TURN client.  This filter just reads the raw data and
+        // encapsulates it in TURN Data Indication messages.  Both filters
+        // are stateless, so they're shared across all allocations.
+        final DefaultIoFilterChainBuilder filterChainBuilder =
+            config.getFilterChain();
+        filterChainBuilder.addLast("to-stun", new TurnRawDataFilter());
+        if (this.m_handlers != null)
+            {
+            // This keeps events for each session in order.
+            filterChainBuilder.addLast("threadPool",
+                new ExecutorFilter(this.m_handlers));
+            }
+        }
+
+    /**
+     * Accessor for the transport relay ports on this acceptor use.
+     *
+     * @return The transport type.
+     */
+    public TransportType getTransportType()
+        {
+        return this.m_transportType;
+        }
+
+    /**
+     * Binds a new relay port, handing all sessions accepted on it to the
+     * specified handler.
+     *
+     * @param bindAddress The address to bind to.  With a relay port range,
+     * the port is ignored and we take one from the range.
+     * @param handler The handler for sessions accepted on the new port.
+     * Each binding must use its own handler instance.
+     * @return The address we actually bound to, including the port.
+     * @throws IOException If we could not bind to the address, including
+     * when the relay port range has run out.
+     */
+    public InetSocketAddress bind(final InetSocketAddress bindAddress,
+        final IoHandler handler) throws IOException
+        {
+        if (this.m_ports == null)
+            {
+            return bindPort(bindAddress, handler);
+            }
+        for (int i = 0; i < MAX_BIND_ATTEMPTS; i++)
+            {
+            final int port = this.m_ports.allocate();
+            if (port == -1)
+                {
+                throw new IOException("No free relay ports");
+                }
+            try
+                {
+                return bindPort(new InetSocketAddress(
+                    bindAddress.getAddress(), port), handler);
+                }
+            catch (final IOException e)
+                {
+                // Something outside the TURN server holds the port.  It 
+                // goes to the back of the line, so we try others first.
+                m_log.debug("Could not bind relay port " + port, e);
+                this.m_ports.release(port);
+                }
+            }
+        throw new IOException("Could not bind any relay port after " +
+            MAX_BIND_ATTEMPTS + " attempts");
+        }
+
+    private InetSocketAddress bindPort(final InetSocketAddress bindAddress,
+        final IoHandler handler) throws IOException
+        {
+        this.m_acceptor.bind(bindAddress, handler);
+
+        // The acceptor notifies listeners before bind returns.
+        final InetSocketAddress boundAddress =
+            this.m_boundAddresses.remove(handler);
+        if (boundAddress == null)
+            {
+            m_log.warn("No activation event for: {}", bindAddress);
+            return bindAddress;
+            }
+        return boundAddress;
+        }
+
+    /**
+     * Creates a session from a bound relay port to a remote host that 
+     * hasn't contacted us yet.  This is only possible for UDP.
+     * 
+     * @param remoteAddress The address of the remote host.
+     * @param boundAddress The address returned from 
+     * {@link #bind(InetSocketAddress, IoHandler)}.
+     * @return The new session.
+     * @throws UnsupportedOperationException If this is a TCP acceptor.
+     */
+    public IoSession newSession(final InetSocketAddress remoteAddress,
+        final InetSocketAddress boundAddress)
+        {
+        return this.m_acceptor.newSession(remoteAddress, boundAddress);
+        }
+
+    /**
+     * Unbinds the specified relay port, closing all sessions accepted on it.
+     *
+     * @param boundAddress The address returned from
+     * {@link #bind(InetSocketAddress, IoHandler)}.
+     */
+    public void unbind(final SocketAddress boundAddress)
+        {
+        this.m_acceptor.unbind(boundAddress);
+        if (this.m_ports != null)
+            {
+            this.m_ports.release(
+                ((InetSocketAddress) boundAddress).getPort());
+            }
+        }
+
+    /**
+     * Unbinds all relay ports.
+     */
+    public void unbindAll()
+        {
+        this.m_acceptor.unbindAll();
+        }
+
+    public void serviceActivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config)
+        {
+        m_log.debug("Allocated server started on: {}", serviceAddress);
+        this.m_boundAddresses.put(handler, (InetSocketAddress) serviceAddress);
+        }
+
+    public void serviceDeactivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config)
+        {
+        m_log.debug("Deactivating allocated TURN server on: {}",
+            serviceAddress);
+        }
+
+    public void sessionCreated(final IoSession session)
+        {
+        }
+
+    public void sessionDestroyed(final IoSession session)
+        {
+        }
+    }
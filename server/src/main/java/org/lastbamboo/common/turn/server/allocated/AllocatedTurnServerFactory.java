@@ -0,0 +1,24 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.net.InetAddress;
+
+import org.lastbamboo.common.turn.server.TurnClient;
+
+/**
+ * Interface for classes that create the servers allocated on behalf of TURN
+ * clients.
+ */
+public interface AllocatedTurnServerFactory
+    {
+
+    /**
+     * Creates a new allocated server for the specified TURN client.  The
+     * server is not started.
+     *
+     * @param turnClient The TURN client.
+     * @param publicAddress The public address of the TURN server.
+     * @return The new allocated server.
+     */
+    AllocatedTurnServer createServer(TurnClient turnClient,
+        InetAddress publicAddress);
+    }
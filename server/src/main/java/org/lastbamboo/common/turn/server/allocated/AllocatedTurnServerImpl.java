@@ -0,0 +1,125 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.TransportType;
+import org.lastbamboo.common.turn.server.FlowController;
+import org.lastbamboo.common.turn.server.RateLimiter;
+import org.lastbamboo.common.turn.server.TurnClient;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.lastbamboo.common.turn.server.timer.SessionReaper;
+import org.littleshoot.util.NetworkUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of an allocated TURN server.  This doesn't create any
+ * I/O resources of its own -- it just binds a new port on the
+ * {@link AllocatedTurnServerAcceptor} shared by all allocations of the
+ * same transport.  Over UDP, each remote host gets its own session on that
+ * port, keyed by its address, so we never open a socket per remote host.
+ */
+public class AllocatedTurnServerImpl implements AllocatedTurnServer
+    {
+
+    private final Logger LOG =
+        LoggerFactory.getLogger(AllocatedTurnServerImpl.class);
+
+    private final TurnClient m_turnClient;
+
+    private final AllocatedTurnServerAcceptor m_acceptor;
+
+    private final InetAddress m_publicAddress;
+
+    private final SessionReaper m_reaper;
+
+    private final FlowController m_flowController;
+
+    private final RateLimiter m_rateLimiter;
+
+    private final TurnMetrics m_metrics;
+
+    private InetSocketAddress m_boundAddress;
+
+    private InetSocketAddress m_serviceAddress;
+
+    /**
+     * Creates a new TURN server allocated on behalf of a TURN client.  This
+     * server will accept connections with permission to connect to the TURN
+     * client and will relay data on the TURN client's behalf.
+     *
+     * @param turnClient The TURN client.
+     * @param publicAddress The address to bind to.
+     * @param acceptor The acceptor shared by all allocated servers of the
+     * transport the relay uses.
+     * @param reaper The class for closing idle remote host connections.
+     * @param flowController The class that stops reading from remote hosts
+     * when the TURN client falls behind.
+     * @param rateLimiter The bandwidth limits for relayed data.
+     * @param metrics The server-wide traffic metrics.
+     */
+    public AllocatedTurnServerImpl(final TurnClient turnClient,
+        final InetAddress publicAddress,
+        final AllocatedTurnServerAcceptor acceptor,
+        final SessionReaper reaper, final FlowController flowController,
+        final RateLimiter rateLimiter, final TurnMetrics metrics)
+        {
+        m_turnClient = turnClient;
+        this.m_publicAddress = publicAddress;
+        this.m_acceptor = acceptor;
+        this.m_reaper = reaper;
+        this.m_flowController = flowController;
+        this.m_rateLimiter = rateLimiter;
+        this.m_metrics = metrics;
+        }
+
+    public void start() throws IOException
+        {
+        // The IO handler just processes the Data Indication messages.  Each
+        // binding gets its own handler so we know which TURN client to
+        // forward data to.
+        final IoHandler handler =
+            new AllocatedTurnServerIoHandler(this.m_turnClient,
+                this.m_reaper, this.m_flowController, this.m_rateLimiter,
+                this.m_metrics);
+
+        final InetSocketAddress bindAddress =
+            new InetSocketAddress(NetworkUtils.getLocalHost(), 0);
+        this.m_boundAddress = m_acceptor.bind(bindAddress, handler);
+        this.m_serviceAddress = new InetSocketAddress(
+            this.m_publicAddress, this.m_boundAddress.getPort());
+        LOG.debug("Started " + this.m_acceptor.getTransportType() +
+            " allocated TURN server, bound to: {}", this.m_boundAddress);
+        LOG.debug("Using public address: {}", this.m_serviceAddress);
+        }
+
+    public void stop()
+        {
+        if (this.m_boundAddress != null)
+            {
+            this.m_acceptor.unbind(this.m_boundAddress);
+            }
+        }
+
+    public InetSocketAddress getSocketAddress()
+        {
+        return this.m_serviceAddress;
+        }
+
+    public IoSession connect(final InetSocketAddress remoteAddress)
+        {
+        // Remote hosts have to connect to us over TCP.
+        if (this.m_acceptor.getTransportType() != TransportType.DATAGRAM ||
+            this.m_boundAddress == null)
+            {
+            return null;
+            }
+        // This fires sessionCreated on our handler, which adds the
+        // connection to the TURN client.
+        return this.m_acceptor.newSession(remoteAddress, this.m_boundAddress);
+        }
+    }
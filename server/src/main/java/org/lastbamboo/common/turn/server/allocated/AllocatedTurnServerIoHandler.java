@@ -0,0 +1,135 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoHandlerAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.util.SessionUtil;
+import org.lastbamboo.common.turn.server.FlowController;
+import org.lastbamboo.common.turn.server.RateLimiter;
+import org.lastbamboo.common.turn.server.TurnClient;
+import org.lastbamboo.common.turn.server.WriteCoalescer;
+import org.lastbamboo.common.turn.server.metrics.PacketTrace;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.lastbamboo.common.turn.server.timer.SessionReaper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link IoHandler} for processing TURN Data Indication messages that have
+ * been created to wrap raw data received from remote hosts.  The Data 
+ * Indications arrive already encoded from {@link TurnRawDataFilter}.
+ */
+public class AllocatedTurnServerIoHandler extends IoHandlerAdapter
+    {
+
+    private final Logger m_log = 
+        LoggerFactory.getLogger(AllocatedTurnServerIoHandler.class);
+    
+    private final TurnClient m_turnClient;
+
+    private final SessionReaper m_reaper;
+
+    private final FlowController m_flowController;
+
+    private final RateLimiter m_rateLimiter;
+
+    private final TurnMetrics m_metrics;
+
+    /**
+     * Creates a new IO handler for the specified TURN client.
+     * 
+     * @param client The client IO handler.
+     * @param reaper The class for closing idle connections.
+     * @param flowController The class that stops reading from remote hosts
+     * when the TURN client falls behind.
+     * @param rateLimiter The bandwidth limits for relayed data.
+     * @param metrics The server-wide traffic metrics.
+     */
+    public AllocatedTurnServerIoHandler(final TurnClient client,
+        final SessionReaper reaper, final FlowController flowController,
+        final RateLimiter rateLimiter, final TurnMetrics metrics)
+        {
+        m_turnClient = client;
+        m_reaper = reaper;
+        m_flowController = flowController;
+        m_rateLimiter = rateLimiter;
+        m_metrics = metrics;
+        }
+
+    @Override
+    public void messageReceived(final IoSession session, final Object message)
+        {
+        final boolean activeDestination = session.getAttribute(
+            TurnRawDataFilter.ACTIVE_DESTINATION_ATTRIBUTE) != null;
+        if (this.m_turnClient.hasActiveDestination() && !activeDestination)
+            {
+            // The TURN client's connection is spliced to another host, so
+            // there's no way to tell it about this data.  MINA releases the
+            // buffer once we return.
+            return;
+            }
+        final IoSession clientSession = this.m_turnClient.getIoSession();
+        final ByteBuffer data = (ByteBuffer) message;
+        final int bytes = data.remaining();
+        if (!this.m_rateLimiter.toClient(session, clientSession, bytes))
+            {
+            // MINA releases the buffer once we return.
+            return;
+            }
+        if (activeDestination)
+            {
+            // This is the raw read buffer, so we write it as is, after
+            // anything relayed before the splice.  MINA releases it when we
+            // return, so the write needs its own reference.
+            WriteCoalescer.flush(clientSession);
+            data.acquire();
+            clientSession.write(data);
+            }
+        else
+            {
+            WriteCoalescer.write(clientSession, data);
+            }
+        this.m_metrics.relayedToClient(clientSession, bytes);
+        this.m_flowController.writeScheduled(session, clientSession);
+        final PacketTrace trace = this.m_turnClient.getPacketTrace();
+        if (trace != null)
+            {
+            trace.packet("from", session.getRemoteAddress(), bytes);
+            }
+        }
+    
+    @Override
+    public void messageSent(final IoSession session, final Object message)
+        {
+        this.m_metrics.sentToPeer(session, message);
+        FlowController.messageSent(session);
+        }
+    
+    @Override
+    public void exceptionCaught(final IoSession session, final Throwable cause)
+        {
+        m_log.warn("Exception on allocated TURN IoHandler", cause);
+        session.close();
+        }
+
+    @Override
+    public void sessionCreated(final IoSession session) throws Exception
+        {
+        SessionUtil.initialize(session);
+        this.m_turnClient.addConnection(session);
+        
+        // If there's been no traffic in either direction for awhile, we 
+        // free the connection to limit load on the server.
+        this.m_reaper.watch(session);
+        }
+
+    @Override
+    public void sessionClosed(final IoSession session)
+        {
+        m_log.debug("Lost connection to: {}", session);
+        FlowController.sessionClosed(session);
+        this.m_turnClient.removeConnection(session);
+        }
+    }
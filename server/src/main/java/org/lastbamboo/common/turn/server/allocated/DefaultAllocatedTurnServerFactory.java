@@ -0,0 +1,111 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.TransportType;
+import org.lastbamboo.common.turn.server.FlowController;
+import org.lastbamboo.common.turn.server.RateLimiter;
+import org.lastbamboo.common.turn.server.TurnClient;
+import org.lastbamboo.common.turn.server.TurnServerConfig;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.lastbamboo.common.turn.server.timer.SessionReaper;
+
+/**
+ * Creates allocated servers on the acceptor shared by all allocations of
+ * the same transport.  The relay uses the transport the TURN client sent
+ * its Allocate Request over:  clients that reach us over UDP get a UDP
+ * relay, and TCP clients get a TCP relay.  Connections from remote hosts
+ * are closed once they've been idle for a while.  Relay ports come from the
+ * configured range if there is one, with separate ranges of the same ports
+ * for TCP and UDP.
+ */
+public class DefaultAllocatedTurnServerFactory implements
+    AllocatedTurnServerFactory
+    {
+
+    private final AllocatedTurnServerAcceptor m_tcpAcceptor;
+
+    private final AllocatedTurnServerAcceptor m_udpAcceptor;
+
+    private final SessionReaper m_reaper;
+
+    private final FlowController m_flowController;
+
+    private final RateLimiter m_rateLimiter;
+
+    private final TurnMetrics m_metrics;
+
+    /**
+     * Creates a new factory that closes remote host connections after five
+     * minutes without traffic, that never suspends reads, that doesn't
+     * limit bandwidth, that keeps its own metrics, and that binds ephemeral
+     * ports.
+     * 
+     * @param timer The timer for closing idle connections.  The caller
+     * owns it and stops it once it's done with the factory.
+     */
+    public DefaultAllocatedTurnServerFactory(final HashedWheelTimer timer)
+        {
+        this(new SessionReaper(timer, 5 * 60 * 1000),
+            new FlowController(0, 0), 
+            new RateLimiter(timer, 0, 0, 0, 0),
+            new TurnMetrics(), new TurnServerConfig());
+        }
+
+    /**
+     * Creates a new factory.
+     *
+     * @param reaper The class for closing idle remote host connections.
+     * @param flowController The class that stops reading from remote hosts
+     * when TURN clients fall behind.
+     * @param rateLimiter The bandwidth limits for relayed data.
+     * @param metrics The server-wide traffic metrics.
+     * @param config The server configuration, for the relay port range.
+     */
+    public DefaultAllocatedTurnServerFactory(final SessionReaper reaper,
+        final FlowController flowController, final RateLimiter rateLimiter,
+        final TurnMetrics metrics, final TurnServerConfig config)
+        {
+        this.m_reaper = reaper;
+        this.m_flowController = flowController;
+        this.m_rateLimiter = rateLimiter;
+        this.m_metrics = metrics;
+        this.m_tcpAcceptor = new AllocatedTurnServerAcceptor(
+            Runtime.getRuntime().availableProcessors() + 1, 
+            newPortAllocator(config, metrics), 
+            RelayExecution.newExecutor(config.getRelayExecution(),
+                config.getRelayThreads(), "TCP"));
+        this.m_udpAcceptor = AllocatedTurnServerAcceptor.newDatagramAcceptor(
+            newPortAllocator(config, metrics),
+            RelayExecution.newExecutor(config.getRelayExecution(),
+                config.getRelayThreads(), "UDP"), config.getPeerIdleTime());
+        }
+
+    private static RelayPortAllocator newPortAllocator(
+        final TurnServerConfig config, final TurnMetrics metrics)
+        {
+        if (config.getRelayPortMin() <= 0)
+            {
+            return null;
+            }
+        return new RelayPortAllocator(config.getRelayPortMin(),
+            config.getRelayPortMax(), 
+            TimeUnit.SECONDS.toMillis(config.getRelayPortQuarantine()),
+            metrics);
+        }
+
+    public AllocatedTurnServer createServer(final TurnClient turnClient,
+        final InetAddress publicAddress)
+        {
+        final TransportType transport =
+            turnClient.getIoSession().getTransportType();
+        final AllocatedTurnServerAcceptor acceptor =
+            transport == TransportType.DATAGRAM ?
+                this.m_udpAcceptor : this.m_tcpAcceptor;
+        return new AllocatedTurnServerImpl(turnClient, publicAddress,
+            acceptor, this.m_reaper, this.m_flowController,
+            this.m_rateLimiter, this.m_metrics);
+        }
+    }
@@ -0,0 +1,111 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the executor that runs the handlers for allocated relays.  The
+ * handlers only frame data and queue non-blocking writes, so for pure
+ * relaying, handing each packet to another thread usually costs more than
+ * the work itself.  That makes running on the I/O processor threads the
+ * fastest choice, while the thread pools protect the I/O threads from
+ * anything slow we might add to the handlers later.
+ */
+public final class RelayExecution
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(RelayExecution.class);
+
+    /**
+     * Run handlers on the I/O processor thread that read the data.
+     */
+    public static final String IO = "io";
+
+    /**
+     * Run handlers on a fixed pool of threads, in order for each session.
+     */
+    public static final String ORDERED = "ordered";
+
+    /**
+     * Run handlers on virtual threads, in order for each session.  This
+     * needs Java 21 -- we fall back to {@link #ORDERED} without it.
+     */
+    public static final String VIRTUAL = "virtual";
+
+    /**
+     * Run handlers on an unbounded pool of threads, in order for each
+     * session.  This is how relays have always worked.
+     */
+    public static final String CACHED = "cached";
+
+    private RelayExecution()
+        {
+        // Only static methods.
+        }
+
+    /**
+     * Creates the executor for the specified execution model.
+     *
+     * @param model The execution model, such as {@link #IO}.
+     * @param threads The number of threads for {@link #ORDERED}.
+     * @param transport The transport, for naming threads.
+     * @return The executor, or <code>null</code> to run handlers on the I/O
+     * processor threads.
+     */
+    public static Executor newExecutor(final String model, final int threads,
+        final String transport)
+        {
+        final String name = transport + "-Allocated-TURN-Server-Handlers";
+        if (IO.equals(model))
+            {
+            return null;
+            }
+        if (ORDERED.equals(model))
+            {
+            return Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory(name));
+            }
+        if (VIRTUAL.equals(model))
+            {
+            final Executor executor = newVirtualThreadExecutor();
+            if (executor != null)
+                {
+                return executor;
+                }
+            LOG.warn("No virtual threads before Java 21 -- using ordered");
+            return Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory(name));
+            }
+        if (!CACHED.equals(model))
+            {
+            LOG.warn("Unknown relay execution '{}' -- using cached", model);
+            }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+        }
+
+    private static Executor newVirtualThreadExecutor()
+        {
+        // We still build for older Java, so we can't call this directly.
+        try
+            {
+            final Method method =
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) method.invoke(null);
+            }
+        catch (final NoSuchMethodException e)
+            {
+            return null;
+            }
+        catch (final Exception e)
+            {
+            LOG.warn("Could not create virtual thread executor", e);
+            return null;
+            }
+        }
+    }
@@ -0,0 +1,130 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.util.BitSet;
+
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+
+/**
+ * Hands out relay ports from a fixed range, so relays don't compete with
+ * outbound connections for ephemeral ports and the range can be opened in
+ * a firewall.<p>
+ *
+ * Free ports wait in a ring in the order they were freed, so allocating
+ * takes the port that's been free the longest and releasing puts the port
+ * at the back.  Both are constant time.  A freed port also isn't reused
+ * until it's been free for the quarantine time, so stragglers from a
+ * remote host of the old allocation don't reach a new one.  A bitmap of the
+ * ports in use catches ports released twice or never allocated by us.
+ */
+public final class RelayPortAllocator
+    {
+
+    private final int m_minPort;
+
+    private final int m_maxPort;
+
+    private final long m_quarantineMillis;
+
+    private final TurnMetrics m_metrics;
+
+    /**
+     * The ring of free ports, oldest first.  Guarded by this.
+     */
+    private final int[] m_free;
+
+    /**
+     * When each port in the ring was freed.  Guarded by this.
+     */
+    private final long[] m_freedAt;
+
+    private int m_head;
+
+    private int m_freeCount;
+
+    private final BitSet m_inUse;
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param minPort The lowest port in the range.
+     * @param maxPort The highest port in the range.
+     * @param quarantineMillis How long a freed port stays unused, in
+     * milliseconds.
+     * @param metrics The server-wide metrics.
+     */
+    public RelayPortAllocator(final int minPort, final int maxPort,
+        final long quarantineMillis, final TurnMetrics metrics)
+        {
+        if (minPort < 1 || maxPort > 0xffff || minPort > maxPort)
+            {
+            throw new IllegalArgumentException("Bad relay port range " +
+                minPort + "-" + maxPort);
+            }
+        this.m_minPort = minPort;
+        this.m_maxPort = maxPort;
+        this.m_quarantineMillis = quarantineMillis;
+        this.m_metrics = metrics;
+        final int size = maxPort - minPort + 1;
+        this.m_free = new int[size];
+        this.m_freedAt = new long[size];
+        this.m_inUse = new BitSet(size);
+        for (int i = 0; i < size; i++)
+            {
+            this.m_free[i] = minPort + i;
+            }
+        this.m_freeCount = size;
+        }
+
+    /**
+     * Takes a port out of the range.
+     *
+     * @return The port, or -1 if every port is in use or in quarantine.
+     */
+    public synchronized int allocate()
+        {
+        // The head has been free the longest, so if it's still in
+        // quarantine, they all are.
+        if (this.m_freeCount == 0 || System.currentTimeMillis() -
+            this.m_freedAt[this.m_head] < this.m_quarantineMillis)
+            {
+            this.m_metrics.relayPortsExhausted();
+            return -1;
+            }
+        final int port = this.m_free[this.m_head];
+        this.m_head = (this.m_head + 1) % this.m_free.length;
+        this.m_freeCount--;
+        this.m_inUse.set(port - this.m_minPort);
+        this.m_metrics.relayPortAllocated();
+        return port;
+        }
+
+    /**
+     * Returns a port to the range.  Ports we didn't hand out are ignored.
+     *
+     * @param port The port.
+     */
+    public synchronized void release(final int port)
+        {
+        if (port < this.m_minPort || port > this.m_maxPort ||
+            !this.m_inUse.get(port - this.m_minPort))
+            {
+            return;
+            }
+        this.m_inUse.clear(port - this.m_minPort);
+        final int tail = (this.m_head + this.m_freeCount) % this.m_free.length;
+        this.m_free[tail] = port;
+        this.m_freedAt[tail] = System.currentTimeMillis();
+        this.m_freeCount++;
+        this.m_metrics.relayPortReleased();
+        }
+
+    /**
+     * Returns the number of ports not in use, including any in quarantine.
+     *
+     * @return The number of free ports.
+     */
+    public synchronized int getFreePorts()
+        {
+        return this.m_freeCount;
+        }
+    }
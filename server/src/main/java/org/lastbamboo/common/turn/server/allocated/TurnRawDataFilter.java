@@ -0,0 +1,183 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.turn.server.TurnWireFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decoder that reads in raw data from remote hosts and forwards it to the
+ * TURN client.  The data will get wrapped in a Data Indication message
+ * unless there's an active destination.<p>
+ *
+ * This is on the hot path for all data from remote hosts, so rather than
+ * creating {@link org.littleshoot.stun.stack.message.turn.DataIndication}
+ * messages for the STUN encoder, we frame each chunk ourselves.  The header,
+ * the cached REMOTE-ADDRESS attribute and the payload go into one buffer
+ * from the allocator, and that buffer is passed on as the message to write
+ * to the TURN client.  The payload has to share the buffer with the header
+ * because other threads also write to the TURN client, and two separate
+ * writes could be split up.<p>
+ *
+ * If the TURN client has bound a channel to the remote host, we frame the
+ * data as ChannelData instead, with just a 4 byte header.  If the remote
+ * host is the TURN client's active destination, we don't frame it at all
+ * and the read buffer itself is written to the TURN client.
+ */
+public class TurnRawDataFilter extends IoFilterAdapter
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * This is the limit on the length of the data to encapsulate in a Send
+     * Request.  TURN messages cannot be larger than 0xffff, so this leaves
+     * room for other attributes in the message as well as for headers.
+     */
+    static final int LENGTH_LIMIT = 0xffff - 1000;
+
+    /**
+     * The session attribute for the encoded REMOTE-ADDRESS attribute of the
+     * remote host.  This doesn't change for the life of the connection.
+     */
+    private static final String REMOTE_ADDRESS_ATTRIBUTE =
+        TurnRawDataFilter.class.getName() + ".remoteAddress";
+
+    /**
+     * The session attribute for the <code>Integer</code> channel number the
+     * TURN client has bound to the remote host, if any.
+     */
+    public static final String CHANNEL_ATTRIBUTE =
+        TurnRawDataFilter.class.getName() + ".channel";
+
+    /**
+     * The session attribute marking the remote host as the TURN client's
+     * active destination.
+     */
+    public static final String ACTIVE_DESTINATION_ATTRIBUTE =
+        TurnRawDataFilter.class.getName() + ".activeDestination";
+
+    public void messageReceived(
+        final NextFilter nextFilter, final IoSession session,
+        final Object message) throws Exception
+        {
+        if (m_log.isDebugEnabled())
+            {
+            m_log.debug("Received raw data...");
+            }
+        final ByteBuffer in = (ByteBuffer) message;
+        if (session.getAttribute(ACTIVE_DESTINATION_ATTRIBUTE) != null)
+            {
+            // The handler writes the read buffer itself to the TURN client.
+            nextFilter.messageReceived(session, in);
+            return;
+            }
+        final Integer channel = 
+            (Integer) session.getAttribute(CHANNEL_ATTRIBUTE);
+        if (channel != null)
+            {
+            sendChannelData(channel.intValue(), in, session, nextFilter);
+            return;
+            }
+
+        // Send the data broken up into chunks if necessary.  This is because
+        // TURN messages cannot be larger than 0xffff.
+        sendSplitBuffers(getRemoteAddressAttribute(session), in, session,
+            nextFilter);
+        }
+
+    /**
+     * Splits the main read buffer into Data Indications that will fit in
+     * TURN messages.
+     *
+     * @param remoteAddress The encoded REMOTE-ADDRESS of the host the data
+     * came from.
+     * @param buffer The main read buffer to split.
+     * @param session The {@link IoSession} the message arrived on.
+     * @param nextFilter The output of the decoder.
+     */
+    private void sendSplitBuffers(
+        final byte[] remoteAddress, final ByteBuffer buffer,
+        final IoSession session, final NextFilter nextFilter)
+        {
+        final int limit = buffer.limit();
+        while (buffer.hasRemaining())
+            {
+            final int length = Math.min(buffer.remaining(), LENGTH_LIMIT);
+            final int bodyLength = remoteAddress.length +
+                TurnWireFormat.ATTRIBUTE_HEADER_LENGTH + length;
+            final ByteBuffer indication = ByteBuffer.allocate(
+                TurnWireFormat.HEADER_LENGTH + bodyLength);
+            TurnWireFormat.putHeader(indication,
+                TurnWireFormat.DATA_INDICATION, bodyLength);
+            indication.put(remoteAddress);
+            TurnWireFormat.putAttributeHeader(indication, TurnWireFormat.DATA,
+                length);
+
+            buffer.limit(buffer.position() + length);
+            indication.put(buffer);
+            buffer.limit(limit);
+            indication.flip();
+
+            // MINA releases this once the handler returns, so the handler
+            // acquires it for the write to the TURN client.
+            nextFilter.messageReceived(session, indication);
+            }
+
+        // We've copied everything out of the read buffer, so it can go back
+        // to the allocator.
+        buffer.release();
+        }
+
+    /**
+     * Splits the main read buffer into ChannelData messages.  We always pad
+     * these, since padding is required over TCP and allowed over UDP.
+     *
+     * @param channel The channel bound to the remote host.
+     * @param buffer The main read buffer to split.
+     * @param session The {@link IoSession} the message arrived on.
+     * @param nextFilter The output of the decoder.
+     */
+    private void sendChannelData(final int channel, final ByteBuffer buffer,
+        final IoSession session, final NextFilter nextFilter)
+        {
+        final int limit = buffer.limit();
+        while (buffer.hasRemaining())
+            {
+            final int length = Math.min(buffer.remaining(), LENGTH_LIMIT);
+            final int padding = TurnWireFormat.padding(length);
+            final ByteBuffer channelData = ByteBuffer.allocate(
+                TurnWireFormat.CHANNEL_HEADER_LENGTH + length + padding);
+            TurnWireFormat.putChannelHeader(channelData, channel, length);
+            buffer.limit(buffer.position() + length);
+            channelData.put(buffer);
+            buffer.limit(limit);
+            for (int i = 0; i < padding; i++)
+                {
+                channelData.put((byte) 0);
+                }
+            channelData.flip();
+            nextFilter.messageReceived(session, channelData);
+            }
+        buffer.release();
+        }
+
+    private byte[] getRemoteAddressAttribute(final IoSession session)
+        {
+        final byte[] cached =
+            (byte[]) session.getAttribute(REMOTE_ADDRESS_ATTRIBUTE);
+        if (cached != null)
+            {
+            return cached;
+            }
+        final byte[] encoded = TurnWireFormat.encodeAddressAttribute(
+            TurnWireFormat.REMOTE_ADDRESS,
+            (InetSocketAddress) session.getRemoteAddress());
+        session.setAttribute(REMOTE_ADDRESS_ATTRIBUTE, encoded);
+        return encoded;
+        }
+    }
@@ -0,0 +1,75 @@
+package org.lastbamboo.common.turn.server.buffer;
+
+import org.lastbamboo.common.turn.server.TurnServerConfig;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.ByteBufferAllocator;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Installs the MINA buffer allocator.  The allocator and the direct buffer
+ * setting are global statics in MINA, so we only ever set them once, at
+ * startup, no matter how many servers we create.
+ */
+public final class ByteBufferAllocators
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ByteBufferAllocators.class);
+
+    /**
+     * Use MINA's simple allocator, creating a new buffer for every request.
+     */
+    public static final String SIMPLE = "simple";
+
+    /**
+     * Use the {@link SizeClassedByteBufferAllocator}.
+     */
+    public static final String POOLED = "pooled";
+
+    private static ByteBufferAllocator s_installed;
+
+    private ByteBufferAllocators()
+        {
+        // Only static methods.
+        }
+
+    /**
+     * Installs the allocator chosen in the specified configuration if we
+     * haven't installed one already.
+     *
+     * @param config The configuration.
+     * @return The installed allocator, which will be the allocator from the
+     * first call if this isn't the first call.
+     */
+    public static synchronized ByteBufferAllocator install(
+        final TurnServerConfig config)
+        {
+        if (s_installed != null)
+            {
+            LOG.debug("Allocator already installed: {}", s_installed);
+            return s_installed;
+            }
+
+        final String allocator = config.getBufferAllocator();
+        if (POOLED.equals(allocator))
+            {
+            s_installed = new SizeClassedByteBufferAllocator(
+                config.getBufferPoolSize());
+            }
+        else
+            {
+            if (!SIMPLE.equals(allocator))
+                {
+                LOG.warn("Unknown allocator '{}' -- using simple", allocator);
+                }
+            s_installed = new SimpleByteBufferAllocator();
+            }
+        LOG.debug("Installing {} with direct buffers: {}", allocator,
+            Boolean.valueOf(config.isDirectBuffers()));
+        ByteBuffer.setUseDirectBuffers(config.isDirectBuffers());
+        ByteBuffer.setAllocator(s_installed);
+        return s_installed;
+        }
+    }
@@ -0,0 +1,118 @@
+package org.lastbamboo.common.turn.server.buffer;
+
+import java.nio.ByteOrder;
+
+import org.littleshoot.mina.common.BaseByteBuffer;
+import org.littleshoot.mina.common.ByteBuffer;
+
+/**
+ * A view of part of a read buffer that keeps the read buffer alive until
+ * the view is released.  This allows us to hand a region of the buffer MINA
+ * read from one session straight to another session's write queue without
+ * copying it.<p>
+ *
+ * Creating a slice acquires a reference to the parent buffer, which is
+ * released when the slice's own reference count drops to zero.  As with
+ * MINA's own buffers, MINA releases a slice once it's been written, and
+ * releasing it more times than it was acquired is an error.
+ */
+public final class ReadBufferSlice extends BaseByteBuffer
+    {
+
+    private final ByteBuffer m_parent;
+
+    private final java.nio.ByteBuffer m_buf;
+
+    private int m_refCount = 1;
+
+    /**
+     * Creates a new slice of the specified region of the parent buffer.
+     * The parent's position and limit are left untouched.
+     *
+     * @param parent The buffer to slice.
+     * @param offset The absolute index of the first byte of the slice.
+     * @param length The number of bytes in the slice.
+     */
+    public ReadBufferSlice(final ByteBuffer parent, final int offset,
+        final int length)
+        {
+        final java.nio.ByteBuffer dup = parent.buf().duplicate();
+        dup.limit(offset + length);
+        dup.position(offset);
+        this.m_buf = dup.slice();
+        this.m_buf.order(ByteOrder.BIG_ENDIAN);
+        this.m_parent = parent;
+        parent.acquire();
+        }
+
+    public synchronized void acquire()
+        {
+        if (m_refCount <= 0)
+            {
+            throw new IllegalStateException("Already released buffer.");
+            }
+        m_refCount++;
+        }
+
+    public void release()
+        {
+        synchronized (this)
+            {
+            if (m_refCount <= 0)
+                {
+                throw new IllegalStateException("Already released buffer.");
+                }
+            m_refCount--;
+            if (m_refCount > 0)
+                {
+                return;
+                }
+            }
+        m_parent.release();
+        }
+
+    public java.nio.ByteBuffer buf()
+        {
+        return m_buf;
+        }
+
+    public boolean isPooled()
+        {
+        return false;
+        }
+
+    public void setPooled(final boolean pooled)
+        {
+        }
+
+    protected void capacity0(final int requestedCapacity)
+        {
+        throw new UnsupportedOperationException(
+            "Read buffer slices cannot expand");
+        }
+
+    public ByteBuffer duplicate()
+        {
+        return ByteBuffer.wrap(this.m_buf.duplicate());
+        }
+
+    public ByteBuffer slice()
+        {
+        return ByteBuffer.wrap(this.m_buf.slice());
+        }
+
+    public ByteBuffer asReadOnlyBuffer()
+        {
+        return ByteBuffer.wrap(this.m_buf.asReadOnlyBuffer());
+        }
+
+    public byte[] array()
+        {
+        return m_buf.array();
+        }
+
+    public int arrayOffset()
+        {
+        return m_buf.arrayOffset();
+        }
+    }
@@ -0,0 +1,472 @@
+package org.lastbamboo.common.turn.server.buffer;
+
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.BaseByteBuffer;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.ByteBufferAllocator;
+
+/**
+ * {@link ByteBufferAllocator} that pools buffers in power of two size
+ * classes.  Relaying at line rate means a read buffer and a Data Indication
+ * buffer for every read, so reusing them takes most of the pressure off the
+ * young generation.<p>
+ *
+ * Buffers go back to their size class when their reference count reaches
+ * zero, so anything that hands a buffer to another thread has to use
+ * {@link ByteBuffer#acquire()} and {@link ByteBuffer#release()} properly.
+ * Buffers that are never released are simply garbage collected.  Requests
+ * larger than the biggest size class aren't pooled at all.<p>
+ *
+ * Duplicates, slices and read only views share the pooled memory, so each
+ * holds a reference to its buffer until the view itself is released.
+ */
+public final class SizeClassedByteBufferAllocator implements
+    ByteBufferAllocator, SizeClassedByteBufferAllocatorMBean
+    {
+
+    /**
+     * The smallest size class, 64 bytes.
+     */
+    private static final int MIN_SHIFT = 6;
+
+    /**
+     * The largest size class, 128KB, which fits the largest TURN message.
+     */
+    private static final int MAX_SHIFT = 17;
+
+    private final SizeClass[] m_heapClasses;
+
+    private final SizeClass[] m_directClasses;
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param maxPooledPerClass The maximum number of free buffers to keep in
+     * each size class.
+     */
+    public SizeClassedByteBufferAllocator(final int maxPooledPerClass)
+        {
+        final int numClasses = MAX_SHIFT - MIN_SHIFT + 1;
+        this.m_heapClasses = new SizeClass[numClasses];
+        this.m_directClasses = new SizeClass[numClasses];
+        for (int i = 0; i < numClasses; i++)
+            {
+            final int size = 1 << (MIN_SHIFT + i);
+            this.m_heapClasses[i] =
+                new SizeClass(size, false, maxPooledPerClass);
+            this.m_directClasses[i] =
+                new SizeClass(size, true, maxPooledPerClass);
+            }
+        }
+
+    public ByteBuffer allocate(final int capacity, final boolean direct)
+        {
+        final SizeClass sizeClass = sizeClass(capacity, direct);
+        final java.nio.ByteBuffer buf;
+        if (sizeClass == null)
+            {
+            buf = newBuffer(capacity, direct);
+            }
+        else
+            {
+            buf = sizeClass.take();
+            buf.limit(capacity);
+            }
+        return new PooledByteBuffer(buf, sizeClass);
+        }
+
+    public ByteBuffer wrap(final java.nio.ByteBuffer nioBuffer)
+        {
+        return new PooledByteBuffer(nioBuffer, null);
+        }
+
+    public void dispose()
+        {
+        for (int i = 0; i < m_heapClasses.length; i++)
+            {
+            m_heapClasses[i].clear();
+            m_directClasses[i].clear();
+            }
+        }
+
+    public long getHits()
+        {
+        long hits = 0;
+        for (int i = 0; i < m_heapClasses.length; i++)
+            {
+            hits += m_heapClasses[i].m_hits.get();
+            hits += m_directClasses[i].m_hits.get();
+            }
+        return hits;
+        }
+
+    public long getMisses()
+        {
+        long misses = 0;
+        for (int i = 0; i < m_heapClasses.length; i++)
+            {
+            misses += m_heapClasses[i].m_misses.get();
+            misses += m_directClasses[i].m_misses.get();
+            }
+        return misses;
+        }
+
+    public int getPooledBuffers()
+        {
+        int pooled = 0;
+        for (int i = 0; i < m_heapClasses.length; i++)
+            {
+            pooled += m_heapClasses[i].m_pooled.get();
+            pooled += m_directClasses[i].m_pooled.get();
+            }
+        return pooled;
+        }
+
+    public String[] getSizeClassStats()
+        {
+        final String[] stats = new String[m_heapClasses.length * 2];
+        for (int i = 0; i < m_heapClasses.length; i++)
+            {
+            stats[i] = m_heapClasses[i].toString();
+            stats[m_heapClasses.length + i] = m_directClasses[i].toString();
+            }
+        return stats;
+        }
+
+    private SizeClass sizeClass(final int capacity, final boolean direct)
+        {
+        if (capacity > 1 << MAX_SHIFT)
+            {
+            return null;
+            }
+        int shift = MIN_SHIFT;
+        while (1 << shift < capacity)
+            {
+            shift++;
+            }
+        final SizeClass[] classes = direct ? m_directClasses : m_heapClasses;
+        return classes[shift - MIN_SHIFT];
+        }
+
+    private static java.nio.ByteBuffer newBuffer(final int capacity,
+        final boolean direct)
+        {
+        if (direct)
+            {
+            return java.nio.ByteBuffer.allocateDirect(capacity);
+            }
+        return java.nio.ByteBuffer.allocate(capacity);
+        }
+
+    /**
+     * The free list and statistics for a single buffer size.
+     */
+    private static final class SizeClass
+        {
+
+        private final int m_size;
+
+        private final boolean m_direct;
+
+        private final int m_maxPooled;
+
+        private final Queue<java.nio.ByteBuffer> m_free =
+            new ConcurrentLinkedQueue<java.nio.ByteBuffer>();
+
+        private final AtomicInteger m_pooled = new AtomicInteger();
+
+        private final AtomicLong m_hits = new AtomicLong();
+
+        private final AtomicLong m_misses = new AtomicLong();
+
+        private final AtomicLong m_discarded = new AtomicLong();
+
+        private SizeClass(final int size, final boolean direct,
+            final int maxPooled)
+            {
+            this.m_size = size;
+            this.m_direct = direct;
+            this.m_maxPooled = maxPooled;
+            }
+
+        private java.nio.ByteBuffer take()
+            {
+            final java.nio.ByteBuffer buf = m_free.poll();
+            if (buf == null)
+                {
+                m_misses.incrementAndGet();
+                return newBuffer(m_size, m_direct);
+                }
+            m_pooled.decrementAndGet();
+            m_hits.incrementAndGet();
+            buf.clear();
+            return buf;
+            }
+
+        private void give(final java.nio.ByteBuffer buf)
+            {
+            if (m_pooled.incrementAndGet() > m_maxPooled)
+                {
+                m_pooled.decrementAndGet();
+                m_discarded.incrementAndGet();
+                return;
+                }
+            m_free.offer(buf);
+            }
+
+        private void clear()
+            {
+            while (m_free.poll() != null)
+                {
+                m_pooled.decrementAndGet();
+                }
+            }
+
+        @Override
+        public String toString()
+            {
+            return (m_direct ? "direct " : "heap ") + m_size +
+                ": hits=" + m_hits.get() + " misses=" + m_misses.get() +
+                " pooled=" + m_pooled.get() +
+                " discarded=" + m_discarded.get();
+            }
+        }
+
+    /**
+     * A view of another buffer's memory, which keeps that buffer out of the
+     * pool until the view is released.
+     */
+    private static final class ViewByteBuffer extends BaseByteBuffer
+        {
+
+        private final ByteBuffer m_parent;
+
+        private final java.nio.ByteBuffer m_buf;
+
+        private int m_refCount = 1;
+
+        private ViewByteBuffer(final ByteBuffer parent,
+            final java.nio.ByteBuffer buf)
+            {
+            parent.acquire();
+            this.m_parent = parent;
+            this.m_buf = buf;
+            buf.order(ByteOrder.BIG_ENDIAN);
+            }
+
+        public synchronized void acquire()
+            {
+            if (m_refCount <= 0)
+                {
+                throw new IllegalStateException("Already released buffer.");
+                }
+            m_refCount++;
+            }
+
+        public void release()
+            {
+            synchronized (this)
+                {
+                if (m_refCount <= 0)
+                    {
+                    throw new IllegalStateException(
+                        "Already released buffer.  You released the buffer "+
+                        "too many times.");
+                    }
+                m_refCount--;
+                if (m_refCount > 0)
+                    {
+                    return;
+                    }
+                }
+            m_parent.release();
+            }
+
+        public java.nio.ByteBuffer buf()
+            {
+            return m_buf;
+            }
+
+        public boolean isPooled()
+            {
+            return false;
+            }
+
+        public void setPooled(final boolean pooled)
+            {
+            }
+
+        protected void capacity0(final int requestedCapacity)
+            {
+            throw new UnsupportedOperationException(
+                "Views of pooled buffers cannot expand");
+            }
+
+        public ByteBuffer duplicate()
+            {
+            return new ViewByteBuffer(this, this.m_buf.duplicate());
+            }
+
+        public ByteBuffer slice()
+            {
+            return new ViewByteBuffer(this, this.m_buf.slice());
+            }
+
+        public ByteBuffer asReadOnlyBuffer()
+            {
+            return new ViewByteBuffer(this, this.m_buf.asReadOnlyBuffer());
+            }
+
+        public byte[] array()
+            {
+            return m_buf.array();
+            }
+
+        public int arrayOffset()
+            {
+            return m_buf.arrayOffset();
+            }
+        }
+
+    /**
+     * Buffer that goes back to its size class when it's released.
+     */
+    private final class PooledByteBuffer extends BaseByteBuffer
+        {
+
+        private java.nio.ByteBuffer m_buf;
+
+        private SizeClass m_sizeClass;
+
+        private int m_refCount = 1;
+
+        /**
+         * Whether we've handed out views of our memory, which means we
+         * can't give it back to the pool when we expand.
+         */
+        private boolean m_viewed;
+
+        private PooledByteBuffer(final java.nio.ByteBuffer buf,
+            final SizeClass sizeClass)
+            {
+            this.m_buf = buf;
+            this.m_sizeClass = sizeClass;
+            buf.order(ByteOrder.BIG_ENDIAN);
+            }
+
+        public synchronized void acquire()
+            {
+            if (m_refCount <= 0)
+                {
+                throw new IllegalStateException("Already released buffer.");
+                }
+            m_refCount++;
+            }
+
+        public void release()
+            {
+            synchronized (this)
+                {
+                if (m_refCount <= 0)
+                    {
+                    m_refCount = 0;
+                    throw new IllegalStateException(
+                        "Already released buffer.  You released the buffer "+
+                        "too many times.");
+                    }
+                m_refCount--;
+                if (m_refCount > 0)
+                    {
+                    return;
+                    }
+                }
+            if (m_sizeClass != null)
+                {
+                m_sizeClass.give(m_buf);
+                }
+            }
+
+        public java.nio.ByteBuffer buf()
+            {
+            return m_buf;
+            }
+
+        public boolean isPooled()
+            {
+            return m_sizeClass != null;
+            }
+
+        public void setPooled(final boolean pooled)
+            {
+            }
+
+        protected void capacity0(final int requestedCapacity)
+            {
+            final SizeClass newClass =
+                sizeClass(requestedCapacity, isDirect());
+            final java.nio.ByteBuffer newBuf;
+            if (newClass == null)
+                {
+                newBuf = newBuffer(requestedCapacity, isDirect());
+                }
+            else
+                {
+                newBuf = newClass.take();
+                }
+            final java.nio.ByteBuffer oldBuf = this.m_buf;
+            newBuf.clear();
+            oldBuf.clear();
+            newBuf.put(oldBuf);
+            this.m_buf = newBuf;
+            synchronized (this)
+                {
+                // Views still point at the old memory, so it's left to the
+                // garbage collector.
+                if (this.m_sizeClass != null && !this.m_viewed)
+                    {
+                    this.m_sizeClass.give(oldBuf);
+                    }
+                }
+            this.m_sizeClass = newClass;
+            }
+
+        public ByteBuffer duplicate()
+            {
+            return view(this.m_buf.duplicate());
+            }
+
+        public ByteBuffer slice()
+            {
+            return view(this.m_buf.slice());
+            }
+
+        public ByteBuffer asReadOnlyBuffer()
+            {
+            return view(this.m_buf.asReadOnlyBuffer());
+            }
+
+        private ByteBuffer view(final java.nio.ByteBuffer buf)
+            {
+            synchronized (this)
+                {
+                this.m_viewed = true;
+                }
+            return new ViewByteBuffer(this, buf);
+            }
+
+        public byte[] array()
+            {
+            return m_buf.array();
+            }
+
+        public int arrayOffset()
+            {
+            return m_buf.arrayOffset();
+            }
+        }
+    }
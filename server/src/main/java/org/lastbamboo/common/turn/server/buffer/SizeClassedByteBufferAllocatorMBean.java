@@ -0,0 +1,38 @@
+package org.lastbamboo.common.turn.server.buffer;
+
+/**
+ * MBean for accessing buffer pool statistics from the
+ * {@link SizeClassedByteBufferAllocator}.
+ */
+public interface SizeClassedByteBufferAllocatorMBean
+    {
+
+    /**
+     * Accessor for the number of allocations served from a pool.
+     *
+     * @return The number of allocations served from a pool.
+     */
+    long getHits();
+
+    /**
+     * Accessor for the number of pooled allocations that had to create a
+     * new buffer because the pool for their size class was empty.
+     *
+     * @return The number of allocations that missed the pool.
+     */
+    long getMisses();
+
+    /**
+     * Accessor for the number of free buffers currently pooled.
+     *
+     * @return The number of free buffers currently pooled.
+     */
+    int getPooledBuffers();
+
+    /**
+     * Accessor for the hits, misses and pool sizes of each size class.
+     *
+     * @return One line of statistics for each size class.
+     */
+    String[] getSizeClassStats();
+    }
@@ -0,0 +1,106 @@
+package org.lastbamboo.common.turn.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the sessions a listener accepts, along with how many it accepted
+ * in the previous second and the most it's accepted in any one second.
+ * Accepts are rare next to relayed packets, so plain atomics are fine.
+ * Threads racing at a second boundary can put an accept in the wrong
+ * second, which doesn't matter for spotting reconnect storms.
+ */
+public final class AcceptMeter
+    {
+
+    private final String m_listener;
+
+    private final AtomicLong m_accepts = new AtomicLong();
+
+    private final AtomicLong m_second = new AtomicLong();
+
+    private final AtomicInteger m_thisSecond = new AtomicInteger();
+
+    private volatile int m_lastSecond;
+
+    private final AtomicInteger m_maxPerSecond = new AtomicInteger();
+
+    /**
+     * Creates a new meter.
+     *
+     * @param listener The name of the listener, such as "tcp".
+     */
+    public AcceptMeter(final String listener)
+        {
+        this.m_listener = listener;
+        }
+
+    /**
+     * Records an accepted session.
+     */
+    public void accepted()
+        {
+        this.m_accepts.incrementAndGet();
+        final long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        final long second = this.m_second.get();
+        if (now != second && this.m_second.compareAndSet(second, now))
+            {
+            // A gap of more than a second means nothing came in last
+            // second.
+            final int count = this.m_thisSecond.getAndSet(0);
+            this.m_lastSecond = now == second + 1 ? count : 0;
+            }
+        raise(this.m_thisSecond.incrementAndGet());
+        }
+
+    private void raise(final int count)
+        {
+        int max = this.m_maxPerSecond.get();
+        while (count > max && !this.m_maxPerSecond.compareAndSet(max, count))
+            {
+            max = this.m_maxPerSecond.get();
+            }
+        }
+
+    /**
+     * Accessor for the name of the listener.
+     *
+     * @return The name of the listener.
+     */
+    public String getListener()
+        {
+        return this.m_listener;
+        }
+
+    /**
+     * Accessor for the number of sessions accepted.
+     *
+     * @return The number of sessions accepted.
+     */
+    public long getAccepts()
+        {
+        return this.m_accepts.get();
+        }
+
+    /**
+     * Accessor for the number of sessions accepted in the second before
+     * the latest accept.  This only moves when sessions come in.
+     *
+     * @return The number of sessions accepted in the last second.
+     */
+    public int getAcceptsLastSecond()
+        {
+        return this.m_lastSecond;
+        }
+
+    /**
+     * Accessor for the most sessions accepted in any one second.
+     *
+     * @return The most sessions accepted in a second.
+     */
+    public int getMaxAcceptsPerSecond()
+        {
+        return this.m_maxPerSecond.get();
+        }
+    }
@@ -0,0 +1,138 @@
+package org.lastbamboo.common.turn.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of non-negative values with log-linear buckets, in
+ * the style of HdrHistogram.  Values below 64 get their own buckets, and
+ * every power of two above that is split into 32 buckets, so quantiles are
+ * within about 3%.  Recording is a single atomic increment in the common
+ * case and never allocates.  There's no running total to contend on --
+ * reads add up the buckets instead.
+ */
+public final class Histogram
+    {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    private static final int LINEAR_EXPONENT = SUB_BUCKET_BITS + 1;
+
+    private final AtomicLongArray m_counts =
+        new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value The value.  Negative values count as 0.
+     */
+    public void record(final long value)
+        {
+        final long positive = Math.max(value, 0);
+        this.m_counts.incrementAndGet(index(positive));
+
+        // Once things have settled, this is nearly always a single read.
+        long max = this.m_max.get();
+        while (positive > max && !this.m_max.compareAndSet(max, positive))
+            {
+            max = this.m_max.get();
+            }
+        }
+
+    /**
+     * Returns the value at the specified quantile, rounded up to the top of
+     * its bucket.
+     *
+     * @param quantile The quantile, such as 0.99.
+     * @return The value, or 0 if nothing was recorded.
+     */
+    public long getValueAtQuantile(final double quantile)
+        {
+        final long total = getCount();
+        if (total == 0)
+            {
+            return 0;
+            }
+        final long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < this.m_counts.length(); i++)
+            {
+            seen += this.m_counts.get(i);
+            if (seen >= target)
+                {
+                return Math.min(highestValue(i), this.m_max.get());
+                }
+            }
+        return this.m_max.get();
+        }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The number of recorded values.
+     */
+    public long getCount()
+        {
+        long total = 0;
+        for (int i = 0; i < this.m_counts.length(); i++)
+            {
+            total += this.m_counts.get(i);
+            }
+        return total;
+        }
+
+    /**
+     * Returns the highest recorded value.
+     *
+     * @return The highest recorded value.
+     */
+    public long getMax()
+        {
+        return this.m_max.get();
+        }
+
+    /**
+     * Clears the histogram.  Values recorded while this runs may or may not
+     * be kept.
+     */
+    public void reset()
+        {
+        for (int i = 0; i < this.m_counts.length(); i++)
+            {
+            this.m_counts.set(i, 0);
+            }
+        this.m_max.set(0);
+        }
+
+    private static int index(final long value)
+        {
+        if (value < LINEAR_LIMIT)
+            {
+            return (int) value;
+            }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - LINEAR_EXPONENT) * SUB_BUCKETS +
+            subBucket;
+        }
+
+    private static long highestValue(final int index)
+        {
+        if (index < LINEAR_LIMIT)
+            {
+            return index;
+            }
+        final int exponent =
+            (index - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_EXPONENT;
+        final int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+        }
+    }
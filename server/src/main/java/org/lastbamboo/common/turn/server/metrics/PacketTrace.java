@@ -0,0 +1,98 @@
+package org.lastbamboo.common.turn.server.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs a sample of the packets relayed for a single allocation.  This is
+ * for looking at one client on a busy server without turning on debug
+ * logging for everyone.  We log one packet in every <code>sampleRate</code>
+ * and stop on our own after <code>maxLines</code> lines, so a forgotten
+ * trace can't flood the logs.  The lines go to this class's logger at INFO.
+ */
+public final class PacketTrace
+    {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacketTrace.class);
+
+    private final Object m_client;
+
+    private final int m_sampleRate;
+
+    private final int m_maxLines;
+
+    private final AtomicLong m_packets = new AtomicLong();
+
+    private final AtomicInteger m_lines = new AtomicInteger();
+
+    private volatile boolean m_done;
+
+    /**
+     * Creates a new trace.
+     *
+     * @param client The client we're tracing, for the log lines.
+     * @param sampleRate We log one packet in this many.
+     * @param maxLines The number of lines to log before we stop.
+     */
+    public PacketTrace(final Object client, final int sampleRate,
+        final int maxLines)
+        {
+        if (sampleRate < 1 || maxLines < 1)
+            {
+            throw new IllegalArgumentException("Bad sample rate " +
+                sampleRate + " or line limit " + maxLines);
+            }
+        this.m_client = client;
+        this.m_sampleRate = sampleRate;
+        this.m_maxLines = maxLines;
+        }
+
+    /**
+     * Tells the trace about a packet we've relayed.
+     *
+     * @param direction Which way the packet went, such as "to" or "from".
+     * @param peer The remote host on the other side of the relay.
+     * @param bytes The size of the packet.
+     */
+    public void packet(final String direction, final Object peer,
+        final int bytes)
+        {
+        if (this.m_done)
+            {
+            return;
+            }
+        final long packet = this.m_packets.incrementAndGet();
+        if ((packet - 1) % this.m_sampleRate != 0)
+            {
+            return;
+            }
+        final int line = this.m_lines.incrementAndGet();
+        if (line >= this.m_maxLines)
+            {
+            this.m_done = true;
+            if (line > this.m_maxLines)
+                {
+                return;
+                }
+            }
+        LOG.info("{} {} {}: {} bytes, packet {}", new Object[] {this.m_client,
+            direction, peer, Integer.valueOf(bytes), Long.valueOf(packet)});
+        if (this.m_done)
+            {
+            LOG.info("Finished tracing {}", this.m_client);
+            }
+        }
+
+    /**
+     * Returns whether the trace has logged all the lines it's allowed to.
+     *
+     * @return Whether the trace is finished.
+     */
+    public boolean isDone()
+        {
+        return this.m_done;
+        }
+    }
@@ -0,0 +1,79 @@
+package org.lastbamboo.common.turn.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for totals every I/O thread adds to, like relayed bytes.  A
+ * single <code>AtomicLong</code> would bounce its cache line between the
+ * cores on every packet, so each thread adds to one of several cells
+ * picked by its ID, and reading the counter sums the cells.  The cells are
+ * spaced a cache line apart.  Reads are much more expensive than adds,
+ * which is the right trade for counters we only read when someone asks.
+ */
+public final class StripedCounter
+    {
+
+    /**
+     * The number of longs in a cache line.
+     */
+    private static final int PADDING = 8;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray m_cells =
+        new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Adds to the counter.
+     *
+     * @param delta The amount to add.
+     */
+    public void add(final long delta)
+        {
+        this.m_cells.addAndGet(index(), delta);
+        }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment()
+        {
+        add(1);
+        }
+
+    /**
+     * Returns the total.  This isn't a snapshot -- adds that happen while
+     * we sum may or may not be included.
+     *
+     * @return The total.
+     */
+    public long get()
+        {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            {
+            sum += this.m_cells.get(i * PADDING);
+            }
+        return sum;
+        }
+
+    private static int index()
+        {
+        // Thread IDs are sequential, so mix them up before masking.
+        final long id = Thread.currentThread().getId();
+        final int hash = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+        return (hash & (STRIPES - 1)) * PADDING;
+        }
+
+    private static int stripes()
+        {
+        final int target =
+            Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+        int stripes = 1;
+        while (stripes < target)
+            {
+            stripes <<= 1;
+            }
+        return stripes;
+        }
+    }
@@ -0,0 +1,500 @@
+package org.lastbamboo.common.turn.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Server-wide traffic metrics.  The hot paths call this for every message
+ * we relay, so everything here is striped counters and histograms that
+ * never lock or allocate.  The cost is in reading them, which only happens
+ * when someone asks over JMX or the metrics endpoint.<p>
+ *
+ * Relayed bytes are what we write to the destination socket, so data
+ * going to TURN clients includes its framing.  Per-allocation traffic
+ * comes straight from the MINA counters on each TURN client's session.<p>
+ *
+ * We time every {@value #SAMPLE_INTERVAL}th write to a remote host, from
+ * when we take the data out of the TURN client's message to when the
+ * remote host's socket takes it.  Each remote host has at most one sample
+ * in flight, kept in a session attribute until the write completes.<p>
+ *
+ * Gauges like the number of connected remote hosts are kept up to date as
+ * things connect and disconnect, so reading them is cheap no matter how
+ * many clients we have.
+ */
+public final class TurnMetrics implements TurnMetricsMBean
+    {
+
+    private static final int SAMPLE_INTERVAL = 64;
+
+    /**
+     * How long a sample can be in flight before we decide its write is
+     * never going to complete and start another.
+     */
+    private static final long SAMPLE_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    private static final String SEND_SAMPLE =
+        TurnMetrics.class.getName() + ".sendSample";
+
+    private final StripedCounter m_clientToPeerBytes = new StripedCounter();
+
+    private final StripedCounter m_clientToPeerMessages =
+        new StripedCounter();
+
+    private final StripedCounter m_peerToClientBytes = new StripedCounter();
+
+    private final StripedCounter m_peerToClientMessages =
+        new StripedCounter();
+
+    private final StripedCounter m_allocations = new StripedCounter();
+
+    private final StripedCounter m_refusedAllocations = new StripedCounter();
+
+    /**
+     * When the metrics were created, which is when the server started.
+     */
+    private final long m_startNanos = System.nanoTime();
+
+    private final AtomicLong m_firstAllocationMillis = new AtomicLong(-1);
+
+    private final AtomicInteger m_maxAllocations = new AtomicInteger();
+
+    private final AtomicInteger m_remoteHosts = new AtomicInteger();
+
+    private final AtomicInteger m_maxRemoteHosts = new AtomicInteger();
+
+    private final AtomicInteger m_maxRemoteHostsPerClient =
+        new AtomicInteger();
+
+    private final AtomicInteger m_relayPortsInUse = new AtomicInteger();
+
+    private final StripedCounter m_relayPortExhaustions = 
+        new StripedCounter();
+
+    private final ConcurrentMap<String, StripedCounter> m_messageCounts =
+        new ConcurrentHashMap<String, StripedCounter>();
+
+    private final ConcurrentMap<Class<?>, StripedCounter> m_countsByClass =
+        new ConcurrentHashMap<Class<?>, StripedCounter>();
+
+    private final ConcurrentMap<String, AcceptMeter> m_acceptMeters =
+        new ConcurrentHashMap<String, AcceptMeter>();
+
+    private final Histogram m_writeQueueBytes = new Histogram();
+
+    private final Histogram m_sendLatencyMicros = new Histogram();
+
+    private final Histogram m_allocationLifetimeMillis = new Histogram();
+
+    /**
+     * Counts writes to pick samples.  Threads race on this, which just
+     * makes the sampling a little uneven.
+     */
+    private int m_sampleCount;
+
+    /**
+     * Returns the counter for messages of the specified type from TURN
+     * clients, creating it if necessary.  Callers on hot paths should look
+     * this up once and keep it.
+     *
+     * @param type The message type.
+     * @return The counter.
+     */
+    public StripedCounter getMessageCounter(final String type)
+        {
+        final StripedCounter counter = this.m_messageCounts.get(type);
+        if (counter != null)
+            {
+            return counter;
+            }
+        final StripedCounter created = new StripedCounter();
+        final StripedCounter existing =
+            this.m_messageCounts.putIfAbsent(type, created);
+        return existing == null ? created : existing;
+        }
+
+    /**
+     * Returns the meter for sessions accepted by the specified listener,
+     * creating it if necessary.
+     *
+     * @param listener The name of the listener, such as "tcp".
+     * @return The meter.
+     */
+    public AcceptMeter getAcceptMeter(final String listener)
+        {
+        final AcceptMeter meter = this.m_acceptMeters.get(listener);
+        if (meter != null)
+            {
+            return meter;
+            }
+        final AcceptMeter created = new AcceptMeter(listener);
+        final AcceptMeter existing =
+            this.m_acceptMeters.putIfAbsent(listener, created);
+        return existing == null ? created : existing;
+        }
+
+    /**
+     * Counts a decoded message from a TURN client by its class.
+     *
+     * @param message The message.
+     */
+    public void messageReceived(final Object message)
+        {
+        final Class<?> type = message.getClass();
+        StripedCounter counter = this.m_countsByClass.get(type);
+        if (counter == null)
+            {
+            counter = getMessageCounter(type.getSimpleName());
+            this.m_countsByClass.put(type, counter);
+            }
+        counter.increment();
+        }
+
+    /**
+     * Records data we've just written to a remote host for a TURN client.
+     *
+     * @param peer The remote host's session.
+     * @param message The message we wrote.
+     * @param bytes The number of bytes in the message.
+     */
+    public void relayedToPeer(final IoSession peer, final Object message,
+        final int bytes)
+        {
+        this.m_clientToPeerBytes.add(bytes);
+        this.m_clientToPeerMessages.increment();
+        this.m_writeQueueBytes.record(peer.getScheduledWriteBytes());
+        if (++this.m_sampleCount % SAMPLE_INTERVAL != 0)
+            {
+            return;
+            }
+        final long now = System.nanoTime();
+        final SendSample pending = (SendSample) peer.getAttribute(SEND_SAMPLE);
+        if (pending == null || now - pending.m_start > SAMPLE_TIMEOUT)
+            {
+            peer.setAttribute(SEND_SAMPLE, new SendSample(message, now));
+            }
+        }
+
+    /**
+     * Tells the metrics a write to a remote host completed.
+     *
+     * @param peer The remote host's session.
+     * @param message The message that was written.
+     */
+    public void sentToPeer(final IoSession peer, final Object message)
+        {
+        final SendSample sample = (SendSample) peer.getAttribute(SEND_SAMPLE);
+        if (sample != null && sample.m_message == message)
+            {
+            peer.removeAttribute(SEND_SAMPLE);
+            this.m_sendLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(
+                System.nanoTime() - sample.m_start));
+            }
+        }
+
+    /**
+     * Records data we've just written to a TURN client from a remote host.
+     *
+     * @param client The TURN client's session.
+     * @param bytes The number of bytes in the message.
+     */
+    public void relayedToClient(final IoSession client, final int bytes)
+        {
+        this.m_peerToClientBytes.add(bytes);
+        this.m_peerToClientMessages.increment();
+        this.m_writeQueueBytes.record(client.getScheduledWriteBytes());
+        }
+
+    /**
+     * Records a new allocation.
+     *
+     * @param active The number of allocations including the new one.
+     */
+    public void allocated(final int active)
+        {
+        this.m_allocations.increment();
+        raise(this.m_maxAllocations, active);
+        if (this.m_firstAllocationMillis.get() < 0)
+            {
+            this.m_firstAllocationMillis.compareAndSet(-1,
+                TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - this.m_startNanos));
+            }
+        }
+
+    /**
+     * Records an allocation we refused, because we were overloaded or
+     * couldn't start its relay.
+     */
+    public void allocationRefused()
+        {
+        this.m_refusedAllocations.increment();
+        }
+
+    /**
+     * Records the end of an allocation.
+     *
+     * @param lifetimeMillis How long the allocation lasted.
+     */
+    public void allocationClosed(final long lifetimeMillis)
+        {
+        this.m_allocationLifetimeMillis.record(lifetimeMillis);
+        }
+
+    /**
+     * Records a new connection from a remote host to a relay.
+     *
+     * @param clientConnections The number of remote hosts connected to the
+     * same TURN client, including the new one.
+     */
+    public void remoteHostConnected(final int clientConnections)
+        {
+        raise(this.m_maxRemoteHosts, this.m_remoteHosts.incrementAndGet());
+        raise(this.m_maxRemoteHostsPerClient, clientConnections);
+        }
+
+    /**
+     * Records the end of a connection from a remote host to a relay.
+     */
+    public void remoteHostDisconnected()
+        {
+        this.m_remoteHosts.decrementAndGet();
+        }
+
+    private static void raise(final AtomicInteger max, final int value)
+        {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            {
+            current = max.get();
+            }
+        }
+
+    /**
+     * Accessor for the most allocations we've had at once.
+     *
+     * @return The most allocations we've had at once.
+     */
+    public int getMaxAllocations()
+        {
+        return this.m_maxAllocations.get();
+        }
+
+    /**
+     * Accessor for the number of remote hosts connected to relays.
+     *
+     * @return The number of remote hosts connected to relays.
+     */
+    public int getRemoteHosts()
+        {
+        return this.m_remoteHosts.get();
+        }
+
+    /**
+     * Accessor for the most remote hosts we've had connected at once.
+     *
+     * @return The most remote hosts we've had connected at once.
+     */
+    public int getMaxRemoteHosts()
+        {
+        return this.m_maxRemoteHosts.get();
+        }
+
+    /**
+     * Accessor for the most remote hosts we've had connected to a single
+     * TURN client at once.
+     *
+     * @return The most remote hosts connected to a single client.
+     */
+    public int getMaxRemoteHostsPerClient()
+        {
+        return this.m_maxRemoteHostsPerClient.get();
+        }
+
+    /**
+     * Records taking a port from the relay port range.
+     */
+    public void relayPortAllocated()
+        {
+        this.m_relayPortsInUse.incrementAndGet();
+        }
+
+    /**
+     * Records returning a port to the relay port range.
+     */
+    public void relayPortReleased()
+        {
+        this.m_relayPortsInUse.decrementAndGet();
+        }
+
+    /**
+     * Records failing to allocate a relay port because the range ran out.
+     */
+    public void relayPortsExhausted()
+        {
+        this.m_relayPortExhaustions.increment();
+        }
+
+    public int getRelayPortsInUse()
+        {
+        return this.m_relayPortsInUse.get();
+        }
+
+    public long getRelayPortExhaustions()
+        {
+        return this.m_relayPortExhaustions.get();
+        }
+
+    public long getClientToPeerBytes()
+        {
+        return this.m_clientToPeerBytes.get();
+        }
+
+    public long getClientToPeerMessages()
+        {
+        return this.m_clientToPeerMessages.get();
+        }
+
+    public long getPeerToClientBytes()
+        {
+        return this.m_peerToClientBytes.get();
+        }
+
+    public long getPeerToClientMessages()
+        {
+        return this.m_peerToClientMessages.get();
+        }
+
+    public long getAllocations()
+        {
+        return this.m_allocations.get();
+        }
+
+    public long getRefusedAllocations()
+        {
+        return this.m_refusedAllocations.get();
+        }
+
+    public long getFirstAllocationMillis()
+        {
+        return this.m_firstAllocationMillis.get();
+        }
+
+    public long getWriteQueueBytesP99()
+        {
+        return this.m_writeQueueBytes.getValueAtQuantile(0.99);
+        }
+
+    public long getSendLatencyMicrosP50()
+        {
+        return this.m_sendLatencyMicros.getValueAtQuantile(0.5);
+        }
+
+    public long getSendLatencyMicrosP99()
+        {
+        return this.m_sendLatencyMicros.getValueAtQuantile(0.99);
+        }
+
+    public long getAllocationLifetimeMillisP50()
+        {
+        return this.m_allocationLifetimeMillis.getValueAtQuantile(0.5);
+        }
+
+    public String getText()
+        {
+        final StringBuilder sb = new StringBuilder();
+        appendText(sb);
+        return sb.toString();
+        }
+
+    /**
+     * Appends all the metrics as text, one "name value" line each.
+     *
+     * @param sb The builder to append to.
+     */
+    public void appendText(final StringBuilder sb)
+        {
+        appendLine(sb, "turn_client_to_peer_bytes_total",
+            getClientToPeerBytes());
+        appendLine(sb, "turn_client_to_peer_messages_total",
+            getClientToPeerMessages());
+        appendLine(sb, "turn_peer_to_client_bytes_total",
+            getPeerToClientBytes());
+        appendLine(sb, "turn_peer_to_client_messages_total",
+            getPeerToClientMessages());
+        appendLine(sb, "turn_allocations_total", getAllocations());
+        appendLine(sb, "turn_allocations_max", getMaxAllocations());
+        appendLine(sb, "turn_allocations_refused_total",
+            getRefusedAllocations());
+        appendLine(sb, "turn_first_allocation_millis",
+            getFirstAllocationMillis());
+        appendLine(sb, "turn_remote_hosts_active", getRemoteHosts());
+        appendLine(sb, "turn_remote_hosts_max", getMaxRemoteHosts());
+        appendLine(sb, "turn_remote_hosts_per_client_max",
+            getMaxRemoteHostsPerClient());
+        appendLine(sb, "turn_relay_ports_in_use", getRelayPortsInUse());
+        appendLine(sb, "turn_relay_port_exhaustions_total",
+            getRelayPortExhaustions());
+        final Map<String, StripedCounter> sorted =
+            new TreeMap<String, StripedCounter>(this.m_messageCounts);
+        for (final Map.Entry<String, StripedCounter> entry : sorted.entrySet())
+            {
+            appendLine(sb, "turn_messages_received_total{type=\"" +
+                entry.getKey() + "\"}", entry.getValue().get());
+            }
+        final Map<String, AcceptMeter> meters =
+            new TreeMap<String, AcceptMeter>(this.m_acceptMeters);
+        for (final AcceptMeter meter : meters.values())
+            {
+            final String label = "{listener=\"" + meter.getListener() + "\"}";
+            appendLine(sb, "turn_accepts_total" + label, meter.getAccepts());
+            appendLine(sb, "turn_accepts_last_second" + label,
+                meter.getAcceptsLastSecond());
+            appendLine(sb, "turn_accepts_per_second_max" + label,
+                meter.getMaxAcceptsPerSecond());
+            }
+        appendHistogram(sb, "turn_write_queue_bytes", this.m_writeQueueBytes);
+        appendHistogram(sb, "turn_send_latency_micros",
+            this.m_sendLatencyMicros);
+        appendHistogram(sb, "turn_allocation_lifetime_millis",
+            this.m_allocationLifetimeMillis);
+        }
+
+    private static void appendHistogram(final StringBuilder sb,
+        final String name, final Histogram histogram)
+        {
+        appendLine(sb, name + "{quantile=\"0.5\"}",
+            histogram.getValueAtQuantile(0.5));
+        appendLine(sb, name + "{quantile=\"0.99\"}",
+            histogram.getValueAtQuantile(0.99));
+        appendLine(sb, name + "{quantile=\"0.999\"}",
+            histogram.getValueAtQuantile(0.999));
+        appendLine(sb, name + "_max", histogram.getMax());
+        appendLine(sb, name + "_count", histogram.getCount());
+        }
+
+    private static void appendLine(final StringBuilder sb, final String name,
+        final long value)
+        {
+        sb.append(name).append(' ').append(value).append('\n');
+        }
+
+    private static final class SendSample
+        {
+        private final Object m_message;
+        private final long m_start;
+
+        private SendSample(final Object message, final long start)
+            {
+            this.m_message = message;
+            this.m_start = start;
+            }
+        }
+    }
@@ -0,0 +1,118 @@
+package org.lastbamboo.common.turn.server.metrics;
+
+/**
+ * MBean for the server-wide traffic metrics.
+ */
+public interface TurnMetricsMBean
+    {
+
+    /**
+     * Accessor for the number of bytes we've written to remote hosts on
+     * behalf of TURN clients.
+     *
+     * @return The number of bytes relayed from clients to remote hosts.
+     */
+    long getClientToPeerBytes();
+
+    /**
+     * Accessor for the number of writes to remote hosts on behalf of TURN
+     * clients.
+     *
+     * @return The number of messages relayed from clients to remote hosts.
+     */
+    long getClientToPeerMessages();
+
+    /**
+     * Accessor for the number of bytes we've written to TURN clients from
+     * remote hosts, including framing.
+     *
+     * @return The number of bytes relayed from remote hosts to clients.
+     */
+    long getPeerToClientBytes();
+
+    /**
+     * Accessor for the number of writes to TURN clients from remote hosts.
+     *
+     * @return The number of messages relayed from remote hosts to clients.
+     */
+    long getPeerToClientMessages();
+
+    /**
+     * Accessor for the number of allocations we've created.
+     *
+     * @return The number of allocations we've created.
+     */
+    long getAllocations();
+
+    /**
+     * Accessor for the number of allocations we've refused.
+     *
+     * @return The number of allocations we've refused.
+     */
+    long getRefusedAllocations();
+
+    /**
+     * Accessor for the 99th percentile of the bytes queued for writing on
+     * a session when we relay more data to it.
+     *
+     * @return The 99th percentile write queue depth in bytes.
+     */
+    long getWriteQueueBytesP99();
+
+    /**
+     * Accessor for the median time from taking data out of a TURN client's
+     * message to the remote host's socket taking it, from a sample of
+     * writes.
+     *
+     * @return The median latency in microseconds.
+     */
+    long getSendLatencyMicrosP50();
+
+    /**
+     * Accessor for the 99th percentile time from taking data out of a TURN
+     * client's message to the remote host's socket taking it.
+     *
+     * @return The 99th percentile latency in microseconds.
+     */
+    long getSendLatencyMicrosP99();
+
+    /**
+     * Accessor for the median lifetime of allocations that have ended.
+     *
+     * @return The median allocation lifetime in milliseconds.
+     */
+    long getAllocationLifetimeMillisP50();
+
+    /**
+     * Accessor for how long after startup we made our first allocation,
+     * including any wait for the server's public address.
+     *
+     * @return The time to the first allocation in milliseconds, or -1 if
+     * we haven't made one.
+     */
+    long getFirstAllocationMillis();
+
+    /**
+     * Accessor for the number of relay ports in use from the configured
+     * range, across transports.
+     *
+     * @return The number of relay ports in use.
+     */
+    int getRelayPortsInUse();
+
+    /**
+     * Accessor for the number of times we couldn't allocate a relay because
+     * every port in the range was in use or in quarantine.
+     *
+     * @return The number of times the relay port range ran out.
+     */
+    long getRelayPortExhaustions();
+
+    /**
+     * Accessor for all the metrics in the same text format as the metrics
+     * endpoint.
+     *
+     * @return All the metrics as text.
+     */
+    String getText();
+    }
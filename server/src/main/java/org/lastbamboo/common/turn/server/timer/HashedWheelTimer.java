@@ -0,0 +1,313 @@
+package org.lastbamboo.common.turn.server.timer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer for the huge numbers of coarse timeouts the server tracks, like
+ * permission lifetimes.  Timeouts hash into the buckets of a wheel that a
+ * single thread advances one bucket per tick, so scheduling is a lock-free
+ * queue insert and cancelling is a flag.  Nearly all our timeouts are
+ * refreshed or cancelled before they fire, which is exactly the case a
+ * wheel handles well and a priority queue handles badly.<p>
+ *
+ * Tasks run on the timer thread, so they need to be quick.  Timeouts fire
+ * up to one tick late.
+ */
+public final class HashedWheelTimer
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private final long m_tickNanos;
+
+    /**
+     * The buckets.  Only the timer thread touches these.
+     */
+    private final List<Timeout>[] m_wheel;
+
+    private final int m_mask;
+
+    /**
+     * Timeouts waiting for the timer thread to put them in a bucket.
+     */
+    private final Queue<Timeout> m_pending =
+        new ConcurrentLinkedQueue<Timeout>();
+
+    private final AtomicBoolean m_started = new AtomicBoolean(false);
+
+    private volatile boolean m_stopped;
+
+    private final Thread m_thread;
+
+    private volatile long m_startNanos;
+
+    /**
+     * The tick the timer thread is working on.
+     */
+    private long m_tick;
+
+    /**
+     * Creates a new timer with a 100 millisecond tick and 512 buckets.
+     */
+    public HashedWheelTimer()
+        {
+        this(100, TimeUnit.MILLISECONDS, 512, "TURN-Timer");
+        }
+
+    /**
+     * Creates a new timer.  The thread starts with the first timeout.
+     *
+     * @param tickDuration How long each tick is.
+     * @param unit The unit of the tick duration.
+     * @param ticksPerWheel The number of buckets, which is rounded up to a
+     * power of two.
+     * @param name The name of the timer thread.
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(final long tickDuration, final TimeUnit unit,
+        final int ticksPerWheel, final String name)
+        {
+        if (tickDuration <= 0)
+            {
+            throw new IllegalArgumentException("Bad tick: " + tickDuration);
+            }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+            {
+            throw new IllegalArgumentException(
+                "Bad wheel size: " + ticksPerWheel);
+            }
+        this.m_tickNanos = unit.toNanos(tickDuration);
+        int size = 1;
+        while (size < ticksPerWheel)
+            {
+            size <<= 1;
+            }
+        this.m_wheel = new List[size];
+        for (int i = 0; i < size; i++)
+            {
+            this.m_wheel[i] = new ArrayList<Timeout>();
+            }
+        this.m_mask = size - 1;
+        this.m_thread = new DaemonThreadFactory(name).newThread(new Runnable()
+            {
+            public void run()
+                {
+                runWheel();
+                }
+            });
+        }
+
+    /**
+     * Schedules a task to run once after the specified delay.
+     *
+     * @param task The task to run on the timer thread.
+     * @param delay The delay.
+     * @param unit The unit of the delay.
+     * @return The timeout, for cancelling the task.
+     */
+    public Timeout schedule(final Runnable task, final long delay,
+        final TimeUnit unit)
+        {
+        if (this.m_stopped)
+            {
+            throw new IllegalStateException("Timer stopped");
+            }
+        start();
+        final Timeout timeout = new Timeout(task,
+            System.nanoTime() + unit.toNanos(Math.max(delay, 0)));
+        this.m_pending.add(timeout);
+        return timeout;
+        }
+
+    /**
+     * Stops the timer.  Timeouts that haven't fired never will.
+     */
+    public void stop()
+        {
+        this.m_stopped = true;
+        this.m_thread.interrupt();
+        }
+
+    private void start()
+        {
+        if (this.m_started.compareAndSet(false, true))
+            {
+            this.m_startNanos = System.nanoTime();
+            this.m_thread.start();
+            }
+        }
+
+    private void runWheel()
+        {
+        while (!this.m_stopped)
+            {
+            if (!waitForTick())
+                {
+                break;
+                }
+            transferPending();
+            expire(this.m_wheel[(int) (this.m_tick & this.m_mask)]);
+            this.m_tick++;
+            }
+        }
+
+    private boolean waitForTick()
+        {
+        final long deadline =
+            this.m_startNanos + (this.m_tick + 1) * this.m_tickNanos;
+        while (true)
+            {
+            final long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos <= 0)
+                {
+                return true;
+                }
+            try
+                {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos) + 1);
+                }
+            catch (final InterruptedException e)
+                {
+                if (this.m_stopped)
+                    {
+                    return false;
+                    }
+                }
+            }
+        }
+
+    private void transferPending()
+        {
+        while (true)
+            {
+            final Timeout timeout = this.m_pending.poll();
+            if (timeout == null)
+                {
+                return;
+                }
+            if (timeout.isCancelled())
+                {
+                continue;
+                }
+
+            // Anything already due goes in the bucket we're about to expire.
+            final long ticks = Math.max(this.m_tick,
+                (timeout.m_deadline - this.m_startNanos) / this.m_tickNanos);
+            timeout.m_rounds = (ticks - this.m_tick) / this.m_wheel.length;
+            this.m_wheel[(int) (ticks & this.m_mask)].add(timeout);
+            }
+        }
+
+    private void expire(final List<Timeout> bucket)
+        {
+        final Iterator<Timeout> iter = bucket.iterator();
+        while (iter.hasNext())
+            {
+            final Timeout timeout = iter.next();
+            if (timeout.isCancelled())
+                {
+                iter.remove();
+                }
+            else if (timeout.m_rounds <= 0)
+                {
+                iter.remove();
+                timeout.expire();
+                }
+            else
+                {
+                timeout.m_rounds--;
+                }
+            }
+        }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout
+        {
+
+        private static final int STATE_WAITING = 0;
+
+        private static final int STATE_CANCELLED = 1;
+
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable m_task;
+
+        private final long m_deadline;
+
+        private final AtomicInteger m_state =
+            new AtomicInteger(STATE_WAITING);
+
+        /**
+         * The number of times the wheel has to go around before this is
+         * due.  Only the timer thread touches this.
+         */
+        private long m_rounds;
+
+        private Timeout(final Runnable task, final long deadline)
+            {
+            this.m_task = task;
+            this.m_deadline = deadline;
+            }
+
+        /**
+         * Cancels the task.
+         *
+         * @return <code>true</code> if the task was cancelled, or
+         * <code>false</code> if it already ran or was already cancelled.
+         */
+        public boolean cancel()
+            {
+            return this.m_state.compareAndSet(STATE_WAITING, STATE_CANCELLED);
+            }
+
+        /**
+         * Returns whether the task was cancelled.
+         *
+         * @return <code>true</code> if the task was cancelled.
+         */
+        public boolean isCancelled()
+            {
+            return this.m_state.get() == STATE_CANCELLED;
+            }
+
+        /**
+         * Returns whether the task has run.
+         *
+         * @return <code>true</code> if the task has run.
+         */
+        public boolean isExpired()
+            {
+            return this.m_state.get() == STATE_EXPIRED;
+            }
+
+        private void expire()
+            {
+            if (!this.m_state.compareAndSet(STATE_WAITING, STATE_EXPIRED))
+                {
+                return;
+                }
+            try
+                {
+                this.m_task.run();
+                }
+            catch (final Throwable t)
+                {
+                LOG.warn("Timer task failed", t);
+                }
+            }
+        }
+    }
@@ -0,0 +1,80 @@
+package org.lastbamboo.common.turn.server.timer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes sessions that have had no traffic in either direction for a given
+ * time.  This replaces MINA's idle events, which poll every session on
+ * every pass of the I/O processor.  Each watched session instead has a
+ * single timeout on a shared {@link HashedWheelTimer}.  Traffic doesn't
+ * touch the timeout at all -- when it fires, it compares the session's last
+ * I/O time with the idle time and either closes the session or reschedules
+ * itself for the remainder.
+ */
+public final class SessionReaper
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SessionReaper.class);
+
+    private final HashedWheelTimer m_timer;
+
+    private final long m_idleMillis;
+
+    /**
+     * Creates a new reaper.
+     *
+     * @param timer The timer to use.
+     * @param idleMillis How long sessions can go without traffic before we
+     * close them, in milliseconds.
+     */
+    public SessionReaper(final HashedWheelTimer timer, final long idleMillis)
+        {
+        this.m_timer = timer;
+        this.m_idleMillis = idleMillis;
+        }
+
+    /**
+     * Starts watching the specified session.  We stop watching it when it
+     * closes.
+     *
+     * @param session The session.
+     */
+    public void watch(final IoSession session)
+        {
+        schedule(session, this.m_idleMillis);
+        }
+
+    private void schedule(final IoSession session, final long delayMillis)
+        {
+        this.m_timer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                check(session);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+    private void check(final IoSession session)
+        {
+        if (!session.isConnected())
+            {
+            return;
+            }
+        final long idle = System.currentTimeMillis() - session.getLastIoTime();
+        if (idle < this.m_idleMillis)
+            {
+            schedule(session, this.m_idleMillis - idle);
+            }
+        else
+            {
+            LOG.debug("Closing idle session: {}", session);
+            session.close();
+            }
+        }
+    }
@@ -0,0 +1,72 @@
+package org.lastbamboo.common.turn.server;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+
+/**
+ * Tests deciding whether we have room for new allocations.
+ */
+public final class AdmissionControllerTest extends TestCase
+    {
+
+    private final HashedWheelTimer m_timer = new HashedWheelTimer();
+
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    /**
+     * Tests that we refuse allocations at the limit.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testAllocationLimit() throws Exception
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setMaxAllocations(2);
+        final AdmissionController admission =
+            new AdmissionController(config, m_timer);
+        assertNull(admission.admit(0));
+        assertNull(admission.admit(1));
+        assertEquals("allocations", admission.admit(2));
+        assertEquals("allocations", admission.admit(3));
+        }
+
+    /**
+     * Tests that thresholds of 0 turn the signals off, however loaded we
+     * look.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testThresholdsOff() throws Exception
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setMaxFdUsage(0);
+        config.setMaxHeapUsage(0);
+        config.setMaxLagMillis(0);
+        final AdmissionController admission =
+            new AdmissionController(config, m_timer);
+        admission.start();
+        Thread.sleep(2500);
+        admission.stop();
+        assertNull(admission.getOverload());
+        assertNull(admission.admit(Integer.MAX_VALUE - 1));
+        }
+
+    /**
+     * Tests that every signal is off unless it's configured.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testOffByDefault() throws Exception
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        assertEquals(0, config.getMaxAllocations());
+        assertEquals(0, config.getMaxFdUsage());
+        assertEquals(0, config.getMaxHeapUsage());
+        assertEquals(0, config.getMaxDirectMemory());
+        assertEquals(0, config.getMaxLagMillis());
+        }
+    }
@@ -0,0 +1,119 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.turn.stub.RecordingSession;
+import org.littleshoot.mina.common.TransportType;
+
+/**
+ * Tests suspending and resuming reads as the sessions we write to back up
+ * and drain.
+ */
+public final class FlowControllerTest extends TestCase
+    {
+
+    private final FlowController m_flowController =
+        new FlowController(1000, 100);
+
+    private final RecordingSession m_reader =
+        new RecordingSession(new InetSocketAddress("43.43.2.1", 5332));
+
+    private final RecordingSession m_writer =
+        new RecordingSession(new InetSocketAddress("1.1.1.1", 5332));
+
+    /**
+     * Tests that reads are only suspended once the writer passes the high
+     * water mark, and only once while it stays there.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testHighWaterMark() throws Exception
+        {
+        this.m_writer.setScheduledWriteBytes(1000);
+        this.m_flowController.writeScheduled(this.m_reader, this.m_writer);
+        assertFalse(this.m_reader.isReadSuspended());
+        assertEquals(0, this.m_flowController.getSuspensions());
+
+        this.m_writer.setScheduledWriteBytes(1001);
+        this.m_flowController.writeScheduled(this.m_reader, this.m_writer);
+        this.m_flowController.writeScheduled(this.m_reader, this.m_writer);
+        assertTrue(this.m_reader.isReadSuspended());
+        assertEquals(1, this.m_reader.getSuspensions());
+        assertEquals(1, this.m_flowController.getSuspensions());
+        assertEquals(1, this.m_flowController.getSuspendedSessions());
+        }
+
+    /**
+     * Tests that reads resume on a sent message only once the writer drains
+     * to the low water mark.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testLowWaterMark() throws Exception
+        {
+        this.m_writer.setScheduledWriteBytes(2000);
+        this.m_flowController.writeScheduled(this.m_reader, this.m_writer);
+        assertTrue(this.m_reader.isReadSuspended());
+
+        this.m_writer.setScheduledWriteBytes(101);
+        FlowController.messageSent(this.m_writer);
+        assertTrue(this.m_reader.isReadSuspended());
+        assertEquals(0, this.m_reader.getResumptions());
+
+        this.m_writer.setScheduledWriteBytes(100);
+        FlowController.messageSent(this.m_writer);
+        FlowController.messageSent(this.m_writer);
+        assertFalse(this.m_reader.isReadSuspended());
+        assertEquals(1, this.m_reader.getResumptions());
+        assertEquals(1, this.m_flowController.getResumptions());
+        assertEquals(0, this.m_flowController.getSuspendedSessions());
+
+        // The writer backing up again suspends the reader again.
+        this.m_writer.setScheduledWriteBytes(2000);
+        this.m_flowController.writeScheduled(this.m_reader, this.m_writer);
+        assertTrue(this.m_reader.isReadSuspended());
+        assertEquals(2, this.m_reader.getSuspensions());
+        }
+
+    /**
+     * Tests that reads resume when the writer closes, however much it still
+     * has queued.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testResumeOnClose() throws Exception
+        {
+        final RecordingSession otherReader =
+            new RecordingSession(new InetSocketAddress("43.43.2.2", 5332));
+        this.m_writer.setScheduledWriteBytes(2000);
+        this.m_flowController.writeScheduled(this.m_reader, this.m_writer);
+        this.m_flowController.writeScheduled(otherReader, this.m_writer);
+        assertEquals(2, this.m_flowController.getSuspendedSessions());
+
+        FlowController.sessionClosed(this.m_writer);
+        assertFalse(this.m_reader.isReadSuspended());
+        assertFalse(otherReader.isReadSuspended());
+        assertEquals(2, this.m_flowController.getResumptions());
+        assertEquals(0, this.m_flowController.getSuspendedSessions());
+        }
+
+    /**
+     * Tests that we never suspend UDP sessions, or suspend anything with
+     * no high water mark.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testNeverSuspended() throws Exception
+        {
+        final RecordingSession datagramReader = new RecordingSession(
+            new InetSocketAddress("43.43.2.1", 5332), TransportType.DATAGRAM);
+        this.m_writer.setScheduledWriteBytes(2000);
+        this.m_flowController.writeScheduled(datagramReader, this.m_writer);
+        assertFalse(datagramReader.isReadSuspended());
+
+        new FlowController(0, 0).writeScheduled(this.m_reader, this.m_writer);
+        assertFalse(this.m_reader.isReadSuspended());
+        }
+    }
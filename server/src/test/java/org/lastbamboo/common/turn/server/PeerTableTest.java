@@ -0,0 +1,89 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.turn.stub.IoSessionStub;
+
+/**
+ * Tests the table of connections to remote hosts.
+ */
+public final class PeerTableTest extends TestCase
+    {
+
+    /**
+     * Tests that keys read from address attributes match keys created from
+     * socket addresses.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testKeys() throws Exception
+        {
+        final InetSocketAddress v4 = new InetSocketAddress("43.43.2.1", 5332);
+        final PeerKey key = new PeerKey();
+        assertTrue(key.set(new byte[] {0, 1, 0x14, (byte) 0xd4, 43, 43, 2, 1},
+            8));
+        assertEquals(new PeerKey(v4), key);
+        assertEquals(v4, key.toSocketAddress());
+
+        final InetSocketAddress v6 = new InetSocketAddress(
+            InetAddress.getByName("2001:db8::1"), 80);
+        final byte[] value = new byte[20];
+        value[1] = 2;
+        value[3] = 80;
+        System.arraycopy(v6.getAddress().getAddress(), 0, value, 4, 16);
+        assertTrue(key.set(value, 20));
+        assertEquals(new PeerKey(v6), key);
+        assertEquals(v6, key.toSocketAddress());
+
+        assertFalse(key.set(value, 8));
+        assertFalse(new PeerKey(v4).matches(new PeerKey(
+            new InetSocketAddress("43.43.2.1", 5333))));
+        }
+
+    /**
+     * Tests adding, finding and removing connections.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testPutGetRemove() throws Exception
+        {
+        final PeerTable table = new PeerTable();
+        final InetSocketAddress[] hosts = new InetSocketAddress[100];
+        final IoSession[] sessions = new IoSession[hosts.length];
+        for (int i = 0; i < hosts.length; i++)
+            {
+            hosts[i] = new InetSocketAddress("10.0.0." + i, 1000 + i);
+            sessions[i] = new IoSessionStub(hosts[i]);
+            assertNull(table.put(hosts[i], sessions[i]));
+            }
+        assertEquals(hosts.length, table.size());
+        for (int i = 0; i < hosts.length; i++)
+            {
+            assertSame(sessions[i], table.get(hosts[i]));
+            assertSame(sessions[i], table.get(new PeerKey(hosts[i])));
+            }
+        assertNull(table.get(new InetSocketAddress("10.0.0.1", 999)));
+
+        final IoSession replacement = new IoSessionStub(hosts[0]);
+        assertSame(sessions[0], table.put(hosts[0], replacement));
+        assertFalse(table.remove(hosts[0], sessions[0]));
+        assertTrue(table.remove(hosts[0], replacement));
+        assertNull(table.get(hosts[0]));
+
+        for (int i = 1; i < hosts.length; i += 2)
+            {
+            assertSame(sessions[i], table.remove(hosts[i]));
+            }
+        assertEquals(hosts.length / 2 - 1, table.size());
+        for (int i = 2; i < hosts.length; i += 2)
+            {
+            assertSame(sessions[i], table.get(hosts[i]));
+            assertNull(table.get(hosts[i - 1]));
+            }
+        assertEquals(table.size(), table.toMap().size());
+        }
+    }
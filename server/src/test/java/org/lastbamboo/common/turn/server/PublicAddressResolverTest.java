@@ -0,0 +1,120 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+
+/**
+ * Tests waiting for the server's public address.
+ */
+public final class PublicAddressResolverTest extends TestCase
+    {
+
+    private final HashedWheelTimer m_timer = new HashedWheelTimer();
+
+    private final List<String> m_ran = new ArrayList<String>();
+
+    private PublicAddressResolver m_resolver;
+
+    protected void setUp() throws Exception
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setPublicAddressTimeout(1);
+        this.m_resolver = new PublicAddressResolver(config, this.m_timer);
+        }
+
+    protected void tearDown() throws Exception
+        {
+        this.m_resolver.stop();
+        this.m_timer.stop();
+        }
+
+    /**
+     * Tests that tasks run in the order they started waiting, including
+     * tasks that start waiting while the earlier ones run, and that tasks
+     * run right away once they're all done.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testOrder() throws Exception
+        {
+        this.m_resolver.whenResolved(new Runnable()
+            {
+            public void run()
+                {
+                m_ran.add("first");
+                m_resolver.whenResolved(task("third"), task("expired"));
+                }
+            }, task("expired"));
+        this.m_resolver.whenResolved(task("second"), task("expired"));
+        assertTrue(this.m_ran.isEmpty());
+        assertEquals(2, this.m_resolver.getWaiting());
+
+        this.m_resolver.resolved(InetAddress.getByName("1.1.1.1"));
+        assertEquals(Arrays.asList("first", "second", "third"), this.m_ran);
+        assertEquals(0, this.m_resolver.getWaiting());
+
+        this.m_resolver.whenResolved(task("fourth"), task("expired"));
+        assertEquals("fourth", this.m_ran.get(3));
+        }
+
+    /**
+     * Tests that tasks give up after the lookup timeout, and don't run
+     * once we find the address.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testExpiry() throws Exception
+        {
+        this.m_resolver.whenResolved(task("task"), task("expired"));
+        Thread.sleep(1500);
+        synchronized (this.m_ran)
+            {
+            assertEquals(Arrays.asList("expired"), this.m_ran);
+            }
+        assertEquals(0, this.m_resolver.getWaiting());
+
+        this.m_resolver.resolved(InetAddress.getByName("1.1.1.1"));
+        synchronized (this.m_ran)
+            {
+            assertEquals(1, this.m_ran.size());
+            }
+        }
+
+    /**
+     * Tests that tasks give up right away once too many are waiting.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testTooManyWaiting() throws Exception
+        {
+        for (int i = 0; i < PublicAddressResolver.MAX_WAITING; i++)
+            {
+            this.m_resolver.whenResolved(task("task"), task("expired"));
+            }
+        assertTrue(this.m_ran.isEmpty());
+        this.m_resolver.whenResolved(task("task"), task("expired"));
+        assertEquals(Arrays.asList("expired"), this.m_ran);
+        assertEquals(PublicAddressResolver.MAX_WAITING,
+            this.m_resolver.getWaiting());
+        }
+
+    private Runnable task(final String name)
+        {
+        return new Runnable()
+            {
+            public void run()
+                {
+                synchronized (m_ran)
+                    {
+                    m_ran.add(name);
+                    }
+                }
+            };
+        }
+    }
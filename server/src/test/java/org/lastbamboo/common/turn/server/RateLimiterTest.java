@@ -0,0 +1,139 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.TransportType;
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.lastbamboo.common.turn.stub.RecordingSession;
+
+/**
+ * Tests the bandwidth limits for relayed data.
+ */
+public final class RateLimiterTest extends TestCase
+    {
+
+    private final HashedWheelTimer m_timer = new HashedWheelTimer();
+
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    /**
+     * Tests that TCP data over the limits is relayed but pauses reads.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testTcpPauses() throws Exception
+        {
+        final RateLimiter limiter = new RateLimiter(m_timer, 0, 0, 1000, 100);
+        final RecordingSession client =
+            new RecordingSession(new InetSocketAddress("1.1.1.1", 5332));
+        final IoSession peer =
+            new RecordingSession(new InetSocketAddress("43.43.2.1", 5332));
+
+        // A tenth of a second of data fits in the burst.
+        assertTrue(limiter.toPeer(client, peer, 100));
+        assertEquals(0, limiter.getPauses());
+        assertTrue(limiter.toPeer(client, peer, 1000));
+        assertEquals(1, limiter.getPauses());
+        assertTrue(client.isReadSuspended());
+
+        // Reads are already paused, and the other direction has its own
+        // buckets.
+        assertTrue(limiter.toPeer(client, peer, 1000));
+        assertEquals(1, limiter.getPauses());
+        assertTrue(limiter.toClient(peer, client, 100));
+        assertEquals(1, limiter.getPauses());
+        assertEquals(1, client.getSuspensions());
+        assertEquals(0, limiter.getDrops());
+        }
+
+    /**
+     * Tests that UDP data over the limits is dropped without charging the
+     * buckets, and that changing the rates applies right away.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testUdpDrops() throws Exception
+        {
+        final RateLimiter limiter = new RateLimiter(m_timer, 0, 1000, 0, 100);
+        final IoSession client = new RecordingSession(
+            new InetSocketAddress("1.1.1.1", 5332), TransportType.DATAGRAM);
+        final IoSession peer = new RecordingSession(
+            new InetSocketAddress("43.43.2.1", 5332), TransportType.DATAGRAM);
+
+        assertTrue(limiter.toClient(peer, client, 100));
+        assertFalse(limiter.toClient(peer, client, 100));
+        assertFalse(limiter.toClient(peer, client, 100));
+        assertEquals(2, limiter.getDrops());
+        assertEquals(0, limiter.getPauses());
+
+        limiter.setClientRate(0);
+        assertTrue(limiter.toClient(peer, client, 100000));
+        limiter.setGlobalRate(1000);
+        assertFalse(limiter.toPeer(client, peer, 1000));
+        assertEquals(3, limiter.getDrops());
+        }
+
+    /**
+     * Tests that reads stay suspended until both the rate limiter and the
+     * flow controller are done holding them back.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSharedSuspension() throws Exception
+        {
+        final RateLimiter limiter = new RateLimiter(m_timer, 0, 0, 10000, 0);
+        final FlowController flowController = new FlowController(1000, 100);
+        final RecordingSession client =
+            new RecordingSession(new InetSocketAddress("1.1.1.1", 5332));
+        final RecordingSession peer =
+            new RecordingSession(new InetSocketAddress("43.43.2.1", 5332));
+
+        // The flow controller suspends reads first, and the rate limiter's
+        // pause ends while the peer is still backed up.
+        peer.setScheduledWriteBytes(2000);
+        flowController.writeScheduled(client, peer);
+        assertTrue(limiter.toPeer(client, peer, 100));
+        assertEquals(1, limiter.getPauses());
+        waitForResumptions(client, 0);
+        assertTrue(client.isReadSuspended());
+        assertEquals(1, client.getSuspensions());
+
+        peer.setScheduledWriteBytes(0);
+        FlowController.messageSent(peer);
+        assertFalse(client.isReadSuspended());
+
+        // Now the rate limiter suspends reads first, and outlasts the
+        // flow controller.
+        assertTrue(limiter.toPeer(client, peer, 1000));
+        peer.setScheduledWriteBytes(2000);
+        flowController.writeScheduled(client, peer);
+        peer.setScheduledWriteBytes(0);
+        FlowController.messageSent(peer);
+        assertTrue(client.isReadSuspended());
+        waitForResumptions(client, 2);
+        assertFalse(client.isReadSuspended());
+        assertEquals(2, client.getSuspensions());
+        }
+
+    /**
+     * Waits long enough for the rate limiter's pauses to end, checking
+     * there's been no more than the expected number of resumptions by then.
+     */
+    private static void waitForResumptions(final RecordingSession session,
+        final int resumptions) throws InterruptedException
+        {
+        Thread.sleep(300);
+        for (int i = 0; i < 20 && session.getResumptions() < resumptions;
+            i++)
+            {
+            Thread.sleep(100);
+            }
+        assertEquals(resumptions, session.getResumptions());
+        }
+    }
@@ -0,0 +1,120 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.turn.server.allocated.DefaultAllocatedTurnServerFactory;
+import org.lastbamboo.common.turn.server.allocated.TurnRawDataFilter;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.lastbamboo.common.turn.stub.IoSessionStub;
+import org.lastbamboo.common.turn.stub.RecordingSession;
+import org.littleshoot.util.NetworkUtils;
+
+/**
+ * Tests the class that handles services for a single TURN client.
+ */
+public final class TurnClientImplTest extends TestCase
+    {
+    
+    private HashedWheelTimer m_timer;
+    
+    protected void setUp() throws Exception
+        {
+        this.m_timer = new HashedWheelTimer();
+        }
+    
+    protected void tearDown() throws Exception
+        {
+        this.m_timer.stop();
+        }
+    
+    /**
+     * Test to make sure the TURN client responds appropriately to socket 
+     * closings.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testCloseHandling() throws Exception
+        {
+        final IoSession readerWriter = new IoSessionStub();
+        final TurnClientImpl turnClient = 
+            new TurnClientImpl(NetworkUtils.getLocalHost(), readerWriter,
+                new DefaultAllocatedTurnServerFactory(this.m_timer),
+                new PermissionTable(this.m_timer, 300 * 1000),
+                new FlowController(0, 0), 
+                new RateLimiter(this.m_timer, 0, 0, 0, 0),
+                new TurnMetrics());
+        
+        final InetSocketAddress remoteHostAddress = 
+            new InetSocketAddress(NetworkUtils.getLocalHost(), 5342);
+        final IoSession remoteHostIoSession = 
+            new IoSessionStub(remoteHostAddress);
+        
+        // Just do this to add permissions for the host.
+        turnClient.handleConnect(remoteHostAddress);
+        
+        turnClient.addConnection(remoteHostIoSession);
+        
+        final ByteBuffer data = ByteBuffer.allocate(10);
+        assertTrue(turnClient.write(remoteHostAddress, data));
+        
+        //remoteHostIoSession.close();
+        
+        turnClient.removeConnection(remoteHostIoSession);
+        
+        assertFalse(turnClient.write(remoteHostAddress, data));
+        }
+    
+    /**
+     * Tests the range of channel numbers we accept, and binding channels
+     * again.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testBindChannel() throws Exception
+        {
+        final TurnClientImpl turnClient = 
+            new TurnClientImpl(NetworkUtils.getLocalHost(), 
+                new RecordingSession(new InetSocketAddress("1.1.1.1", 5332)),
+                new DefaultAllocatedTurnServerFactory(this.m_timer),
+                new PermissionTable(this.m_timer, 300 * 1000),
+                new FlowController(0, 0), 
+                new RateLimiter(this.m_timer, 0, 0, 0, 0),
+                new TurnMetrics());
+        final InetSocketAddress remoteHostAddress = 
+            new InetSocketAddress(NetworkUtils.getLocalHost(), 5342);
+        final InetSocketAddress otherAddress = 
+            new InetSocketAddress(NetworkUtils.getLocalHost(), 5343);
+        final int min = TurnWireFormat.MIN_CHANNEL;
+        final int max = TurnWireFormat.MAX_CHANNEL;
+        
+        assertFalse(turnClient.bindChannel(min - 1, remoteHostAddress));
+        assertFalse(turnClient.bindChannel(max + 1, remoteHostAddress));
+        assertFalse(turnClient.bindChannel(0xFFFF, remoteHostAddress));
+        assertTrue(turnClient.bindChannel(min, remoteHostAddress));
+        
+        // Binding again refreshes the binding, but neither the channel nor
+        // the remote host can move to another binding.
+        assertTrue(turnClient.bindChannel(min, remoteHostAddress));
+        assertFalse(turnClient.bindChannel(min, otherAddress));
+        assertFalse(turnClient.bindChannel(max, remoteHostAddress));
+        assertTrue(turnClient.bindChannel(max, otherAddress));
+        
+        // Once the remote host connects, data both ways uses the channel.
+        final RecordingSession remoteHostIoSession = 
+            new RecordingSession(remoteHostAddress);
+        turnClient.addConnection(remoteHostIoSession);
+        assertEquals(Integer.valueOf(min), remoteHostIoSession.getAttribute(
+            TurnRawDataFilter.CHANNEL_ATTRIBUTE));
+        assertTrue(turnClient.writeChannel(min, ByteBuffer.allocate(10)));
+        assertEquals(1, remoteHostIoSession.getWritten().size());
+        
+        final ByteBuffer data = ByteBuffer.allocate(10);
+        assertFalse(turnClient.writeChannel(min + 1, data));
+        }
+    
+    }
@@ -2,6 +2,7 @@ package org.lastbamboo.common.turn.server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 
@@ -11,6 +12,7 @@ import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.IoSession;
 import org.lastbamboo.common.amazon.ec2.AmazonEc2Utils;
 import org.lastbamboo.common.turn.stub.IoSessionStub;
+import org.lastbamboo.common.turn.stub.RecordingSession;
 import org.littleshoot.util.NetworkUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,12 +32,15 @@ public final class TurnClientManagerImplTest extends TestCase
      */
     public void testRemoveBinding() throws Exception
         {
+        // A configured address means we don't wait on a metadata lookup.
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setPublicAddress("127.0.0.1");
         final TurnClientManagerImpl clientManager = 
-            new TurnClientManagerImpl();
+            new TurnClientManagerImpl(config);
         
         final InetSocketAddress host =
             new InetSocketAddress("1.1.1.1", 5332);
-        final IoSession session = new IoSessionStub(host); 
+        final IoSession session = new RecordingSession(host); 
         final TurnClient client = clientManager.allocateBinding(session);
 
         final InetSocketAddress host0 =
@@ -87,6 +92,71 @@ public final class TurnClientManagerImplTest extends TestCase
         //connectToServer(client.getAllocatedSocketAddress());
 
         //assertEquals(0, removedClient.getNumConnections());
+        clientManager.stop();
+        }
+    
+    /**
+     * Tests that an allocation for a session that's already closed is
+     * undone, since the session won't close again to remove it.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testAllocateClosedSession() throws Exception
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setPublicAddress("127.0.0.1");
+        final TurnClientManagerImpl clientManager = 
+            new TurnClientManagerImpl(config);
+        
+        // The session closes and removes its binding before the Allocate
+        // Request gets the shard's lock.
+        final IoSession session = 
+            new RecordingSession(new InetSocketAddress("1.1.1.1", 5332));
+        session.close();
+        assertNull(clientManager.removeBinding(session));
+        
+        assertNull(clientManager.allocateBinding(session));
+        assertNull(clientManager.getTurnClient(session));
+        assertEquals(0, clientManager.getNumTurnClients());
+        clientManager.stop();
+        }
+    
+    /**
+     * Tests that failing to bind a relay port fails the allocation rather
+     * than handing out a client with no relay address.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testBindFailure() throws Exception
+        {
+        // A range of a single port runs out after one allocation.
+        final ServerSocket socket = new ServerSocket(0);
+        final int port = socket.getLocalPort();
+        socket.close();
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setPublicAddress("127.0.0.1");
+        config.setRelayPortMin(port);
+        config.setRelayPortMax(port);
+        final TurnClientManagerImpl clientManager = 
+            new TurnClientManagerImpl(config);
+        
+        assertNotNull(clientManager.allocateBinding(
+            new RecordingSession(new InetSocketAddress("1.1.1.1", 5332))));
+        final IoSession session = 
+            new RecordingSession(new InetSocketAddress("1.1.1.2", 5332));
+        try
+            {
+            clientManager.allocateBinding(session);
+            fail("Should not have been able to bind a relay port");
+            }
+        catch (final IOException e)
+            {
+            // Expected.
+            }
+        assertNull(clientManager.getTurnClient(session));
+        assertEquals(1, clientManager.getNumTurnClients());
+        assertEquals(1, clientManager.getMetrics().getRefusedAllocations());
+        clientManager.stop();
         }
     
     private void connectToServerSuccess(
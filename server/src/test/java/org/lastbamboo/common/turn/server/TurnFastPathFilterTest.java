@@ -0,0 +1,604 @@
+package org.lastbamboo.common.turn.server;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.turn.server.buffer.SizeClassedByteBufferAllocator;
+import org.lastbamboo.common.turn.stub.NextFilterStub;
+import org.lastbamboo.common.turn.stub.RecordingSession;
+import org.lastbamboo.common.turn.stub.TurnClientManagerStub;
+import org.lastbamboo.common.turn.stub.TurnClientStub;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.littleshoot.mina.common.TransportType;
+
+/**
+ * Tests relaying Send Indications straight out of the read buffer.  The
+ * reads come from the pooled allocator so we can check every buffer makes
+ * it back.
+ */
+public final class TurnFastPathFilterTest extends TestCase
+    {
+
+    private static final InetSocketAddress PEER =
+        new InetSocketAddress("43.43.2.1", 5332);
+
+    /**
+     * A Binding Request, which the decoder handles.
+     */
+    private static final byte[] BINDING_REQUEST = message(0x0001,
+        new byte[] {(byte) 0x80, 0x22, 0, 4, 't', 'e', 's', 't'});
+
+    private SizeClassedByteBufferAllocator m_allocator;
+
+    private RecordingSession m_session;
+
+    private TurnClientStub m_client;
+
+    private NextFilterStub m_decoder;
+
+    private TurnClientManagerStub m_manager;
+
+    private TurnFastPathFilter m_filter;
+
+    protected void setUp() throws Exception
+        {
+        this.m_allocator = new SizeClassedByteBufferAllocator(10000);
+        ByteBuffer.setAllocator(this.m_allocator);
+        newFilter();
+        }
+
+    protected void tearDown() throws Exception
+        {
+        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+        }
+
+    /**
+     * Tests relaying a Send Indication that arrives in a single read.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSendIndication() throws Exception
+        {
+        final byte[] data = data(100);
+        read(sendIndication(PEER, data, false, false));
+        assertTrue(Arrays.equals(data, this.m_client.getRelayed(PEER)));
+        assertEquals(0, this.m_decoder.getMessages().size());
+        assertReleased();
+        }
+
+    /**
+     * Tests that a Send Indication behind a message for the decoder waits
+     * for that message to be handled, since that may be what allocates
+     * the TURN client.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSendIndicationBehindDecoder() throws Exception
+        {
+        this.m_manager.setTurnClient(null);
+        final byte[] data = data(100);
+        final ByteBuffer in = wrap(
+            concat(BINDING_REQUEST, sendIndication(PEER, data, false, false)));
+        this.m_filter.messageReceived(this.m_decoder, this.m_session, in);
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertEquals(0, this.m_client.getWrites());
+
+        // Handling the request allocates the client.
+        this.m_manager.setTurnClient(this.m_client);
+        this.m_decoder.runTasks();
+        assertTrue(Arrays.equals(data, this.m_client.getRelayed(PEER)));
+        assertReleased();
+
+        // With nothing left for the decoder, we relay right away.
+        read(sendIndication(PEER, data, false, false));
+        assertEquals(0, this.m_decoder.getTasks());
+        assertEquals(2, this.m_client.getWrites());
+        assertReleased();
+        }
+
+    /**
+     * Tests that a Send Indication datagram right after a Connect Request
+     * is relayed once the Connect Request is handled.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSendIndicationAfterConnectOverUdp() throws Exception
+        {
+        newFilter(TransportType.DATAGRAM);
+        this.m_manager.setTurnClient(null);
+        final byte[] data = data(100);
+        this.m_filter.messageReceived(this.m_decoder, this.m_session,
+            wrap(BINDING_REQUEST));
+        this.m_filter.messageReceived(this.m_decoder, this.m_session,
+            wrap(sendIndication(PEER, data, false, false)));
+        assertEquals(0, this.m_client.getWrites());
+
+        this.m_manager.setTurnClient(this.m_client);
+        this.m_decoder.runTasks();
+        assertTrue(Arrays.equals(data, this.m_client.getRelayed(PEER)));
+        assertReleased();
+        }
+
+    /**
+     * Tests Send Indications between messages for the decoder, with the
+     * stream split at every possible point.  That covers the message
+     * header, an attribute header and the DATA value spanning reads.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSplitReads() throws Exception
+        {
+        final byte[] data = data(37);
+        final byte[] stream = concat(BINDING_REQUEST,
+            sendIndication(PEER, data, false, true), BINDING_REQUEST);
+        final byte[] decoded = concat(BINDING_REQUEST, BINDING_REQUEST);
+        for (int split = 1; split < stream.length; split++)
+            {
+            newFilter();
+            read(stream, split);
+            assertTrue("Split at " + split,
+                Arrays.equals(data, this.m_client.getRelayed(PEER)));
+            assertTrue("Split at " + split,
+                Arrays.equals(decoded, this.m_decoder.getBytes()));
+            }
+
+        newFilter();
+        final int[] splits = new int[stream.length - 1];
+        for (int i = 0; i < splits.length; i++)
+            {
+            splits[i] = i + 1;
+            }
+        read(stream, splits);
+        assertTrue(Arrays.equals(data, this.m_client.getRelayed(PEER)));
+        assertTrue(Arrays.equals(decoded, this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests DATA that arrives before the REMOTE-ADDRESS, which we have to
+     * hold on to until we know where it goes.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testDataBeforeRemoteAddress() throws Exception
+        {
+        final byte[] data = data(50);
+        final byte[] stream = concat(sendIndication(PEER, data, true, false),
+            BINDING_REQUEST);
+        read(stream, 30, 60);
+        assertTrue(Arrays.equals(data, this.m_client.getRelayed(PEER)));
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that DATA with no REMOTE-ADDRESS at all is dropped, and the
+     * copy we made goes back to the allocator.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testDataWithoutRemoteAddress() throws Exception
+        {
+        final byte[] data = data(50);
+        read(message(TurnWireFormat.SEND_INDICATION, attribute(
+            TurnWireFormat.DATA, data, false)));
+        assertEquals(0, this.m_client.getWrites());
+        assertReleased();
+        }
+
+    /**
+     * Tests that closing the session partway through DATA we're holding
+     * hands the copy back.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testClosedWithPendingData() throws Exception
+        {
+        final byte[] stream = sendIndication(PEER, data(50), true, false);
+        read(Arrays.copyOf(stream, 40));
+        this.m_filter.sessionClosed(this.m_decoder, this.m_session);
+        assertEquals(0, this.m_client.getWrites());
+        assertReleased();
+        }
+
+    /**
+     * Tests that we find the next message whether or not the encoder padded
+     * the DATA value.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testPadding() throws Exception
+        {
+        final byte[] data = data(5);
+        final byte[] stream = concat(
+            sendIndication(PEER, data, false, true), BINDING_REQUEST,
+            sendIndication(PEER, data, false, false), BINDING_REQUEST,
+            sendIndication(PEER, data, true, true), BINDING_REQUEST,
+            sendIndication(PEER, data, true, false), BINDING_REQUEST);
+        read(stream);
+        assertTrue(Arrays.equals(concat(data, data, data, data),
+            this.m_client.getRelayed(PEER)));
+        assertTrue(Arrays.equals(concat(BINDING_REQUEST, BINDING_REQUEST,
+            BINDING_REQUEST, BINDING_REQUEST), this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that an attribute claiming to be longer than its message skips
+     * the rest of the message without losing our place in the stream.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testBadAttributeLength() throws Exception
+        {
+        final ByteBuffer data = ByteBuffer.wrap(new byte[8]);
+        TurnWireFormat.putAttributeHeader(data, TurnWireFormat.DATA, 0x1000);
+        final byte[] body = concat(TurnWireFormat.encodeAddressAttribute(
+            TurnWireFormat.REMOTE_ADDRESS, PEER), data.array());
+        read(concat(message(TurnWireFormat.SEND_INDICATION, body),
+            BINDING_REQUEST), 25);
+        assertEquals(0, this.m_client.getWrites());
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests binding a channel with a ChannelBind request.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testChannelBind() throws Exception
+        {
+        final byte[] request = channelBind(0x4001, PEER);
+        read(request, 10, 30);
+        assertEquals(PEER, this.m_client.getChannel(0x4001));
+        assertResponse(request, TurnWireFormat.CHANNEL_BIND_SUCCESS_RESPONSE);
+        assertEquals(0, this.m_decoder.getMessages().size());
+        assertReleased();
+        }
+
+    /**
+     * Tests that a ChannelBind right behind an Allocate Request waits for
+     * the allocation instead of failing for want of a TURN client, and that
+     * channel data after it waits too.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testChannelBindBehindAllocate() throws Exception
+        {
+        this.m_manager.setTurnClient(null);
+        final byte[] request = channelBind(0x4001, PEER);
+        final byte[] data = data(20);
+        this.m_filter.messageReceived(this.m_decoder, this.m_session, wrap(
+            concat(BINDING_REQUEST, request, channelData(0x4001, data))));
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertEquals(0, this.m_session.getWritten().size());
+
+        this.m_manager.setTurnClient(this.m_client);
+        this.m_decoder.runTasks();
+        assertEquals(PEER, this.m_client.getChannel(0x4001));
+        assertResponse(request, TurnWireFormat.CHANNEL_BIND_SUCCESS_RESPONSE);
+        assertTrue(Arrays.equals(data, this.m_client.getRelayed(PEER)));
+        assertReleased();
+        }
+
+    /**
+     * Tests that a request too big to collect gets an error response, and
+     * the stream picks up after it.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testOversizedRequest() throws Exception
+        {
+        final byte[] request =
+            message(TurnWireFormat.CHANNEL_BIND_REQUEST, new byte[600]);
+        read(concat(request, BINDING_REQUEST), 100, 400);
+        assertResponse(request, TurnWireFormat.CHANNEL_BIND_ERROR_RESPONSE);
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests relaying ChannelData, which is padded over TCP, with the stream
+     * split at every possible point.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testChannelData() throws Exception
+        {
+        final byte[] data = data(5);
+        final byte[] stream = concat(BINDING_REQUEST,
+            channelData(0x4001, data), BINDING_REQUEST,
+            channelData(0x4001, data));
+        final byte[] decoded = concat(BINDING_REQUEST, BINDING_REQUEST);
+        for (int split = 1; split < stream.length; split++)
+            {
+            newFilter();
+            this.m_client.bindChannel(0x4001, PEER);
+            read(stream, split);
+            assertTrue("Split at " + split, Arrays.equals(concat(data, data),
+                this.m_client.getRelayed(PEER)));
+            assertTrue("Split at " + split,
+                Arrays.equals(decoded, this.m_decoder.getBytes()));
+            }
+        assertReleased();
+        }
+
+    /**
+     * Tests that ChannelData for a channel that isn't bound is dropped.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testUnboundChannel() throws Exception
+        {
+        read(concat(channelData(0x4002, data(5)), BINDING_REQUEST));
+        assertEquals(0, this.m_client.getWrites());
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that a Set Active Destination request splices everything after
+     * it to the remote host as is, with the stream split at every possible
+     * point.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSetActiveDestination() throws Exception
+        {
+        final byte[] request = setActiveDestination(PEER);
+
+        // Once spliced, even what looks like a TURN message is just data.
+        final byte[] data = concat(data(50),
+            sendIndication(PEER, data(10), false, false), BINDING_REQUEST);
+        final byte[] stream = concat(request, data);
+        for (int split = 1; split < stream.length; split++)
+            {
+            newFilter();
+            read(stream, split);
+            assertEquals(PEER, this.m_client.getActiveDestination());
+            assertResponse(request,
+                TurnWireFormat.SET_ACTIVE_DESTINATION_SUCCESS_RESPONSE);
+            assertTrue("Split at " + split,
+                Arrays.equals(data, this.m_client.getRelayed(PEER)));
+            assertEquals(0, this.m_decoder.getMessages().size());
+            }
+        assertReleased();
+        }
+
+    /**
+     * Tests that a Set Active Destination request behind a message for the
+     * decoder waits for it, holding the rest of the stream and any reads
+     * already on their way until we know whether to splice.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSetActiveDestinationBehindDecoder() throws Exception
+        {
+        this.m_manager.setTurnClient(null);
+        final byte[] request = setActiveDestination(PEER);
+        final byte[] first = data(50);
+        final byte[] second = concat(data(10), BINDING_REQUEST);
+        this.m_filter.messageReceived(this.m_decoder, this.m_session,
+            wrap(concat(BINDING_REQUEST, request, first)));
+        assertTrue(this.m_session.isReadSuspended());
+        this.m_filter.messageReceived(this.m_decoder, this.m_session,
+            wrap(second));
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertEquals(0, this.m_session.getWritten().size());
+        assertEquals(0, this.m_client.getWrites());
+
+        this.m_manager.setTurnClient(this.m_client);
+        this.m_decoder.runTasks();
+        assertFalse(this.m_session.isReadSuspended());
+        assertEquals(PEER, this.m_client.getActiveDestination());
+        assertResponse(request,
+            TurnWireFormat.SET_ACTIVE_DESTINATION_SUCCESS_RESPONSE);
+        assertTrue(Arrays.equals(concat(first, second),
+            this.m_client.getRelayed(PEER)));
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that a refused Set Active Destination request behind a message
+     * for the decoder hands the held stream back to the decoder.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testRefusedActiveDestinationBehindDecoder() throws Exception
+        {
+        this.m_manager.setTurnClient(null);
+        final byte[] request = setActiveDestination(PEER);
+        this.m_filter.messageReceived(this.m_decoder, this.m_session,
+            wrap(concat(BINDING_REQUEST, request, BINDING_REQUEST)));
+        this.m_decoder.runTasks();
+        assertFalse(this.m_session.isReadSuspended());
+        assertResponse(request,
+            TurnWireFormat.SET_ACTIVE_DESTINATION_ERROR_RESPONSE);
+        assertTrue(Arrays.equals(concat(BINDING_REQUEST, BINDING_REQUEST),
+            this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that we refuse to splice UDP, where there's no telling data
+     * from TURN messages.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSetActiveDestinationOverUdp() throws Exception
+        {
+        newFilter(TransportType.DATAGRAM);
+        final byte[] request = setActiveDestination(PEER);
+        read(request);
+        assertNull(this.m_client.getActiveDestination());
+        assertResponse(request,
+            TurnWireFormat.SET_ACTIVE_DESTINATION_ERROR_RESPONSE);
+        read(BINDING_REQUEST);
+        assertTrue(Arrays.equals(BINDING_REQUEST, this.m_decoder.getBytes()));
+        assertReleased();
+        }
+
+    /**
+     * Checks the only thing written to the TURN client is a response of
+     * the specified type to the request.
+     */
+    private void assertResponse(final byte[] request, final int type)
+        {
+        assertEquals(1, this.m_session.getWritten().size());
+        final byte[] response = this.m_session.send();
+        assertEquals(type, ((response[0] & 0xff) << 8) | (response[1] & 0xff));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(request, 4, 20),
+            Arrays.copyOfRange(response, 4, 20)));
+        }
+
+    private void newFilter()
+        {
+        newFilter(TransportType.SOCKET);
+        }
+
+    private void newFilter(final TransportType transportType)
+        {
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setZeroCopySend(true);
+        config.setChannelsEnabled(true);
+        config.setActiveDestinationEnabled(true);
+        this.m_session = new RecordingSession(
+            new InetSocketAddress("1.1.1.1", 5332), transportType);
+        this.m_client = new TurnClientStub(this.m_session);
+        this.m_decoder = new NextFilterStub();
+        this.m_manager = new TurnClientManagerStub(this.m_client);
+        this.m_filter = new TurnFastPathFilter(this.m_manager, config);
+        }
+
+    /**
+     * Passes the stream to the filter in separate reads, split at the
+     * specified indexes.  Anything the filter queues behind the decoder
+     * runs after each read.
+     */
+    private void read(final byte[] stream, final int... splits)
+        throws Exception
+        {
+        int start = 0;
+        for (int i = 0; i <= splits.length; i++)
+            {
+            final int end = i < splits.length ? splits[i] : stream.length;
+            final ByteBuffer in =
+                wrap(Arrays.copyOfRange(stream, start, end));
+            this.m_filter.messageReceived(this.m_decoder, this.m_session, in);
+            this.m_decoder.runTasks();
+            start = end;
+            }
+        }
+
+    /**
+     * Copies bytes into a read buffer from the pooled allocator.
+     */
+    private static ByteBuffer wrap(final byte[] bytes)
+        {
+        final ByteBuffer in = ByteBuffer.allocate(bytes.length);
+        in.put(bytes);
+        in.flip();
+        return in;
+        }
+
+    private void assertReleased()
+        {
+        // Every buffer the allocator has made should be back in the pool.
+        assertEquals(this.m_allocator.getMisses(),
+            this.m_allocator.getPooledBuffers());
+        }
+
+    private static byte[] sendIndication(final InetSocketAddress remoteHost,
+        final byte[] data, final boolean dataFirst, final boolean padded)
+        {
+        final byte[] address = TurnWireFormat.encodeAddressAttribute(
+            TurnWireFormat.REMOTE_ADDRESS, remoteHost);
+        final byte[] dataAttribute =
+            attribute(TurnWireFormat.DATA, data, padded);
+        return message(TurnWireFormat.SEND_INDICATION, dataFirst ?
+            concat(dataAttribute, address) : concat(address, dataAttribute));
+        }
+
+    static byte[] setActiveDestination(final InetSocketAddress destination)
+        {
+        return message(TurnWireFormat.SET_ACTIVE_DESTINATION_REQUEST,
+            TurnWireFormat.encodeAddressAttribute(
+                TurnWireFormat.REMOTE_ADDRESS, destination));
+        }
+
+    static byte[] channelBind(final int channel,
+        final InetSocketAddress peer)
+        {
+        final ByteBuffer number = ByteBuffer.wrap(new byte[4]);
+        number.putShort((short) channel);
+
+        // XOR-PEER-ADDRESS is XORed with the magic cookie, which is all of
+        // the header an IPv4 address needs.
+        final ByteBuffer address = ByteBuffer.wrap(new byte[8]);
+        address.put((byte) 0);
+        address.put((byte) 0x01);
+        address.putShort((short) (peer.getPort() ^ 0x2112));
+        address.putInt(ByteBuffer.wrap(
+            peer.getAddress().getAddress()).getInt() ^ 0x2112A442);
+        return message(TurnWireFormat.CHANNEL_BIND_REQUEST, concat(
+            attribute(TurnWireFormat.CHANNEL_NUMBER, number.array(), true),
+            attribute(TurnWireFormat.XOR_PEER_ADDRESS, address.array(),
+                true)));
+        }
+
+    static byte[] channelData(final int channel, final byte[] data)
+        {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[
+            TurnWireFormat.CHANNEL_HEADER_LENGTH + data.length +
+            TurnWireFormat.padding(data.length)]);
+        TurnWireFormat.putChannelHeader(buf, channel, data.length);
+        buf.put(data);
+        return buf.array();
+        }
+
+    static byte[] attribute(final int type, final byte[] value,
+        final boolean padded)
+        {
+        final int padding = padded ? TurnWireFormat.padding(value.length) : 0;
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[
+            TurnWireFormat.ATTRIBUTE_HEADER_LENGTH + value.length + padding]);
+        TurnWireFormat.putAttributeHeader(buf, type, value.length);
+        buf.put(value);
+        return buf.array();
+        }
+
+    static byte[] message(final int type, final byte[] body)
+        {
+        final ByteBuffer buf = ByteBuffer.wrap(
+            new byte[TurnWireFormat.HEADER_LENGTH + body.length]);
+        TurnWireFormat.putHeader(buf, type, body.length);
+        buf.put(body);
+        return buf.array();
+        }
+
+    static byte[] data(final int length)
+        {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            {
+            data[i] = (byte) (i + 1);
+            }
+        return data;
+        }
+
+    static byte[] concat(final byte[]... parts)
+        {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts)
+            {
+            out.write(part, 0, part.length);
+            }
+        return out.toByteArray();
+        }
+    }
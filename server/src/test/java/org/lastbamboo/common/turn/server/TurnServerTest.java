@@ -1,5 +1,6 @@
 package org.lastbamboo.common.turn.server;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,6 +26,7 @@ import org.littleshoot.stun.stack.message.attributes.StunAttributesFactoryImpl;
 import org.littleshoot.stun.stack.message.attributes.turn.DataAttribute;
 import org.littleshoot.stun.stack.message.attributes.turn.RelayAddressAttribute;
 import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
 import org.littleshoot.stun.stack.message.turn.SendIndication;
 import org.littleshoot.util.NetworkUtils;
 import org.littleshoot.util.mina.MinaUtils;
@@ -44,6 +46,8 @@ public final class TurnServerTest extends TestCase
 
     private TurnServer m_server;
 
+    private TurnClientManagerImpl m_clientManager;
+
     protected void setUp() throws Exception
         {
         if (m_turnClientSocket != null && m_server != null)
@@ -51,7 +55,12 @@ public final class TurnServerTest extends TestCase
             return;
             }
         
-        m_server = new TcpTurnServer();
+        // A configured address means we don't wait on a metadata lookup.
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setPublicAddress(NetworkUtils.getLocalHost().getHostAddress());
+        config.setChannelsEnabled(true);
+        m_clientManager = new TurnClientManagerImpl(config);
+        m_server = new TcpTurnServer(m_clientManager, config);
         m_server.start();
         Thread.sleep(2000);
         m_turnClientSocket = new Socket(NetworkUtils.getLocalHost(), 3478);
@@ -62,6 +71,7 @@ public final class TurnServerTest extends TestCase
         {
         m_turnClientSocket.close();
         m_server.stop();
+        m_clientManager.stop();
         }
 
     /**
@@ -121,6 +131,13 @@ public final class TurnServerTest extends TestCase
             (InetSocketAddress) remoteHostSocket.getLocalSocketAddress();
         LOG.debug("Bound to: "+remoteHostAddress);
 
+        // Give the remote host permission to connect.  The server tells us
+        // it's listening for the remote host.
+        write(m_turnClientSocket, new ConnectRequest(remoteHostAddress));
+        readMessage(m_turnClientSocket, 
+            StunMessageType.CONNECTION_STATUS_INDICATION,
+            StunAttributeType.CONNECT_STAT, 4);
+
         LOG.debug("Connecting to: "+relaySocketAddress.getAddress());
         assertTrue("Could not reach address: "+relaySocketAddress.getAddress(), 
                 relaySocketAddress.getAddress().isReachable(4000));
@@ -184,6 +201,33 @@ public final class TurnServerTest extends TestCase
         assertEquals(turnClientMessage.trim(), dataOnRemoteHost);
         }
 
+    /**
+     * Tests that a ChannelBind sent right behind the Allocate Request, 
+     * before the allocation exists, still binds the channel.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testChannelBindAfterAllocate() throws Exception
+        {
+        final byte[] allocate = 
+            MinaUtils.toByteArray(toByteBuffer(new AllocateRequest()));
+        final byte[] channelBind = TurnFastPathFilterTest.channelBind(0x4001,
+            new InetSocketAddress("43.43.2.1", 5332));
+        final OutputStream os = m_turnClientSocket.getOutputStream();
+        os.write(TurnFastPathFilterTest.concat(allocate, channelBind));
+        os.flush();
+        
+        readMessage(m_turnClientSocket, 
+            StunMessageType.ALLOCATE_SUCCESS_RESPONSE,
+            StunAttributeType.MAPPED_ADDRESS, 8);
+        final DataInputStream is = 
+            new DataInputStream(m_turnClientSocket.getInputStream());
+        final byte[] header = new byte[TurnWireFormat.HEADER_LENGTH];
+        is.readFully(header);
+        assertEquals(TurnWireFormat.CHANNEL_BIND_SUCCESS_RESPONSE,
+            ((header[0] & 0xff) << 8) | (header[1] & 0xff));
+        }
+
     private Map<StunAttributeType, StunAttribute> readMessage(
         final Socket socket, 
         final StunMessageType expectedMessageType, 
@@ -0,0 +1,49 @@
+package org.lastbamboo.common.turn.server;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+
+/**
+ * Tests framing the TURN messages we write without the STUN codec.
+ */
+public final class TurnWireFormatTest extends TestCase
+    {
+
+    /**
+     * Tests that an error response framed from a decoded request's
+     * transaction ID matches one framed from the encoded request.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testErrorResponseFromTransactionId() throws Exception
+        {
+        final UUID transactionId = UUID.randomUUID();
+        final ByteBuffer request =
+            ByteBuffer.allocate(TurnWireFormat.HEADER_LENGTH);
+        request.putShort((short) 0x0003);
+        request.putShort((short) 0);
+        request.putLong(transactionId.getMostSignificantBits());
+        request.putLong(transactionId.getLeastSignificantBits());
+        request.flip();
+
+        final byte[] attribute = new byte[] {0, 0x20, 0, 4, 1, 2, 3, 4};
+        final ByteBuffer expected = TurnWireFormat.newErrorResponse(request,
+            TurnWireFormat.ALLOCATE_ERROR_RESPONSE, 300, "Try Alternate",
+            attribute);
+        final ByteBuffer actual = TurnWireFormat.newErrorResponse(
+            transactionId, TurnWireFormat.ALLOCATE_ERROR_RESPONSE, 300,
+            "Try Alternate", attribute);
+        assertTrue(Arrays.equals(toArray(expected), toArray(actual)));
+        }
+
+    private static byte[] toArray(final ByteBuffer buf)
+        {
+        final byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+        }
+    }
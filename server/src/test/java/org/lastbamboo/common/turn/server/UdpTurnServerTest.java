@@ -0,0 +1,168 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.stun.stack.StunConstants;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageType;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
+import org.littleshoot.stun.stack.message.attributes.StunAttributeType;
+import org.littleshoot.stun.stack.message.attributes.StunAttributesFactoryImpl;
+import org.littleshoot.stun.stack.message.attributes.turn.DataAttribute;
+import org.littleshoot.stun.stack.message.attributes.turn.RelayAddressAttribute;
+import org.littleshoot.stun.stack.message.turn.AllocateRequest;
+import org.littleshoot.stun.stack.message.turn.ConnectRequest;
+import org.littleshoot.stun.stack.message.turn.SendIndication;
+import org.littleshoot.util.NetworkUtils;
+import org.littleshoot.util.mina.MinaUtils;
+
+/**
+ * Tests allocating and relaying over UDP, from the TURN client's Allocate
+ * Request through data in both directions on the UDP relay.
+ */
+public final class UdpTurnServerTest extends TestCase
+    {
+
+    private TurnClientManager m_clientManager;
+
+    private TurnServer m_server;
+
+    private DatagramSocket m_turnClientSocket;
+
+    protected void setUp() throws Exception
+        {
+        // A configured address means we don't wait on a metadata lookup.
+        final TurnServerConfig config = new TurnServerConfig();
+        config.setPublicAddress(NetworkUtils.getLocalHost().getHostAddress());
+        m_clientManager = new TurnClientManagerImpl(config);
+        m_server = new UdpTurnServer(m_clientManager, config);
+        m_server.start();
+        m_turnClientSocket = new DatagramSocket(
+            new InetSocketAddress(NetworkUtils.getLocalHost(), 0));
+        m_turnClientSocket.setSoTimeout(3000);
+        }
+
+    protected void tearDown() throws Exception
+        {
+        m_turnClientSocket.close();
+        m_server.stop();
+        m_clientManager.stop();
+        }
+
+    /**
+     * Tests that an Allocate Request over UDP gets a relay address.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testAllocate() throws Exception
+        {
+        final InetSocketAddress relayAddress = allocate();
+        assertTrue(relayAddress.getPort() > 0);
+
+        // Allocating again refreshes the same allocation.
+        assertEquals(relayAddress, allocate());
+        }
+
+    /**
+     * Tests relaying data from a remote host to the TURN client in a Data
+     * Indication, and back out of a Send Indication as a raw datagram.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testRelay() throws Exception
+        {
+        final InetSocketAddress relayAddress = allocate();
+        final DatagramSocket remoteHostSocket = new DatagramSocket(
+            new InetSocketAddress(NetworkUtils.getLocalHost(), 0));
+        try
+            {
+            remoteHostSocket.setSoTimeout(3000);
+            final InetSocketAddress remoteHostAddress =
+                (InetSocketAddress) remoteHostSocket.getLocalSocketAddress();
+
+            // Give the remote host permission to send to us.
+            write(new ConnectRequest(remoteHostAddress));
+            readMessage(StunMessageType.CONNECTION_STATUS_INDICATION);
+
+            final byte[] remoteHostMessage =
+                "HELLO FROM YOUR REMOTE HOST".getBytes("US-ASCII");
+            remoteHostSocket.send(new DatagramPacket(remoteHostMessage,
+                remoteHostMessage.length, new InetSocketAddress(
+                    NetworkUtils.getLocalHost(), relayAddress.getPort())));
+            final DataAttribute data = (DataAttribute) readMessage(
+                StunMessageType.DATA_INDICATION).get(StunAttributeType.DATA);
+            assertTrue(Arrays.equals(remoteHostMessage, data.getData()));
+
+            final byte[] turnClientMessage =
+                "HELLO FROM YOUR FRIENDLY TURN CLIENT".getBytes("US-ASCII");
+            write(new SendIndication(remoteHostAddress, turnClientMessage));
+            final DatagramPacket packet =
+                new DatagramPacket(new byte[1500], 1500);
+            remoteHostSocket.receive(packet);
+            assertTrue(Arrays.equals(turnClientMessage, Arrays.copyOf(
+                packet.getData(), packet.getLength())));
+            assertEquals(relayAddress.getPort(), packet.getPort());
+            }
+        finally
+            {
+            remoteHostSocket.close();
+            }
+        }
+
+    private InetSocketAddress allocate() throws Exception
+        {
+        write(new AllocateRequest());
+        final RelayAddressAttribute relayAddress = (RelayAddressAttribute)
+            readMessage(StunMessageType.ALLOCATE_SUCCESS_RESPONSE).get(
+                StunAttributeType.RELAY_ADDRESS);
+        assertNotNull("No relay address", relayAddress);
+        return relayAddress.getInetSocketAddress();
+        }
+
+    /**
+     * Reads datagrams until one has the expected type, skipping connection
+     * status updates we're not waiting for.
+     */
+    private Map<StunAttributeType, StunAttribute> readMessage(
+        final StunMessageType expectedType) throws Exception
+        {
+        while (true)
+            {
+            final DatagramPacket packet =
+                new DatagramPacket(new byte[1500], 1500);
+            m_turnClientSocket.receive(packet);
+            final ByteBuffer buf = ByteBuffer.wrap(packet.getData(), 0,
+                packet.getLength());
+            final StunMessageType type =
+                StunMessageType.toType(buf.getUnsignedShort());
+            final int length = buf.getUnsignedShort();
+            if (type != expectedType)
+                {
+                assertEquals(StunMessageType.CONNECTION_STATUS_INDICATION,
+                    type);
+                continue;
+                }
+            buf.skip(16);
+            buf.limit(buf.position() + length);
+            return new StunAttributesFactoryImpl().createAttributes(
+                buf.slice());
+            }
+        }
+
+    private void write(final StunMessage message) throws Exception
+        {
+        final byte[] bytes =
+            MinaUtils.toByteArray(new StunMessageEncoder().encode(message));
+        m_turnClientSocket.send(new DatagramPacket(bytes, bytes.length,
+            new InetSocketAddress(NetworkUtils.getLocalHost(),
+                StunConstants.STUN_PORT)));
+        }
+    }
@@ -0,0 +1,161 @@
+package org.lastbamboo.common.turn.server;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.turn.server.buffer.SizeClassedByteBufferAllocator;
+import org.lastbamboo.common.turn.stub.RecordingSession;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+
+/**
+ * Tests batching writes to a TURN client while a write is in flight.
+ */
+public final class WriteCoalescerTest extends TestCase
+    {
+
+    private SizeClassedByteBufferAllocator m_allocator;
+
+    private RecordingSession m_session;
+
+    protected void setUp() throws Exception
+        {
+        this.m_allocator = new SizeClassedByteBufferAllocator(10000);
+        ByteBuffer.setAllocator(this.m_allocator);
+        this.m_session =
+            new RecordingSession(new InetSocketAddress("1.1.1.1", 5332));
+        WriteCoalescer.install(this.m_session, 1000, 1000 * 1000);
+        }
+
+    protected void tearDown() throws Exception
+        {
+        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+        }
+
+    /**
+     * Tests that writes made while a write is in flight go out together
+     * once it's sent, and that the caller's buffers are left to the caller.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testBatching() throws Exception
+        {
+        final byte[] first = data(100, 1);
+        final byte[] second = data(100, 2);
+        final byte[] third = data(100, 3);
+        write(first);
+        assertEquals(1, this.m_session.getWritten().size());
+        write(second);
+        write(third);
+        final List<Object> written = this.m_session.getWritten();
+        assertEquals(1, written.size());
+
+        WriteCoalescer.messageSent(this.m_session, written.get(0));
+        assertEquals(2, this.m_session.getWritten().size());
+        assertTrue(Arrays.equals(concat(first, second, third),
+            this.m_session.send()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that data too big to batch goes out on its own, after anything
+     * already waiting.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testLargeWrite() throws Exception
+        {
+        final byte[] first = data(100, 1);
+        final byte[] second = data(100, 2);
+        final byte[] large = data(1000, 3);
+        write(first);
+        write(second);
+        write(large);
+        assertEquals(3, this.m_session.getWritten().size());
+        assertTrue(Arrays.equals(concat(first, second, large),
+            this.m_session.send()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that flushing writes anything waiting right away.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testFlush() throws Exception
+        {
+        final byte[] first = data(100, 1);
+        final byte[] second = data(100, 2);
+        write(first);
+        write(second);
+        assertEquals(1, this.m_session.getWritten().size());
+        WriteCoalescer.flush(this.m_session);
+        assertEquals(2, this.m_session.getWritten().size());
+        assertTrue(Arrays.equals(concat(first, second),
+            this.m_session.send()));
+        assertReleased();
+        }
+
+    /**
+     * Tests that closing the session releases anything waiting, and that
+     * later writes are dropped without touching the caller's buffers.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testClose() throws Exception
+        {
+        final byte[] first = data(100, 1);
+        write(first);
+        write(data(100, 2));
+        WriteCoalescer.sessionClosed(this.m_session);
+        write(data(100, 3));
+        assertTrue(Arrays.equals(first, this.m_session.send()));
+        assertReleased();
+        }
+
+    /**
+     * Writes data the way the handler does, with the buffer released once
+     * the write returns, as MINA releases the messages it hands us.
+     */
+    private void write(final byte[] data)
+        {
+        final ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        buffer.put(data);
+        buffer.flip();
+        WriteCoalescer.write(this.m_session, buffer);
+        buffer.release();
+        }
+
+    private void assertReleased()
+        {
+        assertEquals(this.m_allocator.getMisses(),
+            this.m_allocator.getPooledBuffers());
+        }
+
+    private static byte[] data(final int length, final int value)
+        {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+        }
+
+    private static byte[] concat(final byte[]... arrays)
+        {
+        int length = 0;
+        for (final byte[] array : arrays)
+            {
+            length += array.length;
+            }
+        final byte[] all = new byte[length];
+        int offset = 0;
+        for (final byte[] array : arrays)
+            {
+            System.arraycopy(array, 0, all, offset, array.length);
+            offset += array.length;
+            }
+        return all;
+        }
+    }
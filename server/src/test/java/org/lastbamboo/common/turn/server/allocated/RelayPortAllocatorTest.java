@@ -0,0 +1,64 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+
+/**
+ * Tests the class for allocating relay ports from a range.
+ */
+public final class RelayPortAllocatorTest extends TestCase
+    {
+
+    /**
+     * Tests allocating every port, running out, and getting ports back.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testAllocateAndRelease() throws Exception
+        {
+        final TurnMetrics metrics = new TurnMetrics();
+        final RelayPortAllocator ports = 
+            new RelayPortAllocator(50000, 50009, 0, metrics);
+        for (int i = 0; i < 10; i++)
+            {
+            assertEquals(50000 + i, ports.allocate());
+            }
+        assertEquals(10, metrics.getRelayPortsInUse());
+        assertEquals(-1, ports.allocate());
+        assertEquals(1, metrics.getRelayPortExhaustions());
+
+        // Releasing ports we didn't hand out, or twice, does nothing.
+        ports.release(40000);
+        ports.release(50003);
+        ports.release(50003);
+        ports.release(50001);
+        assertEquals(2, ports.getFreePorts());
+        assertEquals(8, metrics.getRelayPortsInUse());
+
+        // The port freed first comes back first.
+        assertEquals(50003, ports.allocate());
+        assertEquals(50001, ports.allocate());
+        assertEquals(-1, ports.allocate());
+        }
+
+    /**
+     * Tests that freed ports aren't reused during the quarantine.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testQuarantine() throws Exception
+        {
+        final TurnMetrics metrics = new TurnMetrics();
+        final RelayPortAllocator ports = 
+            new RelayPortAllocator(50000, 50001, 60 * 1000, metrics);
+        final int first = ports.allocate();
+        final int second = ports.allocate();
+        ports.release(first);
+        assertEquals(-1, ports.allocate());
+        assertEquals(1, ports.getFreePorts());
+        ports.release(second);
+        assertEquals(-1, ports.allocate());
+        assertEquals(2, metrics.getRelayPortExhaustions());
+        }
+    }
@@ -0,0 +1,349 @@
+package org.lastbamboo.common.turn.server.allocated;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.turn.server.FlowController;
+import org.lastbamboo.common.turn.server.RateLimiter;
+import org.lastbamboo.common.turn.server.TurnWireFormat;
+import org.lastbamboo.common.turn.server.buffer.SizeClassedByteBufferAllocator;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.lastbamboo.common.turn.server.timer.HashedWheelTimer;
+import org.lastbamboo.common.turn.server.timer.SessionReaper;
+import org.lastbamboo.common.turn.stub.NextFilterStub;
+import org.lastbamboo.common.turn.stub.RecordingSession;
+import org.lastbamboo.common.turn.stub.TurnClientStub;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.SimpleByteBufferAllocator;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.stun.stack.encoder.StunMessageEncoder;
+import org.littleshoot.stun.stack.message.turn.DataIndication;
+import org.littleshoot.util.mina.MinaUtils;
+
+/**
+ * Tests passing data from remote hosts to the TURN client, through the raw
+ * data filter and on to the handler.
+ */
+public final class TurnRawDataFilterTest extends TestCase
+    {
+
+    private static final InetSocketAddress PEER =
+        new InetSocketAddress("43.43.2.1", 5332);
+
+    private final HashedWheelTimer m_timer = new HashedWheelTimer();
+
+    private SizeClassedByteBufferAllocator m_allocator;
+
+    private RecordingSession m_clientSession;
+
+    private RecordingSession m_peerSession;
+
+    private TurnClientStub m_client;
+
+    private AllocatedTurnServerIoHandler m_handler;
+
+    protected void setUp() throws Exception
+        {
+        this.m_allocator = new SizeClassedByteBufferAllocator(10000);
+        ByteBuffer.setAllocator(this.m_allocator);
+        this.m_clientSession =
+            new RecordingSession(new InetSocketAddress("1.1.1.1", 5332));
+        this.m_peerSession = new RecordingSession(PEER);
+        this.m_client = new TurnClientStub(this.m_clientSession);
+        this.m_handler = new AllocatedTurnServerIoHandler(this.m_client,
+            new SessionReaper(this.m_timer, 60 * 1000),
+            new FlowController(0, 0),
+            new RateLimiter(this.m_timer, 0, 0, 0, 0), new TurnMetrics());
+        }
+
+    protected void tearDown() throws Exception
+        {
+        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+        this.m_timer.stop();
+        }
+
+    /**
+     * Tests that our Data Indications match the STUN stack's encoding byte
+     * for byte, apart from the transaction ID, including data that doesn't
+     * end on a 4 byte boundary.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testMatchesStunEncoding() throws Exception
+        {
+        final byte[] data = data(101);
+        final NextFilterStub next = new NextFilterStub();
+        new TurnRawDataFilter().messageReceived(next, this.m_peerSession,
+            read(data));
+        assertEquals(1, next.getMessages().size());
+        assertSameEncoding(data, next.getMessages().get(0));
+        }
+
+    /**
+     * Tests that data too big for one TURN message is split at the length
+     * limit, with each piece matching the STUN stack's encoding.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSplitAtLengthLimit() throws Exception
+        {
+        final byte[] data = data(TurnRawDataFilter.LENGTH_LIMIT + 7);
+        final NextFilterStub next = new NextFilterStub();
+        new TurnRawDataFilter().messageReceived(next, this.m_peerSession,
+            read(data));
+        final List<byte[]> messages = next.getMessages();
+        assertEquals(2, messages.size());
+        assertSameEncoding(
+            Arrays.copyOf(data, TurnRawDataFilter.LENGTH_LIMIT),
+            messages.get(0));
+        assertSameEncoding(Arrays.copyOfRange(data,
+            TurnRawDataFilter.LENGTH_LIMIT, data.length), messages.get(1));
+        }
+
+    /**
+     * Tests framing data from a remote host bound to a channel as padded
+     * ChannelData, split at the length limit.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testChannelData() throws Exception
+        {
+        this.m_peerSession.setAttribute(TurnRawDataFilter.CHANNEL_ATTRIBUTE,
+            Integer.valueOf(0x4001));
+        final byte[] data = data(TurnRawDataFilter.LENGTH_LIMIT + 5);
+        final NextFilterStub next = new NextFilterStub();
+        new TurnRawDataFilter().messageReceived(next, this.m_peerSession,
+            read(data));
+        final List<byte[]> messages = next.getMessages();
+        assertEquals(2, messages.size());
+        assertChannelData(Arrays.copyOf(data, TurnRawDataFilter.LENGTH_LIMIT),
+            messages.get(0));
+        assertChannelData(Arrays.copyOfRange(data,
+            TurnRawDataFilter.LENGTH_LIMIT, data.length), messages.get(1));
+        }
+
+    private static void assertChannelData(final byte[] data,
+        final byte[] actual)
+        {
+        final int padding = TurnWireFormat.padding(data.length);
+        assertEquals(TurnWireFormat.CHANNEL_HEADER_LENGTH + data.length +
+            padding, actual.length);
+        final java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(actual);
+        assertEquals(0x4001, buf.getShort() & 0xffff);
+        assertEquals(data.length, buf.getShort() & 0xffff);
+        final byte[] actualData = new byte[data.length];
+        buf.get(actualData);
+        assertTrue(Arrays.equals(data, actualData));
+        while (buf.hasRemaining())
+            {
+            assertEquals(0, buf.get());
+            }
+        }
+
+    /**
+     * Tests that the Data Indications we write to the TURN client survive
+     * MINA releasing them when the handler returns.  With the pooled
+     * allocator, a buffer released too early goes to the next allocation
+     * of its size while the write is still queued.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testPooledWrites() throws Exception
+        {
+        final byte[] first = data(200);
+        final byte[] second = data(300);
+        final TurnRawDataFilter filter = new TurnRawDataFilter();
+        final HandlerChain chain = new HandlerChain(this.m_handler);
+        filter.messageReceived(chain, this.m_peerSession, read(first));
+        filter.messageReceived(chain, this.m_peerSession, read(second));
+
+        // Anything given back to the pool gets scribbled over.
+        for (int i = 0; i < 10; i++)
+            {
+            scribble(ByteBuffer.allocate(256));
+            scribble(ByteBuffer.allocate(512));
+            }
+
+        final byte[] address = TurnWireFormat.encodeAddressAttribute(
+            TurnWireFormat.REMOTE_ADDRESS, PEER);
+        final java.nio.ByteBuffer written =
+            java.nio.ByteBuffer.wrap(this.m_clientSession.send());
+        assertIndication(written, address, first);
+        assertIndication(written, address, second);
+        assertFalse(written.hasRemaining());
+        assertEquals(this.m_allocator.getMisses(),
+            this.m_allocator.getPooledBuffers() + 20);
+        }
+
+    /**
+     * Tests that data from the active destination is written to the TURN
+     * client as is, and survives MINA releasing the read buffer.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testActiveDestination() throws Exception
+        {
+        this.m_client.setActiveDestination(PEER);
+        this.m_peerSession.setAttribute(
+            TurnRawDataFilter.ACTIVE_DESTINATION_ATTRIBUTE, Boolean.TRUE);
+        final byte[] first = data(200);
+        final byte[] second = data(300);
+        final TurnRawDataFilter filter = new TurnRawDataFilter();
+        final HandlerChain chain = new HandlerChain(this.m_handler);
+        filter.messageReceived(chain, this.m_peerSession, read(first));
+        filter.messageReceived(chain, this.m_peerSession, read(second));
+        for (int i = 0; i < 10; i++)
+            {
+            scribble(ByteBuffer.allocate(256));
+            scribble(ByteBuffer.allocate(512));
+            }
+
+        final byte[] written = this.m_clientSession.send();
+        final byte[] expected = new byte[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertTrue(Arrays.equals(expected, written));
+        assertEquals(this.m_allocator.getMisses(),
+            this.m_allocator.getPooledBuffers() + 20);
+        }
+
+    /**
+     * Tests that data from other remote hosts is dropped once the TURN
+     * client's connection is spliced to its active destination.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testDroppedWhileSpliced() throws Exception
+        {
+        this.m_client.setActiveDestination(
+            new InetSocketAddress("43.43.2.2", 5332));
+        final HandlerChain chain = new HandlerChain(this.m_handler);
+        new TurnRawDataFilter().messageReceived(chain, this.m_peerSession,
+            read(data(100)));
+        assertEquals(0, this.m_clientSession.getWritten().size());
+        assertEquals(this.m_allocator.getMisses(),
+            this.m_allocator.getPooledBuffers());
+        }
+
+    /**
+     * Tests that UDP data over the rate limits is dropped, leaving the
+     * buffer for MINA to release.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testDroppedOverRateLimit() throws Exception
+        {
+        final RecordingSession peerSession =
+            new RecordingSession(PEER, TransportType.DATAGRAM);
+        final AllocatedTurnServerIoHandler handler =
+            new AllocatedTurnServerIoHandler(this.m_client,
+                new SessionReaper(this.m_timer, 60 * 1000),
+                new FlowController(0, 0),
+                new RateLimiter(this.m_timer, 0, 0, 1000, 100),
+                new TurnMetrics());
+        new TurnRawDataFilter().messageReceived(new HandlerChain(handler),
+            peerSession, read(data(200)));
+        assertEquals(0, this.m_clientSession.getWritten().size());
+        assertEquals(this.m_allocator.getMisses(),
+            this.m_allocator.getPooledBuffers());
+        }
+
+    private static void scribble(final ByteBuffer buffer)
+        {
+        while (buffer.hasRemaining())
+            {
+            buffer.put((byte) 0xEE);
+            }
+        }
+
+    private static void assertIndication(final java.nio.ByteBuffer written,
+        final byte[] address, final byte[] data)
+        {
+        assertEquals(TurnWireFormat.DATA_INDICATION,
+            written.getShort() & 0xffff);
+        assertEquals(address.length + TurnWireFormat.ATTRIBUTE_HEADER_LENGTH +
+            data.length, written.getShort() & 0xffff);
+        assertEquals(0x2112A442, written.getInt());
+        written.position(written.position() + 12);
+        final byte[] actualAddress = new byte[address.length];
+        written.get(actualAddress);
+        assertTrue(Arrays.equals(address, actualAddress));
+        assertEquals(TurnWireFormat.DATA, written.getShort() & 0xffff);
+        assertEquals(data.length, written.getShort() & 0xffff);
+        final byte[] actualData = new byte[data.length];
+        written.get(actualData);
+        assertTrue(Arrays.equals(data, actualData));
+        }
+
+    /**
+     * Checks a Data Indication against the STUN stack's encoding.  The
+     * transaction IDs differ, so we skip them and check our magic cookie on
+     * its own.
+     */
+    private static void assertSameEncoding(final byte[] data,
+        final byte[] actual)
+        {
+        final byte[] expected = MinaUtils.toByteArray(
+            new StunMessageEncoder().encode(new DataIndication(PEER, data)));
+        assertEquals(expected.length, actual.length);
+        assertTrue(Arrays.equals(Arrays.copyOf(expected, 4),
+            Arrays.copyOf(actual, 4)));
+        assertEquals(0x2112A442,
+            java.nio.ByteBuffer.wrap(actual, 4, 4).getInt());
+        assertTrue(Arrays.equals(
+            Arrays.copyOfRange(expected, TurnWireFormat.HEADER_LENGTH,
+                expected.length),
+            Arrays.copyOfRange(actual, TurnWireFormat.HEADER_LENGTH,
+                actual.length)));
+        }
+
+    private static ByteBuffer read(final byte[] data)
+        {
+        final ByteBuffer in = ByteBuffer.allocate(data.length);
+        in.put(data);
+        in.flip();
+        return in;
+        }
+
+    private static byte[] data(final int length)
+        {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            {
+            data[i] = (byte) (i + 1);
+            }
+        return data;
+        }
+
+    /**
+     * Passes messages to the handler and then releases them, as MINA does.
+     */
+    private static final class HandlerChain extends NextFilterStub
+        {
+
+        private final AllocatedTurnServerIoHandler m_handler;
+
+        private HandlerChain(final AllocatedTurnServerIoHandler handler)
+            {
+            this.m_handler = handler;
+            }
+
+        @Override
+        public void messageReceived(final IoSession session,
+            final Object message)
+            {
+            try
+                {
+                this.m_handler.messageReceived(session, message);
+                }
+            finally
+                {
+                ((ByteBuffer) message).release();
+                }
+            }
+        }
+    }
@@ -0,0 +1,45 @@
+package org.lastbamboo.common.turn.server.buffer;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+
+/**
+ * Tests slices of read buffers.
+ */
+public final class ReadBufferSliceTest extends TestCase
+    {
+
+    /**
+     * Tests that a slice keeps its read buffer out of the pool until the
+     * slice is released, and that releasing it again fails.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testRelease() throws Exception
+        {
+        final SizeClassedByteBufferAllocator allocator =
+            new SizeClassedByteBufferAllocator(10);
+        final ByteBuffer read = allocator.allocate(64, false);
+        read.put(new byte[] {1, 2, 3, 4});
+        read.flip();
+        final ByteBuffer slice = new ReadBufferSlice(read, 1, 2);
+        assertEquals(2, slice.remaining());
+        assertEquals(2, slice.get(0));
+
+        read.release();
+        assertEquals(0, allocator.getPooledBuffers());
+        slice.release();
+        assertEquals(1, allocator.getPooledBuffers());
+        try
+            {
+            slice.release();
+            fail("Should not be able to release twice");
+            }
+        catch (final IllegalStateException e)
+            {
+            // Expected.
+            }
+        assertEquals(1, allocator.getPooledBuffers());
+        }
+    }
@@ -0,0 +1,141 @@
+package org.lastbamboo.common.turn.server.buffer;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+
+/**
+ * Tests the pooled buffer allocator.
+ */
+public final class SizeClassedByteBufferAllocatorTest extends TestCase
+    {
+
+    /**
+     * Tests that released buffers are reused for allocations in the same
+     * size class, and only once they're fully released.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testReuse() throws Exception
+        {
+        final SizeClassedByteBufferAllocator allocator =
+            new SizeClassedByteBufferAllocator(10);
+
+        final ByteBuffer first = allocator.allocate(1000, false);
+        assertEquals(1000, first.remaining());
+        assertEquals(1024, first.capacity());
+        assertEquals(0, allocator.getHits());
+        assertEquals(1, allocator.getMisses());
+
+        first.acquire();
+        first.release();
+        assertEquals(0, allocator.getPooledBuffers());
+        first.release();
+        assertEquals(1, allocator.getPooledBuffers());
+
+        final ByteBuffer second = allocator.allocate(600, false);
+        assertEquals(600, second.remaining());
+        assertEquals(1, allocator.getHits());
+        assertEquals(0, allocator.getPooledBuffers());
+
+        // Different size classes and direct buffers have their own pools.
+        allocator.allocate(100, false).release();
+        allocator.allocate(600, true).release();
+        assertEquals(1, allocator.getHits());
+        assertEquals(2, allocator.getPooledBuffers());
+        }
+
+    /**
+     * Tests that releasing a buffer too many times fails rather than
+     * putting it in the pool twice.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testDoubleRelease() throws Exception
+        {
+        final SizeClassedByteBufferAllocator allocator =
+            new SizeClassedByteBufferAllocator(10);
+        final ByteBuffer buf = allocator.allocate(64, false);
+        buf.release();
+        try
+            {
+            buf.release();
+            fail("Should not be able to release twice");
+            }
+        catch (final IllegalStateException e)
+            {
+            // Expected.
+            }
+        assertEquals(1, allocator.getPooledBuffers());
+        }
+
+    /**
+     * Tests that a duplicate keeps its buffer out of the pool, so later
+     * allocations can't write over what the duplicate sees.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testDuplicate() throws Exception
+        {
+        final SizeClassedByteBufferAllocator allocator =
+            new SizeClassedByteBufferAllocator(10);
+        final ByteBuffer buf = allocator.allocate(64, false);
+        buf.putInt(42);
+        buf.flip();
+        final ByteBuffer duplicate = buf.duplicate();
+        final ByteBuffer slice = buf.slice();
+        buf.release();
+        assertEquals(0, allocator.getPooledBuffers());
+
+        final ByteBuffer other = allocator.allocate(64, false);
+        other.putInt(7);
+        assertEquals(42, duplicate.getInt());
+        assertEquals(42, slice.getInt(0));
+
+        duplicate.release();
+        assertEquals(0, allocator.getPooledBuffers());
+        slice.release();
+        assertEquals(1, allocator.getPooledBuffers());
+        other.release();
+        assertEquals(2, allocator.getPooledBuffers());
+        }
+
+    /**
+     * Tests that expanding a buffer with views doesn't hand the memory the
+     * views share back to the pool.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testExpandWithView() throws Exception
+        {
+        final SizeClassedByteBufferAllocator allocator =
+            new SizeClassedByteBufferAllocator(10);
+        final ByteBuffer buf = allocator.allocate(64, false);
+        buf.putInt(42);
+        buf.flip();
+        final ByteBuffer duplicate = buf.duplicate();
+        buf.capacity(1000);
+        assertEquals(0, allocator.getPooledBuffers());
+
+        allocator.allocate(64, false).putInt(7);
+        assertEquals(42, duplicate.getInt());
+        duplicate.release();
+        buf.release();
+        assertEquals(1, allocator.getPooledBuffers());
+        }
+
+    /**
+     * Tests that buffers larger than the biggest size class aren't pooled.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testOversized() throws Exception
+        {
+        final SizeClassedByteBufferAllocator allocator =
+            new SizeClassedByteBufferAllocator(10);
+        final ByteBuffer buf = allocator.allocate(1 << 20, false);
+        assertFalse(buf.isPooled());
+        buf.release();
+        assertEquals(0, allocator.getPooledBuffers());
+        }
+    }
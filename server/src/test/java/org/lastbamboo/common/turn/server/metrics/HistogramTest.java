@@ -0,0 +1,86 @@
+package org.lastbamboo.common.turn.server.metrics;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the metrics histogram.
+ */
+public final class HistogramTest extends TestCase
+    {
+
+    /**
+     * Tests that quantiles are within the bucket precision.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testQuantiles() throws Exception
+        {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.5));
+        for (int i = 1; i <= 100000; i++)
+            {
+            histogram.record(i);
+            }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertClose(50000, histogram.getValueAtQuantile(0.5));
+        assertClose(99000, histogram.getValueAtQuantile(0.99));
+        assertClose(99900, histogram.getValueAtQuantile(0.999));
+        assertEquals(100000, histogram.getValueAtQuantile(1.0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        }
+
+    /**
+     * Tests that small values are exact.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSmallValues() throws Exception
+        {
+        final Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(7);
+        assertEquals(0, histogram.getValueAtQuantile(0.3));
+        assertEquals(3, histogram.getValueAtQuantile(0.5));
+        assertEquals(7, histogram.getValueAtQuantile(0.9));
+        }
+
+    /**
+     * Tests that striped counters add up across threads.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testStripedCounter() throws Exception
+        {
+        final StripedCounter counter = new StripedCounter();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+            {
+            threads[i] = new Thread(new Runnable()
+                {
+                public void run()
+                    {
+                    for (int j = 0; j < 10000; j++)
+                        {
+                        counter.increment();
+                        }
+                    }
+                });
+            threads[i].start();
+            }
+        for (final Thread thread : threads)
+            {
+            thread.join();
+            }
+        assertEquals(80000, counter.get());
+        }
+
+    private static void assertClose(final long expected, final long actual)
+        {
+        assertTrue("Expected about " + expected + " but was " + actual,
+            Math.abs(actual - expected) <= expected * 0.04);
+        }
+    }
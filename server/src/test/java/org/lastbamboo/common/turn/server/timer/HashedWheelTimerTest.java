@@ -0,0 +1,77 @@
+package org.lastbamboo.common.turn.server.timer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the timer wheel.
+ */
+public final class HashedWheelTimerTest extends TestCase
+    {
+
+    private HashedWheelTimer m_timer;
+
+    protected void setUp() throws Exception
+        {
+        // A tiny wheel so timeouts have to go around it more than once.
+        m_timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 4,
+            "Test-Timer");
+        }
+
+    protected void tearDown() throws Exception
+        {
+        m_timer.stop();
+        }
+
+    /**
+     * Tests that timeouts fire, and not before they're due.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testSchedule() throws Exception
+        {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+        final HashedWheelTimer.Timeout timeout = m_timer.schedule(
+            new Runnable()
+            {
+            public void run()
+                {
+                latch.countDown();
+                }
+            }, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 190);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        }
+
+    /**
+     * Tests that cancelled timeouts don't fire.
+     *
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testCancel() throws Exception
+        {
+        final AtomicInteger fired = new AtomicInteger();
+        final Runnable task = new Runnable()
+            {
+            public void run()
+                {
+                fired.incrementAndGet();
+                }
+            };
+        final HashedWheelTimer.Timeout cancelled =
+            m_timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+        m_timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+
+        Thread.sleep(300);
+        assertEquals(1, fired.get());
+        }
+    }
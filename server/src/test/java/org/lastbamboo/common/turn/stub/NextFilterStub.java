@@ -0,0 +1,121 @@
+package org.lastbamboo.common.turn.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IdleStatus;
+import org.littleshoot.mina.common.IoFilter.NextFilter;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * The rest of a filter chain for tests.  This records the bytes of each
+ * message a filter passes on and then releases the message, as MINA does
+ * once the handler returns.  Tasks passed on wait until the test runs them,
+ * as they would for the session's executor.
+ */
+public class NextFilterStub implements NextFilter
+    {
+
+    private final List<byte[]> m_messages = new ArrayList<byte[]>();
+
+    private final List<Runnable> m_tasks = new ArrayList<Runnable>();
+
+    public void messageReceived(final IoSession session,
+        final Object message)
+        {
+        if (message instanceof Runnable)
+            {
+            this.m_tasks.add((Runnable) message);
+            return;
+            }
+        final ByteBuffer buffer = (ByteBuffer) message;
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        this.m_messages.add(bytes);
+        buffer.release();
+        }
+
+    /**
+     * Runs the tasks passed on so far, in order.
+     */
+    public void runTasks()
+        {
+        while (!this.m_tasks.isEmpty())
+            {
+            this.m_tasks.remove(0).run();
+            }
+        }
+
+    /**
+     * Returns the number of tasks passed on that haven't run.
+     *
+     * @return The number of tasks waiting.
+     */
+    public int getTasks()
+        {
+        return this.m_tasks.size();
+        }
+
+    /**
+     * Returns the bytes of each message passed on.
+     *
+     * @return The messages, in order.
+     */
+    public List<byte[]> getMessages()
+        {
+        return this.m_messages;
+        }
+
+    /**
+     * Returns the bytes of all the messages passed on, as the stream the
+     * next filter saw.
+     *
+     * @return The bytes of all the messages, in order.
+     */
+    public byte[] getBytes()
+        {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] message : this.m_messages)
+            {
+            out.write(message, 0, message.length);
+            }
+        return out.toByteArray();
+        }
+
+    public void sessionCreated(final IoSession session)
+        {
+        }
+
+    public void sessionOpened(final IoSession session)
+        {
+        }
+
+    public void sessionClosed(final IoSession session)
+        {
+        }
+
+    public void sessionIdle(final IoSession session, final IdleStatus status)
+        {
+        }
+
+    public void exceptionCaught(final IoSession session,
+        final Throwable cause)
+        {
+        }
+
+    public void messageSent(final IoSession session, final Object message)
+        {
+        }
+
+    public void filterWrite(final IoSession session,
+        final WriteRequest writeRequest)
+        {
+        }
+
+    public void filterClose(final IoSession session)
+        {
+        }
+    }
@@ -0,0 +1,221 @@
+package org.lastbamboo.common.turn.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.CloseFuture;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.mina.common.WriteFuture;
+
+/**
+ * Session for tests that keeps attributes and records what's written to it.
+ * Writes stay queued until the test calls {@link #send()}, which hands the
+ * buffers back to the allocator the way MINA would once they hit the
+ * socket.  That leaves room to check nothing touched a buffer while its
+ * write was pending.
+ */
+public class RecordingSession extends IoSessionStub
+    {
+
+    private final Map<String, Object> m_attributes =
+        new ConcurrentHashMap<String, Object>();
+
+    private final List<Object> m_written = new ArrayList<Object>();
+
+    private final TransportType m_transportType;
+
+    private volatile boolean m_connected = true;
+
+    private boolean m_readSuspended;
+
+    private int m_suspensions;
+
+    private int m_resumptions;
+
+    private int m_scheduledWriteBytes;
+
+    /**
+     * Creates a new TCP session.
+     *
+     * @param remoteAddress The address of the other side.
+     */
+    public RecordingSession(final InetSocketAddress remoteAddress)
+        {
+        this(remoteAddress, TransportType.SOCKET);
+        }
+
+    /**
+     * Creates a new session.
+     *
+     * @param remoteAddress The address of the other side.
+     * @param transportType The transport.
+     */
+    public RecordingSession(final InetSocketAddress remoteAddress,
+        final TransportType transportType)
+        {
+        super(remoteAddress);
+        this.m_transportType = transportType;
+        }
+
+    @Override
+    public synchronized WriteFuture write(final Object message)
+        {
+        this.m_written.add(message);
+        return null;
+        }
+
+    /**
+     * Returns the messages written since the last {@link #send()}.
+     *
+     * @return The messages, in the order they were written.
+     */
+    public synchronized List<Object> getWritten()
+        {
+        return new ArrayList<Object>(this.m_written);
+        }
+
+    /**
+     * Sends everything written so far, releasing each buffer.
+     *
+     * @return The bytes the other side would read, in order.
+     */
+    public synchronized byte[] send()
+        {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final Object message : this.m_written)
+            {
+            final ByteBuffer buffer = (ByteBuffer) message;
+            for (int i = buffer.position(); i < buffer.limit(); i++)
+                {
+                out.write(buffer.get(i));
+                }
+            buffer.release();
+            }
+        this.m_written.clear();
+        return out.toByteArray();
+        }
+
+    @Override
+    public CloseFuture close()
+        {
+        this.m_connected = false;
+        return null;
+        }
+
+    @Override
+    public boolean isConnected()
+        {
+        return this.m_connected;
+        }
+
+    @Override
+    public TransportType getTransportType()
+        {
+        return this.m_transportType;
+        }
+
+    @Override
+    public long getLastIoTime()
+        {
+        return System.currentTimeMillis();
+        }
+
+    @Override
+    public synchronized void suspendRead()
+        {
+        this.m_readSuspended = true;
+        this.m_suspensions++;
+        }
+
+    @Override
+    public synchronized void resumeRead()
+        {
+        this.m_readSuspended = false;
+        this.m_resumptions++;
+        }
+
+    /**
+     * Returns whether reads are suspended.
+     *
+     * @return <code>true</code> if reads are suspended.
+     */
+    public synchronized boolean isReadSuspended()
+        {
+        return this.m_readSuspended;
+        }
+
+    /**
+     * Returns the number of calls to {@link #suspendRead()}.
+     *
+     * @return The number of suspensions.
+     */
+    public synchronized int getSuspensions()
+        {
+        return this.m_suspensions;
+        }
+
+    /**
+     * Returns the number of calls to {@link #resumeRead()}.
+     *
+     * @return The number of resumptions.
+     */
+    public synchronized int getResumptions()
+        {
+        return this.m_resumptions;
+        }
+
+    @Override
+    public synchronized int getScheduledWriteBytes()
+        {
+        return this.m_scheduledWriteBytes;
+        }
+
+    /**
+     * Sets the bytes we report as waiting to be written.
+     *
+     * @param bytes The bytes waiting to be written.
+     */
+    public synchronized void setScheduledWriteBytes(final int bytes)
+        {
+        this.m_scheduledWriteBytes = bytes;
+        }
+
+    @Override
+    public Object getAttribute(final String key)
+        {
+        return this.m_attributes.get(key);
+        }
+
+    @Override
+    public Object setAttribute(final String key, final Object value)
+        {
+        if (value == null)
+            {
+            return this.m_attributes.remove(key);
+            }
+        return this.m_attributes.put(key, value);
+        }
+
+    @Override
+    public Object setAttribute(final String key)
+        {
+        return setAttribute(key, Boolean.TRUE);
+        }
+
+    @Override
+    public Object removeAttribute(final String key)
+        {
+        return this.m_attributes.remove(key);
+        }
+
+    @Override
+    public boolean containsAttribute(final String key)
+        {
+        return this.m_attributes.containsKey(key);
+        }
+    }
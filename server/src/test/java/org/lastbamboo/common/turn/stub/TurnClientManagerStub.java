@@ -0,0 +1,73 @@
+package org.lastbamboo.common.turn.stub;
+
+import java.net.InetSocketAddress;
+
+import org.lastbamboo.common.turn.server.TurnClient;
+import org.lastbamboo.common.turn.server.TurnClientManager;
+import org.lastbamboo.common.turn.server.metrics.TurnMetrics;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Client manager for tests with a single TURN client.
+ */
+public class TurnClientManagerStub implements TurnClientManager
+    {
+
+    private final TurnMetrics m_metrics = new TurnMetrics();
+
+    private volatile TurnClient m_client;
+
+    /**
+     * Creates a new manager.
+     *
+     * @param client The client to return for every session.
+     */
+    public TurnClientManagerStub(final TurnClient client)
+        {
+        this.m_client = client;
+        }
+
+    /**
+     * Sets the client to return from now on, as when it's allocated.
+     *
+     * @param client The client to return for every session.
+     */
+    public void setTurnClient(final TurnClient client)
+        {
+        this.m_client = client;
+        }
+
+    public TurnClient allocateBinding(final IoSession readerWriter)
+        {
+        return this.m_client;
+        }
+
+    public void whenReady(final Runnable task, final Runnable expired)
+        {
+        task.run();
+        }
+
+    public InetSocketAddress getAlternateServer()
+        {
+        return null;
+        }
+
+    public TurnClient getTurnClient(final IoSession readerWriter)
+        {
+        return this.m_client;
+        }
+
+    public TurnClient removeBinding(final IoSession readerWriter)
+        {
+        return this.m_client;
+        }
+
+    public TurnMetrics getMetrics()
+        {
+        return this.m_metrics;
+        }
+
+    public void stop()
+        {
+        }
+    }
@@ -0,0 +1,206 @@
+package org.lastbamboo.common.turn.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lastbamboo.common.turn.server.PeerKey;
+import org.lastbamboo.common.turn.server.TurnClient;
+import org.lastbamboo.common.turn.server.metrics.PacketTrace;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * TURN client for tests that records the data relayed to each remote host.
+ * Relayed buffers are released as soon as they're recorded, as if the
+ * write to the remote host finished right away.
+ */
+public class TurnClientStub implements TurnClient
+    {
+
+    private final IoSession m_ioSession;
+
+    private final Map<InetSocketAddress, ByteArrayOutputStream> m_relayed =
+        new HashMap<InetSocketAddress, ByteArrayOutputStream>();
+
+    private final Map<Integer, InetSocketAddress> m_channels =
+        new HashMap<Integer, InetSocketAddress>();
+
+    private InetSocketAddress m_activeDestination;
+
+    private int m_writes;
+
+    /**
+     * Creates a new TURN client.
+     *
+     * @param ioSession The TURN client's session.
+     */
+    public TurnClientStub(final IoSession ioSession)
+        {
+        this.m_ioSession = ioSession;
+        }
+
+    public synchronized boolean write(final InetSocketAddress remoteAddress,
+        final ByteBuffer data)
+        {
+        this.m_writes++;
+        ByteArrayOutputStream out = this.m_relayed.get(remoteAddress);
+        if (out == null)
+            {
+            out = new ByteArrayOutputStream();
+            this.m_relayed.put(remoteAddress, out);
+            }
+        while (data.hasRemaining())
+            {
+            out.write(data.get());
+            }
+        data.release();
+        return true;
+        }
+
+    public boolean write(final PeerKey remoteHost, final ByteBuffer data)
+        {
+        return write(remoteHost.toSocketAddress(), data);
+        }
+
+    public synchronized boolean bindChannel(final int channelNumber,
+        final InetSocketAddress remoteAddress)
+        {
+        this.m_channels.put(Integer.valueOf(channelNumber), remoteAddress);
+        return true;
+        }
+
+    public boolean writeChannel(final int channelNumber,
+        final ByteBuffer data)
+        {
+        final InetSocketAddress remoteAddress;
+        synchronized (this)
+            {
+            remoteAddress = this.m_channels.get(Integer.valueOf(channelNumber));
+            }
+        if (remoteAddress == null)
+            {
+            return false;
+            }
+        return write(remoteAddress, data);
+        }
+
+    /**
+     * Returns the data relayed to a remote host.
+     *
+     * @param remoteAddress The address of the remote host.
+     * @return The data, in the order it was relayed.
+     */
+    public synchronized byte[] getRelayed(
+        final InetSocketAddress remoteAddress)
+        {
+        final ByteArrayOutputStream out = this.m_relayed.get(remoteAddress);
+        return out == null ? new byte[0] : out.toByteArray();
+        }
+
+    /**
+     * Returns the number of writes to remote hosts.  Data that spans reads
+     * takes more than one.
+     *
+     * @return The number of writes.
+     */
+    public synchronized int getWrites()
+        {
+        return this.m_writes;
+        }
+
+    /**
+     * Returns the remote host bound to a channel.
+     *
+     * @param channelNumber The channel number.
+     * @return The remote host, or <code>null</code> if the channel isn't
+     * bound.
+     */
+    public synchronized InetSocketAddress getChannel(final int channelNumber)
+        {
+        return this.m_channels.get(Integer.valueOf(channelNumber));
+        }
+
+    public void handleConnect(final InetSocketAddress socketAddress)
+        {
+        }
+
+    public InetSocketAddress getRelayAddress()
+        {
+        return null;
+        }
+
+    public void close()
+        {
+        }
+
+    public IoSession getIoSession()
+        {
+        return this.m_ioSession;
+        }
+
+    public synchronized boolean setActiveDestination(
+        final InetSocketAddress remoteAddress)
+        {
+        this.m_activeDestination = remoteAddress;
+        return true;
+        }
+
+    public synchronized boolean hasActiveDestination()
+        {
+        return this.m_activeDestination != null;
+        }
+
+    /**
+     * Returns the active destination.
+     *
+     * @return The active destination, or <code>null</code> if there isn't
+     * one.
+     */
+    public synchronized InetSocketAddress getActiveDestination()
+        {
+        return this.m_activeDestination;
+        }
+
+    public boolean hasIncomingPermission(final IoSession session)
+        {
+        return true;
+        }
+
+    public void addConnection(final IoSession session)
+        {
+        }
+
+    public void removeConnection(final IoSession session)
+        {
+        }
+
+    public int getNumConnections()
+        {
+        return 0;
+        }
+
+    public PacketTrace getPacketTrace()
+        {
+        return null;
+        }
+
+    public void setPacketTrace(final PacketTrace trace)
+        {
+        }
+
+    public void startServer()
+        {
+        }
+
+    public long getAllocationTime()
+        {
+        return 0;
+        }
+
+    public InetSocketAddress getMappedAddress()
+        {
+        return (InetSocketAddress) this.m_ioSession.getRemoteAddress();
+        }
+    }